@@ -0,0 +1,151 @@
+package net.i2p.i2ptunnel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Hash;
+
+/**
+ *  Byte and flush counters for the I2PTunnelRunners of one tunnel.
+ *
+ *  Runners don't know their tunnel, so these are kept per local destination.
+ *  Shared clients share a destination, so their counts are combined.
+ *  They are removed when the destination's session is destroyed,
+ *  i.e. when the last tunnel using it is stopped, or a client tunnel
+ *  gets a new destination on resume.
+ *
+ *  The flushes are also added to the global rate stats
+ *  i2ptunnel.runner.flush and i2ptunnel.runner.flushDeferred,
+ *  with the number of bytes forwarded since the last flush.
+ *
+ *  @since 0.9.21
+ */
+public class ForwardingStats {
+
+    private static final ConcurrentHashMap<Hash, ForwardingStats> _stats = new ConcurrentHashMap<Hash, ForwardingStats>(16);
+    /** don't recalculate the rates more often than this */
+    private static final long MIN_RATE_PERIOD = 1000;
+    private static final long[] RATES = { 60*1000, 10*60*1000, 60*60*1000 };
+
+    private final I2PAppContext _context;
+    private final AtomicLong _sent = new AtomicLong();
+    private final AtomicLong _received = new AtomicLong();
+    private final AtomicLong _flushes = new AtomicLong();
+    private final AtomicLong _deferred = new AtomicLong();
+    // following are synchronized on this
+    private long _lastRateTime;
+    private long _lastSent;
+    private long _lastReceived;
+    private long _sendBps;
+    private long _receiveBps;
+
+    private ForwardingStats(I2PAppContext ctx) {
+        _context = ctx;
+        _lastRateTime = ctx.clock().now();
+        ctx.statManager().createRateStat("i2ptunnel.runner.flush", "Bytes forwarded to I2P before a flush", "I2PTunnel", RATES);
+        ctx.statManager().createRateStat("i2ptunnel.runner.flushDeferred", "Bytes forwarded to I2P before a flush that waited for the window to open", "I2PTunnel", RATES);
+    }
+
+    /**
+     *  @param local the tunnel's destination hash
+     *  @return non-null, created if necessary
+     */
+    static ForwardingStats getInstance(I2PAppContext ctx, Hash local) {
+        ForwardingStats rv = _stats.get(local);
+        if (rv == null) {
+            rv = new ForwardingStats(ctx);
+            ForwardingStats old = _stats.putIfAbsent(local, rv);
+            if (old != null)
+                rv = old;
+        }
+        return rv;
+    }
+
+    /**
+     *  @param local the tunnel's destination hash
+     *  @return null if nothing has been forwarded for this destination
+     */
+    public static ForwardingStats getInstance(Hash local) {
+        return _stats.get(local);
+    }
+
+    /**
+     *  Drop the stats for a destination that is going away.
+     *  Any runners still holding them keep counting, but they won't be found.
+     *
+     *  @param local the tunnel's destination hash
+     */
+    static void remove(Hash local) {
+        _stats.remove(local);
+    }
+
+    void addSent(int len) {
+        _sent.addAndGet(len);
+    }
+
+    void addReceived(int len) {
+        _received.addAndGet(len);
+    }
+
+    /**
+     *  @param len bytes forwarded since the last flush
+     */
+    void flushed(int len) {
+        _flushes.incrementAndGet();
+        _context.statManager().addRateData("i2ptunnel.runner.flush", len);
+    }
+
+    /**
+     *  @param len bytes forwarded since the last flush
+     */
+    void flushDeferred(int len) {
+        _deferred.incrementAndGet();
+        _context.statManager().addRateData("i2ptunnel.runner.flushDeferred", len);
+    }
+
+    /** total bytes forwarded to I2P */
+    public long getSent() { return _sent.get(); }
+
+    /** total bytes forwarded from I2P */
+    public long getReceived() { return _received.get(); }
+
+    /** flushes to I2P when the local side ran dry */
+    public long getFlushes() { return _flushes.get(); }
+
+    /** flushes to I2P left to the streaming lib because the outbound window was full */
+    public long getDeferredFlushes() { return _deferred.get(); }
+
+    /** bytes per second forwarded to I2P, averaged since the previous call (or at least one second) */
+    public synchronized long getSendBps() {
+        updateRates();
+        return _sendBps;
+    }
+
+    /** bytes per second forwarded from I2P, averaged since the previous call (or at least one second) */
+    public synchronized long getReceiveBps() {
+        updateRates();
+        return _receiveBps;
+    }
+
+    /** caller must synch */
+    private void updateRates() {
+        long now = _context.clock().now();
+        long period = now - _lastRateTime;
+        if (period < MIN_RATE_PERIOD)
+            return;
+        long sent = _sent.get();
+        long rcvd = _received.get();
+        _sendBps = (sent - _lastSent) * 1000 / period;
+        _receiveBps = (rcvd - _lastReceived) * 1000 / period;
+        _lastSent = sent;
+        _lastReceived = rcvd;
+        _lastRateTime = now;
+    }
+
+    @Override
+    public String toString() {
+        return "sent " + getSent() + " rcvd " + getReceived() +
+               " flushes " + getFlushes() + " deferred " + getDeferredFlushes();
+    }
+}
@@ -9,10 +9,12 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -225,6 +227,9 @@ public abstract class I2PTunnelClientBase extends I2PTunnelTask implements Runna
                            Boolean.parseBoolean(getTunnel().getClientOptions().getProperty("i2cp.newDestOnResume"))) {
                     // build a new socket manager and a new dest if the session is closed.
                     getTunnel().removeSession(sess);
+                    Destination oldDest = sess.getMyDestination();
+                    if (oldDest != null)
+                        ForwardingStats.remove(oldDest.calculateHash());
                     if (_log.shouldLog(Log.WARN))
                         _log.warn(getTunnel().getClientOptions().getProperty("inbound.nickname") + ": Built a new destination on resume");
                     // make sure the old one is closed
@@ -684,6 +689,10 @@ public abstract class I2PTunnelClientBase extends I2PTunnelTask implements Runna
                 SSLServerSocketFactory fact = SSLClientUtil.initializeFactory(opts);
                 ss = fact.createServerSocket(localPort, 0, addr);
                 I2PSSLSocketFactory.setProtocolsAndCiphers((SSLServerSocket) ss);
+            } else if (I2PTunnelRunner.useSocketChannels()) {
+                // accepted sockets have channels for the runner
+                ss = ServerSocketChannel.open().socket();
+                ss.bind(new InetSocketAddress(addr, localPort), 0);
             } else {
                 ss = new ServerSocket(localPort, 0, addr);
             }
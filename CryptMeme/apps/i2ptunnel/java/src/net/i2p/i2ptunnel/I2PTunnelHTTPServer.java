@@ -30,7 +30,6 @@ import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.util.ByteCache;
 import net.i2p.util.EventDispatcher;
-import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
 
 /**
@@ -541,8 +540,8 @@ public class I2PTunnelHTTPServer extends I2PTunnelServer {
                 // beware interference with Shoutcast, etc.?
                 if ((!(_headers.startsWith("GET ") || _headers.startsWith("HEAD "))) ||
                     browserin.available() > 0) {  // just in case
-                    I2PAppThread sender = new I2PAppThread(new Sender(serverout, browserin, "server: browser to server", _log),
-                                                                      Thread.currentThread().getName() + "hcs");
+                    Thread sender = VirtualThreads.newThread(new Sender(serverout, browserin, "server: browser to server", _log),
+                                                             Thread.currentThread().getName() + "hcs");
                     sender.start();
                 } else {
                     // todo - half close? reduce MessageInputStream buffer size?
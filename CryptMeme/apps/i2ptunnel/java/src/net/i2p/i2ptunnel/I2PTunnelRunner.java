@@ -10,13 +10,18 @@ import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLException;
 
 import net.i2p.I2PAppContext;
 import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.I2PStreamChannel;
 import net.i2p.data.ByteArray;
 import net.i2p.data.DataHelper;
 import net.i2p.util.ByteCache;
@@ -24,6 +29,8 @@ import net.i2p.util.Clock;
 import net.i2p.util.I2PAppThread;
 import net.i2p.util.InternalSocket;
 import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer;
+import net.i2p.util.SimpleTimer2;
 
 /**
  *  A thread that starts two more threads, one to forward traffic in each direction.
@@ -45,6 +52,21 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
 
     static final int NETWORK_BUFFER_SIZE = MAX_PACKET_SIZE;
 
+    /**
+     *  If true, and running on Java 13 or higher, local sockets for non-SSL tunnels
+     *  are opened as SocketChannels, and the forwarder to I2P reads them
+     *  into pooled direct buffers. Default false.
+     *  Earlier socket adaptors block writes to the socket's stream
+     *  while another thread is in a read, and the HTTP server does that.
+     *  @since 0.9.21
+     */
+    public static final String PROP_SOCKET_CHANNELS = "i2ptunnel.socketChannels";
+    private static final int CHANNEL_JAVA_VERSION = 13;
+    private static final int MAX_CACHED_BUFS = 32;
+    private static final LinkedBlockingQueue<ByteBuffer> _bufCache = new LinkedBlockingQueue<ByteBuffer>(MAX_CACHED_BUFS);
+    /** how long to wait for writable() before checking again */
+    private static final long WINDOW_WAIT = 1000;
+
     private final Socket s;
     private final I2PSocket i2ps;
     private final Object slock, finishLock = new Object();
@@ -61,6 +83,9 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
     private final FailCallback _onFail;
     private long totalSent;
     private long totalReceived;
+    /** for the channel forwarder, set by writable() */
+    private final Object _windowLock = new Object();
+    private boolean _windowOpen;
 
     /**
      *  For use in new constructor
@@ -223,6 +248,60 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
 
     protected InputStream getSocketIn() throws IOException { return s.getInputStream(); }
     protected OutputStream getSocketOut() throws IOException { return s.getOutputStream(); }
+
+    /**
+     *  The forwarder to I2P reads this directly instead of getSocketIn().
+     *  Extending classes that override getSocketIn() must override this to return null.
+     *
+     *  @return the socket's channel, or null to use getSocketIn()
+     *  @since 0.9.21
+     */
+    protected SocketChannel getSocketChannel() {
+        return s.getChannel();
+    }
+
+    /**
+     *  Should non-SSL local sockets be opened as SocketChannels?
+     *  See PROP_SOCKET_CHANNELS.
+     *
+     *  @since 0.9.21
+     */
+    static boolean useSocketChannels() {
+        if (!I2PAppContext.getGlobalContext().getBooleanProperty(PROP_SOCKET_CHANNELS))
+            return false;
+        // "1.8", "11", "17.0.1"...
+        String v = System.getProperty("java.specification.version", "1");
+        if (v.startsWith("1."))
+            return false;
+        int dot = v.indexOf('.');
+        if (dot > 0)
+            v = v.substring(0, dot);
+        try {
+            return Integer.parseInt(v) >= CHANNEL_JAVA_VERSION;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    /**
+     *  A direct buffer of NETWORK_BUFFER_SIZE from the pool
+     *  @since 0.9.21
+     */
+    private static ByteBuffer acquireBuf() {
+        ByteBuffer rv = _bufCache.poll();
+        if (rv == null)
+            rv = ByteBuffer.allocateDirect(NETWORK_BUFFER_SIZE);
+        return rv;
+    }
+
+    /**
+     *  Return a buffer from acquireBuf() to the pool
+     *  @since 0.9.21
+     */
+    private static void releaseBuf(ByteBuffer buf) {
+        buf.clear();
+        _bufCache.offer(buf);
+    }
     
     private static final byte[] POST = { 'P', 'O', 'S', 'T', ' ' };
 
@@ -265,11 +344,23 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
                 _log.debug("Initial data " + (initialI2PData != null ? initialI2PData.length : 0) 
                            + " written to I2P, " + (initialSocketData != null ? initialSocketData.length : 0)
                            + " written to the socket, starting forwarders");
-            if (!(s instanceof InternalSocket))
-                in = new BufferedInputStream(in, 2*NETWORK_BUFFER_SIZE);
-            StreamForwarder toI2P = new StreamForwarder(in, i2pout, true);
-            StreamForwarder fromI2P = new StreamForwarder(i2pin, out, false);
-            toI2P.start();
+            I2PStreamChannel i2pchan = i2ps.getStreamChannel();
+            ForwardingStats stats = ForwardingStats.getInstance(I2PAppContext.getGlobalContext(),
+                                                                i2ps.getThisDestination().calculateHash());
+            SocketChannel sc = getSocketChannel();
+            StreamForwarder toI2P;
+            if (sc != null) {
+                toI2P = new ChannelForwarder(sc, in, i2pchan, i2pout, stats);
+            } else {
+                if (!(s instanceof InternalSocket))
+                    in = new BufferedInputStream(in, 2*NETWORK_BUFFER_SIZE);
+                toI2P = new StreamForwarder(in, i2pout, true, i2pchan, stats);
+            }
+            StreamForwarder fromI2P = new StreamForwarder(i2pin, out, false, i2pchan, stats);
+            // a virtual thread if enabled
+            Thread toI2PThread = VirtualThreads.isEnabled() ?
+                                 VirtualThreads.newThread(toI2P, toI2P.getName()) : toI2P;
+            toI2PThread.start();
             // We are already a thread, so run the second one inline
             //fromI2P.start();
             fromI2P.run();
@@ -303,7 +394,7 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
             }
             
             // now one connection is dead - kill the other as well, after making sure we flush
-            close(out, in, i2pout, i2pin, s, i2ps, toI2P, fromI2P);
+            close(out, in, i2pout, i2pin, s, i2ps, toI2PThread, fromI2P);
         } catch (InterruptedException ex) {
             if (_log.shouldLog(Log.ERROR))
                 _log.error("Interrupted", ex);
@@ -411,22 +502,33 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
     /**
      *  Forward data in one direction
      */
-    private class StreamForwarder extends I2PAppThread {
+    private class StreamForwarder extends I2PAppThread implements I2PStreamChannel.Listener {
 
-        private final InputStream in;
-        private final OutputStream out;
-        private final String direction;
+        protected final InputStream in;
+        protected final OutputStream out;
+        protected final String direction;
         private final boolean _toI2P;
         private final ByteCache _cache;
+        protected final I2PStreamChannel _i2pchan;
+        protected final ForwardingStats _stats;
+        /** bytes forwarded since the last flush */
+        private int _unflushed;
+        /** a flush is waiting for writable() */
+        private final AtomicBoolean _flushPending = new AtomicBoolean();
         private volatile Exception _failure;
 
         /**
          *  Does not start itself. Caller must start()
+         *
+         *  @param i2pchan only used for the window state
          */
-        public StreamForwarder(InputStream in, OutputStream out, boolean toI2P) {
+        public StreamForwarder(InputStream in, OutputStream out, boolean toI2P,
+                               I2PStreamChannel i2pchan, ForwardingStats stats) {
             this.in = in;
             this.out = out;
             _toI2P = toI2P;
+            _i2pchan = i2pchan;
+            _stats = stats;
             direction = (toI2P ? "toI2P" : "fromI2P");
             _cache = ByteCache.getInstance(32, NETWORK_BUFFER_SIZE);
             setName("StreamForwarder " + _runnerId + '.' + direction);
@@ -446,40 +548,10 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
             // somehow the inactivity timer is sometimes failing to get triggered properly
             //i2ps.setReadTimeout(2*60*1000);
             
-            ByteArray ba = _cache.acquire();
-            byte[] buffer = ba.getData(); // new byte[NETWORK_BUFFER_SIZE];
             try {
-                int len;
-                while ((len = in.read(buffer)) != -1) {
-                    if (len > 0) {
-                        out.write(buffer, 0, len);
-                        if (_toI2P)
-                            totalSent += len;
-                        else
-                            totalReceived += len;
-                        //updateActivity();
-                    }
-
-                    if (in.available() == 0) {
-                        //if (_log.shouldLog(Log.DEBUG))
-                        //    _log.debug("Flushing after sending " + len + " bytes through");
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug(direction + ": " + len + " bytes flushed through " + (_toI2P ? "to " : "from ")
-                                       + to);
-                        if (_toI2P) {
-                            try {
-                                Thread.sleep(5);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                            
-                            if (in.available() <= 0)
-                                out.flush();
-                        } else {
-                            out.flush();
-                        }
-                    }
-                }
+                if (_toI2P)
+                    _i2pchan.setListener(this);
+                forward();
                 //out.flush(); // close() flushes
             } catch (SocketException ex) {
                 // this *will* occur when the other threads closes the socket
@@ -505,7 +577,8 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
                 //    _log.warn("You may ignore this", ex);
                 _failure = ex;
             } finally {
-                _cache.release(ba);
+                if (_toI2P)
+                    _i2pchan.setListener(null);
                 if (_log.shouldLog(Log.INFO)) {
                     _log.info(direction + ": done forwarding between " 
                               + from + " and " + to);
@@ -540,11 +613,218 @@ public class I2PTunnelRunner extends I2PAppThread implements I2PSocket.SocketErr
             }
         }
 
+        /**
+         *  Copy until EOF
+         *
+         *  @since 0.9.21 split out of run()
+         */
+        protected void forward() throws IOException {
+            ByteArray ba = _cache.acquire();
+            byte[] buffer = ba.getData(); // new byte[NETWORK_BUFFER_SIZE];
+            try {
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    if (len > 0) {
+                        out.write(buffer, 0, len);
+                        forwarded(len);
+                        //updateActivity();
+                    }
+
+                    if (in.available() == 0) {
+                        if (_log.shouldLog(Log.DEBUG))
+                            _log.debug(direction + ": " + len + " bytes flushed through " + (_toI2P ? "to " : "from ")
+                                       + i2ps.getPeerDestination().calculateHash().toBase64().substring(0,6));
+                        if (_toI2P)
+                            flushToI2P();
+                        else
+                            out.flush();
+                    }
+                }
+            } finally {
+                _cache.release(ba);
+            }
+        }
+
+        /**
+         *  Update the totals
+         *
+         *  @since 0.9.21
+         */
+        protected void forwarded(int len) {
+            if (_toI2P) {
+                totalSent += len;
+                _unflushed += len;
+                _stats.addSent(len);
+            } else {
+                totalReceived += len;
+                _stats.addReceived(len);
+            }
+        }
+
+        /**
+         *  The local side has nothing more for now.
+         *  Flush right away unless the outbound window is full.
+         *  If it is full, nothing can be sent until acks arrive anyway,
+         *  so the flush is done when the streaming lib calls writable(),
+         *  along with anything else written in the meantime.
+         *
+         *  Prior to 0.9.21, we slept 5 ms and flushed if nothing else had arrived.
+         *
+         *  @since 0.9.21
+         */
+        protected void flushToI2P() throws IOException {
+            if (_unflushed <= 0)
+                return;
+            boolean flush = _i2pchan.isWritable();
+            if (!flush) {
+                // isWritable() armed writable(), which will do the flush,
+                // unless the window opened before we set the flag
+                _flushPending.set(true);
+                flush = _i2pchan.isWritable() && _flushPending.compareAndSet(true, false);
+            }
+            if (flush) {
+                flushI2P();
+                _stats.flushed(_unflushed);
+            } else {
+                _stats.flushDeferred(_unflushed);
+            }
+            _unflushed = 0;
+        }
+
+        /**
+         *  @since 0.9.21
+         */
+        protected void flushI2P() throws IOException {
+            out.flush();
+        }
+
         /**
          *  @since 0.9.14
          */
         public Exception getFailure() {
             return _failure;
         }
+
+        /** not used */
+        public void readable(I2PStreamChannel channel) {}
+
+        /**
+         *  The window opened, do any pending flush.
+         *  Called from the streaming lib's threads, so the flush
+         *  is done on the timer, it may block for a moment.
+         *
+         *  @since 0.9.21
+         */
+        public void writable(I2PStreamChannel channel) {
+            if (_flushPending.compareAndSet(true, false))
+                SimpleTimer2.getInstance().addEvent(new PendingFlush(channel), 0);
+        }
+    }
+
+    /**
+     *  Send what's buffered in the I2P stream
+     *
+     *  @since 0.9.21
+     */
+    private static class PendingFlush implements SimpleTimer.TimedEvent {
+        private final I2PStreamChannel _chan;
+
+        public PendingFlush(I2PStreamChannel chan) {
+            _chan = chan;
+        }
+
+        public void timeReached() {
+            try {
+                _chan.flush();
+            } catch (IOException ioe) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     *  Forward data from a local SocketChannel to I2P.
+     *  The socket is read into a pooled direct buffer, and the buffer is written
+     *  straight into the streaming lib's packet buffer through the I2PStreamChannel,
+     *  so the data is only copied once on its way through.
+     *
+     *  @since 0.9.21
+     */
+    private class ChannelForwarder extends StreamForwarder {
+
+        private final SocketChannel _sc;
+
+        /**
+         *  Does not start itself. Caller must start()
+         *
+         *  @param sc blocking
+         *  @param in the socket's stream, only for closing
+         *  @param out i2pchan's stream, only for closing
+         */
+        public ChannelForwarder(SocketChannel sc, InputStream in, I2PStreamChannel i2pchan,
+                                OutputStream out, ForwardingStats stats) {
+            super(in, out, true, i2pchan, stats);
+            _sc = sc;
+        }
+
+        @Override
+        protected void forward() throws IOException {
+            ByteBuffer buf = acquireBuf();
+            try {
+                int len;
+                while ((len = _sc.read(buf)) != -1) {
+                    if (len <= 0)
+                        continue;
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        if (_i2pchan.write(buf) <= 0 && buf.hasRemaining())
+                            waitForWindow();
+                    }
+                    buf.clear();
+                    forwarded(len);
+                    // a blocking read returns what's there, so we've caught up
+                    if (len < NETWORK_BUFFER_SIZE)
+                        flushToI2P();
+                }
+            } finally {
+                releaseBuf(buf);
+            }
+        }
+
+        /**
+         *  Does not block
+         */
+        @Override
+        protected void flushI2P() throws IOException {
+            _i2pchan.flush();
+        }
+
+        /**
+         *  Wait until writable() or the connection goes away.
+         *  write() throws an IOException once it's gone.
+         */
+        private void waitForWindow() throws IOException {
+            synchronized (_windowLock) {
+                if (!_windowOpen) {
+                    try {
+                        _windowLock.wait(WINDOW_WAIT);
+                    } catch (InterruptedException ie) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                _windowOpen = false;
+            }
+            if (!_i2pchan.isOpen())
+                throw new SocketException("I2P socket closed");
+        }
+
+        @Override
+        public void writable(I2PStreamChannel channel) {
+            super.writable(channel);
+            synchronized (_windowLock) {
+                _windowOpen = true;
+                _windowLock.notifyAll();
+            }
+        }
     }
 }
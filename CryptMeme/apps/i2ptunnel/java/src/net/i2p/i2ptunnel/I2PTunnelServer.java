@@ -17,6 +17,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.security.GeneralSecurityException;
 import java.util.Map;
 import java.util.Properties;
@@ -462,13 +463,21 @@ public class I2PTunnelServer extends I2PTunnelTask implements Runnable {
      */
     public void run() {
         i2pss = sockMgr.getServerSocket();
+        ThreadFactory virtual = null;
+        if (_usePool && VirtualThreads.isEnabled())
+            virtual = VirtualThreads.factory("ServerHandler " + remoteHost + ':' + remotePort + ' ');
         if (_log.shouldLog(Log.WARN)) {
-            if (_usePool)
+            if (virtual != null)
+                _log.warn("Starting executor with virtual threads");
+            else if (_usePool)
                 _log.warn("Starting executor with " + getHandlerCount() + " threads max");
             else
                 _log.warn("Threads disabled, running blockingHandles inline");
         }
-        if (_usePool) {
+        if (virtual != null) {
+            // no limit, as the handlers are cheap
+            _executor = new CustomThreadPoolExecutor(virtual);
+        } else if (_usePool) {
             _executor = new CustomThreadPoolExecutor(getHandlerCount(), "ServerHandler pool " + remoteHost + ':' + remotePort);
         }
         TunnelControllerGroup tcg = TunnelControllerGroup.getInstance();
@@ -539,6 +548,15 @@ public class I2PTunnelServer extends I2PTunnelTask implements Runnable {
              super(MIN_HANDLERS, max, HANDLER_KEEPALIVE_MS, TimeUnit.MILLISECONDS,
                    new SynchronousQueue<Runnable>(), new CustomThreadFactory(name));
         }
+
+        /**
+         *  Unlimited virtual threads
+         *  @since 0.9.21
+         */
+        public CustomThreadPoolExecutor(ThreadFactory factory) {
+             super(MIN_HANDLERS, Integer.MAX_VALUE, HANDLER_KEEPALIVE_MS, TimeUnit.MILLISECONDS,
+                   new SynchronousQueue<Runnable>(), factory);
+        }
     }
 
     /** just to set the name and set Daemon */
@@ -672,6 +690,7 @@ public class I2PTunnelServer extends I2PTunnelTask implements Runnable {
         } else {
             // as suggested in https://lists.torproject.org/pipermail/tor-dev/2014-March/006576.html
             boolean unique = Boolean.parseBoolean(getTunnel().getClientOptions().getProperty(PROP_UNIQUE_LOCAL));
+            InetAddress local = null;
             if (unique && remoteHost.isLoopbackAddress()) {
                 byte[] addr;
                 if (remoteHost instanceof Inet4Address) {
@@ -683,7 +702,22 @@ public class I2PTunnelServer extends I2PTunnelTask implements Runnable {
                     addr[0] = (byte) 0xfd;
                     System.arraycopy(from.getData(), 0, addr, 1, 15);
                 }
-                InetAddress local = InetAddress.getByAddress(addr);
+                local = InetAddress.getByAddress(addr);
+            }
+            if (I2PTunnelRunner.useSocketChannels()) {
+                // so the runner can read the channel
+                Socket rv = SocketChannel.open().socket();
+                try {
+                    if (local != null)
+                        rv.bind(new InetSocketAddress(local, 0));
+                    rv.connect(new InetSocketAddress(remoteHost, remotePort));
+                } catch (IOException ioe) {
+                    try { rv.close(); } catch (IOException e) {}
+                    throw ioe;
+                }
+                return rv;
+            }
+            if (local != null) {
                 // Javadocs say local port of 0 allowed in Java 7.
                 // Not clear if supported in Java 6 or not.
                 return new Socket(remoteHost, remotePort, local, 0);
@@ -832,7 +832,21 @@ public class TunnelController implements Logging {
         }
         return null;
     }
-    
+
+    /**
+     *  Bytes forwarded, rates, and flushes for this tunnel's connections.
+     *  Combined for all shared clients.
+     *
+     *  @return null if not running or nothing forwarded yet
+     *  @since 0.9.21
+     */
+    public ForwardingStats getForwardingStats() {
+        Destination dest = getDestination();
+        if (dest != null)
+            return ForwardingStats.getInstance(dest.calculateHash());
+        return null;
+    }
+
     public boolean getIsRunning() { return _state == TunnelState.RUNNING; }
     public boolean getIsStarting() { return _state == TunnelState.START_ON_LOAD || _state == TunnelState.STARTING; }
 
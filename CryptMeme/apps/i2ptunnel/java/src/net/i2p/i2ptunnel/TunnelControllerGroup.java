@@ -24,6 +24,7 @@ import static net.i2p.app.ClientAppState.*;
 import net.i2p.client.I2PSession;
 import net.i2p.client.I2PSessionException;
 import net.i2p.data.DataHelper;
+import net.i2p.data.Destination;
 import net.i2p.util.I2PAppThread;
 import net.i2p.util.Log;
 import net.i2p.util.OrderedProperties;
@@ -633,6 +634,9 @@ public class TunnelControllerGroup implements ClientApp {
             }
         }
         if (shouldClose) {
+            Destination dest = session.getMyDestination();
+            if (dest != null)
+                ForwardingStats.remove(dest.calculateHash());
             try {
                 session.destroySession();
                 if (_log.shouldLog(Log.INFO))
@@ -681,7 +685,20 @@ public class TunnelControllerGroup implements ClientApp {
     static class CustomThreadPoolExecutor extends ThreadPoolExecutor {
         public CustomThreadPoolExecutor() {
              super(0, Integer.MAX_VALUE, HANDLER_KEEPALIVE_MS, TimeUnit.MILLISECONDS,
-                   new SynchronousQueue<Runnable>(), new CustomThreadFactory());
+                   new SynchronousQueue<Runnable>(), createThreadFactory());
+        }
+
+        /**
+         *  Virtual threads if enabled
+         *  @since 0.9.21
+         */
+        private static ThreadFactory createThreadFactory() {
+            if (VirtualThreads.isEnabled()) {
+                ThreadFactory rv = VirtualThreads.factory("I2PTunnel Client Runner ");
+                if (rv != null)
+                    return rv;
+            }
+            return new CustomThreadFactory();
         }
     }
 
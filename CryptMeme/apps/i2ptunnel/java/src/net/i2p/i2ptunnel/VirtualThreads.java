@@ -0,0 +1,106 @@
+package net.i2p.i2ptunnel;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.I2PAppThread;
+
+/**
+ *  Optional virtual threads for the runners, forwarders, and server handlers,
+ *  so that the number of concurrent connections isn't limited by platform threads.
+ *
+ *  Enabled with the router or context property i2ptunnel.virtualThreads=true.
+ *  We build for Java 6, so the Java 21 API is found by reflection;
+ *  if the JVM doesn't have it, or it isn't enabled, platform threads are used as before.
+ *
+ *  The streaming lib waits in synchronized blocks, which pins the carrier thread
+ *  before Java 24, so this works best on Java 24 or higher.
+ *
+ *  @since 0.9.21
+ */
+class VirtualThreads {
+
+    public static final String PROP_VIRTUAL_THREADS = "i2ptunnel.virtualThreads";
+
+    /** Thread.ofVirtual() */
+    private static final Method _ofVirtual;
+    /** Thread.Builder.name(String, long) */
+    private static final Method _name;
+    /** Thread.Builder.factory() */
+    private static final Method _factory;
+    /** Thread.Builder.name(String) */
+    private static final Method _name1;
+    /** Thread.Builder.unstarted(Runnable) */
+    private static final Method _unstarted;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method name1 = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            name1 = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        _ofVirtual = ofVirtual;
+        _name = name;
+        _factory = factory;
+        _name1 = name1;
+        _unstarted = unstarted;
+    }
+
+    /**
+     *  @return true if the JVM supports virtual threads
+     */
+    public static boolean isSupported() {
+        return _ofVirtual != null;
+    }
+
+    /**
+     *  @return true if supported and enabled in the global context
+     */
+    public static boolean isEnabled() {
+        return isSupported() &&
+               I2PAppContext.getGlobalContext().getBooleanProperty(PROP_VIRTUAL_THREADS);
+    }
+
+    /**
+     *  @param prefix threads are named prefix1, prefix2, ...
+     *  @return a factory for virtual threads, or null if not supported
+     */
+    public static ThreadFactory factory(String prefix) {
+        if (_ofVirtual == null)
+            return null;
+        try {
+            Object builder = _ofVirtual.invoke(null);
+            builder = _name.invoke(builder, prefix, Long.valueOf(1));
+            return (ThreadFactory) _factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     *  An unstarted virtual thread if enabled, else an unstarted I2PAppThread.
+     *
+     *  @return non-null
+     */
+    public static Thread newThread(Runnable r, String name) {
+        if (isEnabled()) {
+            try {
+                Object builder = _ofVirtual.invoke(null);
+                builder = _name1.invoke(builder, name);
+                return (Thread) _unstarted.invoke(builder, r);
+            } catch (Exception e) {}
+        }
+        return new I2PAppThread(r, name);
+    }
+}
@@ -64,6 +64,16 @@ public interface I2PSocket extends Closeable {
      */
     public SelectableChannel getChannel() throws IOException;
 
+    /**
+     *  Nonblocking access to this socket, see I2PStreamChannel.
+     *  Returns the same channel each time.
+     *
+     *  @return non-null
+     *  @throws IOException if closed
+     *  @since 0.9.21
+     */
+    public I2PStreamChannel getStreamChannel() throws IOException;
+
     /** 
      * @return socket's configuration
      */
@@ -0,0 +1,85 @@
+package net.i2p.client.streaming;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+/**
+ *  Nonblocking access to an I2PSocket, so that one thread may service
+ *  many streams instead of parking a thread in each stream's read() and write().
+ *
+ *  As I2P streams are not registered with a java.nio Selector,
+ *  readiness is signalled through a Listener instead.
+ *  Notification is edge-triggered: readable() is called once when data,
+ *  EOF, or an error arrives after a read() returned 0, and writable() is called once
+ *  when the outbound window opens after a write() did not take all the data
+ *  or isWritable() returned false.
+ *  So after a notification, read or write until that happens again.
+ *  Both are armed when the listener is set.
+ *
+ *  The listener is called from the streaming library's threads, and must
+ *  not block or do much work. Typically it hands the channel to a small pool
+ *  of worker threads, which do the reads and writes.
+ *
+ *  The read and write timeouts of the socket's streams do not apply.
+ *  Mixing channel and stream access on the same socket is not recommended.
+ *
+ *  @since 0.9.21
+ */
+public interface I2PStreamChannel extends ByteChannel {
+
+    /**
+     *  Receives readiness notifications. Must not block.
+     */
+    public interface Listener {
+        public void readable(I2PStreamChannel channel);
+        public void writable(I2PStreamChannel channel);
+    }
+
+    /**
+     *  Nonblocking.
+     *
+     *  @return number of bytes read, 0 if none are available, or -1 at EOF
+     *  @throws IOException if the socket is closed or reset
+     */
+    public int read(ByteBuffer dst) throws IOException;
+
+    /**
+     *  Nonblocking. Data is buffered and sent as full packets, or after a short
+     *  delay as with the output stream, or on flush().
+     *
+     *  @return number of bytes taken from src, possibly 0 if the outbound window is full
+     *  @throws IOException if the socket is closed or reset
+     */
+    public int write(ByteBuffer src) throws IOException;
+
+    /**
+     *  Nonblocking. Send any buffered data now.
+     */
+    public void flush() throws IOException;
+
+    /**
+     *  Nonblocking.
+     *
+     *  If false, writable() is armed, as after a write() that did not take all the data.
+     *
+     *  @return true if connected and the outbound window is not full,
+     *          i.e. data written now may be sent right away
+     */
+    public boolean isWritable();
+
+    /**
+     *  @param listener may be null to stop notifications
+     */
+    public void setListener(Listener listener);
+
+    /**
+     *  @return the socket this channel is for, non-null
+     */
+    public I2PSocket getSocket();
+
+    /**
+     *  Nonblocking, same as getSocket().close()
+     */
+    public void close() throws IOException;
+}
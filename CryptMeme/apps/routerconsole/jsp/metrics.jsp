@@ -0,0 +1,23 @@
+<%
+/*
+ * USE CAUTION WHEN EDITING
+ * Trailing whitespace OR NEWLINE on the last line will cause
+ * IllegalStateExceptions !!!
+ *
+ * Do not tag this file for translation.
+ *
+ * OpenMetrics (Prometheus) scrape target, mapped to /metrics in web.xml
+ */
+response.setContentType(net.i2p.stat.OpenMetricsWriter.CONTENT_TYPE);
+response.setHeader("Cache-Control", "no-cache");
+net.i2p.router.RouterContext ctx = net.i2p.router.web.ContextHelper.getContext(null);
+try {
+    java.io.Writer w = new java.io.BufferedWriter(new java.io.OutputStreamWriter(response.getOutputStream(), "UTF-8"), 16*1024);
+    new net.i2p.router.RouterMetricsWriter(ctx, w).write();
+} catch (java.io.IOException ioe) {
+    // not an error, happens when the scraper closes the stream
+    ctx.logManager().getLog(getClass()).warn("Error serving metrics", ioe);
+    // Jetty doesn't log this
+    throw ioe;
+}
+%>
\ No newline at end of file
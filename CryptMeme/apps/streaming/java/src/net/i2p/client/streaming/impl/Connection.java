@@ -59,6 +59,8 @@ class Connection {
     private ConnectionOptions _options;
     private final ConnectionDataReceiver _receiver;
     private I2PSocketFull _socket;
+    /** null unless the channel API is used @since 0.9.21 */
+    private volatile I2PStreamChannelFull _channel;
     /** set to an error cause if the connection could not be established */
     private String _connectionError;
     private final AtomicLong _disconnectScheduledOn = new AtomicLong();
@@ -202,9 +204,7 @@ class Connection {
                 // Limit (highest-lowest) to twice the window (if far end doesn't like it, it can send a choke)
                 int unacked = _outboundPackets.size();
                 int wsz = _options.getWindowSize();
-                if (unacked >= wsz ||
-                    _activeResends.get() >= (wsz + 1) / 2 ||
-                    _lastSendId.get() - _highestAckedThrough >= Math.max(MAX_WINDOW_SIZE, 2 * wsz)) {
+                if (locked_isWindowFull()) {
                     if (timeoutMs > 0) {
                         if (timeLeft <= 0) {
                             if (_log.shouldLog(Log.INFO))
@@ -244,6 +244,38 @@ class Connection {
         }
     }
 
+    /**
+     *  Nonblocking version of the test in packetSendChoke()
+     *
+     *  @return true if a packet sent now would wait for the outbound window
+     *  @since 0.9.21
+     */
+    boolean isWindowFull() {
+        synchronized (_outboundPackets) {
+            return locked_isWindowFull();
+        }
+    }
+
+    /**
+     *  Caller must synch on _outboundPackets
+     *  @since 0.9.21 split out of packetSendChoke()
+     */
+    private boolean locked_isWindowFull() {
+        int wsz = _options.getWindowSize();
+        return _outboundPackets.size() >= wsz ||
+               _activeResends.get() >= (wsz + 1) / 2 ||
+               _lastSendId.get() - _highestAckedThrough >= Math.max(MAX_WINDOW_SIZE, 2 * wsz);
+    }
+
+    /**
+     *  @param channel non-null
+     *  @since 0.9.21
+     */
+    void setChannel(I2PStreamChannelFull channel) {
+        _channel = channel;
+        _inputStream.setChannel(channel);
+    }
+
     /**
      *  Notify all threads waiting in packetSendChoke()
      */
@@ -526,8 +558,12 @@ class Connection {
             }
             _outboundPackets.notifyAll();
         }
-        if ((acked != null) && (!acked.isEmpty()) )
+        if ((acked != null) && (!acked.isEmpty()) ) {
             _ackSinceCongestion.set(true);
+            I2PStreamChannelFull channel = _channel;
+            if (channel != null)
+                channel.notifyWritable();
+        }
         return acked;
     }
 
@@ -762,6 +798,9 @@ class Connection {
                           + toString());
         _connectionManager.removeConnection(this);
         killOutstandingPackets();
+        I2PStreamChannelFull channel = _channel;
+        if (channel != null)
+            channel.notifyWritable();
     }
     
     /**
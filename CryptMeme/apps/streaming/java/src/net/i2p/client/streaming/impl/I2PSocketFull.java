@@ -10,6 +10,7 @@ import net.i2p.I2PAppContext;
 import net.i2p.client.I2PSession;
 import net.i2p.client.streaming.I2PSocket;
 import net.i2p.client.streaming.I2PSocketOptions;
+import net.i2p.client.streaming.I2PStreamChannel;
 import net.i2p.data.Destination;
 import net.i2p.util.Log;
 
@@ -23,9 +24,13 @@ class I2PSocketFull implements I2PSocket {
     private final Destination _remotePeer;
     private final Destination _localPeer;
     private final AtomicBoolean _closed = new AtomicBoolean();
+    private final I2PAppContext _context;
+    /** @since 0.9.21 */
+    private I2PStreamChannelFull _channel;
     
     public I2PSocketFull(Connection con, I2PAppContext context) {
         log = context.logManager().getLog(I2PSocketFull.class);
+        _context = context;
         _connection = con;
         if (con != null) {
             _remotePeer = con.getRemotePeer();
@@ -99,6 +104,22 @@ class I2PSocketFull implements I2PSocket {
     public synchronized SelectableChannel getChannel() {
         return null;
     }
+
+    /**
+     *  @return non-null
+     *  @throws IOException if closed
+     *  @since 0.9.21
+     */
+    public synchronized I2PStreamChannel getStreamChannel() throws IOException {
+        if (_channel == null) {
+            Connection c = _connection;
+            if (c == null)
+                throw new IOException("Socket closed");
+            _channel = new I2PStreamChannelFull(this, c, _context);
+            c.setChannel(_channel);
+        }
+        return _channel;
+    }
     
     /**
      *  As of 0.9.9 will throw an IOE if socket is closed.
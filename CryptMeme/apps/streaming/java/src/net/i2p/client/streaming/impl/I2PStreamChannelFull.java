@@ -0,0 +1,148 @@
+package net.i2p.client.streaming.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.I2PStreamChannel;
+import net.i2p.util.Log;
+
+/**
+ * Nonblocking bridge between the full streaming lib and the I2PStreamChannel API.
+ *<p>
+ * Reads and writes go to the Connection's MessageInputStream and MessageOutputStream
+ * without waiting on their locks' monitors. The MessageInputStream calls notifyReadable()
+ * when data arrives, and the Connection calls notifyWritable() when packets are acked
+ * or it is disconnected.
+ *
+ * @since 0.9.21
+ */
+class I2PStreamChannelFull implements I2PStreamChannel {
+    private final Log _log;
+    private final I2PSocketFull _socket;
+    private final Connection _connection;
+    private volatile Listener _listener;
+    /** armed, fire readable() at the next notification */
+    private final AtomicBoolean _wantRead = new AtomicBoolean(true);
+    /** armed, fire writable() at the next notification */
+    private final AtomicBoolean _wantWrite = new AtomicBoolean(true);
+
+    /**
+     *  @param con non-null
+     */
+    public I2PStreamChannelFull(I2PSocketFull socket, Connection con, I2PAppContext context) {
+        _log = context.logManager().getLog(I2PStreamChannelFull.class);
+        _socket = socket;
+        _connection = con;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        MessageInputStream in = _connection.getInputStream();
+        int rv = in.read(dst);
+        if (rv == 0 && dst.hasRemaining()) {
+            _wantRead.set(true);
+            // data may have arrived after the read
+            if (in.isReadReady())
+                notifyReadable();
+        }
+        return rv;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        Connection c = _connection;
+        if (!c.getIsConnected())
+            throw new IOException("disconnected");
+        int rv = 0;
+        if (!c.isWindowFull())
+            rv = c.getOutputStream().write(src);
+        if (src.hasRemaining()) {
+            _wantWrite.set(true);
+            // acks may have arrived after the write
+            if (!c.isWindowFull())
+                notifyWritable();
+        }
+        return rv;
+    }
+
+    public void flush() throws IOException {
+        Connection c = _connection;
+        if (!c.getIsConnected())
+            throw new IOException("disconnected");
+        c.sendAvailable();
+    }
+
+    public boolean isWritable() {
+        Connection c = _connection;
+        if (!c.getIsConnected())
+            return false;
+        if (!c.isWindowFull())
+            return true;
+        _wantWrite.set(true);
+        // acks may have arrived after the check
+        if (!c.isWindowFull())
+            notifyWritable();
+        return false;
+    }
+
+    public void setListener(Listener listener) {
+        _listener = listener;
+        if (listener == null)
+            return;
+        _wantRead.set(true);
+        _wantWrite.set(true);
+        if (_connection.getInputStream().isReadReady())
+            notifyReadable();
+        if (!_connection.isWindowFull() || !_connection.getIsConnected())
+            notifyWritable();
+    }
+
+    public I2PSocket getSocket() { return _socket; }
+
+    public boolean isOpen() { return !_socket.isClosed(); }
+
+    public void close() throws IOException {
+        _socket.close();
+    }
+
+    /**
+     *  Data, EOF, or an error is available.
+     *  Called from MessageInputStream, outside its lock.
+     */
+    void notifyReadable() {
+        Listener l = _listener;
+        if (l == null || !_wantRead.compareAndSet(true, false))
+            return;
+        try {
+            l.readable(this);
+        } catch (RuntimeException re) {
+            _log.error("Error in channel listener", re);
+        }
+    }
+
+    /**
+     *  The outbound window may have opened, or we disconnected.
+     *  Called from Connection, outside the _outboundPackets lock.
+     */
+    void notifyWritable() {
+        Listener l = _listener;
+        if (l == null || !_wantWrite.get())
+            return;
+        Connection c = _connection;
+        if (c.getIsConnected() && c.isWindowFull())
+            return;
+        if (!_wantWrite.compareAndSet(true, false))
+            return;
+        try {
+            l.writable(this);
+        } catch (RuntimeException re) {
+            _log.error("Error in channel listener", re);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Channel for " + _connection;
+    }
+}
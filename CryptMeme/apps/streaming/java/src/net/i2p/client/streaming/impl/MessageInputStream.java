@@ -3,6 +3,7 @@ package net.i2p.client.streaming.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -61,6 +62,8 @@ class MessageInputStream extends InputStream {
     private final int _maxBufferSize;
     private final byte[] _oneByte = new byte[1];
     private final Object _dataLock;
+    /** null unless the channel API is used @since 0.9.21 */
+    private volatile I2PStreamChannelFull _channel;
 
     /** only in _notYetReadyBlocks, never in _readyDataBlocks */
     private static final ByteArray DUMMY_BA = new ByteArray(null);
@@ -287,6 +290,7 @@ class MessageInputStream extends InputStream {
             _closeReceived = true;
             _dataLock.notifyAll();
         }
+        notifyChannel();
     }
     
     public void notifyActivity() { synchronized (_dataLock) { _dataLock.notifyAll(); } }
@@ -304,6 +308,7 @@ class MessageInputStream extends InputStream {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("received msg ID " + messageId + " with " +
                        (payload != null ? payload.getValid() + " bytes" : "no payload"));
+        boolean ready = false;
         synchronized (_dataLock) {
             if (messageId <= _highestReadyBlockId) {
                 if (_log.shouldLog(Log.INFO))
@@ -334,6 +339,7 @@ class MessageInputStream extends InputStream {
                     cur++;
                     _highestReadyBlockId++;
                 }
+                ready = !_readyDataBlocks.isEmpty();
                                         // FIXME Javadocs for setReadTimeout() say we will throw
                                         // an InterruptedIOException.
                                         // Java throws a SocketTimeoutException.
@@ -353,6 +359,8 @@ class MessageInputStream extends InputStream {
             }
             _dataLock.notifyAll();
         }
+        if (ready)
+            notifyChannel();
         return true;
     }
     
@@ -502,6 +510,73 @@ class MessageInputStream extends InputStream {
         return length;
     }
     
+    /**
+     *  Nonblocking read for I2PStreamChannel, regardless of the read timeout.
+     *
+     *  @return number of bytes read, 0 if none are ready, -1 at EOF
+     *  @since 0.9.21
+     */
+    public int read(ByteBuffer target) throws IOException {
+        int rv = 0;
+        synchronized (_dataLock) {
+            if (_locallyClosed) throw new IOException("Already locally closed");
+            throwAnyError();
+            if (_readyDataBlocks.isEmpty()) {
+                if (_notYetReadyBlocks.isEmpty() && _closeReceived)
+                    return -1;
+                return 0;
+            }
+            while (target.hasRemaining() && !_readyDataBlocks.isEmpty()) {
+                ByteArray cur = _readyDataBlocks.get(0);
+                int len = Math.min(target.remaining(), cur.getValid() - _readyDataBlockIndex);
+                target.put(cur.getData(), cur.getOffset() + _readyDataBlockIndex, len);
+                _readyDataBlockIndex += len;
+                rv += len;
+                if (cur.getValid() <= _readyDataBlockIndex) {
+                    _readyDataBlockIndex = 0;
+                    _readyDataBlocks.remove(0);
+                }
+            }
+            _readTotal += rv;
+        }
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("read(ByteBuffer) read " + rv + "; total read: " + _readTotal);
+        return rv;
+    }
+
+    /**
+     *  Would read(ByteBuffer) return something other than 0?
+     *
+     *  @return true if data, EOF, or an error is pending
+     *  @since 0.9.21
+     */
+    boolean isReadReady() {
+        synchronized (_dataLock) {
+            return !_readyDataBlocks.isEmpty() ||
+                   (_notYetReadyBlocks.isEmpty() && _closeReceived) ||
+                   _streamError != null ||
+                   _locallyClosed;
+        }
+    }
+
+    /**
+     *  @param channel non-null
+     *  @since 0.9.21
+     */
+    void setChannel(I2PStreamChannelFull channel) {
+        _channel = channel;
+    }
+
+    /**
+     *  Call outside the data lock
+     *  @since 0.9.21
+     */
+    private void notifyChannel() {
+        I2PStreamChannelFull channel = _channel;
+        if (channel != null)
+            channel.notifyReadable();
+    }
+
     @Override
     public int available() throws IOException {
         int numBytes = 0;
@@ -594,6 +669,7 @@ class MessageInputStream extends InputStream {
             _locallyClosed = true;
             _dataLock.notifyAll();
         }
+        notifyChannel();
     }
     
     /** Caller must lock _dataLock */
@@ -3,6 +3,7 @@ package net.i2p.client.streaming.impl;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -182,6 +183,44 @@ class MessageOutputStream extends OutputStream {
         //updateBps(len);
     }
     
+    /**
+     *  Nonblocking write for I2PStreamChannel.
+     *  Buffer what fits, sending full buffers without waiting for them to be accepted,
+     *  and stop after a send that fills the outbound window.
+     *
+     *  @return number of bytes taken from src, may be less than src.remaining()
+     *  @since 0.9.21
+     */
+    public int write(ByteBuffer src) throws IOException {
+        if (_closed.get()) throw new IOException("Already closed");
+        int rv = 0;
+        synchronized (_dataLock) {
+            while (src.hasRemaining()) {
+                if (_buf == null) throw new IOException("closed (buffer went away)");
+                int toWrite = Math.min(src.remaining(), _buf.length - _valid);
+                src.get(_buf, _valid, toWrite);
+                _valid += toWrite;
+                rv += toWrite;
+                if (_valid < _buf.length) {
+                    _lastBuffered = _context.clock().now();
+                    if (_passiveFlushDelay > 0) {
+                        _flusher.enqueue();
+                    }
+                    break;
+                }
+                _dataReceiver.writeData(_buf, 0, _valid);
+                _written += _valid;
+                _valid = 0;
+                throwAnyError();
+                locked_updateBufferSize();
+                if (_dataReceiver.writeInProcess())
+                    break;
+            }
+        }
+        throwAnyError();
+        return rv;
+    }
+    
 /****
     private void updateBps(int len) {
         long now = _context.clock().now();
@@ -1,6 +1,7 @@
 package net.i2p.client.streaming.impl;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 
@@ -164,4 +165,35 @@ public class MessageInputStreamTest extends TestCase {
 
         _log.info("Passed test: staggered");
     }
+
+    @Test
+    public void testNonblockingRead() throws IOException {
+        byte orig[] = new byte[8*1024];
+        _context.random().nextBytes(orig);
+        
+        MessageInputStream in = new MessageInputStream(_context, _options.getMaxMessageSize(),
+                                                       _options.getMaxWindowSize(), _options.getInboundBufferSize());
+        ByteBuffer buf = ByteBuffer.allocate(orig.length + 100);
+        assertEquals(0, in.read(buf));
+        assertFalse(in.isReadReady());
+        for (int i = orig.length / 1024 - 1; i >= 0; i--) {
+            byte msg[] = new byte[1024];
+            System.arraycopy(orig, i*1024, msg, 0, 1024);
+            in.messageReceived(i, new ByteArray(msg));
+        }
+        assertTrue(in.isReadReady());
+        buf.limit(1500);
+        assertEquals(1500, in.read(buf));
+        buf.limit(buf.capacity());
+        assertEquals(orig.length - 1500, in.read(buf));
+        assertEquals(0, in.read(buf));
+        in.messageReceived(orig.length / 1024, new ByteArray(new byte[0]));
+        in.closeReceived();
+        assertTrue(in.isReadReady());
+        assertEquals(-1, in.read(buf));
+        buf.flip();
+        byte read[] = new byte[orig.length];
+        buf.get(read);
+        assertTrue(DataHelper.eq(orig, read));
+    }
 }
@@ -1,6 +1,7 @@
 package net.i2p.client.streaming.impl;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 import junit.framework.TestCase;
 
@@ -9,6 +10,7 @@ import org.junit.Test;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.Base64;
+import net.i2p.data.DataHelper;
 import net.i2p.util.SimpleTimer2;
 
 public class MessageOutputStreamTest extends TestCase {
@@ -45,8 +47,29 @@ public class MessageOutputStreamTest extends TestCase {
                 firstOff < 0);
     }
     
+    @Test
+    public void testNonblockingWrite() throws Exception {
+        Receiver receiver = new Receiver();
+        MessageOutputStream out = new MessageOutputStream(_context, _st2, receiver, 100);
+        byte buf[] = new byte[1050];
+        _context.random().nextBytes(buf);
+        ByteBuffer src = ByteBuffer.wrap(buf);
+        assertEquals(buf.length, out.write(src));
+        // all full buffers sent, the rest buffered
+        assertEquals(1000, receiver.getData().length);
+        out.flush();
+        assertTrue(DataHelper.eq(buf, receiver.getData()));
+
+        // stops after the send that fills the window
+        receiver._full = true;
+        src = ByteBuffer.wrap(buf);
+        assertEquals(100, out.write(src));
+        assertEquals(buf.length - 100, src.remaining());
+    }
+    
     private class Receiver implements MessageOutputStream.DataReceiver {
         private ByteArrayOutputStream _data;
+        volatile boolean _full;
         public Receiver() {
             _data = new ByteArrayOutputStream();
         }
@@ -54,7 +77,7 @@ public class MessageOutputStreamTest extends TestCase {
             _data.write(buf, off, size);
 			return new DummyWriteStatus();
         }
-        public boolean writeInProcess() { return false; }
+        public boolean writeInProcess() { return _full; }
         public byte[] getData() { return _data.toByteArray(); }
     }
 
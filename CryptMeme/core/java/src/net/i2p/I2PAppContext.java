@@ -87,7 +87,7 @@ public class I2PAppContext {
     protected KeyRing _keyRing; // overridden in RouterContext
     private SimpleScheduler _simpleScheduler;
     private SimpleTimer _simpleTimer;
-    private SimpleTimer2 _simpleTimer2;
+    protected SimpleTimer2 _simpleTimer2; // overridden in RouterContext
     private final PortMapper _portMapper;
     private volatile boolean _statManagerInitialized;
     protected volatile boolean _sessionKeyManagerInitialized;
@@ -106,7 +106,7 @@ public class I2PAppContext {
     protected volatile boolean _keyRingInitialized; // used in RouterContext
     private volatile boolean _simpleSchedulerInitialized;
     private volatile boolean _simpleTimerInitialized;
-    private volatile boolean _simpleTimer2Initialized;
+    protected volatile boolean _simpleTimer2Initialized; // used in RouterContext
     protected final Set<Runnable> _shutdownTasks;
     private final File _baseDir;
     private final File _configDir;
@@ -990,7 +990,11 @@ public class I2PAppContext {
         return _simpleTimer2;
     }
 
-    private void initializeSimpleTimer2() {
+    /**
+     *  Overridden in RouterContext
+     *  @since 0.9.21 was private
+     */
+    protected void initializeSimpleTimer2() {
         synchronized (_lock20) {
             if (_simpleTimer2 == null)
                 _simpleTimer2 = new SimpleTimer2(this);
@@ -3,6 +3,8 @@ package net.i2p.client;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -20,6 +22,9 @@ import net.i2p.util.Log;
  * We need a single thread that writes so we don't have issues with
  * the Piped Streams used in InternalSocket.
  *
+ * As of 0.9.21, all messages waiting in the queue are written
+ * before a single flush, so a burst of sends goes out in one socket write.
+ *
  * @author zzz from net.i2p.router.client.ClientWriterRunner
  */
 class ClientWriterRunner implements Runnable {
@@ -31,12 +36,16 @@ class ClientWriterRunner implements Runnable {
 
     private static final int MAX_QUEUE_SIZE = 32;
     private static final long MAX_SEND_WAIT = 10*1000;
+    /** max messages written per flush */
+    private static final int MAX_BATCH = 32;
+    /** big enough for a batch of typical datagrams */
+    private static final int BUF_SIZE = 32*1024;
     
     /**
      *  As of 0.9.11 does not start the thread, caller must call startWriting()
      */
     public ClientWriterRunner(OutputStream out, I2PSessionImpl session) {
-        _out = new BufferedOutputStream(out);
+        _out = new BufferedOutputStream(out, BUF_SIZE);
         _session = session;
         _messagesToWrite = new LinkedBlockingQueue<I2CPMessage>(MAX_QUEUE_SIZE);
     }
@@ -75,20 +84,29 @@ class ClientWriterRunner implements Runnable {
     }
 
     public void run() {
-        I2CPMessage msg;
+        List<I2CPMessage> batch = new ArrayList<I2CPMessage>(MAX_BATCH);
+        int unflushed = 0;
+        outer:
         while (!_session.isClosed()) {
             try {
-                msg = _messagesToWrite.take();
+                batch.add(_messagesToWrite.take());
             } catch (InterruptedException ie) {
                 continue;
             }
-            if (msg.getType() == PoisonI2CPMessage.MESSAGE_TYPE)
-                break;
+            _messagesToWrite.drainTo(batch, MAX_BATCH - 1);
+            int sz = batch.size();
             // only thread, we don't need synchronized
             try {
-                msg.writeMessage(_out);
-                if (_messagesToWrite.isEmpty())
-                    _out.flush();
+                for (int i = 0; i < sz; i++) {
+                    I2CPMessage msg = batch.get(i);
+                    if (msg.getType() == PoisonI2CPMessage.MESSAGE_TYPE)
+                        break outer;
+                    msg.writeMessage(_out);
+                    if (++unflushed >= MAX_BATCH || (i == sz - 1 && _messagesToWrite.isEmpty())) {
+                        _out.flush();
+                        unflushed = 0;
+                    }
+                }
             } catch (I2CPMessageException ime) {
                 _session.propogateError("Error writing out the message", ime);
                 _session.disconnect();
@@ -98,6 +116,7 @@ class ClientWriterRunner implements Runnable {
                 _session.disconnect();
                 break;
             }
+            batch.clear();
         }
         _messagesToWrite.clear();
     }
@@ -814,6 +814,17 @@ public abstract class I2PSessionImpl implements I2PSession, I2CPMessageReader.I2
      */
     Properties getOptions() { return _options; }
 
+    /**
+     *  Will messages to this destination stay in this JVM?
+     *  Only if we are connected to the router in-JVM and it says so.
+     *
+     *  @since 0.9.21
+     */
+    protected boolean isLocalDest(Destination dest) {
+        I2CPMessageQueue q = _queue;
+        return q != null && q.isLocal(dest);
+    }
+
     /** 
      * Retrieve the session's ID
      */
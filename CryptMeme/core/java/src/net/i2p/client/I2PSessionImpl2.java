@@ -152,7 +152,8 @@ class I2PSessionImpl2 extends I2PSessionImpl {
      *  and P2P apps (with generally uncompressible data) should
      *  set to false.
      *
-     *  Todo: don't compress if destination is local?
+     *  As of 0.9.21, we don't compress if the destination is local
+     *  to our in-JVM router, see isLocalDest().
      */
     private static final int DONT_COMPRESS_SIZE = 66;
 
@@ -264,7 +265,7 @@ class I2PSessionImpl2 extends I2PSessionImpl {
         // Maybe implement this soon in receiveMessage() below so we are ready
         // in case we ever make an incompatible network change.
         // This would save 22 of the 23 bytes and a little CPU.
-        boolean sc = shouldCompress(size);
+        boolean sc = shouldCompress(size) && !isLocalDest(dest);
         if (sc)
             payload = DataHelper.compress(payload, offset, size);
         else
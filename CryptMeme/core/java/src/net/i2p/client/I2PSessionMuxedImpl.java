@@ -193,7 +193,7 @@ class I2PSessionMuxedImpl extends I2PSessionImpl2 {
                                SessionKey keyUsed, Set tagsSent, long expires,
                                int proto, int fromPort, int toPort, int flags)
                    throws I2PSessionException {
-        payload = prepPayload(payload, offset, size, proto, fromPort, toPort);
+        payload = prepPayload(dest, payload, offset, size, proto, fromPort, toPort);
         if (_noEffort)
             return sendNoEffort(dest, payload, expires, flags);
         else
@@ -218,7 +218,7 @@ class I2PSessionMuxedImpl extends I2PSessionImpl2 {
     @Override
     public boolean sendMessage(Destination dest, byte[] payload, int offset, int size,
                                int proto, int fromPort, int toPort, SendMessageOptions options) throws I2PSessionException {
-        payload = prepPayload(payload, offset, size, proto, fromPort, toPort);
+        payload = prepPayload(dest, payload, offset, size, proto, fromPort, toPort);
         //if (_noEffort) {
             sendNoEffort(dest, payload, options);
             return true;
@@ -242,7 +242,7 @@ class I2PSessionMuxedImpl extends I2PSessionImpl2 {
     public long sendMessage(Destination dest, byte[] payload, int offset, int size,
                             int proto, int fromPort, int toPort,
                             SendMessageOptions options, SendMessageStatusListener listener) throws I2PSessionException {
-        payload = prepPayload(payload, offset, size, proto, fromPort, toPort);
+        payload = prepPayload(dest, payload, offset, size, proto, fromPort, toPort);
         long nonce = _sendMessageNonce.incrementAndGet();
         long expires = Math.max(_context.clock().now() + 60*1000L, options.getTime());
         MessageState state = new MessageState(_context, nonce, this, expires, listener);
@@ -252,10 +252,12 @@ class I2PSessionMuxedImpl extends I2PSessionImpl2 {
     }
 
     /**
+     * @param dest as of 0.9.21, not compressed if local, see isLocalDest()
      * @return gzip compressed payload, ready to send
      * @since 0.9.14
      */
-    private byte[] prepPayload(byte[] payload, int offset, int size, int proto, int fromPort, int toPort) throws I2PSessionException {
+    private byte[] prepPayload(Destination dest, byte[] payload, int offset, int size,
+                               int proto, int fromPort, int toPort) throws I2PSessionException {
         synchronized (_stateLock) {
             if (_state == State.CLOSED)
                 throw new I2PSessionException("Already closed");
@@ -264,7 +266,7 @@ class I2PSessionMuxedImpl extends I2PSessionImpl2 {
         }
         updateActivity();
 
-        if (shouldCompress(size))
+        if (shouldCompress(size) && !isLocalDest(dest))
             payload = DataHelper.compress(payload, offset, size);
         else
             payload = DataHelper.compress(payload, offset, size, DataHelper.NO_COMPRESSION);
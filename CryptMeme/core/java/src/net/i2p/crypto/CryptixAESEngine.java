@@ -42,9 +42,12 @@ public class CryptixAESEngine extends AESEngine {
     // keys are now cached in the SessionKey objects
     //private CryptixAESKeyCache _cache;
     
-    /** see test results below */
-    private static final int MIN_SYSTEM_AES_LENGTH = 704;
-    private static final boolean USE_SYSTEM_AES;
+    /** see test results below. Package private for TunnelCryptoEngine as of 0.9.21 */
+    static final int MIN_SYSTEM_AES_LENGTH = 704;
+    /** Package private for TunnelCryptoEngine as of 0.9.21 */
+    static final boolean USE_SYSTEM_AES;
+    /** @since 0.9.21 */
+    static final String TRANSFORMATION = "AES/CBC/NoPadding";
     static {
         boolean systemOK = false;
         if (hasAESNI()) {
@@ -134,9 +137,10 @@ public class CryptixAESEngine extends AESEngine {
             try {
                 SecretKeySpec key = new SecretKeySpec(sessionKey.getData(), "AES");
                 IvParameterSpec ivps = new IvParameterSpec(iv, ivOffset, 16);
-                Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+                Cipher cipher = CryptoPool.acquireCipher(TRANSFORMATION);
                 cipher.init(Cipher.ENCRYPT_MODE, key, ivps, _context.random());
                 cipher.doFinal(payload, payloadIndex, length, out, outIndex);
+                CryptoPool.releaseCipher(TRANSFORMATION, cipher);
                 return;
             } catch (GeneralSecurityException gse) {
                 if (_log.shouldLog(Log.WARN))
@@ -187,9 +191,10 @@ public class CryptixAESEngine extends AESEngine {
             try {
                 SecretKeySpec key = new SecretKeySpec(sessionKey.getData(), "AES");
                 IvParameterSpec ivps = new IvParameterSpec(iv, ivOffset, 16);
-                Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+                Cipher cipher = CryptoPool.acquireCipher(TRANSFORMATION);
                 cipher.init(Cipher.DECRYPT_MODE, key, ivps, _context.random());
                 cipher.doFinal(payload, payloadIndex, length, out, outIndex);
+                CryptoPool.releaseCipher(TRANSFORMATION, cipher);
                 return;
             } catch (GeneralSecurityException gse) {
                 if (_log.shouldLog(Log.WARN))
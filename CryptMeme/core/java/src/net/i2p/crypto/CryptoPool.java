@@ -0,0 +1,281 @@
+package net.i2p.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+import net.i2p.stat.StatManager;
+
+/**
+ * Caches the java.security and javax.crypto primitives,
+ * which are expensive to look up through the providers.
+ *
+ * Each thread keeps one instance of each algorithm it has used.
+ * A second instance for the same thread, e.g. when nested,
+ * comes from and goes back to a small shared pool.
+ *
+ * Acquired instances must be released by the same thread
+ * when done, unless they threw an exception, in which case just drop them.
+ * A MessageDigest is reset when acquired.
+ * A Cipher, Mac or Signature must be initialized by the caller every time,
+ * as it was left in whatever state the last user left it.
+ * Only release a Signature initialized for verification. One initialized
+ * for signing keeps the private key, so don't pool those.
+ *
+ * Hit/miss/create counts are added to the stats by updateStats().
+ * A hit is from the thread's cache, a miss went to the shared pool,
+ * and a create is a miss that wasn't in the shared pool either.
+ * Only the static methods are public here.
+ *
+ * @since 0.9.21
+ */
+public final class CryptoPool {
+
+    /** for each algorithm, on top of the per-thread ones */
+    private static final int SHARED_SIZE = 16;
+    /** add this thread's hits to the total this often */
+    private static final int HIT_BATCH = 64;
+
+    private static final Kind DIGEST = new Kind(0);
+    private static final Kind CIPHER = new Kind(1);
+    private static final Kind MAC = new Kind(2);
+    private static final Kind SIGNATURE = new Kind(3);
+    private static final int KINDS = 4;
+
+    private static final AtomicLong _hits = new AtomicLong();
+    private static final AtomicLong _misses = new AtomicLong();
+    private static final AtomicLong _creates = new AtomicLong();
+
+    private static final ThreadLocal<ThreadCache> _cache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+
+    private CryptoPool() {}
+
+    /**
+     *  @param algorithm e.g. "SHA-256"
+     *  @return a reset MessageDigest
+     *  @throws UnsupportedOperationException if unavailable
+     */
+    public static MessageDigest acquireDigest(String algorithm) {
+        MessageDigest rv = (MessageDigest) acquire(DIGEST, algorithm);
+        if (rv != null) {
+            rv.reset();
+            return rv;
+        }
+        _creates.incrementAndGet();
+        // use the faster or fallback implementations where we have them
+        if (algorithm.equals("SHA-256"))
+            return SHA256Generator.getDigestInstance();
+        if (algorithm.equals("SHA-1"))
+            return SHA1.getInstance();
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnsupportedOperationException(algorithm, e);
+        }
+    }
+
+    /**
+     *  @param algorithm the one it was acquired with
+     */
+    public static void releaseDigest(String algorithm, MessageDigest digest) {
+        release(DIGEST, algorithm, digest);
+    }
+
+    /**
+     *  @param transformation e.g. "AES/CBC/NoPadding"
+     *  @return an uninitialized Cipher, or one initialized by the last user
+     */
+    public static Cipher acquireCipher(String transformation) throws GeneralSecurityException {
+        Cipher rv = (Cipher) acquire(CIPHER, transformation);
+        if (rv != null)
+            return rv;
+        _creates.incrementAndGet();
+        return Cipher.getInstance(transformation);
+    }
+
+    /**
+     *  @param transformation the one it was acquired with
+     */
+    public static void releaseCipher(String transformation, Cipher cipher) {
+        release(CIPHER, transformation, cipher);
+    }
+
+    /**
+     *  @param algorithm e.g. "HmacSHA256"
+     *  @return an uninitialized Mac, or one initialized by the last user
+     */
+    public static Mac acquireMac(String algorithm) throws NoSuchAlgorithmException {
+        Mac rv = (Mac) acquire(MAC, algorithm);
+        if (rv != null)
+            return rv;
+        _creates.incrementAndGet();
+        return Mac.getInstance(algorithm);
+    }
+
+    /**
+     *  @param algorithm the one it was acquired with
+     */
+    public static void releaseMac(String algorithm, Mac mac) {
+        release(MAC, algorithm, mac);
+    }
+
+    /**
+     *  For verification only, see releaseSignature()
+     *
+     *  @param algorithm e.g. "SHA1withDSA"
+     *  @return an uninitialized Signature, or one initialized for verification by the last user
+     */
+    public static java.security.Signature acquireSignature(String algorithm) throws NoSuchAlgorithmException {
+        java.security.Signature rv = (java.security.Signature) acquire(SIGNATURE, algorithm);
+        if (rv != null)
+            return rv;
+        _creates.incrementAndGet();
+        return java.security.Signature.getInstance(algorithm);
+    }
+
+    /**
+     *  Do not release a Signature that was initialized for signing,
+     *  it would keep the private key.
+     *
+     *  @param algorithm the one it was acquired with
+     */
+    public static void releaseSignature(String algorithm, java.security.Signature sig) {
+        release(SIGNATURE, algorithm, sig);
+    }
+
+    /**
+     *  Create the stats
+     */
+    public static void createStats(StatManager sm) {
+        long[] rates = new long[] { 60*1000, 60*60*1000 };
+        sm.createRateStat("crypto.pool.hit", "Crypto primitives found in the thread cache", "Encryption", rates);
+        sm.createRateStat("crypto.pool.miss", "Crypto primitives not in the thread cache", "Encryption", rates);
+        sm.createRateStat("crypto.pool.create", "Crypto primitives created", "Encryption", rates);
+    }
+
+    /**
+     *  Add the counts since the last call to the stats.
+     *  Call periodically, from one thread only.
+     *  Hits are approximate, each thread adds them in batches.
+     */
+    public static void updateStats(StatManager sm) {
+        sm.addRateData("crypto.pool.hit", _hits.getAndSet(0));
+        sm.addRateData("crypto.pool.miss", _misses.getAndSet(0));
+        sm.addRateData("crypto.pool.create", _creates.getAndSet(0));
+    }
+
+    /**
+     *  Clear the shared pools (memory pressure).
+     *  The per-thread caches stay.
+     */
+    public static void clearAll() {
+        DIGEST.clear();
+        CIPHER.clear();
+        MAC.clear();
+        SIGNATURE.clear();
+    }
+
+    /**
+     *  @return null if none cached
+     */
+    private static Object acquire(Kind kind, String algorithm) {
+        ThreadCache tc = _cache.get();
+        Object rv = tc.remove(kind, algorithm);
+        if (rv != null) {
+            if (++tc.hits >= HIT_BATCH) {
+                _hits.addAndGet(tc.hits);
+                tc.hits = 0;
+            }
+            return rv;
+        }
+        _misses.incrementAndGet();
+        Queue<Object> q = kind.shared.get(algorithm);
+        return q != null ? q.poll() : null;
+    }
+
+    private static void release(Kind kind, String algorithm, Object o) {
+        if (_cache.get().put(kind, algorithm, o))
+            return;
+        Queue<Object> q = kind.shared.get(algorithm);
+        if (q == null) {
+            q = new LinkedBlockingQueue<Object>(SHARED_SIZE);
+            Queue<Object> old = kind.shared.putIfAbsent(algorithm, q);
+            if (old != null)
+                q = old;
+        }
+        q.offer(o);
+    }
+
+    /**
+     *  The shared pools for one type of primitive
+     */
+    private static class Kind {
+        /** index into the ThreadCache */
+        final int index;
+        final ConcurrentHashMap<String, Queue<Object>> shared;
+
+        public Kind(int index) {
+            this.index = index;
+            shared = new ConcurrentHashMap<String, Queue<Object>>(8);
+        }
+
+        void clear() {
+            for (Queue<Object> q : shared.values()) {
+                q.clear();
+            }
+        }
+    }
+
+    /**
+     *  One instance per algorithm.
+     *  Not thread safe, one per thread.
+     */
+    private static class ThreadCache {
+        private final List<Map<String, Object>> _cached;
+        int hits;
+
+        public ThreadCache() {
+            _cached = new ArrayList<Map<String, Object>>(KINDS);
+            for (int i = 0; i < KINDS; i++) {
+                _cached.add(new HashMap<String, Object>(4));
+            }
+        }
+
+        /**
+         *  Leaves the entry in place with a null value,
+         *  so the next put() doesn't create a new one.
+         *  @return null if none
+         */
+        Object remove(Kind kind, String algorithm) {
+            Map<String, Object> m = _cached.get(kind.index);
+            Object rv = m.get(algorithm);
+            if (rv != null)
+                m.put(algorithm, null);
+            return rv;
+        }
+
+        /** @return success, false if we already have one */
+        boolean put(Kind kind, String algorithm, Object o) {
+            Map<String, Object> m = _cached.get(kind.index);
+            if (m.get(algorithm) != null)
+                return false;
+            m.put(algorithm, o);
+            return true;
+        }
+    }
+}
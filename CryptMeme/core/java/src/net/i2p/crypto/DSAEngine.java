@@ -71,6 +71,7 @@ import net.i2p.util.NativeBigInteger;
  *  will throw an IllegalArgumentException.
  *
  *  EdDSA support added in 0.9.15
+ *  As of 0.9.21, the java.security Signatures used for verification and the SHA-1 digests come from the CryptoPool.
  */
 public class DSAEngine {
     private final Log _log;
@@ -479,7 +480,7 @@ public class DSAEngine {
      *  @deprecated unused
      */
     public SHA1Hash calculateHash(InputStream in) {
-        MessageDigest digest = SHA1.getInstance();
+        MessageDigest digest = CryptoPool.acquireDigest("SHA-1");
         byte buf[] = new byte[64];
         int read = 0;
         try {
@@ -489,16 +490,20 @@ public class DSAEngine {
         } catch (IOException ioe) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Unable to hash the stream", ioe);
+            CryptoPool.releaseDigest("SHA-1", digest);
             return null;
         }
-        return new SHA1Hash(digest.digest());
+        SHA1Hash rv = new SHA1Hash(digest.digest());
+        CryptoPool.releaseDigest("SHA-1", digest);
+        return rv;
     }
 
     /** @return hash SHA-1 hash, NOT a SHA-256 hash */
     public static SHA1Hash calculateHash(byte[] source, int offset, int len) {
-        MessageDigest h = SHA1.getInstance();
+        MessageDigest h = CryptoPool.acquireDigest("SHA-1");
         h.update(source, offset, len);
         byte digested[] = h.digest();
+        CryptoPool.releaseDigest("SHA-1", h);
         return new SHA1Hash(digested);
     }
 
@@ -517,14 +522,19 @@ public class DSAEngine {
             return altVerifySigSHA1(signature, data, offset, len, verifyingKey);
 
         java.security.Signature jsig;
-        if (type.getBaseAlgorithm() == SigAlgo.EdDSA)
+        String algo = null;
+        if (type.getBaseAlgorithm() == SigAlgo.EdDSA) {
             jsig = new EdDSAEngine(type.getDigestInstance());
-        else
-            jsig = java.security.Signature.getInstance(type.getAlgorithmName());
+        } else {
+            algo = type.getAlgorithmName();
+            jsig = CryptoPool.acquireSignature(algo);
+        }
         PublicKey pubKey = SigUtil.toJavaKey(verifyingKey);
         jsig.initVerify(pubKey);
         jsig.update(data, offset, len);
         boolean rv = jsig.verify(SigUtil.toJavaSig(signature));
+        if (algo != null)
+            CryptoPool.releaseSignature(algo, jsig);
         return rv;
     }
 
@@ -566,13 +576,16 @@ public class DSAEngine {
 
         String algo = getRawAlgo(type);
         java.security.Signature jsig;
-        if (type.getBaseAlgorithm() == SigAlgo.EdDSA)
-            jsig = new EdDSAEngine(); // Ignore algo, EdDSAKey includes a hash specification.
+        boolean pooled = type.getBaseAlgorithm() != SigAlgo.EdDSA;
+        if (pooled)
+            jsig = CryptoPool.acquireSignature(algo);
         else
-            jsig = java.security.Signature.getInstance(algo);
+            jsig = new EdDSAEngine(); // Ignore algo, EdDSAKey includes a hash specification.
         jsig.initVerify(pubKey);
         jsig.update(hash.getData());
         boolean rv = jsig.verify(SigUtil.toJavaSig(signature));
+        if (pooled)
+            CryptoPool.releaseSignature(algo, jsig);
         return rv;
     }
 
@@ -583,11 +596,12 @@ public class DSAEngine {
      */
     private boolean altVerifySigSHA1(Signature signature, byte[] data, int offset,
                                      int len, SigningPublicKey verifyingKey) throws GeneralSecurityException {
-        java.security.Signature jsig = java.security.Signature.getInstance("SHA1withDSA");
+        java.security.Signature jsig = CryptoPool.acquireSignature("SHA1withDSA");
         PublicKey pubKey = SigUtil.toJavaDSAKey(verifyingKey);
         jsig.initVerify(pubKey);
         jsig.update(data, offset, len);
         boolean rv = jsig.verify(SigUtil.toJavaSig(signature));
+        CryptoPool.releaseSignature("SHA1withDSA", jsig);
         //if (!rv) {
         //    System.out.println("BAD SIG\n" + net.i2p.util.HexDump.dump(signature.getData()));
         //    System.out.println("BAD SIG\n" + net.i2p.util.HexDump.dump(sigBytesToASN1(signature.getData())));
@@ -611,11 +625,13 @@ public class DSAEngine {
         if (type.getBaseAlgorithm() == SigAlgo.EdDSA)
             jsig = new EdDSAEngine(type.getDigestInstance());
         else
+            // not pooled, it would keep the private key
             jsig = java.security.Signature.getInstance(type.getAlgorithmName());
         PrivateKey privKey = SigUtil.toJavaKey(privateKey);
         jsig.initSign(privKey, _context.random());
         jsig.update(data, offset, len);
-        return SigUtil.fromJavaSig(jsig.sign(), type);
+        byte[] sig = jsig.sign();
+        return SigUtil.fromJavaSig(sig, type);
     }
 
     /**
@@ -654,10 +670,12 @@ public class DSAEngine {
         if (type.getBaseAlgorithm() == SigAlgo.EdDSA)
             jsig = new EdDSAEngine(); // Ignore algo, EdDSAKey includes a hash specification.
         else
+            // not pooled, it would keep the private key
             jsig = java.security.Signature.getInstance(algo);
         jsig.initSign(privKey, _context.random());
         jsig.update(hash.getData());
-        return SigUtil.fromJavaSig(jsig.sign(), type);
+        byte[] sig = jsig.sign();
+        return SigUtil.fromJavaSig(sig, type);
     }
 
     /**
@@ -667,11 +685,13 @@ public class DSAEngine {
      */
     private Signature altSignSHA1(byte[] data, int offset, int len,
                                   SigningPrivateKey privateKey) throws GeneralSecurityException {
+        // not pooled, it would keep the private key
         java.security.Signature jsig = java.security.Signature.getInstance("SHA1withDSA");
         PrivateKey privKey = SigUtil.toJavaDSAKey(privateKey);
         jsig.initSign(privKey, _context.random());
         jsig.update(data, offset, len);
-        return SigUtil.fromJavaSig(jsig.sign(), SigType.DSA_SHA1);
+        byte[] sig = jsig.sign();
+        return SigUtil.fromJavaSig(sig, SigType.DSA_SHA1);
     }
 
     /** @since 0.9.9 */
@@ -18,6 +18,7 @@ import org.bouncycastle.oldcrypto.macs.I2PHMac;
  * This is compatible with javax.crypto.Mac.getInstance("HmacSHA256").
  *
  * As of 0.9.12, uses javax.crypto.Mac.
+ * As of 0.9.21, from the CryptoPool.
  *
  * Deprecated, used only by Syndie.
  */
@@ -61,11 +62,12 @@ public class HMAC256Generator extends HMACGenerator {
     @Override
     public void calculate(SessionKey key, byte data[], int offset, int length, byte target[], int targetOffset) {
         try {
-            javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA256");
+            javax.crypto.Mac mac = CryptoPool.acquireMac("HmacSHA256");
             Key keyObj = new SecretKeySpec(key.getData(), "HmacSHA256");
             mac.init(keyObj);
             mac.update(data, offset, length);
             mac.doFinal(target, targetOffset);
+            CryptoPool.releaseMac("HmacSHA256", mac);
         } catch (NoSuchAlgorithmException e) {
             throw new UnsupportedOperationException("HmacSHA256", e);
         } catch (GeneralSecurityException e) {
@@ -0,0 +1,259 @@
+package net.i2p.crypto;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ * A queue of precalculated values, e.g. ElGamal Y/K pairs or DH key pairs,
+ * refilled in the background by a thread pool shared by all the queues in the JVM.
+ *
+ * The number of values to keep ready adapts to how fast they are used:
+ * enough for the next few seconds of demand, between the min and max sizes.
+ * Whenever get() leaves the queue below that target, more values are
+ * calculated in parallel, one task per value, on up to all the pool threads.
+ * If the queue is empty, get() calculates one inline.
+ *
+ * The pool threads run at minimum priority and exit when idle.
+ * The number of threads defaults to one less than the number of cores,
+ * and can be set with -Dcrypto.precalc.threads=n (first one created wins).
+ *
+ * Stats, for a prefix of e.g. "crypto.YK": crypto.YKUsed, crypto.YKEmpty (had to
+ * calculate inline), crypto.YKRefillLag (ms from asking for a value until it was ready),
+ * and crypto.YKTarget (the adaptive size).
+ *
+ * To disable precalculation, set the min size to 0.
+ *
+ * @since 0.9.21
+ */
+public abstract class PrecalcPool<T> {
+    protected final I2PAppContext _context;
+    private final Log _log;
+    private final int _minSize;
+    private final int _maxSize;
+    private final LinkedBlockingQueue<T> _values;
+    /** refills submitted but not done */
+    private final AtomicInteger _pending;
+    /** used since _windowStart */
+    private final AtomicInteger _used;
+    private final AtomicLong _windowStart;
+    /** per second, averaged */
+    private volatile float _rate;
+    private volatile int _target;
+    private volatile boolean _isRunning;
+    private final String _usedStat;
+    private final String _emptyStat;
+    private final String _lagStat;
+    private final String _targetStat;
+
+    public static final String PROP_THREADS = "crypto.precalc.threads";
+    /** recalculate the rate this often */
+    private static final long WINDOW = 1000;
+    /** keep this much of the demand ready */
+    private static final long LOOKAHEAD = 5*1000;
+
+    private static ThreadPoolExecutor _executor;
+
+    /**
+     *  Caller must also call start() to start the background precalculation.
+     *  Unit tests will still work without calling start().
+     *
+     *  @param statPrefix e.g. "crypto.YK"
+     *  @param minSize values to keep ready when idle, 0 to disable
+     *  @param maxSize values to keep ready at most
+     */
+    protected PrecalcPool(I2PAppContext context, String statPrefix, int minSize, int maxSize) {
+        _context = context;
+        _log = context.logManager().getLog(PrecalcPool.class);
+        _minSize = minSize;
+        _maxSize = Math.max(minSize, maxSize);
+        _values = new LinkedBlockingQueue<T>(Math.max(1, _maxSize));
+        _pending = new AtomicInteger();
+        _used = new AtomicInteger();
+        _windowStart = new AtomicLong(System.currentTimeMillis());
+        _target = minSize;
+        _usedStat = statPrefix + "Used";
+        _emptyStat = statPrefix + "Empty";
+        _lagStat = statPrefix + "RefillLag";
+        _targetStat = statPrefix + "Target";
+        long[] rates = new long[] { 60*60*1000 };
+        context.statManager().createRateStat(_usedStat, "Need a value from the precalc queue", "Encryption", rates);
+        context.statManager().createRateStat(_emptyStat, "Precalc queue empty", "Encryption", rates);
+        context.statManager().createRateStat(_lagStat, "Time from requesting a precalc until done (ms)", "Encryption", rates);
+        context.statManager().createRateStat(_targetStat, "Adaptive precalc queue size", "Encryption", rates);
+    }
+
+    /**
+     *  Calculate one value. Called from the pool threads,
+     *  and inline from get() when the queue is empty.
+     */
+    protected abstract T generate();
+
+    /**
+     *  Start the background precalculation, filling to the min size.
+     *  Must be called for normal operation.
+     *  If not called, all generation happens in the foreground.
+     */
+    public synchronized void start() {
+        if (_isRunning || _minSize <= 0)
+            return;
+        _isRunning = true;
+        refill();
+    }
+
+    /**
+     *  Stop the background precalculation.
+     *  Refills in progress finish but their values are discarded.
+     *  Can be restarted.
+     */
+    public synchronized void shutdown() {
+        _isRunning = false;
+        _values.clear();
+    }
+
+    /**
+     *  A precalculated value, or a new one if none are ready.
+     */
+    public T get() {
+        _context.statManager().addRateData(_usedStat, 1);
+        _used.incrementAndGet();
+        T rv = _values.poll();
+        refill();
+        if (rv != null)
+            return rv;
+        _context.statManager().addRateData(_emptyStat, 1);
+        if (_isRunning && _log.shouldLog(Log.INFO))
+            _log.info("Precalc queue " + _usedStat + " empty, calculating inline");
+        return generate();
+    }
+
+    /**
+     *  Put back an unused value
+     *
+     *  @return false if full
+     */
+    protected boolean offer(T value) {
+        return _values.offer(value);
+    }
+
+    /** values ready now */
+    public int size() {
+        return _values.size();
+    }
+
+    /** the current adaptive size */
+    public int getTarget() {
+        return _target;
+    }
+
+    /**
+     *  Submit refill tasks until the ready and pending values reach the target,
+     *  no more than one per pool thread at a time
+     */
+    private void refill() {
+        if (!_isRunning)
+            return;
+        updateTarget();
+        ThreadPoolExecutor exec = getExecutor(_context);
+        int max = exec.getMaximumPoolSize();
+        while (true) {
+            int pending = _pending.get();
+            if (pending >= max || _values.size() + pending >= _target)
+                return;
+            if (!_pending.compareAndSet(pending, pending + 1))
+                continue;
+            try {
+                exec.execute(new Refill());
+            } catch (RejectedExecutionException ree) {
+                _pending.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     *  Once a window, average the rate of use and set the target from it
+     */
+    private void updateTarget() {
+        long now = System.currentTimeMillis();
+        long start = _windowStart.get();
+        long elapsed = now - start;
+        if (elapsed < WINDOW || !_windowStart.compareAndSet(start, now))
+            return;
+        float rate = _used.getAndSet(0) * 1000f / elapsed;
+        // faster up than down
+        if (rate > _rate)
+            rate = (_rate + rate) / 2;
+        else
+            rate = (_rate * 7 + rate) / 8;
+        _rate = rate;
+        int target = (int) (rate * LOOKAHEAD / 1000);
+        target = Math.max(_minSize, Math.min(_maxSize, target));
+        if (target != _target) {
+            _target = target;
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Precalc " + _usedStat + " rate " + rate + "/s, target now " + target);
+        }
+        _context.statManager().addRateData(_targetStat, target);
+    }
+
+    private class Refill implements Runnable {
+        private final long _queued = System.currentTimeMillis();
+
+        public void run() {
+            try {
+                if (!_isRunning)
+                    return;
+                T value = generate();
+                if (!_isRunning)
+                    return;
+                _values.offer(value);
+                _context.statManager().addRateData(_lagStat, System.currentTimeMillis() - _queued);
+            } catch (RuntimeException re) {
+                _log.error("Precalc error", re);
+                return;
+            } finally {
+                _pending.decrementAndGet();
+            }
+            refill();
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor(I2PAppContext ctx) {
+        if (_executor == null) {
+            int threads = ctx.getProperty(PROP_THREADS, Math.max(1, SystemVersion.getCores() - 1));
+            threads = Math.max(1, threads);
+            _executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(),
+                                               new CustomThreadFactory(threads));
+            _executor.allowCoreThreadTimeOut(true);
+        }
+        return _executor;
+    }
+
+    private static class CustomThreadFactory implements ThreadFactory {
+        private final int _threads;
+        private final AtomicInteger _count = new AtomicInteger();
+
+        public CustomThreadFactory(int threads) {
+            _threads = threads;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("Precalc " + _count.incrementAndGet() + '/' + _threads);
+            rv.setDaemon(true);
+            rv.setPriority(Thread.MIN_PRIORITY);
+            return rv;
+        }
+    }
+}
@@ -5,7 +5,6 @@ import gnu.crypto.hash.Sha256Standalone;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.Hash;
@@ -16,10 +15,12 @@ import net.i2p.data.Hash;
  * As of release 0.8.7, uses java.security.MessageDigest by default.
  * If that is unavailable, it uses
  * GNU-Crypto {@link gnu.crypto.hash.Sha256Standalone}
+ *
+ * As of 0.9.21, the digests are cached per-thread by the CryptoPool.
  */
 public final class SHA256Generator {
-    private final LinkedBlockingQueue<MessageDigest> _digests;
 
+    private static final String ALGORITHM = "SHA-256";
     private static final boolean _useGnu;
 
     static {
@@ -36,9 +37,7 @@ public final class SHA256Generator {
     /**
      *  @param context unused
      */
-    public SHA256Generator(I2PAppContext context) {
-        _digests = new LinkedBlockingQueue<MessageDigest>(32);
-    }
+    public SHA256Generator(I2PAppContext context) {}
     
     public static final SHA256Generator getInstance() {
         return I2PAppContext.getGlobalContext().sha();
@@ -82,17 +81,12 @@ public final class SHA256Generator {
         }
     }
     
-    private MessageDigest acquire() {
-        MessageDigest rv = _digests.poll();
-        if (rv != null)
-            rv.reset();
-        else
-            rv = getDigestInstance();
-        return rv;
+    private static MessageDigest acquire() {
+        return CryptoPool.acquireDigest(ALGORITHM);
     }
     
-    private void release(MessageDigest digest) {
-        _digests.offer(digest);
+    private static void release(MessageDigest digest) {
+        CryptoPool.releaseDigest(ALGORITHM, digest);
     }
     
     /**
@@ -0,0 +1,160 @@
+package net.i2p.crypto;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.SessionKey;
+import net.i2p.util.Log;
+
+/**
+ * The tunnel layer encryption done at each hop:
+ * encrypt the IV with the IV key, CBC encrypt the data with the
+ * layer key and that IV, and encrypt the IV again.
+ *
+ * Each thread keeps an "AES/CBC/NoPadding" Cipher, taken from the
+ * CryptoPool the first time, and the key spec for the last layer key,
+ * which is replaced only when the layer key changes. The JVM keeps the
+ * key schedule for the last key, so a series of messages for the same
+ * tunnel only pays for a new IV. Use encryptLayers() to process
+ * several messages for the same tunnel together.
+ *
+ * The system Cipher is used only where CryptixAESEngine would use it,
+ * i.e. with AES-NI and a 64-bit Java 7+ JVM, otherwise
+ * this falls back to CBC with the Cryptix block cipher.
+ * The IV is a single block and is always done with Cryptix,
+ * whose key schedule is cached in the SessionKey.
+ *
+ * @since 0.9.21
+ */
+public final class TunnelCryptoEngine {
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final boolean _useSystem;
+
+    private static final int IV_LENGTH = 16;
+
+    /** per-thread cipher and the key it was last initialized with */
+    private static final ThreadLocal<LayerCipher> _ciphers = new ThreadLocal<LayerCipher>() {
+        @Override
+        protected LayerCipher initialValue() {
+            return new LayerCipher();
+        }
+    };
+
+    public TunnelCryptoEngine(I2PAppContext context) {
+        this(context, CryptixAESEngine.USE_SYSTEM_AES);
+    }
+
+    /**
+     * For TunnelCryptoBench, to test the system Cipher without AES-NI detection
+     *
+     * @param useSystem use the system Cipher for the data, if false use Cryptix
+     */
+    TunnelCryptoEngine(I2PAppContext context, boolean useSystem) {
+        _context = context;
+        _log = context.logManager().getLog(TunnelCryptoEngine.class);
+        _useSystem = useSystem;
+    }
+
+    /**
+     * Encrypt one layer in place.
+     *
+     * @param data IV+data of the message
+     * @param offset index into data where the IV begins
+     * @param length IV+data length, data length must be a multiple of 16
+     */
+    public void encryptLayer(byte data[], int offset, int length, SessionKey layerKey, SessionKey ivKey) {
+        updateIV(data, offset, ivKey);
+        encrypt(_ciphers.get(), data, offset, length, layerKey);
+        updateIV(data, offset, ivKey);
+    }
+
+    /**
+     * Encrypt one layer in place in each of several messages for the same tunnel,
+     * one step at a time for all of them.
+     *
+     * @param data IV+data of each message, the first count are processed
+     * @param offsets index into each data where the IV begins
+     * @param lengths IV+data length of each, data length must be a multiple of 16
+     * @param count how many to process
+     */
+    public void encryptLayers(byte data[][], int offsets[], int lengths[], int count,
+                              SessionKey layerKey, SessionKey ivKey) {
+        for (int i = 0; i < count; i++) {
+            updateIV(data[i], offsets[i], ivKey);
+        }
+        LayerCipher lc = _ciphers.get();
+        for (int i = 0; i < count; i++) {
+            encrypt(lc, data[i], offsets[i], lengths[i], layerKey);
+        }
+        for (int i = 0; i < count; i++) {
+            updateIV(data[i], offsets[i], ivKey);
+        }
+    }
+
+    private void updateIV(byte data[], int offset, SessionKey ivKey) {
+        _context.aes().encryptBlock(data, offset, ivKey, data, offset);
+    }
+
+    /**
+     * CBC encrypt in place, the IV is the 16 bytes at offset
+     */
+    private void encrypt(LayerCipher lc, byte data[], int offset, int length, SessionKey layerKey) {
+        int dataOffset = offset + IV_LENGTH;
+        int dataLength = length - IV_LENGTH;
+        if (dataLength <= 0)
+            return;
+        if (_useSystem && dataLength >= CryptixAESEngine.MIN_SYSTEM_AES_LENGTH) {
+            try {
+                Cipher cipher = lc.getCipher(layerKey);
+                cipher.init(Cipher.ENCRYPT_MODE, lc.key, new IvParameterSpec(data, offset, IV_LENGTH));
+                cipher.doFinal(data, dataOffset, dataLength, data, dataOffset);
+                return;
+            } catch (GeneralSecurityException gse) {
+                lc.reset();
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Java encrypt fail", gse);
+            }
+        }
+        int end = offset + length;
+        for (int off = dataOffset; off < end; off += IV_LENGTH) {
+            for (int j = 0; j < IV_LENGTH; j++) {
+                data[off + j] ^= data[(off - IV_LENGTH) + j];
+            }
+            _context.aes().encryptBlock(data, off, layerKey, data, off);
+        }
+    }
+
+    /**
+     * Not thread safe, one per thread.
+     */
+    private static class LayerCipher {
+        private Cipher _cipher;
+        private SessionKey _sessionKey;
+        SecretKeySpec key;
+
+        /**
+         * @return the cipher, with the key set up for sessionKey
+         */
+        Cipher getCipher(SessionKey sessionKey) throws GeneralSecurityException {
+            // kept by this thread, never released
+            if (_cipher == null)
+                _cipher = CryptoPool.acquireCipher(CryptixAESEngine.TRANSFORMATION);
+            if (sessionKey != _sessionKey) {
+                key = new SecretKeySpec(sessionKey.getData(), "AES");
+                _sessionKey = sessionKey;
+            }
+            return _cipher;
+        }
+
+        /** after a failure, get a new one */
+        void reset() {
+            _cipher = null;
+            _sessionKey = null;
+            key = null;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package net.i2p.internal;
 
+import net.i2p.data.Destination;
 import net.i2p.data.i2cp.I2CPMessage;
 
 /**
@@ -50,6 +51,18 @@ public abstract class I2CPMessageQueue {
      */
     public abstract I2CPMessage take() throws InterruptedException;
 
+    /**
+     *  Will messages to this destination stay in this JVM?
+     *  If so, the client need not compress them, and the router
+     *  may handle them in the sending thread.
+     *
+     *  @return false here, override if supported
+     *  @since 0.9.21
+     */
+    public boolean isLocal(Destination dest) {
+        return false;
+    }
+
     /**
      *  == offer(new PoisonI2CPMessage());
      */
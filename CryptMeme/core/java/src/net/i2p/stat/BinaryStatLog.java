@@ -0,0 +1,312 @@
+package net.i2p.stat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+
+/**
+ * Binary alternative to BufferedStatLog, enabled with stat.logFormat=binary.
+ *
+ * addData() claims a slot in a preallocated ring with a CAS and fills it in,
+ * no locks, no formatting, no allocation.
+ * If the ring is full the event is dropped and counted.
+ * A writer thread copies the events into memory-mapped segment files
+ * named (stat.logFile).000001 etc., rolling to a new segment every SEGMENT_SIZE bytes
+ * and deleting the oldest beyond stat.logMaxSegments.
+ *
+ * Segment format, big-endian:
+ *<pre>
+ *  header: magic (4 bytes), version (1 byte), 3 bytes unused, creation time (8 bytes)
+ *  records, until a zero type byte (the unused part of the segment is zeros):
+ *    1 (define): type (1), stat id (4), scope (2 byte length + UTF-8), stat (2 byte length + UTF-8)
+ *    2 (event):  type (1), stat id (4), time (8), value (8), duration (8)
+ *</pre>
+ * Each segment defines every stat id it uses before the first event,
+ * so it can be read on its own. See BinaryStatLogReader.
+ *
+ * @since 0.9.21
+ */
+public class BinaryStatLog implements StatLog {
+    private final I2PAppContext _context;
+    private final Log _log;
+
+    /** the ring, indexed by sequence & MASK */
+    private final StatId[] _stats;
+    private final long[] _times;
+    private final long[] _values;
+    private final long[] _durations;
+    /** the sequence last written to each slot, set after the rest of the slot */
+    private final AtomicLongArray _published;
+    /** next sequence to claim */
+    private final AtomicLong _head = new AtomicLong();
+    /** next sequence for the writer to read */
+    private volatile long _tail;
+    private final AtomicLong _dropped = new AtomicLong();
+
+    private final ConcurrentHashMap<String, StatId> _ids = new ConcurrentHashMap<String, StatId>(64);
+    private final AtomicInteger _nextId = new AtomicInteger(1);
+
+    /** never modified, replaced by updateFilters(); null if "*" */
+    private volatile Set<String> _statFilters;
+    /** short circuit for adding data, false if no filters */
+    private volatile boolean _filtersSpecified;
+    private String _lastFilters;
+
+    private File _baseFile;
+    private int _segmentNum;
+    private RandomAccessFile _raf;
+    private MappedByteBuffer _segment;
+    /** stat ids defined in the current segment */
+    private final BitSet _defined = new BitSet();
+
+    static final int MAGIC = 0x4932534c;  // I2SL
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final byte TYPE_DEFINE = 1;
+    static final byte TYPE_EVENT = 2;
+    static final int EVENT_SIZE = 1 + 4 + 8 + 8 + 8;
+
+    public static final String PROP_STAT_FORMAT = "stat.logFormat";
+    public static final String FORMAT_BINARY = "binary";
+    public static final String DEFAULT_BINARY_STAT_FILE = "stats.bin";
+    public static final String PROP_MAX_SEGMENTS = "stat.logMaxSegments";
+    private static final int DEFAULT_MAX_SEGMENTS = 16;
+    private static final int SEGMENT_SIZE = 4*1024*1024;
+    /** power of 2 */
+    private static final int BUFFER_SIZE = 16*1024;
+    private static final int MASK = BUFFER_SIZE - 1;
+    /** how long the writer sleeps when the ring is empty */
+    private static final long WRITER_SLEEP = 50;
+    /** check the filters and file name this often */
+    private static final long UPDATE_INTERVAL = 30*1000;
+
+    public BinaryStatLog(I2PAppContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(BinaryStatLog.class);
+        _stats = new StatId[BUFFER_SIZE];
+        _times = new long[BUFFER_SIZE];
+        _values = new long[BUFFER_SIZE];
+        _durations = new long[BUFFER_SIZE];
+        _published = new AtomicLongArray(BUFFER_SIZE);
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            _published.set(i, -1);
+        }
+        updateFilters();
+        I2PThread writer = new I2PThread(new StatLogWriter(), "BinaryStatLogWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void addData(String scope, String stat, long value, long duration) {
+        if (!_filtersSpecified)
+            return;
+        Set<String> filters = _statFilters;
+        if (filters != null && !filters.contains(stat))
+            return;
+        StatId id = _ids.get(stat);
+        if (id == null) {
+            id = new StatId(_nextId.getAndIncrement(), scope, stat);
+            StatId old = _ids.putIfAbsent(stat, id);
+            if (old != null)
+                id = old;
+        }
+        long seq;
+        do {
+            seq = _head.get();
+            if (seq - _tail >= BUFFER_SIZE) {
+                _dropped.incrementAndGet();
+                return;
+            }
+        } while (!_head.compareAndSet(seq, seq + 1));
+        int i = (int) seq & MASK;
+        _stats[i] = id;
+        _times[i] = _context.clock().now();
+        _values[i] = value;
+        _durations[i] = duration;
+        _published.set(i, seq);
+    }
+
+    /** @return events dropped because the ring was full */
+    public long getDropped() {
+        return _dropped.get();
+    }
+
+    private void updateFilters() {
+        String val = _context.getProperty(StatManager.PROP_STAT_FILTER);
+        if (val != null) {
+            if (!val.equals(_lastFilters)) {
+                Set<String> filters = new HashSet<String>(16);
+                StringTokenizer tok = new StringTokenizer(val, ",");
+                while (tok.hasMoreTokens())
+                    filters.add(tok.nextToken().trim());
+                _statFilters = filters.contains("*") ? null : Collections.unmodifiableSet(filters);
+                _filtersSpecified = !filters.isEmpty();
+            }
+        } else {
+            _filtersSpecified = false;
+        }
+        _lastFilters = val;
+
+        String filename = _context.getProperty(StatManager.PROP_STAT_FILE, DEFAULT_BINARY_STAT_FILE);
+        File f = new File(filename);
+        if (!f.isAbsolute())
+            f = new File(_context.getRouterDir(), filename);
+        if (!f.equals(_baseFile)) {
+            closeSegment();
+            _baseFile = f;
+            _segmentNum = lastSegment(f);
+        }
+    }
+
+    /** @return the highest existing segment number for this file, or 0 */
+    private static int lastSegment(File base) {
+        int rv = 0;
+        String[] files = base.getAbsoluteFile().getParentFile().list();
+        if (files == null)
+            return 0;
+        String prefix = base.getName() + '.';
+        for (int i = 0; i < files.length; i++) {
+            if (!files[i].startsWith(prefix))
+                continue;
+            try {
+                rv = Math.max(rv, Integer.parseInt(files[i].substring(prefix.length())));
+            } catch (NumberFormatException nfe) {}
+        }
+        return rv;
+    }
+
+    static File segmentFile(File base, int num) {
+        String n = Integer.toString(num);
+        StringBuilder buf = new StringBuilder(base.getName().length() + 7);
+        buf.append(base.getName()).append('.');
+        for (int i = n.length(); i < 6; i++) {
+            buf.append('0');
+        }
+        buf.append(n);
+        return new File(base.getAbsoluteFile().getParentFile(), buf.toString());
+    }
+
+    private void openSegment() throws IOException {
+        _segmentNum++;
+        File f = segmentFile(_baseFile, _segmentNum);
+        _raf = new RandomAccessFile(f, "rw");
+        // any old file of the same name is overwritten
+        _raf.setLength(0);
+        _raf.setLength(SEGMENT_SIZE);
+        _segment = _raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        _segment.putInt(MAGIC);
+        _segment.put(VERSION);
+        _segment.position(8);
+        _segment.putLong(_context.clock().now());
+        _defined.clear();
+        int max = _context.getProperty(PROP_MAX_SEGMENTS, DEFAULT_MAX_SEGMENTS);
+        if (max > 0 && _segmentNum > max) {
+            File old = segmentFile(_baseFile, _segmentNum - max);
+            // may fail on Windows until the old mapping is collected, try again next time
+            old.delete();
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("New stat log segment " + f);
+    }
+
+    private void closeSegment() {
+        if (_raf != null) {
+            try { _raf.close(); } catch (IOException ioe) {}
+            _raf = null;
+        }
+        // the data is in the file, the mapping goes away when collected
+        _segment = null;
+    }
+
+    /**
+     * Write the event, and the stat definition if needed, rolling to a new segment if full.
+     */
+    private void write(StatId id, long time, long value, long duration) throws IOException {
+        int need = EVENT_SIZE + 1;   // leave a zero
+        if (!_defined.get(id.id))
+            need += id.define.length;
+        if (_segment == null || _segment.remaining() < need) {
+            closeSegment();
+            openSegment();
+        }
+        if (!_defined.get(id.id)) {
+            _segment.put(id.define);
+            _defined.set(id.id);
+        }
+        _segment.put(TYPE_EVENT);
+        _segment.putInt(id.id);
+        _segment.putLong(time);
+        _segment.putLong(value);
+        _segment.putLong(duration);
+    }
+
+    private class StatLogWriter implements Runnable {
+        public void run() {
+            long lastUpdate = _context.clock().now();
+            long lastDropped = 0;
+            while (true) {
+                long tail = _tail;
+                int i = (int) tail & MASK;
+                if (_published.get(i) == tail) {
+                    try {
+                        write(_stats[i], _times[i], _values[i], _durations[i]);
+                    } catch (IOException ioe) {
+                        _log.error("Error writing stat log segment", ioe);
+                        closeSegment();
+                    }
+                    _tail = tail + 1;
+                    continue;
+                }
+                long now = _context.clock().now();
+                if (now - lastUpdate > UPDATE_INTERVAL) {
+                    lastUpdate = now;
+                    updateFilters();
+                    long dropped = _dropped.get();
+                    if (dropped > lastDropped && _log.shouldLog(Log.WARN))
+                        _log.warn("Stat log buffer full, dropped " + (dropped - lastDropped) + " events");
+                    lastDropped = dropped;
+                }
+                try {
+                    Thread.sleep(WRITER_SLEEP);
+                } catch (InterruptedException ie) {}
+            }
+        }
+    }
+
+    /** The define record is built once */
+    private static class StatId {
+        final int id;
+        final byte[] define;
+
+        public StatId(int id, String scope, String stat) {
+            this.id = id;
+            byte[] s = DataHelper.getUTF8(scope != null ? scope : "noScope");
+            byte[] n = DataHelper.getUTF8(stat);
+            int sl = Math.min(s.length, 65535);
+            int nl = Math.min(n.length, 65535);
+            define = new byte[1 + 4 + 2 + sl + 2 + nl];
+            define[0] = TYPE_DEFINE;
+            DataHelper.toLong(define, 1, 4, id);
+            DataHelper.toLong(define, 5, 2, sl);
+            System.arraycopy(s, 0, define, 7, sl);
+            DataHelper.toLong(define, 7 + sl, 2, nl);
+            System.arraycopy(n, 0, define, 9 + sl, nl);
+        }
+    }
+}
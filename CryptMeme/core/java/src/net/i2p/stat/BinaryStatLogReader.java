@@ -0,0 +1,187 @@
+package net.i2p.stat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.i2p.data.DataHelper;
+
+/**
+ * Read the segments written by BinaryStatLog, and either replay them in the
+ * text format of BufferedStatLog, for the existing tools, or convert them to CSV.
+ *
+ *<pre>
+ *  Usage: BinaryStatLogReader [-csv] [-stat name] file...
+ *</pre>
+ * Files are read in the order given; a glob such as stats.bin.* sorts them.
+ *
+ * @since 0.9.21
+ */
+public class BinaryStatLogReader {
+
+    /**
+     * Receives each event, in order
+     */
+    public interface Handler {
+        public void event(long time, String scope, String stat, long value, long duration) throws IOException;
+    }
+
+    /**
+     * Read a single segment, stopping at the end of the written data
+     * or at the first bad record, as left by a crash.
+     *
+     * @param stat only this stat, or null for all
+     * @return number of events read
+     * @throws IOException if not a stat log segment
+     */
+    public static int read(File segment, String stat, Handler handler) throws IOException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(segment, "r");
+            ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buf.remaining() < BinaryStatLog.HEADER_SIZE ||
+                buf.getInt() != BinaryStatLog.MAGIC ||
+                buf.get() != BinaryStatLog.VERSION)
+                throw new IOException("Not a stat log segment: " + segment);
+            buf.position(BinaryStatLog.HEADER_SIZE);
+            Map<Integer, String[]> ids = new HashMap<Integer, String[]>(64);
+            int rv = 0;
+            try {
+                while (buf.hasRemaining()) {
+                    byte type = buf.get();
+                    if (type == BinaryStatLog.TYPE_DEFINE) {
+                        int id = buf.getInt();
+                        String scope = string(buf);
+                        String name = string(buf);
+                        ids.put(Integer.valueOf(id), new String[] { scope, name });
+                    } else if (type == BinaryStatLog.TYPE_EVENT) {
+                        String[] def = ids.get(Integer.valueOf(buf.getInt()));
+                        long time = buf.getLong();
+                        long value = buf.getLong();
+                        long duration = buf.getLong();
+                        if (def == null)
+                            break;
+                        if (stat == null || stat.equals(def[1])) {
+                            handler.event(time, def[0], def[1], value, duration);
+                            rv++;
+                        }
+                    } else {
+                        // zero, end of data
+                        break;
+                    }
+                }
+            } catch (BufferUnderflowException bue) {
+                // truncated
+            }
+            return rv;
+        } finally {
+            if (raf != null) try { raf.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    private static String string(ByteBuffer buf) {
+        int len = buf.getShort() & 0xffff;
+        byte[] b = new byte[len];
+        buf.get(b);
+        return DataHelper.getUTF8(b);
+    }
+
+    /** Same as BufferedStatLog */
+    private static class TextHandler implements Handler {
+        private final Writer _out;
+        private final SimpleDateFormat _fmt = new SimpleDateFormat("yyyyMMdd HH:mm:ss.SSS");
+
+        public TextHandler(Writer out) { _out = out; }
+
+        public void event(long time, String scope, String stat, long value, long duration) throws IOException {
+            _out.write(_fmt.format(new Date(time)));
+            _out.write(' ');
+            _out.write(scope);
+            _out.write(' ');
+            _out.write(stat);
+            _out.write(' ');
+            _out.write(Long.toString(value));
+            _out.write(' ');
+            _out.write(Long.toString(duration));
+            _out.write('\n');
+        }
+    }
+
+    /** time in ms since the epoch,scope,stat,value,duration */
+    private static class CSVHandler implements Handler {
+        private final Writer _out;
+
+        public CSVHandler(Writer out) { _out = out; }
+
+        public void event(long time, String scope, String stat, long value, long duration) throws IOException {
+            _out.write(Long.toString(time));
+            _out.write(',');
+            csv(scope);
+            _out.write(',');
+            csv(stat);
+            _out.write(',');
+            _out.write(Long.toString(value));
+            _out.write(',');
+            _out.write(Long.toString(duration));
+            _out.write('\n');
+        }
+
+        private void csv(String s) throws IOException {
+            if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+                _out.write(s);
+            } else {
+                _out.write('"');
+                _out.write(s.replace("\"", "\"\""));
+                _out.write('"');
+            }
+        }
+    }
+
+    public static void main(String args[]) {
+        boolean csv = false;
+        String stat = null;
+        int i = 0;
+        for ( ; i < args.length; i++) {
+            if (args[i].equals("-csv"))
+                csv = true;
+            else if (args[i].equals("-stat") && i + 1 < args.length)
+                stat = args[++i];
+            else
+                break;
+        }
+        if (i >= args.length) {
+            System.err.println("Usage: BinaryStatLogReader [-csv] [-stat name] file...");
+            System.exit(1);
+        }
+        String[] files = Arrays.copyOfRange(args, i, args.length);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64*1024);
+        try {
+            Handler h;
+            if (csv) {
+                out.write("time,scope,stat,value,duration\n");
+                h = new CSVHandler(out);
+            } else {
+                h = new TextHandler(out);
+            }
+            for (String f : files) {
+                int count = read(new File(f), stat, h);
+                out.flush();
+                System.err.println(f + ": " + count + " events");
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.toString());
+            System.exit(1);
+        }
+    }
+}
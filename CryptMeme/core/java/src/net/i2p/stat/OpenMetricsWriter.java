@@ -0,0 +1,199 @@
+package net.i2p.stat;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Write metrics in the OpenMetrics (Prometheus) text format,
+ * straight to the Writer, one sample at a time, so a scrape of
+ * thousands of stats never builds the whole response in memory.
+ * Wrap the Writer in a BufferedWriter.
+ *
+ * The stats from StatManager are written as a few metric families,
+ * with the stat name, group and period in milliseconds as labels, e.g.
+ *<pre>
+ *  i2p_rate_average{stat="tunnel.buildRequestTime",group="Tunnels",period="600000"} 123.4
+ *</pre>
+ *
+ * Subclasses add their own families with family() and sample(),
+ * then call end().
+ *
+ * @since 0.9.21
+ */
+public class OpenMetricsWriter {
+    protected final Writer _out;
+
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    public static final String TYPE_GAUGE = "gauge";
+    public static final String TYPE_COUNTER = "counter";
+
+    public OpenMetricsWriter(Writer out) {
+        _out = out;
+    }
+
+    /**
+     * All the RateStats and FrequencyStats.
+     */
+    public void writeStats(StatManager mgr) throws IOException {
+        family("i2p_rate_average", TYPE_GAUGE, "Average value in the last full period");
+        for (RateStat rs : mgr.getRateStats()) {
+            for (long period : rs.getPeriods()) {
+                Rate r = rs.getRate(period);
+                if (r != null)
+                    sample("i2p_rate_average", rs, period, r.getAverageValue());
+            }
+        }
+        family("i2p_rate_events", TYPE_GAUGE, "Number of events in the last full period");
+        for (RateStat rs : mgr.getRateStats()) {
+            for (long period : rs.getPeriods()) {
+                Rate r = rs.getRate(period);
+                if (r != null)
+                    sample("i2p_rate_events", rs, period, r.getLastEventCount());
+            }
+        }
+        family("i2p_rate_lifetime_average", TYPE_GAUGE, "Average value since the stat was created");
+        for (RateStat rs : mgr.getRateStats()) {
+            sample("i2p_rate_lifetime_average", rs.getName(), rs.getGroupName(), rs.getLifetimeAverageValue());
+        }
+        family("i2p_rate_lifetime_events", TYPE_COUNTER, "Number of events since the stat was created");
+        for (RateStat rs : mgr.getRateStats()) {
+            sample("i2p_rate_lifetime_events_total", rs.getName(), rs.getGroupName(), rs.getLifetimeEventCount());
+        }
+
+        family("i2p_frequency_events_per_period", TYPE_GAUGE, "Average number of events per period");
+        for (FrequencyStat fs : mgr.getFrequencyStats()) {
+            for (long period : fs.getPeriods()) {
+                Frequency f = fs.getFrequency(period);
+                if (f != null) {
+                    start("i2p_frequency_events_per_period", fs.getName(), fs.getGroupName());
+                    label("period", period);
+                    end(f.getAverageEventsPerPeriod());
+                }
+            }
+        }
+        family("i2p_frequency_events", TYPE_COUNTER, "Number of events since the stat was created");
+        for (FrequencyStat fs : mgr.getFrequencyStats()) {
+            sample("i2p_frequency_events_total", fs.getName(), fs.getGroupName(), fs.getEventCount());
+        }
+    }
+
+    /**
+     * Must be called once before the samples of each family,
+     * and all of a family's samples must follow together.
+     */
+    public void family(String name, String type, String help) throws IOException {
+        _out.write("# TYPE ");
+        _out.write(name);
+        _out.write(' ');
+        _out.write(type);
+        _out.write("\n# HELP ");
+        _out.write(name);
+        _out.write(' ');
+        escape(help, false);
+        _out.write('\n');
+    }
+
+    /** A sample without labels */
+    public void sample(String name, double value) throws IOException {
+        _out.write(name);
+        _out.write(' ');
+        value(value);
+        _out.write('\n');
+    }
+
+    /**
+     * A sample with labels
+     * @param labels name, value, name, value, ...
+     */
+    public void sample(String name, double value, String... labels) throws IOException {
+        _out.write(name);
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            _out.write(i == 0 ? '{' : ',');
+            _out.write(labels[i]);
+            _out.write("=\"");
+            escape(labels[i + 1], true);
+            _out.write('"');
+        }
+        if (labels.length > 1)
+            _out.write('}');
+        _out.write(' ');
+        value(value);
+        _out.write('\n');
+    }
+
+    /** Write the terminating EOF line and flush */
+    public void end() throws IOException {
+        _out.write("# EOF\n");
+        _out.flush();
+    }
+
+    private void sample(String name, RateStat rs, long period, double value) throws IOException {
+        start(name, rs.getName(), rs.getGroupName());
+        label("period", period);
+        end(value);
+    }
+
+    private void sample(String name, String stat, String group, double value) throws IOException {
+        start(name, stat, group);
+        end(value);
+    }
+
+    /** name{stat="...",group="..." */
+    private void start(String name, String stat, String group) throws IOException {
+        _out.write(name);
+        _out.write("{stat=\"");
+        escape(stat, true);
+        _out.write("\",group=\"");
+        escape(group, true);
+        _out.write('"');
+    }
+
+    /** ,name="value" */
+    private void label(String name, long value) throws IOException {
+        _out.write(',');
+        _out.write(name);
+        _out.write("=\"");
+        _out.write(Long.toString(value));
+        _out.write('"');
+    }
+
+    /** } value\n */
+    private void end(double value) throws IOException {
+        _out.write("} ");
+        value(value);
+        _out.write('\n');
+    }
+
+    private void value(double value) throws IOException {
+        if (Double.isNaN(value)) {
+            _out.write("NaN");
+        } else if (Double.isInfinite(value)) {
+            _out.write(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == (long) value) {
+            _out.write(Long.toString((long) value));
+        } else {
+            _out.write(Double.toString(value));
+        }
+    }
+
+    /**
+     * Backslash and newline always, double quote only in label values
+     * @param s null ok
+     */
+    private void escape(String s, boolean isLabel) throws IOException {
+        if (s == null)
+            return;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\')
+                _out.write("\\\\");
+            else if (c == '\n')
+                _out.write("\\n");
+            else if (c == '"' && isLabel)
+                _out.write("\\\"");
+            else
+                _out.write(c);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package net.i2p.stat;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Properties;
 
 import net.i2p.data.DataHelper;
@@ -40,18 +41,28 @@ public class Rate {
     /** locked during coalesce and addData */
     // private final Object _lock = new Object();
 
+    /**
+     * Added by addData() but not yet in the current and lifetime totals.
+     * Everything reading those totals calls fold() first.
+     * @since 0.9.21
+     */
+    private final StripedAccumulator _pending = new StripedAccumulator();
+
     /** in the current (partial) period, what is the total value acrued through all events? */
     public synchronized double getCurrentTotalValue() {
+        fold();
         return _currentTotalValue;
     }
 
     /** in the current (partial) period, how many events have occurred? */
     public synchronized long getCurrentEventCount() {
+        fold();
         return _currentEventCount;
     }
 
     /** in the current (partial) period, how much of the time has been spent doing the events? */
     public synchronized long getCurrentTotalEventTime() {
+        fold();
         return _currentTotalEventTime;
     }
 
@@ -90,16 +101,19 @@ public class Rate {
 
     /** since rate creation, what was the total value acrued through all events?  */
     public synchronized double getLifetimeTotalValue() {
+        fold();
         return _lifetimeTotalValue;
     }
 
     /** since rate creation, how many events have occurred? */
     public synchronized long getLifetimeEventCount() {
+        fold();
         return _lifetimeEventCount;
     }
 
     /** since rate creation, how much of the time was spent doing the events? */
     public synchronized long getLifetimeTotalEventTime() {
+        fold();
         return _lifetimeTotalEventTime;
     }
 
@@ -160,11 +174,8 @@ public class Rate {
      * If you always use this call, eventDuration is always zero,
      * and the various get*Saturation*() and get*EventTime() methods will return zero.
      */
-    public synchronized void addData(long value) {
-        _currentTotalValue += value;
-        _currentEventCount++;
-        _lifetimeTotalValue += value;
-        _lifetimeEventCount++;
+    public void addData(long value) {
+        _pending.add(value, 0);
     }
 
     /**
@@ -200,14 +211,29 @@ public class Rate {
      * @param value value to accrue in the current period
      * @param eventDuration how long it took to accrue this data (set to 0 if it was instantaneous)
      */
-    public synchronized void addData(long value, long eventDuration) {
+    public void addData(long value, long eventDuration) {
+        _pending.add(value, eventDuration);
+    }
+
+    /**
+     * Move what addData() has accumulated into the current and lifetime totals.
+     * Caller must synchronize on this.
+     *
+     * @since 0.9.21
+     */
+    private void fold() {
+        long count = _pending.getAndResetCount();
+        long value = _pending.getAndResetValue();
+        long eventTime = _pending.getAndResetTime();
+        if (count == 0 && value == 0 && eventTime == 0)
+            return;
         _currentTotalValue += value;
-        _currentEventCount++;
-        _currentTotalEventTime += eventDuration;
+        _currentEventCount += count;
+        _currentTotalEventTime += eventTime;
 
         _lifetimeTotalValue += value;
-        _lifetimeEventCount++;
-        _lifetimeTotalEventTime += eventDuration;
+        _lifetimeEventCount += count;
+        _lifetimeTotalEventTime += eventTime;
     }
 
     /** 2s is plenty of slack to deal with slow coalescing (across many stats) */
@@ -216,6 +242,7 @@ public class Rate {
         long now = now();
         double correctedTotalValue; // for summaryListener which divides by rounded EventCount
         synchronized (this) {
+            fold();
             long measuredPeriod = now - _lastCoalesceDate;
             if (measuredPeriod < _period - SLACK) {
                 // no need to coalesce (assuming we only try to do so once per minute)
@@ -281,6 +308,7 @@ public class Rate {
      * What was the average value across the events since the stat was created?
      */
     public synchronized double getLifetimeAverageValue() {
+        fold();
         if ((_lifetimeTotalValue != 0) && (_lifetimeEventCount > 0))
             return _lifetimeTotalValue / _lifetimeEventCount;
        
@@ -339,6 +367,7 @@ public class Rate {
      * @return ratio, or 0 if event times aren't used
      */
     public synchronized double getLifetimeEventSaturation() {
+        fold();
         if ((_lastEventCount > 0) && (_lifetimeTotalEventTime > 0)) {
             double eventTime = (double) _lifetimeTotalEventTime / (double) _lifetimeEventCount;
             double maxEvents = _period / eventTime;
@@ -407,6 +436,7 @@ public class Rate {
      * Warning- returns ratio, not percentage (i.e. it is not multiplied by 100 here)
      */
     public synchronized double getPercentageOfLifetimeValue() {
+        fold();
         if ((_lastTotalValue != 0) && (_lifetimeTotalValue != 0)) {
             double lifetimePeriodValue = _period * (_lifetimeTotalValue / (now() - _creationDate));
             return _lastTotalValue / lifetimePeriodValue;
@@ -431,6 +461,7 @@ public class Rate {
      * @since 0.9.4
      */
     public synchronized RateAverages computeAverages(RateAverages out, boolean useLifetime) {
+        fold();
         out.reset();
         
         final long total = _currentEventCount + _lastEventCount;
@@ -453,6 +484,7 @@ public class Rate {
     }
 
     public synchronized void store(String prefix, StringBuilder buf) throws IOException {
+        fold();
         PersistenceHelper.addTime(buf, prefix, ".period", "Length of the period:", _period);
         PersistenceHelper.addDate(buf, prefix, ".creationDate",
                               "When was this rate created?", _creationDate);
@@ -502,6 +534,8 @@ public class Rate {
      * @throws IllegalArgumentException if the data was formatted incorrectly
      */
     public synchronized void load(Properties props, String prefix, boolean treatAsCurrent) throws IllegalArgumentException {
+        // discard anything added before, as we did when it went straight into the fields
+        fold();
         _period = PersistenceHelper.getInt(props, prefix, ".period");
         _creationDate = PersistenceHelper.getLong(props, prefix, ".creationDate");
         _lastCoalesceDate = PersistenceHelper.getLong(props, prefix, ".lastCoalesceDate");
@@ -524,6 +558,70 @@ public class Rate {
         coalesce();
     }
 
+    /**
+     *  Size of the binary form written by store(ByteBuffer)
+     *  @since 0.9.21
+     */
+    public static final int BINARY_SIZE = (4 * 4) + (11 * 8);
+
+    /**
+     * Binary form of store(String, StringBuilder), BINARY_SIZE bytes,
+     * big-endian, starting at the buffer's position.
+     *
+     * @since 0.9.21
+     */
+    public synchronized void store(ByteBuffer buf) {
+        fold();
+        buf.putInt(_period);
+        buf.putLong(_creationDate);
+        buf.putLong(_lastCoalesceDate);
+        buf.putDouble(_currentTotalValue);
+        buf.putInt(_currentEventCount);
+        buf.putLong(_currentTotalEventTime);
+        buf.putDouble(_lastTotalValue);
+        buf.putInt(_lastEventCount);
+        buf.putLong(_lastTotalEventTime);
+        buf.putDouble(_extremeTotalValue);
+        buf.putInt(_extremeEventCount);
+        buf.putLong(_extremeTotalEventTime);
+        buf.putDouble(_lifetimeTotalValue);
+        buf.putLong(_lifetimeEventCount);
+        buf.putLong(_lifetimeTotalEventTime);
+    }
+
+    /**
+     * Load this rate from the binary form written by store(ByteBuffer).
+     *
+     * @param treatAsCurrent as in load(Properties, String, boolean)
+     * @throws IllegalArgumentException if the period does not match this rate's period
+     * @since 0.9.21
+     */
+    public synchronized void load(ByteBuffer buf, boolean treatAsCurrent) throws IllegalArgumentException {
+        int period = buf.getInt();
+        if (period != _period) {
+            buf.position(buf.position() + BINARY_SIZE - 4);
+            throw new IllegalArgumentException("Period " + period + " does not match " + _period);
+        }
+        fold();
+        _creationDate = buf.getLong();
+        _lastCoalesceDate = buf.getLong();
+        _currentTotalValue = buf.getDouble();
+        _currentEventCount = buf.getInt();
+        _currentTotalEventTime = buf.getLong();
+        _lastTotalValue = buf.getDouble();
+        _lastEventCount = buf.getInt();
+        _lastTotalEventTime = buf.getLong();
+        _extremeTotalValue = buf.getDouble();
+        _extremeEventCount = buf.getInt();
+        _extremeTotalEventTime = buf.getLong();
+        _lifetimeTotalValue = buf.getDouble();
+        _lifetimeEventCount = buf.getLong();
+        _lifetimeTotalEventTime = buf.getLong();
+
+        if (treatAsCurrent) _lastCoalesceDate = now();
+        coalesce();
+    }
+
     /**
      * This is used in StatSummarizer and SummaryListener.
      * We base it on the stat we are tracking, not the stored data.
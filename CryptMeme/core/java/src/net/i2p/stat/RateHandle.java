@@ -0,0 +1,38 @@
+package net.i2p.stat;
+
+/**
+ * A rate stat looked up once, for callers that add data on every message
+ * and don't want StatManager.addRateData() looking up the name each time.
+ * Get one from StatManager.getRateHandle() after creating the stat.
+ *
+ * If the stat was not created (for example, it is ignored because stat.full is false),
+ * the handle does nothing. If the stat is later removed,
+ * the handle keeps adding to the removed stat.
+ *
+ * @since 0.9.21
+ */
+public final class RateHandle {
+    private final RateStat _stat;
+
+    /** @param stat may be null */
+    RateHandle(RateStat stat) {
+        _stat = stat;
+    }
+
+    /** As in StatManager.addRateData(String, long, long) */
+    public void addData(long data, long eventDuration) {
+        if (_stat != null)
+            _stat.addData(data, eventDuration);
+    }
+
+    /** As in StatManager.addRateData(String, long) */
+    public void addData(long data) {
+        if (_stat != null)
+            _stat.addData(data);
+    }
+
+    /** @return null if the stat did not exist when the handle was created */
+    public RateStat getRateStat() {
+        return _stat;
+    }
+}
@@ -1,6 +1,7 @@
 package net.i2p.stat;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.io.OutputStream;
 import static java.util.Arrays.*;
 import java.util.Properties;
@@ -220,6 +221,55 @@ public class RateStat {
         }
     }
 
+    /**
+     * Size of the binary form written by store(ByteBuffer)
+     * @since 0.9.21
+     */
+    public int getBinarySize() {
+        return 1 + (_rates.length * Rate.BINARY_SIZE);
+    }
+
+    /**
+     * Binary form of store(OutputStream, String), getBinarySize() bytes,
+     * starting at the buffer's position: the number of rates, then each rate.
+     *
+     * @since 0.9.21
+     */
+    public void store(ByteBuffer buf) {
+        buf.put((byte) _rates.length);
+        for (Rate r : _rates) {
+            r.store(buf);
+        }
+    }
+
+    /**
+     * Load this rate stat from the binary form written by store(ByteBuffer).
+     * As with load(Properties, String, boolean), this RateStat must already
+     * have the same rates.
+     *
+     * @param treatAsCurrent as in load(Properties, String, boolean)
+     * @throws IllegalArgumentException if the stored rates do not match
+     * @since 0.9.21
+     */
+    public void load(ByteBuffer buf, boolean treatAsCurrent) throws IllegalArgumentException {
+        int count = buf.get() & 0xff;
+        if (count != _rates.length) {
+            buf.position(buf.position() + (count * Rate.BINARY_SIZE));
+            throw new IllegalArgumentException("Stored " + count + " rates, have " + _rates.length);
+        }
+        // keep going so the buffer ends up past all of them
+        IllegalArgumentException iae = null;
+        for (Rate r : _rates) {
+            try {
+                r.load(buf, treatAsCurrent);
+            } catch (IllegalArgumentException e) {
+                iae = e;
+            }
+        }
+        if (iae != null)
+            throw iae;
+    }
+
 /*********
     public static void main(String args[]) {
         RateStat rs = new RateStat("moo", "moo moo moo", "cow trueisms", new long[] { 60 * 1000, 60 * 60 * 1000,
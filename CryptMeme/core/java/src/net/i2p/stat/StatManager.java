@@ -1,6 +1,8 @@
 package net.i2p.stat;
 
 import java.text.Collator;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -50,8 +52,12 @@ public class StatManager {
         _frequencyStats = new ConcurrentHashMap<String,FrequencyStat>(8);
         _rateStats = new ConcurrentHashMap<String,RateStat>(128);
         String filter = getStatFilter();
-        if (filter != null && filter.length() > 0)
-            _statLog = new BufferedStatLog(context);
+        if (filter != null && filter.length() > 0) {
+            if (BinaryStatLog.FORMAT_BINARY.equals(context.getProperty(BinaryStatLog.PROP_STAT_FORMAT)))
+                _statLog = new BinaryStatLog(context);
+            else
+                _statLog = new BufferedStatLog(context);
+        }
     }
     
     /** @since 0.8.8 */
@@ -189,6 +195,34 @@ public class StatManager {
         return _rateStats.get(name);
     }
 
+    /**
+     *  For the hot paths, to skip the lookup in addRateData().
+     *  Call after creating the stat; if it does not exist now,
+     *  the handle does nothing.
+     *
+     *  @return non-null
+     *  @since 0.9.21
+     */
+    public RateHandle getRateHandle(String name) {
+        return new RateHandle(_rateStats.get(name));
+    }
+
+    /**
+     *  Unmodifiable live view, no copy.
+     *  @since 0.9.21
+     */
+    public Collection<FrequencyStat> getFrequencyStats() {
+        return Collections.unmodifiableCollection(_frequencyStats.values());
+    }
+
+    /**
+     *  Unmodifiable live view, no copy.
+     *  @since 0.9.21
+     */
+    public Collection<RateStat> getRateStats() {
+        return Collections.unmodifiableCollection(_rateStats.values());
+    }
+
     public Set<String> getFrequencyNames() {
         return new HashSet<String>(_frequencyStats.keySet());
     }
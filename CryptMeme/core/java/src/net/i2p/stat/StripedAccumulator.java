@@ -0,0 +1,107 @@
+package net.i2p.stat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * The value, event count, and event time sums added to a Rate since it last
+ * looked, without locking, in the manner of Java 8's LongAdder.
+ *
+ * Adds go to a single set of fields until two threads collide on them,
+ * after which they are spread over per-thread stripes, each on its own
+ * cache line. The getAndReset methods read and clear the fields and all the stripes.
+ * A concurrent add may be split across two reads, it is never lost.
+ *
+ * @since 0.9.21
+ */
+final class StripedAccumulator {
+    private volatile long _value;
+    private volatile long _count;
+    private volatile long _time;
+    /** null until contended */
+    private volatile AtomicLongArray _stripes;
+
+    private static final AtomicLongFieldUpdater<StripedAccumulator> VALUE =
+        AtomicLongFieldUpdater.newUpdater(StripedAccumulator.class, "_value");
+    private static final AtomicLongFieldUpdater<StripedAccumulator> COUNT =
+        AtomicLongFieldUpdater.newUpdater(StripedAccumulator.class, "_count");
+    private static final AtomicLongFieldUpdater<StripedAccumulator> TIME =
+        AtomicLongFieldUpdater.newUpdater(StripedAccumulator.class, "_time");
+
+    /** value, count, time, then padding to 64 bytes */
+    private static final int STRIDE = 8;
+    private static final int STRIPES;
+    static {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int n = 1;
+        while (n < cpus && n < 64)
+            n <<= 1;
+        STRIPES = n;
+    }
+
+    public void add(long value, long duration) {
+        AtomicLongArray stripes = _stripes;
+        if (stripes == null) {
+            long v = _value;
+            boolean added = VALUE.compareAndSet(this, v, v + value);
+            if (!added && STRIPES == 1) {
+                // nowhere to spread to
+                VALUE.addAndGet(this, value);
+                added = true;
+            }
+            if (added) {
+                COUNT.incrementAndGet(this);
+                if (duration != 0)
+                    TIME.addAndGet(this, duration);
+                return;
+            }
+            stripes = stripes();
+        }
+        int i = index() * STRIDE;
+        stripes.addAndGet(i, value);
+        stripes.incrementAndGet(i + 1);
+        if (duration != 0)
+            stripes.addAndGet(i + 2, duration);
+    }
+
+    public long getAndResetValue() {
+        return getAndReset(VALUE, 0);
+    }
+
+    public long getAndResetCount() {
+        return getAndReset(COUNT, 1);
+    }
+
+    public long getAndResetTime() {
+        return getAndReset(TIME, 2);
+    }
+
+    private long getAndReset(AtomicLongFieldUpdater<StripedAccumulator> field, int off) {
+        long rv = 0;
+        if (field.get(this) != 0)
+            rv = field.getAndSet(this, 0);
+        AtomicLongArray stripes = _stripes;
+        if (stripes != null) {
+            for (int i = off; i < stripes.length(); i += STRIDE) {
+                if (stripes.get(i) != 0)
+                    rv += stripes.getAndSet(i, 0);
+            }
+        }
+        return rv;
+    }
+
+    private synchronized AtomicLongArray stripes() {
+        AtomicLongArray rv = _stripes;
+        if (rv == null) {
+            rv = new AtomicLongArray(STRIPES * STRIDE);
+            _stripes = rv;
+        }
+        return rv;
+    }
+
+    /** thread IDs are sequential, so spread them */
+    private static int index() {
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
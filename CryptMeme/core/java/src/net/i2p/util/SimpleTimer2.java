@@ -121,7 +121,10 @@ public class SimpleTimer2 {
         }
     }
 
-    private ScheduledFuture schedule(TimedEvent t, long timeoutMs) {
+    /**
+     *  Package private for subclasses as of 0.9.21
+     */
+    ScheduledFuture schedule(TimedEvent t, long timeoutMs) {
         return _executor.schedule(t, timeoutMs, TimeUnit.MILLISECONDS);
     }
     
@@ -465,12 +468,18 @@ public class SimpleTimer2 {
         return _name;
     }
 
-    /** warning - slow */
-    private long getCompletedTaskCount() {
+    /**
+     *  warning - slow
+     *  Package private for subclasses as of 0.9.21
+     */
+    long getCompletedTaskCount() {
         return _executor.getCompletedTaskCount();
     }
 
-    private String debug() {
+    /**
+     *  Package private for subclasses as of 0.9.21
+     */
+    String debug() {
         _executor.purge();  // Remove cancelled tasks from the queue so we get a good queue size stat
         return
             " Pool: " + _name +
@@ -181,4 +181,12 @@ public abstract class SystemVersion {
             maxMemory = 96*1024*1024l;
         return maxMemory;
     }
+
+    /**
+     *  Runtime.getRuntime().availableProcessors() but never less than 1
+     *  @since 0.9.21
+     */
+    public static int getCores() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
 }
@@ -0,0 +1,355 @@
+package net.i2p.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+
+/**
+ * SimpleTimer2 with a hashed timing wheel instead of the
+ * ScheduledThreadPoolExecutor's heap. Same TimedEvent contract.
+ *
+ * Schedule and cancel are O(1): the event goes in a doubly-linked
+ * list in the slot for its tick, and a cancel unlinks it.
+ * A single thread sweeps each slot once its tick has passed and hands
+ * the expired events to a small pool of threads to run.
+ * Events never fire early, and fire at most about one TICK late
+ * unless the pool is backed up.
+ *
+ * Times are from System.nanoTime(), so wall clock changes don't matter.
+ *
+ * For the streaming retransmit, SSU ACK and tunnel expiration timers,
+ * which are scheduled, rescheduled and cancelled constantly.
+ *
+ * @since 0.9.21
+ */
+public class TimingWheelTimer2 extends SimpleTimer2 {
+
+    private final String _name;
+    private final Log _log;
+    private final Slot[] _wheel;
+    private final ThreadPoolExecutor _runner;
+    private final int _threads;
+    private final AtomicInteger _count = new AtomicInteger();
+    private final AtomicLong _completed = new AtomicLong();
+    private final AtomicInteger _pending = new AtomicInteger();
+    /** the last tick swept, only changed with the slot lock held */
+    private volatile long _lastTick;
+    private volatile boolean _isRunning;
+
+    private static final int MIN_THREADS = 2;
+    private static final int MAX_THREADS = 4;
+    /** ms */
+    private static final long TICK = 5;
+    /** power of 2, about 5 seconds */
+    private static final int WHEEL_SIZE = 1024;
+
+    /**
+     *  To be instantiated by the context.
+     *  Others should use context.simpleTimer2() instead
+     */
+    public TimingWheelTimer2(I2PAppContext context) {
+        this(context, "SimpleTimer2");
+    }
+
+    /**
+     *  To be instantiated by the context.
+     *  Others should use context.simpleTimer2() instead
+     */
+    protected TimingWheelTimer2(I2PAppContext context, String name) {
+        // don't start the executor threads, we don't use them
+        super(context, name, false);
+        _name = name;
+        _log = context.logManager().getLog(TimingWheelTimer2.class);
+        _wheel = new Slot[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            _wheel[i] = new Slot();
+        }
+        long maxMemory = SystemVersion.getMaxMemory();
+        _threads = (int) Math.max(MIN_THREADS, Math.min(MAX_THREADS, 1 + (maxMemory / (32*1024*1024))));
+        _runner = new ThreadPoolExecutor(_threads, _threads, 0, TimeUnit.MILLISECONDS,
+                                         new LinkedBlockingQueue<Runnable>(), new CustomThreadFactory());
+        _runner.prestartAllCoreThreads();
+        _lastTick = now() / TICK;
+        _isRunning = true;
+        I2PThread t = new I2PThread(new Sweeper(), _name + " Wheel", true);
+        t.start();
+    }
+
+    /** ms, monotonic */
+    private static long now() {
+        return System.nanoTime() / (1000*1000);
+    }
+
+    /**
+     * Stops the timer.
+     * Cannot be restarted.
+     */
+    @Override
+    public void stop() {
+        _isRunning = false;
+        super.stop();
+        _runner.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
+        _runner.shutdownNow();
+    }
+
+    /**
+     *  Put it in the slot for the first tick at or after the deadline,
+     *  or the next one to be swept if that has already gone by.
+     */
+    @Override
+    ScheduledFuture<?> schedule(TimedEvent t, long timeoutMs) {
+        WheelFuture rv = new WheelFuture(t, now() + Math.max(0, timeoutMs));
+        long tick = (rv.deadline + TICK - 1) / TICK;
+        while (true) {
+            long target = Math.max(tick, _lastTick + 1);
+            Slot slot = _wheel[(int) (target & (WHEEL_SIZE - 1))];
+            synchronized (slot) {
+                if (target <= _lastTick)
+                    continue;  // the sweeper got there first
+                rv.tick = target;
+                slot.add(rv);
+            }
+            _pending.incrementAndGet();
+            return rv;
+        }
+    }
+
+    @Override
+    long getCompletedTaskCount() {
+        return _completed.get();
+    }
+
+    @Override
+    String debug() {
+        return
+            " Wheel: " + _name +
+            " Active: " + _runner.getActiveCount() + '/' + _runner.getPoolSize() +
+            " Completed: " + _completed.get() +
+            " Queued: " + _pending.get() +
+            " Backlog: " + _runner.getQueue().size();
+    }
+
+    private class CustomThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            Thread rv = new I2PThread(r, _name + ' ' + _count.incrementAndGet() + '/' + _threads, true);
+            return rv;
+        }
+    }
+
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int CANCELLED = 2;
+    private static final int DONE = 3;
+
+    /**
+     *  The wheel entry, and the future the TimedEvent holds.
+     *  Only cancel(), getDelay() and isDone() are used by TimedEvent.
+     *  As for a Runnable in SimpleTimer2, get() waits for the event to finish
+     *  running and returns null.
+     */
+    private class WheelFuture implements ScheduledFuture<Object>, Runnable {
+        private final TimedEvent _event;
+        private final AtomicInteger _state = new AtomicInteger(PENDING);
+        /** ms from now() */
+        final long deadline;
+        /** LOCKING: the slot */
+        long tick;
+        WheelFuture prev, next;
+        Slot slot;
+
+        public WheelFuture(TimedEvent event, long deadline) {
+            _event = event;
+            this.deadline = deadline;
+        }
+
+        /**
+         *  Unlinks it from the wheel.
+         *  @return false if it already ran or was cancelled
+         */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!_state.compareAndSet(PENDING, CANCELLED))
+                return false;
+            synchronized (this) {
+                notifyAll();
+            }
+            Slot s = slot;
+            if (s != null) {
+                synchronized (s) {
+                    // may have been swept in the meantime
+                    if (slot == s)
+                        s.remove(this);
+                }
+            }
+            _pending.decrementAndGet();
+            return true;
+        }
+
+        public void run() {
+            if (!_state.compareAndSet(PENDING, RUNNING))
+                return;
+            _pending.decrementAndGet();
+            try {
+                _event.run();
+            } catch (Throwable t) {
+                // shoudn't happen, caught in TimedEvent.run()
+                _log.log(Log.CRIT, "wtf, event borked: " + _event, t);
+            }
+            _completed.incrementAndGet();
+            synchronized (this) {
+                _state.set(DONE);
+                notifyAll();
+            }
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - now(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed o) {
+            long d = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+            return d < 0 ? -1 : (d > 0 ? 1 : 0);
+        }
+
+        public boolean isCancelled() {
+            return _state.get() == CANCELLED;
+        }
+
+        public boolean isDone() {
+            return _state.get() != PENDING;
+        }
+
+        /**
+         *  Waits until the event has run.
+         *  @return null
+         *  @throws CancellationException if cancelled
+         */
+        public synchronized Object get() throws InterruptedException, ExecutionException {
+            int state;
+            while ((state = _state.get()) == PENDING || state == RUNNING) {
+                wait();
+            }
+            if (state == CANCELLED)
+                throw new CancellationException();
+            return null;
+        }
+
+        /**
+         *  Waits until the event has run, or the timeout.
+         *  @return null
+         *  @throws CancellationException if cancelled
+         */
+        public synchronized Object get(long timeout, TimeUnit unit)
+                                       throws InterruptedException, ExecutionException, TimeoutException {
+            long end = System.nanoTime() + unit.toNanos(timeout);
+            int state;
+            while ((state = _state.get()) == PENDING || state == RUNNING) {
+                long left = end - System.nanoTime();
+                if (left <= 0)
+                    throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            if (state == CANCELLED)
+                throw new CancellationException();
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "WheelFuture for " + _event;
+        }
+    }
+
+    /**
+     *  A doubly-linked list of entries.
+     *  Lock on the slot itself.
+     */
+    private static class Slot {
+        private WheelFuture _head;
+
+        void add(WheelFuture f) {
+            f.slot = this;
+            f.prev = null;
+            f.next = _head;
+            if (_head != null)
+                _head.prev = f;
+            _head = f;
+        }
+
+        void remove(WheelFuture f) {
+            if (f.prev != null)
+                f.prev.next = f.next;
+            else
+                _head = f.next;
+            if (f.next != null)
+                f.next.prev = f.prev;
+            f.prev = null;
+            f.next = null;
+            f.slot = null;
+        }
+
+        /**
+         *  Remove and add to the list everything due by the given tick
+         */
+        void expire(long tick, List<WheelFuture> expired) {
+            WheelFuture f = _head;
+            while (f != null) {
+                WheelFuture next = f.next;
+                if (f.tick <= tick) {
+                    remove(f);
+                    expired.add(f);
+                }
+                f = next;
+            }
+        }
+    }
+
+    /**
+     *  Sweep each slot once its tick has passed
+     */
+    private class Sweeper implements Runnable {
+        private final List<WheelFuture> _expired = new ArrayList<WheelFuture>(64);
+
+        public void run() {
+            while (_isRunning) {
+                try {
+                    long nowTick = now() / TICK;
+                    long from = _lastTick + 1;
+                    // way behind, one revolution covers every slot
+                    if (nowTick - from >= WHEEL_SIZE)
+                        from = nowTick - WHEEL_SIZE + 1;
+                    for (long t = from; t <= nowTick; t++) {
+                        Slot slot = _wheel[(int) (t & (WHEEL_SIZE - 1))];
+                        synchronized (slot) {
+                            _lastTick = t;
+                            slot.expire(t, _expired);
+                        }
+                    }
+                    for (int i = 0; i < _expired.size(); i++) {
+                        _runner.execute(_expired.get(i));
+                    }
+                    _expired.clear();
+                    long sleep = ((nowTick + 1) * TICK) - now();
+                    if (sleep > 0)
+                        Thread.sleep(sleep);
+                } catch (InterruptedException ie) {
+                } catch (Throwable t) {
+                    _expired.clear();
+                    if (_isRunning)
+                        _log.log(Log.CRIT, "wtf, timer wheel borked", t);
+                }
+            }
+        }
+    }
+}
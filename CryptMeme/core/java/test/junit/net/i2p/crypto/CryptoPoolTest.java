@@ -0,0 +1,116 @@
+package net.i2p.crypto;
+
+import java.security.MessageDigest;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+
+/**
+ * @since 0.9.21
+ */
+public class CryptoPoolTest extends TestCase {
+    private I2PAppContext _context;
+
+    protected void setUp() {
+        _context = I2PAppContext.getGlobalContext();
+    }
+
+    public void testDigestReuse() throws Exception {
+        byte[] data = new byte[100];
+        _context.random().nextBytes(data);
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+
+        MessageDigest md = CryptoPool.acquireDigest("SHA-256");
+        md.update(data);
+        assertTrue(DataHelper.eq(expected, md.digest()));
+        // leave it dirty, should be reset on acquire
+        md.update(data);
+        CryptoPool.releaseDigest("SHA-256", md);
+
+        MessageDigest md2 = CryptoPool.acquireDigest("SHA-256");
+        assertSame(md, md2);
+        md2.update(data);
+        assertTrue(DataHelper.eq(expected, md2.digest()));
+        CryptoPool.releaseDigest("SHA-256", md2);
+    }
+
+    public void testNested() throws Exception {
+        MessageDigest md = CryptoPool.acquireDigest("SHA-1");
+        MessageDigest md2 = CryptoPool.acquireDigest("SHA-1");
+        assertNotSame(md, md2);
+        CryptoPool.releaseDigest("SHA-1", md2);
+        CryptoPool.releaseDigest("SHA-1", md);
+        MessageDigest md3 = CryptoPool.acquireDigest("SHA-1");
+        MessageDigest md4 = CryptoPool.acquireDigest("SHA-1");
+        // one from the thread cache, one from the shared pool
+        assertTrue(md3 == md2 || md3 == md);
+        assertTrue(md4 == md2 || md4 == md);
+        assertNotSame(md3, md4);
+        CryptoPool.releaseDigest("SHA-1", md4);
+        CryptoPool.releaseDigest("SHA-1", md3);
+    }
+
+    public void testCipher() throws Exception {
+        byte[] key = new byte[32];
+        byte[] iv = new byte[16];
+        byte[] data = new byte[1024];
+        _context.random().nextBytes(key);
+        _context.random().nextBytes(iv);
+        _context.random().nextBytes(data);
+        Cipher c = Cipher.getInstance("AES/CBC/NoPadding");
+        c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        byte[] expected = c.doFinal(data);
+        for (int i = 0; i < 3; i++) {
+            Cipher pc = CryptoPool.acquireCipher("AES/CBC/NoPadding");
+            pc.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            assertTrue(DataHelper.eq(expected, pc.doFinal(data)));
+            CryptoPool.releaseCipher("AES/CBC/NoPadding", pc);
+        }
+    }
+
+    public void testMac() throws Exception {
+        byte[] key = new byte[32];
+        byte[] data = new byte[100];
+        _context.random().nextBytes(key);
+        _context.random().nextBytes(data);
+        Mac m = Mac.getInstance("HmacSHA256");
+        m.init(new SecretKeySpec(key, "HmacSHA256"));
+        byte[] expected = m.doFinal(data);
+        for (int i = 0; i < 3; i++) {
+            Mac pm = CryptoPool.acquireMac("HmacSHA256");
+            pm.init(new SecretKeySpec(key, "HmacSHA256"));
+            assertTrue(DataHelper.eq(expected, pm.doFinal(data)));
+            CryptoPool.releaseMac("HmacSHA256", pm);
+        }
+    }
+
+    public void testThreads() throws Exception {
+        final byte[] data = new byte[1000];
+        _context.random().nextBytes(data);
+        final byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    byte[] out = new byte[32];
+                    for (int j = 0; j < 10000; j++) {
+                        SHA256Generator.getInstance().calculateHash(data, 0, data.length, out, 0);
+                        if (!DataHelper.eq(expected, out))
+                            failed[0] = true;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertFalse(failed[0]);
+    }
+}
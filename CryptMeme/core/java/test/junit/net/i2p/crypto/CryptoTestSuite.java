@@ -23,6 +23,7 @@ public class CryptoTestSuite {
         suite.addTestSuite(AES256Test.class);
         suite.addTestSuite(AESInputStreamTest.class);
         suite.addTestSuite(CryptixAESEngineTest.class);
+        suite.addTestSuite(CryptoPoolTest.class);
         suite.addTestSuite(CryptixRijndael_AlgorithmTest.class);
         suite.addTestSuite(DSATest.class);
         suite.addTestSuite(ElGamalTest.class);
@@ -0,0 +1,167 @@
+package net.i2p.crypto;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.SessionKey;
+
+/**
+ * Compare ways of doing the tunnel layer encryption at a participating hop
+ * on 1024 byte tunnel messages, spread over several tunnels:
+ *
+ *<pre>
+ * blocks:  the old HopProcessor, a Cryptix encryptBlock() call per 16 bytes
+ * system:  a new system Cipher per message, as CryptixAESEngine.encrypt() does with AES-NI
+ * layer:   TunnelCryptoEngine.encryptLayer(), one message at a time, tunnels interleaved
+ * batched: TunnelCryptoEngine.encryptLayers(), a batch of messages per tunnel
+ *</pre>
+ *
+ * The last three use the system Cipher whether or not AES-NI was detected,
+ * as long as the JVM allows AES-256.
+ * First checks that they all give the same result.
+ *
+ * Usage: TunnelCryptoBench [messages [tunnels [batch]]]
+ *
+ * @since 0.9.21
+ */
+public class TunnelCryptoBench {
+    private static final int SIZE = 1024;
+    private static final int IV = 16;
+
+    private static I2PAppContext _context;
+    private static SessionKey[] _layerKeys;
+    private static SessionKey[] _ivKeys;
+    private static byte[][] _msgs;
+
+    private static void blocks(byte data[], SessionKey layerKey, SessionKey ivKey) {
+        AESEngine aes = _context.aes();
+        aes.encryptBlock(data, 0, ivKey, data, 0);
+        for (int off = IV; off < SIZE; off += IV) {
+            for (int j = 0; j < IV; j++) {
+                data[off + j] ^= data[(off - IV) + j];
+            }
+            aes.encryptBlock(data, off, layerKey, data, off);
+        }
+        aes.encryptBlock(data, 0, ivKey, data, 0);
+    }
+
+    private static void system(byte data[], SessionKey layerKey, SessionKey ivKey) {
+        AESEngine aes = _context.aes();
+        aes.encryptBlock(data, 0, ivKey, data, 0);
+        try {
+            SecretKeySpec key = new SecretKeySpec(layerKey.getData(), "AES");
+            IvParameterSpec ivps = new IvParameterSpec(data, 0, IV);
+            Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key, ivps, _context.random());
+            cipher.doFinal(data, IV, SIZE - IV, data, IV);
+        } catch (GeneralSecurityException gse) {
+            throw new RuntimeException(gse);
+        }
+        aes.encryptBlock(data, 0, ivKey, data, 0);
+    }
+
+    private static void verify(TunnelCryptoEngine engine) {
+        byte[] a = new byte[SIZE];
+        _context.random().nextBytes(a);
+        byte[] b = a.clone();
+        byte[] c = a.clone();
+        byte[][] d = new byte[][] { a.clone() };
+        blocks(a, _layerKeys[0], _ivKeys[0]);
+        system(b, _layerKeys[0], _ivKeys[0]);
+        engine.encryptLayer(c, 0, SIZE, _layerKeys[0], _ivKeys[0]);
+        engine.encryptLayers(d, new int[1], new int[] { SIZE }, 1, _layerKeys[0], _ivKeys[0]);
+        if (!DataHelper.eq(a, b) || !DataHelper.eq(a, c) || !DataHelper.eq(a, d[0]))
+            throw new RuntimeException("Results differ");
+    }
+
+    private static long run(String name, int mode, int count, int batch, TunnelCryptoEngine engine) {
+        int tunnels = _layerKeys.length;
+        int[] offsets = new int[batch];
+        int[] lengths = new int[batch];
+        for (int i = 0; i < batch; i++) {
+            lengths[i] = SIZE;
+        }
+        byte[][] b = new byte[batch][];
+        long start = System.nanoTime();
+        if (mode == 3) {
+            for (int i = 0; i < count; i += batch) {
+                int t = (i / batch) % tunnels;
+                int n = Math.min(batch, count - i);
+                for (int j = 0; j < n; j++) {
+                    b[j] = _msgs[(i + j) % _msgs.length];
+                }
+                engine.encryptLayers(b, offsets, lengths, n, _layerKeys[t], _ivKeys[t]);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                int t = i % tunnels;
+                byte[] data = _msgs[i % _msgs.length];
+                if (mode == 0)
+                    blocks(data, _layerKeys[t], _ivKeys[t]);
+                else if (mode == 1)
+                    system(data, _layerKeys[t], _ivKeys[t]);
+                else
+                    engine.encryptLayer(data, 0, SIZE, _layerKeys[t], _ivKeys[t]);
+            }
+        }
+        long time = System.nanoTime() - start;
+        if (name != null)
+            System.out.println(name + ": " + count + " messages " + (time / 1000000) + "ms, " +
+                               (time / count) + " ns each, " +
+                               (count * (long) SIZE * 1000 / time) + " MBps");
+        return time;
+    }
+
+    public static void main(String args[]) {
+        int count = 200*1000;
+        int tunnels = 64;
+        int batch = 16;
+        if (args.length > 0)
+            count = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            tunnels = Integer.parseInt(args[1]);
+        if (args.length > 2)
+            batch = Integer.parseInt(args[2]);
+        _context = I2PAppContext.getGlobalContext();
+        _layerKeys = new SessionKey[tunnels];
+        _ivKeys = new SessionKey[tunnels];
+        for (int i = 0; i < tunnels; i++) {
+            _layerKeys[i] = _context.keyGenerator().generateSessionKey();
+            _ivKeys[i] = _context.keyGenerator().generateSessionKey();
+        }
+        _msgs = new byte[256][SIZE];
+        for (int i = 0; i < _msgs.length; i++) {
+            _context.random().nextBytes(_msgs[i]);
+        }
+        try {
+            if (Cipher.getMaxAllowedKeyLength("AES") < 256) {
+                System.out.println("System AES-256 not available");
+                return;
+            }
+        } catch (GeneralSecurityException gse) {
+            System.out.println("System AES not available");
+            return;
+        }
+        TunnelCryptoEngine engine = new TunnelCryptoEngine(_context, true);
+        verify(engine);
+        System.out.println("AES-NI detected: " + CryptixAESEngine.USE_SYSTEM_AES +
+                           ", " + tunnels + " tunnels, batches of " + batch);
+
+        String[] names = { "blocks", "system", "layer", "batched" };
+        // warm up
+        for (int mode = 0; mode < names.length; mode++) {
+            run(null, mode, count / 10, batch, engine);
+        }
+        long[] times = new long[names.length];
+        for (int mode = 0; mode < names.length; mode++) {
+            times[mode] = run(names[mode], mode, count, batch, engine);
+        }
+        for (int mode = 1; mode < names.length; mode++) {
+            System.out.println(names[mode] + " vs. blocks: " + (times[0] * 100 / times[mode]) + '%');
+        }
+    }
+}
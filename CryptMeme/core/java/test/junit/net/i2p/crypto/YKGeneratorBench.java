@@ -0,0 +1,182 @@
+package net.i2p.crypto;
+
+import java.math.BigInteger;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+
+/**
+ * Compare the old single-thread YK precalc with the PrecalcPool one
+ * in tunnel build storms: bursts of YK requests from several threads,
+ * with idle time in between to refill.
+ *
+ *<pre>
+ * single: the pre-0.9.21 YKPrecalcRunner, one thread, refills to max
+ *         when below min with a delay after each, checks every few seconds
+ * pool:   YKGenerator on the PrecalcPool threads
+ *</pre>
+ *
+ * Reports the time per burst and how often the queue was empty,
+ * i.e. the requesting thread had to do the modPow itself.
+ *
+ * Usage: YKGeneratorBench [bursts [burstSize [consumers [idleMs]]]]
+ *
+ * @since 0.9.21
+ */
+public class YKGeneratorBench {
+    private static final int MIN = 20;
+    private static final int MAX = 50;
+
+    private interface Source {
+        public BigInteger[] getNextYK();
+    }
+
+    /**
+     *  The old YKPrecalcRunner, with the old defaults
+     *  and the check delay at its 1 second minimum
+     */
+    private static class Single implements Source, Runnable {
+        private final YKGenerator _inline;
+        private final LinkedBlockingQueue<BigInteger[]> _values;
+        private final AtomicInteger _empty;
+        private volatile boolean _running = true;
+
+        public Single(I2PAppContext ctx, AtomicInteger empty) {
+            // not started, so it generates inline
+            _inline = new YKGenerator(ctx);
+            _values = new LinkedBlockingQueue<BigInteger[]>(MAX);
+            _empty = empty;
+            Thread t = new Thread(this, "YK Precalc");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.start();
+        }
+
+        public BigInteger[] getNextYK() {
+            BigInteger[] rv = _values.poll();
+            if (rv != null)
+                return rv;
+            _empty.incrementAndGet();
+            return _inline.getNextYK();
+        }
+
+        public void run() {
+            while (_running) {
+                if (_values.size() < MIN) {
+                    while (_values.size() < MAX && _running) {
+                        if (!_values.offer(_inline.getNextYK()))
+                            break;
+                        try {
+                            Thread.sleep(YKGenerator.DEFAULT_YK_PRECALC_DELAY);
+                        } catch (InterruptedException ie) {}
+                    }
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {}
+            }
+        }
+
+        public void stop() {
+            _running = false;
+        }
+    }
+
+    private static class Pool implements Source {
+        private final YKGenerator _gen;
+        private final AtomicInteger _empty;
+
+        public Pool(I2PAppContext ctx, AtomicInteger empty) {
+            _gen = new YKGenerator(ctx);
+            _empty = empty;
+            _gen.start();
+        }
+
+        public BigInteger[] getNextYK() {
+            // approximate, don't want to go through the stats
+            if (_gen.size() == 0)
+                _empty.incrementAndGet();
+            return _gen.getNextYK();
+        }
+
+        public void stop() {
+            _gen.shutdown();
+        }
+    }
+
+    private static long storm(final Source src, int size, int consumers) throws InterruptedException {
+        final AtomicInteger left = new AtomicInteger(size);
+        Thread[] threads = new Thread[consumers];
+        long start = System.nanoTime();
+        for (int i = 0; i < consumers; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    while (left.decrementAndGet() >= 0) {
+                        src.getNextYK();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < consumers; i++) {
+            threads[i].join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void run(String name, Source src, AtomicInteger empty,
+                            int bursts, int size, int consumers, int idle) throws InterruptedException {
+        // initial fill
+        Thread.sleep(idle);
+        empty.set(0);
+        long total = 0;
+        for (int i = 0; i < bursts; i++) {
+            total += storm(src, size, consumers);
+            Thread.sleep(idle);
+        }
+        int count = bursts * size;
+        System.out.println(name + ": " + bursts + " bursts of " + size + ": " +
+                           (total / bursts / 1000000) + " ms per burst, " +
+                           (total / count / 1000) + " us per YK, " +
+                           empty.get() + " empty (" + (empty.get() * 100 / count) + "%)");
+    }
+
+    public static void main(String args[]) throws Exception {
+        int bursts = 20;
+        int size = 200;
+        int consumers = 4;
+        int idle = 2000;
+        if (args.length > 0)
+            bursts = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            size = Integer.parseInt(args[1]);
+        if (args.length > 2)
+            consumers = Integer.parseInt(args[2]);
+        if (args.length > 3)
+            idle = Integer.parseInt(args[3]);
+        Properties props = new Properties();
+        props.setProperty(YKGenerator.PROP_YK_PRECALC_MIN, Integer.toString(MIN));
+        props.setProperty(YKGenerator.PROP_YK_PRECALC_MAX, Integer.toString(MAX));
+        I2PAppContext ctx = new I2PAppContext(props);
+        // warm up
+        YKGenerator warm = new YKGenerator(ctx);
+        for (int i = 0; i < 50; i++) {
+            warm.getNextYK();
+        }
+        System.out.println(consumers + " consumers, " + idle + " ms between bursts, " +
+                           "min " + MIN + " max " + MAX);
+
+        AtomicInteger empty = new AtomicInteger();
+        Single single = new Single(ctx, empty);
+        run("single", single, empty, bursts, size, consumers, idle);
+        single.stop();
+
+        empty = new AtomicInteger();
+        Pool pool = new Pool(ctx, empty);
+        run("pool", pool, empty, bursts, size, consumers, idle);
+        System.out.println("pool target after run: " + pool._gen.getTarget());
+        pool.stop();
+    }
+}
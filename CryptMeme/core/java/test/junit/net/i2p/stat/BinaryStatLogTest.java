@@ -0,0 +1,63 @@
+package net.i2p.stat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+import net.i2p.I2PAppContext;
+
+/**
+ * @since 0.9.21
+ */
+public class BinaryStatLogTest extends TestCase {
+
+    public void testWriteAndRead() throws Exception {
+        File base = new File(System.getProperty("java.io.tmpdir"), "binarystatlogtest-" + System.nanoTime() + ".bin");
+        Properties props = new Properties();
+        props.setProperty(StatManager.PROP_STAT_FILTER, "test.one,test.two");
+        props.setProperty(StatManager.PROP_STAT_FILE, base.getAbsolutePath());
+        props.setProperty(BinaryStatLog.PROP_STAT_FORMAT, BinaryStatLog.FORMAT_BINARY);
+        I2PAppContext ctx = new I2PAppContext(props);
+        StatManager mgr = ctx.statManager();
+        assertTrue(mgr.getStatLog() instanceof BinaryStatLog);
+        long periods[] = new long[] { 60*1000 };
+        mgr.createRateStat("test.one", "one", "Test", periods);
+        mgr.createRateStat("test.two", "two", "Test", periods);
+        mgr.createRateStat("test.three", "not logged", "Test", periods);
+        for (int i = 0; i < 1000; i++) {
+            mgr.addRateData("test.one", i, 1);
+            mgr.addRateData("test.two", -i, 2);
+            mgr.addRateData("test.three", i, 3);
+        }
+
+        File seg = BinaryStatLog.segmentFile(base, 1);
+        final List<String> events = new ArrayList<String>();
+        BinaryStatLogReader.Handler h = new BinaryStatLogReader.Handler() {
+            public void event(long time, String scope, String stat, long value, long duration) throws IOException {
+                events.add(scope + ' ' + stat + ' ' + value + ' ' + duration);
+            }
+        };
+        try {
+            // wait for the writer
+            for (int i = 0; i < 100 && events.size() < 2000; i++) {
+                Thread.sleep(100);
+                events.clear();
+                if (seg.exists())
+                    BinaryStatLogReader.read(seg, null, h);
+            }
+            assertEquals(2000, events.size());
+            assertEquals("Test test.one 0 1", events.get(0));
+            assertEquals("Test test.two 0 2", events.get(1));
+            assertEquals("Test test.two -999 2", events.get(1999));
+            assertEquals(0, ((BinaryStatLog) mgr.getStatLog()).getDropped());
+
+            events.clear();
+            assertEquals(1000, BinaryStatLogReader.read(seg, "test.one", h));
+        } finally {
+            seg.delete();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package net.i2p.stat;
+
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+import net.i2p.I2PAppContext;
+
+/**
+ * @since 0.9.21
+ */
+public class OpenMetricsWriterTest extends TestCase {
+
+    public void testWriteStats() throws Exception {
+        I2PAppContext ctx = new I2PAppContext();
+        StatManager mgr = ctx.statManager();
+        mgr.createRateStat("test.rate", "A \"test\" rate\nover two lines", "Test", new long[] { 60*1000 });
+        mgr.addRateData("test.rate", 10);
+        mgr.addRateData("test.rate", 20);
+        mgr.createFrequencyStat("test.freq", "A frequency", "Test", new long[] { 60*1000 });
+        mgr.updateFrequency("test.freq");
+
+        StringWriter out = new StringWriter();
+        OpenMetricsWriter w = new OpenMetricsWriter(out);
+        w.writeStats(mgr);
+        w.family("test_gauge", OpenMetricsWriter.TYPE_GAUGE, "help");
+        w.sample("test_gauge", 1.5d, "a", "x\"y");
+        w.end();
+        String s = out.toString();
+
+        assertTrue(s.contains("# TYPE i2p_rate_average gauge\n"));
+        assertTrue(s.contains("i2p_rate_average{stat=\"test.rate\",group=\"Test\",period=\"60000\"} 0\n"));
+        assertTrue(s.contains("i2p_rate_lifetime_average{stat=\"test.rate\",group=\"Test\"} 15\n"));
+        assertTrue(s.contains("# TYPE i2p_rate_lifetime_events counter\n"));
+        assertTrue(s.contains("i2p_rate_lifetime_events_total{stat=\"test.rate\",group=\"Test\"} 2\n"));
+        assertTrue(s.contains("i2p_frequency_events_total{stat=\"test.freq\",group=\"Test\"} 1\n"));
+        assertTrue(s.contains("test_gauge{a=\"x\\\"y\"} 1.5\n"));
+        assertTrue(s.endsWith("# EOF\n"));
+        // each family once
+        assertEquals(s.indexOf("# TYPE i2p_rate_events "), s.lastIndexOf("# TYPE i2p_rate_events "));
+    }
+}
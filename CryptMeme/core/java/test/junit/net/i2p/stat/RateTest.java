@@ -30,4 +30,30 @@ public class RateTest extends TestCase {
 
         assertEquals(r, rate);
     }
+
+    @Test
+    public void testConcurrentAddData() throws Exception {
+        final Rate rate = new Rate(60*1000);
+        final int threads = 8;
+        final int adds = 100000;
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            t[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < adds; j++) {
+                        rate.addData(3, 2);
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            t[i].join();
+        }
+        assertEquals(threads * adds, rate.getCurrentEventCount());
+        assertEquals(threads * adds * 3.0d, rate.getCurrentTotalValue(), 0.0d);
+        assertEquals(threads * adds * 2L, rate.getCurrentTotalEventTime());
+        assertEquals(threads * adds, rate.getLifetimeEventCount());
+        assertEquals(3.0d, rate.getLifetimeAverageValue(), 0.0d);
+    }
 }
@@ -0,0 +1,121 @@
+package net.i2p.util;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+
+/**
+ * Compare the SimpleTimer2 and the TimingWheelTimer2.
+ *
+ * Schedules one million events from 1 to 60 seconds out and cancels them all,
+ * which is what the streaming, SSU and tunnel timeouts mostly do,
+ * then reschedules a smaller set repeatedly, then lets some fire
+ * to check the latency.
+ *
+ * Usage: SimpleTimer2Bench [events]
+ *
+ * @since 0.9.21
+ */
+public class SimpleTimer2Bench {
+
+    private static class NoopEvent extends SimpleTimer2.TimedEvent {
+        public NoopEvent(SimpleTimer2 pool) { super(pool); }
+        public void timeReached() {}
+    }
+
+    private static class LatencyEvent extends SimpleTimer2.TimedEvent {
+        private final long _due;
+        private final AtomicLong _total;
+        private final AtomicLong _max;
+        private final CountDownLatch _latch;
+
+        public LatencyEvent(SimpleTimer2 pool, long delay, AtomicLong total, AtomicLong max, CountDownLatch latch) {
+            super(pool);
+            _due = System.nanoTime() + (delay * 1000 * 1000);
+            _total = total;
+            _max = max;
+            _latch = latch;
+            schedule(delay);
+        }
+
+        public void timeReached() {
+            long late = (System.nanoTime() - _due) / 1000;
+            _total.addAndGet(late);
+            long max;
+            while ((max = _max.get()) < late) {
+                if (_max.compareAndSet(max, late))
+                    break;
+            }
+            _latch.countDown();
+        }
+    }
+
+    private static void run(String name, SimpleTimer2 timer, int count) throws InterruptedException {
+        Random rand = new Random(42);
+        NoopEvent[] events = new NoopEvent[count];
+        for (int i = 0; i < count; i++) {
+            events[i] = new NoopEvent(timer);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            events[i].schedule(1000 + rand.nextInt(59*1000));
+        }
+        long scheduled = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            events[i].cancel();
+        }
+        long cancelled = System.nanoTime();
+        System.out.println(name + ": schedule " + count + ": " + ((scheduled - start) / 1000000) + "ms, " +
+                           ((scheduled - start) / count) + " ns each");
+        System.out.println(name + ": cancel " + count + ": " + ((cancelled - scheduled) / 1000000) + "ms, " +
+                           ((cancelled - scheduled) / count) + " ns each");
+
+        // like a retransmit timer being pushed back on every ACK
+        int churn = Math.min(count, 10*1000);
+        for (int i = 0; i < churn; i++) {
+            events[i].schedule(30*1000);
+        }
+        start = System.nanoTime();
+        for (int j = 0; j < 20; j++) {
+            for (int i = 0; i < churn; i++) {
+                events[i].forceReschedule(10*1000 + rand.nextInt(20*1000));
+            }
+        }
+        long rescheduled = System.nanoTime();
+        for (int i = 0; i < churn; i++) {
+            events[i].cancel();
+        }
+        System.out.println(name + ": reschedule " + (20 * churn) + ": " + ((rescheduled - start) / 1000000) + "ms, " +
+                           ((rescheduled - start) / (20 * churn)) + " ns each");
+
+        int fire = 10*1000;
+        AtomicLong total = new AtomicLong();
+        AtomicLong max = new AtomicLong();
+        CountDownLatch latch = new CountDownLatch(fire);
+        for (int i = 0; i < fire; i++) {
+            new LatencyEvent(timer, 1 + rand.nextInt(2000), total, max, latch);
+        }
+        if (!latch.await(30, TimeUnit.SECONDS))
+            System.out.println(name + ": " + latch.getCount() + " events did not fire");
+        System.out.println(name + ": fired " + fire + ", average late " + (total.get() / fire) +
+                           " us, max late " + (max.get() / 1000) + " ms");
+        timer.stop();
+    }
+
+    public static void main(String args[]) throws Exception {
+        int count = 1000*1000;
+        if (args.length > 0)
+            count = Integer.parseInt(args[0]);
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        // warm up
+        run("SimpleTimer2", new SimpleTimer2(ctx), count / 10);
+        run("TimingWheelTimer2", new TimingWheelTimer2(ctx), count / 10);
+        System.out.println();
+        run("SimpleTimer2", new SimpleTimer2(ctx), count);
+        run("TimingWheelTimer2", new TimingWheelTimer2(ctx), count);
+    }
+}
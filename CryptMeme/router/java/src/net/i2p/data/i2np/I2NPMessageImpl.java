@@ -15,6 +15,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.i2p.I2PAppContext;
+import net.i2p.data.ByteArray;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.DataHelper;
 import net.i2p.data.DataStructureImpl;
@@ -441,6 +442,46 @@ public abstract class I2NPMessageImpl extends DataStructureImpl implements I2NPM
         }
     }
 
+    /** type + expiration in the short SSU header */
+    private static final int RAW_HEADER_LENGTH = 1 + 4;
+
+    /**
+     *  Read the message with a short 5-byte header, as in fromRawByteArray(),
+     *  but directly from the received fragments, without assembling them
+     *  into a single buffer first.
+     *
+     *  Only TunnelDataMessages are supported, as they are fixed size and by far
+     *  the most common multi-fragment message. The payload is copied exactly once,
+     *  from the fragments into the pooled TDM buffer.
+     *  Used by SSU only!
+     *
+     *  @param fragments the valid bytes of each are concatenated, offsets must be zero
+     *  @param count number of fragments to use
+     *  @param len total valid bytes of all fragments
+     *  @return null if not a TunnelDataMessage; caller must assemble and use fromRawByteArray()
+     *  @since 0.9.21
+     */
+    public static I2NPMessage fromRawFragments(I2PAppContext ctx, ByteArray fragments[], int count,
+                                               int len) throws I2NPMessageException {
+        if (count <= 0 || fragments[0].getValid() < RAW_HEADER_LENGTH)
+            return null;
+        byte[] first = fragments[0].getData();
+        int type = first[0] & 0xff;
+        if (type != TunnelDataMessage.MESSAGE_TYPE)
+            return null;
+        if (len != RAW_HEADER_LENGTH + TunnelDataMessage.RAW_BODY_LENGTH)
+            throw new I2NPMessageException("Bad TDM length " + len);
+        try {
+            long expiration = (DataHelper.fromLong(first, 1, 4) * 1000) + 500;
+            TunnelDataMessage msg = new TunnelDataMessage(ctx);
+            msg.readMessage(fragments, count, RAW_HEADER_LENGTH);
+            msg.setMessageExpiration(expiration);
+            return msg;
+        } catch (IllegalArgumentException iae) {
+            throw new I2NPMessageException("Corrupt message (negative expiration)", iae);
+        }
+    }
+
     /**
      * Yes, this is fairly ugly, but its the only place it ever happens.
      *
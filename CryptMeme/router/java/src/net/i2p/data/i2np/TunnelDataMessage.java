@@ -31,6 +31,8 @@ public class TunnelDataMessage extends FastI2NPMessageImpl {
     
     public final static int MESSAGE_TYPE = 18;
     public static final int DATA_SIZE = 1024;
+    /** tunnel ID + data */
+    static final int RAW_BODY_LENGTH = 4 + DATA_SIZE;
     /** if we can't deliver a tunnel message in 10s, forget it */
     private static final int EXPIRATION_PERIOD = 10*1000;
     
@@ -172,6 +174,68 @@ public class TunnelDataMessage extends FastI2NPMessageImpl {
         }
         System.arraycopy(data, curIndex, _data, 0, DATA_SIZE);
     }
+
+    /**
+     *  Read the body scattered across several buffers, copying the
+     *  payload straight into the pooled data buffer.
+     *
+     *  @param fragments the valid bytes of each are concatenated, offsets must be zero
+     *  @param count number of fragments to use
+     *  @param offset where the body starts in the concatenation
+     *  @since 0.9.21
+     */
+    void readMessage(ByteArray fragments[], int count, int offset) throws I2NPMessageException {
+        long id = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = byteAt(fragments, count, offset + i);
+            if (b < 0)
+                throw new I2NPMessageException("Truncated TDM");
+            id = (id << 8) | b;
+        }
+        _tunnelId = id;
+        if (_tunnelId <= 0) 
+            throw new I2NPMessageException("Invalid tunnel Id " + _tunnelId);
+
+        if (PIPELINED_CACHE) {
+            _dataBuf = _cache.acquire();
+            _data = _dataBuf.getData();
+            _hadCache = true;
+        } else {
+            _data = new byte[DATA_SIZE];
+        }
+        int pos = offset + 4;
+        int copied = 0;
+        int start = 0;
+        for (int i = 0; i < count && copied < DATA_SIZE; i++) {
+            ByteArray frag = fragments[i];
+            int valid = frag.getValid();
+            int end = start + valid;
+            if (pos < end) {
+                int fragOff = pos - start;
+                int len = Math.min(valid - fragOff, DATA_SIZE - copied);
+                System.arraycopy(frag.getData(), fragOff, _data, copied, len);
+                copied += len;
+                pos += len;
+            }
+            start = end;
+        }
+        if (copied != DATA_SIZE)
+            throw new I2NPMessageException("Truncated TDM data: " + copied);
+    }
+
+    /**
+     *  @return the unsigned byte at pos in the concatenation, or -1 if past the end
+     *  @since 0.9.21
+     */
+    private static int byteAt(ByteArray fragments[], int count, int pos) {
+        for (int i = 0; i < count; i++) {
+            int valid = fragments[i].getValid();
+            if (pos < valid)
+                return fragments[i].getData()[pos] & 0xff;
+            pos -= valid;
+        }
+        return -1;
+    }
     
     /** calculate the message body's length (not including the header and footer */
     protected int calculateWrittenLength() { return 4 + DATA_SIZE; }
@@ -15,9 +15,7 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -65,19 +63,23 @@ import net.i2p.util.Translate;
  * banlist it forever, then go back to the file to get the original
  * entry so we can add the reason to the banlist text.
  *
- * On-disk blocklist supports IPv4 only.
- * In-memory supports both IPv4 and IPv6.
+ * The on-disk blocklist and the in-memory single-IP list both support IPv4 and IPv6.
+ *
+ * The ranges and hashes from the files are compiled into a BlocklistIndex,
+ * which is cached in blocklist.bin and memory-mapped at the next startup
+ * if the files haven't changed. The index is never modified, a reload
+ * swaps in a new one, so lookups never wait for a load.
  */
 public class Blocklist {
     private final Log _log;
     private final RouterContext _context;
-    private long _blocklist[];
-    private int _blocklistSize;
+    /** never null, replaced by a load */
+    private volatile BlocklistIndex _index = BlocklistIndex.EMPTY;
+    /** set by startup(), for reload() */
+    private volatile List<File> _files;
+    /** one load at a time */
     private final Object _lock = new Object();
-    private Entry _wrapSave;
     private final Set<Hash> _inProcess = new HashSet<Hash>(4);
-    // temp
-    private Map<Hash, String> _peerBlocklist = new HashMap<Hash, String>(4);
 
     /**
      *  Limits of transient (in-memory) blocklists.
@@ -90,23 +92,27 @@ public class Blocklist {
     private final Set<Integer> _singleIPBlocklist = new ConcurrentHashSet<Integer>(4);
     private final Map<BigInteger, Object> _singleIPv6Blocklist = new LHMCache<BigInteger, Object>(MAX_IPV6_SINGLES);
 
-    private static final Object DUMMY = Integer.valueOf(0);    
+    private static final Object DUMMY = Integer.valueOf(0);
 
     public Blocklist(RouterContext context) {
         _context = context;
         _log = context.logManager().getLog(Blocklist.class);
     }
-    
+
     /** only for testing with main() */
     private Blocklist() {
         _context = null;
         _log = new Log(Blocklist.class);
     }
-    
+
     private static final String PROP_BLOCKLIST_ENABLED = "router.blocklist.enable";
     private static final String PROP_BLOCKLIST_DETAIL = "router.blocklist.detail";
     private static final String PROP_BLOCKLIST_FILE = "router.blocklist.file";
     private static final String BLOCKLIST_FILE_DEFAULT = "blocklist.txt";
+    /** @since 0.9.21 */
+    private static final String PROP_BLOCKLIST_CACHE = "router.blocklist.cache";
+    /** in the router dir @since 0.9.21 */
+    private static final String BLOCKLIST_CACHE_FILE = "blocklist.bin";
 
     /**
      *  Loads the following files in-order:
@@ -135,11 +141,26 @@ public class Blocklist {
                  blFile = new File(_context.getConfigDir(), file);
             files.add(blFile);
         }
+        _files = files;
         Job job = new ReadinJob(files);
         job.getTiming().setStartAfter(_context.clock().now() + 30*1000);
         _context.jobQueue().addJob(job);
     }
 
+    /**
+     *  Read the files again, after they are updated.
+     *  Lookups continue against the current list until the new one is swapped in.
+     *  Does nothing if startup() didn't load the files.
+     *
+     *  @since 0.9.21
+     */
+    public void reload() {
+        List<File> files = _files;
+        if (files == null)
+            return;
+        _context.jobQueue().addJob(new ReadinJob(files));
+    }
+
     private class ReadinJob extends JobImpl {
         private final List<File> _files;
 
@@ -154,19 +175,24 @@ public class Blocklist {
         public String getName() { return "Read Blocklist"; }
 
         public void runJob() {
-            allocate(_files);
-            if (_blocklist == null)
-                return;
-            int ccount = process();
-            if (_blocklist == null)
-                return;
-            if (ccount <= 0) {
+            BlocklistIndex index = load(_files);
+            if (index == null) {
                 disable();
                 return;
             }
-            merge(ccount);
+            _index = index;
+            for (Map.Entry<Hash, String> e : index.getHashes().entrySet()) {
+                Hash peer = e.getKey();
+                String comment = e.getValue();
+                String reason;
+                if (comment != null)
+                    reason = _x("Banned by router hash: {0}");
+                else
+                    reason = _x("Banned by router hash");
+                _context.banlist().banlistRouterForever(peer, reason, comment);
+            }
             if (_log.shouldLog(Log.WARN)) {
-                if (_blocklistSize <= 0)
+                if (index.getIPv4Count() + index.getIPv6Count() <= 0)
                     return;
                 FloodfillNetworkDatabaseFacade fndf = (FloodfillNetworkDatabaseFacade) _context.netDb();
                 int count = 0;
@@ -178,58 +204,100 @@ public class Blocklist {
                 if (count > 0)
                     _log.warn("Blocklisted " + count + " routers in the netDb");
             }
-            _peerBlocklist = null;
         }
+    }
+
+    public void disable() {
+        _index = BlocklistIndex.EMPTY;
+    }
 
-        private int process() {
-            int count = 0;
-            synchronized (_lock) {
+    /**
+     *  Map the cached index if the files haven't changed since it was written,
+     *  else parse the files and write the cache.
+     *
+     *  @return null on OOM
+     *  @since 0.9.21
+     */
+    private BlocklistIndex load(List<File> files) {
+        synchronized (_lock) {
+            long start = _context.clock().now();
+            long fingerprint = fingerprint(files);
+            boolean useCache = _context.getBooleanPropertyDefaultTrue(PROP_BLOCKLIST_CACHE);
+            File cache = new File(_context.getRouterDir(), BLOCKLIST_CACHE_FILE);
+            if (useCache) {
                 try {
-                    for (File f : _files) {
-                        count = readBlocklistFile(f, count);
+                    BlocklistIndex rv = BlocklistIndex.load(cache, fingerprint);
+                    if (rv != null) {
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("Loaded " + rv.getIPv4Count() + " IPv4 and " + rv.getIPv6Count() +
+                                      " IPv6 ranges from " + cache + ", time: " + (_context.clock().now() - start));
+                        return rv;
                     }
-                } catch (OutOfMemoryError oom) {
-                    _log.log(Log.CRIT, "OOM processing the blocklist");
-                    disable();
-                    return 0;
+                } catch (IOException ioe) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Error reading the blocklist cache " + cache, ioe);
                 }
             }
-            for (Hash peer : _peerBlocklist.keySet()) {
-                String reason;
-                String comment = _peerBlocklist.get(peer);
-                if (comment != null)
-                    reason = _x("Banned by router hash: {0}");
-                else
-                    reason = _x("Banned by router hash");
-                _context.banlist().banlistRouterForever(peer, reason, comment);
+            BlocklistIndex rv = compile(files, fingerprint);
+            if (rv != null && useCache) {
+                try {
+                    rv.write(cache);
+                } catch (IOException ioe) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Error writing the blocklist cache " + cache, ioe);
+                }
             }
-            _peerBlocklist.clear();
-            return count;
+            return rv;
         }
     }
 
-    public void disable() {
-        // hmm better block out any checks in process
-        synchronized (_lock) {
-            _blocklistSize = 0;
-            _blocklist = null;
+    /**
+     *  Changes if any file is added, removed, or modified.
+     *  @since 0.9.21
+     */
+    static long fingerprint(List<File> files) {
+        long rv = 1;
+        for (File f : files) {
+            rv = (rv * 31) + f.getAbsolutePath().hashCode();
+            if (f.exists()) {
+                rv = (rv * 31) + f.length();
+                rv = (rv * 31) + f.lastModified();
+            }
         }
+        return rv;
     }
 
     /**
-     *  @return success
-     *  @since 0.9.18 split out from readBlocklistFile()
+     *  Parse the text files.
+     *
+     *  @return null on OOM
+     *  @since 0.9.21 split out of ReadinJob
      */
-    private void allocate(List<File> files) {
+    BlocklistIndex compile(List<File> files, long fingerprint) {
         int maxSize = 0;
         for (File f : files) {
             maxSize += getSize(f);
         }
         try {
-            _blocklist = new long[maxSize + files.size()];  // extra for wrapsave
+            BlocklistIndex.Builder builder = new BlocklistIndex.Builder(maxSize);
+            for (File f : files) {
+                readBlocklistFile(f, builder);
+            }
+            long start = _context.clock().now();
+            int count = builder.getRangeCount();
+            BlocklistIndex rv = builder.build(fingerprint);
+            if (_log.shouldLog(Log.INFO)) {
+                int result = rv.getIPv4Count() + rv.getIPv6Count();
+                _log.info("Merged Stats");
+                _log.info("Read " + count + " total entries from the blocklists");
+                _log.info("Merged " + (count - result) + " overlapping entries");
+                _log.info("Result is " + result + " entries");
+                _log.info("Blocklist processing finished, time: " + (_context.clock().now() - start));
+            }
+            return rv;
         } catch (OutOfMemoryError oom) {
-            _log.log(Log.CRIT, "OOM creating the blocklist");
-            disable();
+            _log.log(Log.CRIT, "OOM processing the blocklist");
+            return null;
         }
     }
 
@@ -237,7 +305,7 @@ public class Blocklist {
     * Read in and parse the blocklist.
     * The blocklist need not be sorted, and may contain overlapping entries.
     *
-    * Acceptable formats (IPV4 only):
+    * Acceptable formats:
     *   #comment (# must be in column 1)
     *   comment:IP-IP
     *   comment:morecomments:IP-IP
@@ -248,6 +316,9 @@ public class Blocklist {
     *   hostname (DNS looked up at list readin time, not dynamically, so may not be much use)
     *   44-byte Base64 router hash
     *
+    * IPv6 addresses must be in brackets, e.g. [2001:db8::]/32, so the colons aren't
+    * taken for the comment separator.
+    *
     * No whitespace allowed after the last ':'.
     *
     * For further information and downloads:
@@ -255,21 +326,16 @@ public class Blocklist {
     *   http://blocklist.googlepages.com/
     *   http://www.cymru.com/Documents/bogon-list.html
     *
-    *
-    * Must call allocate() before and merge() after.
-    *
-    *  @param count current number of entries
-    *  @return new number of entries
     */
-    private int readBlocklistFile(File blFile, int count) {
+    private void readBlocklistFile(File blFile, BlocklistIndex.Builder builder) {
         if (blFile == null || (!blFile.exists()) || blFile.length() <= 0) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Blocklist file not found: " + blFile);
-            return count;
+            return;
         }
 
         long start = _context.clock().now();
-        int oldcount = count;
+        int count = 0;
         int badcount = 0;
         int peercount = 0;
         long ipcount = 0;
@@ -285,74 +351,31 @@ public class Blocklist {
                     continue;
                 }
                 if (e.peer != null) {
-                    _peerBlocklist.put(e.peer, e.comment);
+                    builder.addHash(e.peer, e.comment);
                     peercount++;
                     continue;
                 }
                 byte[] ip1 = e.ip1;
                 byte[] ip2 = e.ip2;
 
-                store(ip1, ip2, count++);
-                ipcount += 1 + toInt(ip2) - toInt(ip1); // includes dups, oh well
+                builder.addRange(ip1, ip2);
+                count++;
+                if (ip1.length == 4)
+                    ipcount += 1 + (toInt(ip2) & 0xffffffffL) - (toInt(ip1) & 0xffffffffL); // includes dups, oh well
             }
         } catch (IOException ioe) {
             if (_log.shouldLog(Log.ERROR))
                 _log.error("Error reading the blocklist file", ioe);
-            return count;
-        } catch (OutOfMemoryError oom) {
-            _blocklist = null;
-            _log.log(Log.CRIT, "OOM reading the blocklist");
-            return count;
+            return;
         } finally {
             if (br != null) try { br.close(); } catch (IOException ioe) {}
         }
 
-        if (_wrapSave != null) {
-            // the extra record generated in parse() by a line that
-            // wrapped around 128.0.0.0
-            store(_wrapSave.ip1, _wrapSave.ip2, count++);
-            ipcount += 1 + toInt(_wrapSave.ip2) - toInt(_wrapSave.ip1);
-            _wrapSave = null;
-        }
         if (_log.shouldLog(Log.INFO)) {
             _log.info("Stats for " + blFile);
             _log.info("Removed " + badcount + " bad entries and comment lines");
-            _log.info("Read " + (count - oldcount) + " valid entries from the blocklist " + blFile);
-            _log.info("Blocking " + ipcount + " IPs and " + peercount + " hashes");
-            _log.info("Blocklist processing finished, time: " + (_context.clock().now() - start));
-        }
-        return count;
-    }
-
-    /**
-     *  @param count valid entries in _blocklist
-     *  @since 0.9.18 split out from readBlocklistFile()
-     */
-    private void merge(int count) {
-        long start = _context.clock().now();
-        // This is a standard signed sort, so the entries will be ordered
-        // 128.0.0.0 ... 255.255.255.255 0.0.0.0 .... 127.255.255.255
-        // But that's ok.
-        int removed = 0;
-        try {
-            Arrays.sort(_blocklist, 0, count);
-            removed = removeOverlap(_blocklist, count);
-            if (removed > 0) {
-                // Sort again to remove the dups that were "zeroed" out as 127.255.255.255-255.255.255.255
-                Arrays.sort(_blocklist, 0, count);
-                // sorry, no realloc to save memory, don't want to blow up now
-            }
-        } catch (OutOfMemoryError oom) {
-            _blocklist = null;
-            _log.log(Log.CRIT, "OOM sorting the blocklist");
-            return;
-        }
-        _blocklistSize = count - removed;
-        if (_log.shouldLog(Log.INFO)) {
-            _log.info("Merged Stats");
-            _log.info("Read " + count + " total entries from the blocklists");
-            _log.info("Merged " + removed + " overlapping entries");
-            _log.info("Result is " + _blocklistSize + " entries");
+            _log.info("Read " + count + " valid entries from the blocklist " + blFile);
+            _log.info("Blocking " + ipcount + " IPv4 IPs and " + peercount + " hashes");
             _log.info("Blocklist processing finished, time: " + (_context.clock().now() - start));
         }
     }
@@ -382,12 +405,6 @@ public class Blocklist {
         byte[] ip2;
         int start1 = 0;
         int end1 = buf.length();
-        if (end1 <= 0)
-            return null;  // blank
-        //if (buf.charAt(end1 - 1) == '\r') {  // DataHelper.readLine leaves the \r on there
-        //    buf.deleteCharAt(end1 - 1);
-        //    end1--;
-        //}
         if (end1 <= 0)
             return null;  // blank
         int start2 = -1;
@@ -396,7 +413,12 @@ public class Blocklist {
         int index = buf.indexOf("#");
         if (index == 0)
             return null;  // comment
-        index = buf.lastIndexOf(":");
+        // IPv6 is bracketed, the comment ends before the first bracket
+        index = buf.indexOf("[");
+        if (index >= 0)
+            index = buf.lastIndexOf(":", index);
+        else
+            index = buf.lastIndexOf(":");
         if (index >= 0) {
             comment = buf.substring(0, index);
             start1 = index + 1;
@@ -423,41 +445,27 @@ public class Blocklist {
             InetAddress pi = InetAddress.getByName(buf.substring(start1, end1));
             if (pi == null) return null;
             ip1 = pi.getAddress();
-            if (ip1.length != 4)
+            if (ip1.length != 4 && ip1.length != 16)
                 throw new UnknownHostException();
             if (start2 >= 0) {
                 pi = InetAddress.getByName(buf.substring(start2));
                 if (pi == null) return null;
                 ip2 = pi.getAddress();
-                if (ip2.length != 4)
+                if (ip2.length != ip1.length)
                     throw new UnknownHostException();
-                if ((ip1[0] & 0xff) < 0x80 && (ip2[0] & 0xff) >= 0x80) {
-                    if (_wrapSave == null) {
-                        // don't cross the boundary 127.255.255.255 - 128.0.0.0
-                        // because we are sorting using signed arithmetic
-                        _wrapSave = new Entry(comment, null, new byte[] {(byte)0x80,0,0,0}, new byte[] {ip2[0], ip2[1], ip2[2], ip2[3]});
-                        ip2 = new byte[] {127, (byte)0xff, (byte)0xff, (byte)0xff};
-                    } else
-                        // We only save one entry crossing the boundary, throw the rest out
-                        throw new NumberFormatException();
-
-                }
-                for (int i = 0; i < 4; i++) {
-                     if ((ip2[i] & 0xff) > (ip1[i] & 0xff))
-                        break;
-                     if ((ip2[i] & 0xff) < (ip1[i] & 0xff))
-                        throw new NumberFormatException(); // backwards
-                }
+                if (compare(ip2, ip1) < 0)
+                    throw new NumberFormatException(); // backwards
             } else if (mask >= 0) {
+                int bits = ip1.length * 8;
                 int m = Integer.parseInt(buf.substring(mask));
-                if (m < 3 || m > 32)
+                if (m < 3 || m > bits)
                     throw new NumberFormatException();
-                ip2 = new byte[4];
+                ip2 = new byte[ip1.length];
                 // ick
-                for (int i = 0; i < 4; i++)
+                for (int i = 0; i < ip1.length; i++)
                     ip2[i] = ip1[i];
-                for (int i = 0; i < 32-m; i++)
-                    ip2[(31-i)/8] |= (0x01 << (i%8));
+                for (int i = 0; i < bits-m; i++)
+                    ip2[(bits-1-i)/8] |= (0x01 << (i%8));
             } else {
                 ip2 = ip1;
             }
@@ -477,6 +485,29 @@ public class Blocklist {
         return new Entry(comment, null, ip1, ip2);
     }
 
+    /**
+     *  Unsigned compare of two IPs of the same length
+     *  @since 0.9.21
+     */
+    private static int compare(byte[] l, byte[] r) {
+        for (int i = 0; i < l.length; i++) {
+            int d = (l[i] & 0xff) - (r[i] & 0xff);
+            if (d != 0)
+                return d;
+        }
+        return 0;
+    }
+
+    /**
+     *  Is the IP in the parsed range?
+     *  @since 0.9.21
+     */
+    private static boolean match(byte[] ip, Entry e) {
+        if (ip.length != e.ip1.length)
+            return false;
+        return compare(e.ip1, ip) <= 0 && compare(ip, e.ip2) <= 0;
+    }
+
     /**
      * Read the file once just to see how many entries are in it,
      * so we can size our array.
@@ -503,34 +534,6 @@ public class Blocklist {
         }
         return lines;
     }
-    
-    /**
-     * Merge and remove overlapping entries from a sorted list.
-     * Returns number of removed entries.
-     * Caller must re-sort if return code is > 0.
-     */
-    private int removeOverlap(long blist[], int count) {
-        if (count <= 0) return 0;
-        int lines = 0;
-        for (int i = 0; i < count - 1; ) {
-            int removed = 0;
-            int to = getTo(blist[i]);
-            for (int next = i + 1; next < count; next++) {
-                if (to < getFrom(blist[next]))
-                    break;
-                if (_log.shouldLog(Log.WARN))
-                    _log.warn("Combining entries " + toStr(blist[i]) + " and " + toStr(blist[next]));
-                int nextTo = getTo(blist[next]);
-                if (nextTo > to) // else entry next is totally inside entry i
-                    store(getFrom(blist[i]), nextTo, i);
-                blist[next] = Long.MAX_VALUE;  // to be removed with another sort
-                lines++;
-                removed++;
-            }
-            i += removed + 1;
-        }
-        return lines;
-    }
 
     /**
      * Maintain a simple in-memory single-IP blocklist
@@ -659,117 +662,22 @@ public class Blocklist {
         if (ip.length == 4)
             return isBlocklisted(toInt(ip));
         if (ip.length == 16)
-            return isOnSingleList(new BigInteger(1, ip));
+            return isOnSingleList(new BigInteger(1, ip)) || _index.contains(ip);
         return false;
     }
 
     /**
      * First check the single-IP list.
-     * Then do a
-     * binary search through the in-memory range list which
-     * is a sorted array of longs.
-     * The array is sorted in signed order, but we don't care.
-     * Each long is ((from << 32) | to)
+     * Then do a binary search through the current index.
      **/ 
     private boolean isBlocklisted(int ip) {
         if (isOnSingleList(ip))
             return true;
-        int hi = _blocklistSize - 1;
-        if (hi <= 0)
-            return false;
-        int lo = 0;
-        int cur = hi / 2;
-
-        while  (!match(ip, cur)) {
-            if (isHigher(ip, cur))
-                lo = cur;
-            else
-                hi = cur;
-            // make sure we get the last one
-            if (hi - lo <= 1) {
-                if (lo == cur)
-                    cur = hi;        
-                else        
-                    cur = lo;        
-                break;
-            } else {
-                cur = lo + ((hi - lo) / 2);
-            }
-        }
-        return match(ip, cur);
-    }
-
-    // Is the IP included in the entry _blocklist[cur] ?
-    private boolean match(int ip, int cur) {
-        return match(ip, _blocklist[cur]);
-    }
-
-    // Is the IP included in the compressed entry?
-    private boolean match(int ip, long entry) {
-        if (getFrom(entry) > ip)
-                return false;
-        return (ip <= getTo(entry));
-    }
-
-    // Is the IP higher than the entry _blocklist[cur] ?
-    private boolean isHigher(int ip, int cur) {
-        return ip > getFrom(_blocklist[cur]);
-    }
-
-    // methods to get and store the from/to values in the array
-
-    private static int getFrom(long entry) {
-        return (int) ((entry >> 32) & 0xffffffff);
-    }
-
-    private static int getTo(long entry) {
-        return (int) (entry & 0xffffffff);
-    }
-
-    /**
-     * The in-memory blocklist is an array of longs, with the format
-     * ((from IP) << 32) | (to IP)
-     * The XOR is so the signed sort is in normal (unsigned) order.
-     *
-     * So the size is (cough) almost 2MB for the 240,000 line splist.txt.
-     *
-     */
-    private static long toEntry(byte ip1[], byte ip2[]) {
-        long entry = 0;
-        for (int i = 0; i < 4; i++)
-            entry |= ((long) (ip2[i] & 0xff)) << ((3-i)*8);
-        for (int i = 0; i < 4; i++)
-            entry |= ((long) (ip1[i] & 0xff)) << (32 + ((3-i)*8));
-        return entry;
-    }
-
-    private void store(byte ip1[], byte ip2[], int idx) {
-        _blocklist[idx] = toEntry(ip1, ip2);
-    }
-
-    private void store(int ip1, int ip2, int idx) {
-        long entry = ((long) ip1) << 32;
-        entry |= ((long)ip2) & 0xffffffff;
-        _blocklist[idx] = entry;
+        return _index.contains(ip);
     }
 
     private static int toInt(byte ip[]) {
-        int rv = 0;
-        for (int i = 0; i < 4; i++)
-            rv |= (ip[i] & 0xff) << ((3-i)*8);
-        return rv;
-    }
-
-    private static String toStr(long entry) {
-        StringBuilder buf = new StringBuilder(32);
-        for (int i = 7; i >= 0; i--) {
-            buf.append((entry >> (8*i)) & 0xff);
-            if (i == 4)
-                buf.append('-');
-            else if (i > 0)
-                buf.append('.');
-        }
-        return buf.toString();
+        return BlocklistIndex.toInt(ip);
     }
 
     private static String toStr(int ip) {
@@ -864,7 +772,6 @@ public class Blocklist {
         // look through the file for each address to find which one was the cause
         for (Iterator<byte[]> iter = ips.iterator(); iter.hasNext(); ) {
             byte ip[] = iter.next();
-            int ipint = toInt(ip);
             BufferedReader br = null;
             try {
                 br = new BufferedReader(new InputStreamReader(
@@ -876,7 +783,7 @@ public class Blocklist {
                     if (e == null || e.peer != null) {
                         continue;
                     }
-                    if (match(ipint, toEntry(e.ip1, e.ip2))) {
+                    if (match(ip, e)) {
                         try { br.close(); } catch (IOException ioe) {}
                         String reason = _x("IP banned by blocklist.txt entry {0}");
                         // only one translate parameter for now
@@ -906,9 +813,9 @@ public class Blocklist {
 
     /**
      *  Write directly to the stream so we don't OOM on a huge list.
-     *  Go through each list twice since we store out-of-order.
+     *  Go through the single IPv4 list twice since it's sorted signed.
      *
-     *  TODO move to routerconsole, but that would require exposing the _blocklist array.
+     *  TODO move to routerconsole, but that would require exposing the index.
      */
     public void renderStatusHTML(Writer out) throws IOException {
         // move to the jsp
@@ -952,7 +859,10 @@ public class Blocklist {
             }
             out.write("</table>");
         }
-        if (_blocklistSize > 0) {
+        BlocklistIndex index = _index;
+        int v4 = index.getIPv4Count();
+        int v6 = index.getIPv6Count();
+        if (v4 + v6 > 0) {
             out.write("<table><tr><th align=\"center\" colspan=\"2\"><b>");
             out.write(_("IPs Permanently Banned"));
             out.write("</b></th></tr><tr><td align=\"center\" width=\"50%\"><b>");
@@ -960,34 +870,28 @@ public class Blocklist {
             out.write("</b></td><td align=\"center\" width=\"50%\"><b>");
             out.write(_("To"));
             out.write("</b></td></tr>");
-            int max = Math.min(_blocklistSize, MAX_DISPLAY);
-            int displayed = 0;
-            // first 0 - 127
-            for (int i = 0; i < _blocklistSize && displayed < max; i++) {
-                 int from = getFrom(_blocklist[i]);
-                 if (from < 0)
-                     continue;
+            int max = Math.min(v4, MAX_DISPLAY);
+            for (int i = 0; i < max; i++) {
+                 int from = index.getIPv4From(i);
                  out.write("<tr><td align=\"center\" width=\"50%\">"); out.write(toStr(from)); out.write("</td><td align=\"center\" width=\"50%\">");
-                 int to = getTo(_blocklist[i]);
+                 int to = index.getIPv4To(i);
                  if (to != from) {
                      out.write(toStr(to)); out.write("</td></tr>\n");
                  } else
                      out.write("&nbsp;</td></tr>\n");
-                 displayed++;
             }
-            // then 128 - 255
-            for (int i = 0; i < max && displayed++ < max; i++) {
-                 int from = getFrom(_blocklist[i]);
-                 if (from >= 0)
-                     break;
-                 out.write("<tr><td align=\"center\" width=\"50%\">"); out.write(toStr(from)); out.write("</td><td align=\"center\" width=\"50%\">");
-                 int to = getTo(_blocklist[i]);
-                 if (to != from) {
-                     out.write(toStr(to)); out.write("</td></tr>\n");
+            // then IPv6
+            max = Math.min(v6, MAX_DISPLAY - max);
+            for (int i = 0; i < max; i++) {
+                 byte[] from = index.getIPv6From(i);
+                 out.write("<tr><td align=\"center\" width=\"50%\">"); out.write(Addresses.toString(from)); out.write("</td><td align=\"center\" width=\"50%\">");
+                 byte[] to = index.getIPv6To(i);
+                 if (!DataHelper.eq(from, to)) {
+                     out.write(Addresses.toString(to)); out.write("</td></tr>\n");
                  } else
                      out.write("&nbsp;</td></tr>\n");
             }
-            if (_blocklistSize > MAX_DISPLAY)
+            if (v4 + v6 > MAX_DISPLAY)
                 // very rare, don't bother translating
                 out.write("<tr><th colspan=2>First " + MAX_DISPLAY + " displayed, see the " +
                           BLOCKLIST_FILE_DEFAULT + " file for the full list</th></tr>");
@@ -1039,7 +943,7 @@ public class Blocklist {
         Blocklist b = new Blocklist();
         if ( (args != null) && (args.length == 1) )
             b.readBlocklistFile(args[0]);
-        System.out.println("Saved " + b._blocklistSize + " records");
+        System.out.println("Saved " + b._index.getIPv4Count() + " records");
         String tests[] = {"0.0.0.0", "0.0.0.1", "0.0.0.2", "0.0.0.255", "1.0.0.0",
                                         "3.3.3.3", "77.1.2.3", "127.0.0.0", "127.127.127.127", "128.0.0.0",
                                         "129.1.2.3", "255.255.255.254", "255.255.255.255"};
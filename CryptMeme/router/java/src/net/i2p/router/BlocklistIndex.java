@@ -0,0 +1,391 @@
+package net.i2p.router;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ * The IP ranges and router hashes read from the blocklist files,
+ * sorted and merged, never modified after construction,
+ * so lookups need no locking and Blocklist may swap in a new one at any time.
+ *
+ * It's kept in the binary form that's written to blocklist.bin,
+ * so that on the next startup, if the text files haven't changed,
+ * the file is simply memory-mapped instead of parsed.
+ *
+ *<pre>
+ *  header, 32 bytes: magic (4), version (1), 3 unused, fingerprint of the text files (8),
+ *                    IPv4 range count (4), IPv6 range count (4), hash count (4), 4 unused
+ *  IPv4 ranges: from (4), to (4), sorted unsigned, not overlapping
+ *  IPv6 ranges: from (16), to (16), sorted unsigned, not overlapping
+ *  hashes: hash (32), comment (2 byte length + UTF-8)
+ *</pre>
+ *
+ * Lookups are binary searches, O(log n), directly on the buffer.
+ *
+ * @since 0.9.21
+ */
+final class BlocklistIndex {
+    private final ByteBuffer _buf;
+    private final long _fingerprint;
+    private final int _v4Count;
+    private final int _v6Count;
+    private final int _hashCount;
+    private final int _v6Offset;
+    private final int _hashOffset;
+
+    private static final int MAGIC = 0x4932424c;  // I2BL
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int V4_SIZE = 8;
+    private static final int V6_SIZE = 32;
+
+    static final BlocklistIndex EMPTY = new Builder(0).build(0);
+
+    /**
+     * @param buf position 0, not checked
+     */
+    private BlocklistIndex(ByteBuffer buf) {
+        _buf = buf;
+        _fingerprint = buf.getLong(8);
+        _v4Count = buf.getInt(16);
+        _v6Count = buf.getInt(20);
+        _hashCount = buf.getInt(24);
+        _v6Offset = HEADER_SIZE + (_v4Count * V4_SIZE);
+        _hashOffset = _v6Offset + (_v6Count * V6_SIZE);
+    }
+
+    /**
+     * Memory-map a file written by write().
+     *
+     * @param fingerprint of the current text files
+     * @return null if the file doesn't exist, is bad, or has a different fingerprint
+     */
+    static BlocklistIndex load(File f, long fingerprint) throws IOException {
+        if (!f.exists())
+            return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "r");
+            long len = raf.length();
+            if (len < HEADER_SIZE || len > Integer.MAX_VALUE)
+                return null;
+            ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, len);
+            if (buf.getInt(0) != MAGIC || buf.get(4) != VERSION || buf.getLong(8) != fingerprint)
+                return null;
+            long v4 = buf.getInt(16) & 0xffffffffL;
+            long v6 = buf.getInt(20) & 0xffffffffL;
+            if (HEADER_SIZE + (v4 * V4_SIZE) + (v6 * V6_SIZE) > len)
+                return null;
+            return new BlocklistIndex(buf);
+        } finally {
+            // the mapping stays valid
+            if (raf != null) try { raf.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     * Write to a temp file and rename, so a mapped old file is not disturbed.
+     */
+    void write(File f) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new SecureFileOutputStream(tmp);
+            ByteBuffer buf = _buf.duplicate();
+            buf.clear();
+            byte[] b = new byte[Math.min(buf.remaining(), 64*1024)];
+            while (buf.hasRemaining()) {
+                int len = Math.min(b.length, buf.remaining());
+                buf.get(b, 0, len);
+                out.write(b, 0, len);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(f)) {
+                // Windows
+                f.delete();
+                if (!tmp.renameTo(f))
+                    throw new IOException("Cannot rename " + tmp + " to " + f);
+            }
+        } finally {
+            if (out != null) try { out.close(); } catch (IOException ioe) {}
+            tmp.delete();
+        }
+    }
+
+    long getFingerprint() { return _fingerprint; }
+
+    int getIPv4Count() { return _v4Count; }
+
+    int getIPv6Count() { return _v6Count; }
+
+    int getHashCount() { return _hashCount; }
+
+    /** @param i 0 to getIPv4Count() - 1 */
+    int getIPv4From(int i) { return _buf.getInt(HEADER_SIZE + (i * V4_SIZE)); }
+
+    /** @param i 0 to getIPv4Count() - 1 */
+    int getIPv4To(int i) { return _buf.getInt(HEADER_SIZE + (i * V4_SIZE) + 4); }
+
+    /** @param i 0 to getIPv6Count() - 1 @return 16 bytes */
+    byte[] getIPv6From(int i) { return get(_v6Offset + (i * V6_SIZE), 16); }
+
+    /** @param i 0 to getIPv6Count() - 1 @return 16 bytes */
+    byte[] getIPv6To(int i) { return get(_v6Offset + (i * V6_SIZE) + 16, 16); }
+
+    /** @return router hash to comment (may be null) */
+    Map<Hash, String> getHashes() {
+        if (_hashCount == 0)
+            return Collections.emptyMap();
+        Map<Hash, String> rv = new HashMap<Hash, String>(_hashCount);
+        int off = _hashOffset;
+        for (int i = 0; i < _hashCount; i++) {
+            Hash h = Hash.create(get(off, Hash.HASH_LENGTH));
+            off += Hash.HASH_LENGTH;
+            int len = _buf.getShort(off) & 0xffff;
+            off += 2;
+            rv.put(h, len > 0 ? DataHelper.getUTF8(get(off, len)) : null);
+            off += len;
+        }
+        return rv;
+    }
+
+    private byte[] get(int off, int len) {
+        byte[] rv = new byte[len];
+        ByteBuffer buf = _buf.duplicate();
+        buf.position(off);
+        buf.get(rv);
+        return rv;
+    }
+
+    /**
+     * Binary search for the last range starting at or below ip.
+     */
+    boolean contains(int ip) {
+        int lo = 0;
+        int hi = _v4Count - 1;
+        int uip = ip ^ Integer.MIN_VALUE;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int off = HEADER_SIZE + (mid * V4_SIZE);
+            if ((_buf.getInt(off) ^ Integer.MIN_VALUE) <= uip) {
+                if (uip <= (_buf.getInt(off + 4) ^ Integer.MIN_VALUE))
+                    return true;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param ip 16 bytes
+     */
+    boolean contains(byte[] ip) {
+        if (_v6Count == 0)
+            return false;
+        return contains(toLong(ip, 0), toLong(ip, 8));
+    }
+
+    /**
+     * Binary search for the last range starting at or below ip.
+     * @param ipHi the first 8 bytes of the IPv6 address
+     * @param ipLo the last 8 bytes
+     */
+    boolean contains(long ipHi, long ipLo) {
+        int lo = 0;
+        int hi = _v6Count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int off = _v6Offset + (mid * V6_SIZE);
+            if (compare(_buf.getLong(off), _buf.getLong(off + 8), ipHi, ipLo) <= 0) {
+                if (compare(ipHi, ipLo, _buf.getLong(off + 16), _buf.getLong(off + 24)) <= 0)
+                    return true;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return false;
+    }
+
+    /** unsigned 128 bit compare */
+    private static int compare(long aHi, long aLo, long bHi, long bLo) {
+        if (aHi != bHi)
+            return (aHi ^ Long.MIN_VALUE) < (bHi ^ Long.MIN_VALUE) ? -1 : 1;
+        if (aLo != bLo)
+            return (aLo ^ Long.MIN_VALUE) < (bLo ^ Long.MIN_VALUE) ? -1 : 1;
+        return 0;
+    }
+
+    static long toLong(byte[] b, int off) {
+        long rv = 0;
+        for (int i = off; i < off + 8; i++) {
+            rv = (rv << 8) | (b[i] & 0xff);
+        }
+        return rv;
+    }
+
+    /**
+     * Collect ranges in any order, with overlaps, then build() sorts and merges them.
+     * Not thread-safe.
+     */
+    static class Builder {
+        /** (from ^ MIN_VALUE) << 32 | to, so the signed sort is by unsigned from */
+        private long[] _v4;
+        private int _v4Count;
+        private final List<long[]> _v6 = new ArrayList<long[]>();
+        private final Map<Hash, String> _hashes = new HashMap<Hash, String>(4);
+
+        /** @param sizeHint expected IPv4 ranges */
+        public Builder(int sizeHint) {
+            _v4 = new long[Math.max(sizeHint, 16)];
+        }
+
+        /**
+         * @param from 4 or 16 bytes
+         * @param to same length as from, not less than from
+         */
+        public void addRange(byte[] from, byte[] to) {
+            if (from.length == 4)
+                addRange(toInt(from), toInt(to));
+            else
+                _v6.add(new long[] { toLong(from, 0), toLong(from, 8), toLong(to, 0), toLong(to, 8) });
+        }
+
+        public void addRange(int from, int to) {
+            if (_v4Count >= _v4.length)
+                _v4 = Arrays.copyOf(_v4, _v4.length * 2);
+            _v4[_v4Count++] = (((long) (from ^ Integer.MIN_VALUE)) << 32) | (to & 0xffffffffL);
+        }
+
+        /** @param comment may be null */
+        public void addHash(Hash h, String comment) {
+            _hashes.put(h, comment);
+        }
+
+        public int getRangeCount() {
+            return _v4Count + _v6.size();
+        }
+
+        public BlocklistIndex build(long fingerprint) {
+            Arrays.sort(_v4, 0, _v4Count);
+            int v4 = mergeV4();
+            Collections.sort(_v6, new V6Comparator());
+            mergeV6();
+            int len = HEADER_SIZE + (v4 * V4_SIZE) + (_v6.size() * V6_SIZE);
+            List<byte[]> comments = new ArrayList<byte[]>(_hashes.size());
+            for (String c : _hashes.values()) {
+                byte[] b = c != null ? DataHelper.getUTF8(c) : new byte[0];
+                if (b.length > 65535)
+                    b = Arrays.copyOf(b, 65535);
+                comments.add(b);
+                len += Hash.HASH_LENGTH + 2 + b.length;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(len);
+            buf.putInt(MAGIC);
+            buf.put(VERSION);
+            buf.position(8);
+            buf.putLong(fingerprint);
+            buf.putInt(v4);
+            buf.putInt(_v6.size());
+            buf.putInt(_hashes.size());
+            buf.position(HEADER_SIZE);
+            for (int i = 0; i < v4; i++) {
+                buf.putInt(((int) (_v4[i] >>> 32)) ^ Integer.MIN_VALUE);
+                buf.putInt((int) _v4[i]);
+            }
+            for (long[] r : _v6) {
+                for (int i = 0; i < 4; i++) {
+                    buf.putLong(r[i]);
+                }
+            }
+            int i = 0;
+            for (Hash h : _hashes.keySet()) {
+                buf.put(h.getData());
+                byte[] b = comments.get(i++);
+                buf.putShort((short) b.length);
+                buf.put(b);
+            }
+            buf.clear();
+            return new BlocklistIndex(buf);
+        }
+
+        /**
+         * Merge overlapping and adjacent sorted ranges in place
+         * @return the new count
+         */
+        private int mergeV4() {
+            if (_v4Count == 0)
+                return 0;
+            int out = 0;
+            for (int i = 1; i < _v4Count; i++) {
+                long cur = _v4[out];
+                long next = _v4[i];
+                long curTo = cur & 0xffffffffL;
+                long nextFrom = ((next >>> 32) ^ 0x80000000L) & 0xffffffffL;
+                if (nextFrom <= curTo + 1) {
+                    long nextTo = next & 0xffffffffL;
+                    if (nextTo > curTo)
+                        _v4[out] = (cur & 0xffffffff00000000L) | nextTo;
+                } else {
+                    _v4[++out] = next;
+                }
+            }
+            return out + 1;
+        }
+
+        private void mergeV6() {
+            if (_v6.size() <= 1)
+                return;
+            List<long[]> merged = new ArrayList<long[]>(_v6.size());
+            long[] cur = _v6.get(0);
+            for (int i = 1; i < _v6.size(); i++) {
+                long[] next = _v6.get(i);
+                // adjacent ranges are left separate, that's fine
+                if (compare(next[0], next[1], cur[2], cur[3]) <= 0) {
+                    if (compare(next[2], next[3], cur[2], cur[3]) > 0) {
+                        cur[2] = next[2];
+                        cur[3] = next[3];
+                    }
+                } else {
+                    merged.add(cur);
+                    cur = next;
+                }
+            }
+            merged.add(cur);
+            _v6.clear();
+            _v6.addAll(merged);
+        }
+    }
+
+    private static class V6Comparator implements Comparator<long[]> {
+        public int compare(long[] l, long[] r) {
+            return BlocklistIndex.compare(l[0], l[1], r[0], r[1]);
+        }
+    }
+
+    static int toInt(byte ip[]) {
+        int rv = 0;
+        for (int i = 0; i < 4; i++)
+            rv |= (ip[i] & 0xff) << ((3-i)*8);
+        return rv;
+    }
+}
@@ -76,7 +76,7 @@ public class JobQueue {
     /** default max # job queue runners operating */
     private final static int DEFAULT_MAX_RUNNERS = 1;
     /** router.config parameter to override the max runners */
-    private final static String PROP_MAX_RUNNERS = "router.maxJobRunners";
+    final static String PROP_MAX_RUNNERS = "router.maxJobRunners";
     
     /** how frequently should we check and update the max runners */
     private final static long MAX_LIMIT_UPDATE_DELAY = 60*1000;
@@ -218,21 +218,29 @@ public class JobQueue {
         
         _context.statManager().addRateData("jobQueue.readyJobs", numReady);
         _context.statManager().addRateData("jobQueue.queuedJobs", _timedJobs.size());
-        if (dropped) {
-            _context.statManager().addRateData("jobQueue.droppedJobs", 1);
-            if (_log.shouldLog(Log.WARN))
-                _log.warn("Dropping job due to overload!  # ready jobs: " 
-                          + numReady + ": job = " + job);
-            String key = job.getName();
-            JobStats stats = _jobStats.get(key);
-            if (stats == null) {
-                stats = new JobStats(key);
-                JobStats old = _jobStats.putIfAbsent(key, stats);
-                if (old != null)
-                    stats = old;
-            }
-            stats.jobDropped();
+        if (dropped)
+            jobDropped(job, numReady);
+    }
+
+    /**
+     *  Stats and logging after job.dropped() has been called.
+     *  Package private for subclasses.
+     *  @since 0.9.21
+     */
+    void jobDropped(Job job, long numReady) {
+        _context.statManager().addRateData("jobQueue.droppedJobs", 1);
+        if (_log.shouldLog(Log.WARN))
+            _log.warn("Dropping job due to overload!  # ready jobs: " 
+                      + numReady + ": job = " + job);
+        String key = job.getName();
+        JobStats stats = _jobStats.get(key);
+        if (stats == null) {
+            stats = new JobStats(key);
+            JobStats old = _jobStats.putIfAbsent(key, stats);
+            if (old != null)
+                stats = old;
         }
+        stats.jobDropped();
     }
     
     public void removeJob(Job job) {
@@ -290,8 +298,9 @@ public class JobQueue {
      * in question, and what the router's router.maxWaitingJobs config parameter 
      * is set to.
      *
+     * Package private for subclasses as of 0.9.21
      */
-    private boolean shouldDrop(Job job, long numReady) {
+    boolean shouldDrop(Job job, long numReady) {
         if (_maxWaitingJobs <= 0) return false; // dont ever drop jobs
         if (!_allowParallelOperation) return false; // dont drop during startup [duh]
         if (numReady > _maxWaitingJobs) {
@@ -339,6 +348,15 @@ public class JobQueue {
      */
     public void startup() {
         _alive = true;
+        startPumper();
+    }
+
+    /** 
+     *  Start the thread that moves timed jobs to the ready queue.
+     *  Package private for subclasses.
+     *  @since 0.9.21 split out of startup()
+     */
+    void startPumper() {
         I2PThread pumperThread = new I2PThread(_pumper, "Job Queue Pumper", true);
         //pumperThread.setPriority(I2PThread.NORM_PRIORITY+1);
         pumperThread.start();
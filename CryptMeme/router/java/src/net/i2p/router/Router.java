@@ -21,6 +21,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import gnu.getopt.Getopt;
 
 import net.i2p.client.I2PSessionImpl;
+import net.i2p.crypto.CryptoPool;
 import net.i2p.crypto.SigUtil;
 import net.i2p.data.Base64;
 import net.i2p.data.Certificate;
@@ -419,6 +420,7 @@ public class Router implements RouterClock.ClockShiftListener {
         PublicKey.clearCache();
         SigningPublicKey.clearCache();
         SigUtil.clearCaches();
+        CryptoPool.clearAll();
         I2PSessionImpl.clearCache();
     }
 
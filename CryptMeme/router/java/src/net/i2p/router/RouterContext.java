@@ -25,13 +25,16 @@ import net.i2p.router.peermanager.ProfileOrganizer;
 import net.i2p.router.startup.RouterAppManager;
 import net.i2p.router.transport.CommSystemFacadeImpl;
 import net.i2p.router.transport.FIFOBandwidthLimiter;
+import net.i2p.router.transport.TokenBucketBandwidthLimiter;
 import net.i2p.router.transport.OutboundMessageRegistry;
 import net.i2p.router.tunnel.TunnelDispatcher;
 import net.i2p.router.tunnel.pool.TunnelPoolManager;
 import net.i2p.update.UpdateManager;
 import net.i2p.util.KeyRing;
 import net.i2p.util.I2PProperties.I2PPropertyCallback;
+import net.i2p.util.SimpleTimer2;
 import net.i2p.util.SystemVersion;
+import net.i2p.util.TimingWheelTimer2;
 
 /**
  * Build off the core I2P context to provide a root for a router instance to
@@ -73,9 +76,11 @@ public class RouterContext extends I2PAppContext {
     private final Set<Runnable> _finalShutdownTasks;
     // split up big lock on this to avoid deadlocks
     private volatile boolean _initialized;
-    private final Object _lock1 = new Object(), _lock2 = new Object(), _lock3 = new Object();
+    private final Object _lock1 = new Object(), _lock2 = new Object(), _lock3 = new Object(), _lock4 = new Object();
 
     private static final List<RouterContext> _contexts = new CopyOnWriteArrayList<RouterContext>();
+    /** @since 0.9.21 */
+    private static final String PROP_TIMING_WHEEL = "router.timingWheelTimer";
     
     /**
      *  Caller MUST call initAll() after instantiation.
@@ -169,6 +174,13 @@ public class RouterContext extends I2PAppContext {
      *  i2p.dummyTunnelManager
      *  i2p.vmCommSystem (transport)
      *</pre>
+     *
+     *  The following properties select alternative implementations:
+     *<pre>
+     *  i2np.bandwidth.tokenBucket (TokenBucketBandwidthLimiter, since 0.9.21)
+     *  router.workStealingJobQueue (WorkStealingJobQueue, since 0.9.21)
+     *  router.timingWheelTimer (TimingWheelTimer2 for simpleTimer2(), since 0.9.21)
+     *</pre>
      */
     public synchronized void initAll() {
         if (_initialized)
@@ -183,7 +195,10 @@ public class RouterContext extends I2PAppContext {
         }
         _garlicMessageParser = new GarlicMessageParser(this);
         _clientMessagePool = new ClientMessagePool(this);
-        _jobQueue = new JobQueue(this);
+        if (!getBooleanProperty(WorkStealingJobQueue.PROP_WORK_STEALING))
+            _jobQueue = new JobQueue(this);
+        else
+            _jobQueue = new WorkStealingJobQueue(this);
         _jobQueue.startup();
         _inNetMessagePool = new InNetMessagePool(this);
         _outNetMessagePool = new OutNetMessagePool(this);
@@ -206,7 +221,10 @@ public class RouterContext extends I2PAppContext {
         else
             _peerManagerFacade = new DummyPeerManagerFacade();
         _profileManager = new ProfileManagerImpl(this);
-        _bandwidthLimiter = new FIFOBandwidthLimiter(this);
+        if (!getBooleanProperty(TokenBucketBandwidthLimiter.PROP_TOKEN_BUCKET))
+            _bandwidthLimiter = new FIFOBandwidthLimiter(this);
+        else
+            _bandwidthLimiter = new TokenBucketBandwidthLimiter(this);
         if (!getBooleanProperty("i2p.dummyTunnelManager"))
             _tunnelManager = new TunnelPoolManager(this);
         else
@@ -512,6 +530,25 @@ public class RouterContext extends I2PAppContext {
         }
     }
     
+    /**
+     *  Hashed timing wheel instead of the ScheduledThreadPoolExecutor
+     *  if router.timingWheelTimer=true
+     *
+     *  @since 0.9.21
+     */
+    @Override
+    protected void initializeSimpleTimer2() {
+        synchronized (_lock4) {
+            if (_simpleTimer2 == null) {
+                if (getBooleanProperty(PROP_TIMING_WHEEL))
+                    _simpleTimer2 = new TimingWheelTimer2(this);
+                else
+                    _simpleTimer2 = new SimpleTimer2(this);
+            }
+            _simpleTimer2Initialized = true;
+        }
+    }
+
     /**
      *  @since 0.8.8
      */
@@ -0,0 +1,91 @@
+package net.i2p.router;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import net.i2p.router.transport.FIFOBandwidthLimiter;
+import net.i2p.stat.OpenMetricsWriter;
+
+/**
+ * All the stats, plus the router's own gauges that aren't stats
+ * (job queue, bandwidth, tunnels, peers), in OpenMetrics text format,
+ * for the console's /metrics page.
+ *
+ * @since 0.9.21
+ */
+public class RouterMetricsWriter extends OpenMetricsWriter {
+    private final RouterContext _context;
+
+    public RouterMetricsWriter(RouterContext ctx, Writer out) {
+        super(out);
+        _context = ctx;
+    }
+
+    /**
+     * Write everything, including the terminating EOF, and flush.
+     */
+    public void write() throws IOException {
+        writeRouter();
+        writeStats(_context.statManager());
+        end();
+    }
+
+    private void writeRouter() throws IOException {
+        Router r = _context.router();
+        if (r != null) {
+            family("i2p_router_uptime_seconds", TYPE_GAUGE, "Router uptime");
+            sample("i2p_router_uptime_seconds", r.getUptime() / 1000d);
+        }
+
+        JobQueue jq = _context.jobQueue();
+        if (jq != null) {
+            family("i2p_jobqueue_ready_jobs", TYPE_GAUGE, "Jobs ready to run");
+            sample("i2p_jobqueue_ready_jobs", jq.getReadyCount());
+            family("i2p_jobqueue_max_lag_seconds", TYPE_GAUGE, "How long the oldest ready job has been waiting");
+            sample("i2p_jobqueue_max_lag_seconds", jq.getMaxLag() / 1000d);
+        }
+
+        FIFOBandwidthLimiter bw = _context.bandwidthLimiter();
+        if (bw != null) {
+            family("i2p_bandwidth_bytes_per_second", TYPE_GAUGE, "Transport bandwidth used");
+            sample("i2p_bandwidth_bytes_per_second", bw.getReceiveBps(), "direction", "in", "window", "1s");
+            sample("i2p_bandwidth_bytes_per_second", bw.getSendBps(), "direction", "out", "window", "1s");
+            sample("i2p_bandwidth_bytes_per_second", bw.getReceiveBps15s(), "direction", "in", "window", "15s");
+            sample("i2p_bandwidth_bytes_per_second", bw.getSendBps15s(), "direction", "out", "window", "15s");
+            family("i2p_bandwidth_limit_bytes_per_second", TYPE_GAUGE, "Configured bandwidth limit");
+            sample("i2p_bandwidth_limit_bytes_per_second", bw.getInboundKBytesPerSecond() * 1024, "direction", "in");
+            sample("i2p_bandwidth_limit_bytes_per_second", bw.getOutboundKBytesPerSecond() * 1024, "direction", "out");
+            family("i2p_bandwidth_allocated_bytes", TYPE_COUNTER, "Bytes allocated by the bandwidth limiter");
+            sample("i2p_bandwidth_allocated_bytes_total", bw.getTotalAllocatedInboundBytes(), "direction", "in");
+            sample("i2p_bandwidth_allocated_bytes_total", bw.getTotalAllocatedOutboundBytes(), "direction", "out");
+            family("i2p_bandwidth_participating_bytes_per_second", TYPE_GAUGE, "Bandwidth used by participating tunnels");
+            sample("i2p_bandwidth_participating_bytes_per_second", bw.getCurrentParticipatingBandwidth());
+        }
+
+        TunnelManagerFacade tm = _context.tunnelManager();
+        if (tm != null) {
+            family("i2p_tunnels", TYPE_GAUGE, "Current tunnels");
+            sample("i2p_tunnels", tm.getParticipatingCount(), "type", "participating");
+            sample("i2p_tunnels", tm.getFreeTunnelCount(), "type", "exploratory_inbound");
+            sample("i2p_tunnels", tm.getOutboundTunnelCount(), "type", "exploratory_outbound");
+            sample("i2p_tunnels", tm.getInboundClientTunnelCount(), "type", "client_inbound");
+            sample("i2p_tunnels", tm.getOutboundClientTunnelCount(), "type", "client_outbound");
+            family("i2p_tunnel_build_queue", TYPE_GAUGE, "Inbound tunnel build requests waiting");
+            sample("i2p_tunnel_build_queue", tm.getInboundBuildQueueSize());
+        }
+
+        CommSystemFacade cs = _context.commSystem();
+        if (cs != null) {
+            family("i2p_transport_peers", TYPE_GAUGE, "Connected peers");
+            sample("i2p_transport_peers", cs.countActivePeers(), "state", "active");
+            sample("i2p_transport_peers", cs.countActiveSendPeers(), "state", "active_send");
+        }
+
+        NetworkDatabaseFacade netDb = _context.netDb();
+        if (netDb != null) {
+            family("i2p_netdb_entries", TYPE_GAUGE, "Entries in the local network database");
+            sample("i2p_netdb_entries", netDb.getKnownRouters(), "type", "router");
+            sample("i2p_netdb_entries", netDb.getKnownLeaseSets(), "type", "leaseset");
+        }
+    }
+}
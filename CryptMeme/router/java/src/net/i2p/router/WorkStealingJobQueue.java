@@ -0,0 +1,626 @@
+package net.i2p.router;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.i2p.router.message.HandleGarlicMessageJob;
+import net.i2p.router.message.OutboundClientMessageOneShotJob;
+import net.i2p.router.networkdb.kademlia.HandleFloodfillDatabaseLookupMessageJob;
+import net.i2p.util.Clock;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ * Alternative to the JobQueue, same Job API, with no global job lock.
+ *
+ * Each JobQueueRunner has its own lane of ready jobs, with a deque for
+ * each of three priority classes. Jobs added by a runner go to its own lane,
+ * jobs added by other threads are spread round-robin over the lanes.
+ * A runner with nothing in its lane steals from the others before parking,
+ * and adding a job unparks one idle runner.
+ * Thieves take the oldest job, not the newest, since lag matters
+ * more here than cache locality.
+ *
+ * Jobs to be run later go in a hashed timing wheel, with TICK ms slots,
+ * swept by a single thread. Schedule and cancel are O(1).
+ * A job is run at most about one TICK after its start time.
+ *
+ * The ready and timed jobs are tracked in one map, for duplicate detection,
+ * removeJob(), and the console. Entries left in a lane by removeJob()
+ * are skipped when they come up.
+ *
+ * By default the number of runners is the number of cores,
+ * unless router.maxJobRunners is set.
+ *
+ * Enable with router.workStealingJobQueue=true.
+ *
+ * @since 0.9.21
+ */
+public class WorkStealingJobQueue extends JobQueue {
+    private final Log _log;
+    private final RouterContext _context;
+    /** job to READY or the wheel slot index */
+    private final ConcurrentHashMap<Job, Integer> _queued;
+    private final AtomicInteger _readyCount = new AtomicInteger();
+    private final AtomicInteger _timedCount = new AtomicInteger();
+    private final Lane[] _lanes;
+    /** number of lanes with a runner */
+    private volatile int _laneCount;
+    private final AtomicInteger _nextLane = new AtomicInteger();
+    private final Queue<Lane> _idle;
+    private final Slot[] _wheel;
+    /** the last tick swept, only changed with the slot lock held */
+    private volatile long _lastTick;
+
+    public static final String PROP_WORK_STEALING = "router.workStealingJobQueue";
+
+    static final int PRIORITY_HIGH = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_LOW = 2;
+    private static final int PRIORITIES = 3;
+    /** every this many takes, start with the lowest priority so it isn't starved */
+    private static final int AGING_MASK = 0x07;
+
+    /** runners beyond this share lanes */
+    private static final int MAX_LANES = 64;
+    private static final Integer READY = Integer.valueOf(-1);
+    private static final long IDLE_PARK = 1000*1000*1000L;
+
+    /** ms */
+    private static final int TICK = 10;
+    /** power of 2, 10 seconds */
+    private static final int WHEEL_SIZE = 1024;
+
+    /**
+     *  Does not start the pumper. Caller MUST call startup.
+     */
+    public WorkStealingJobQueue(RouterContext context) {
+        super(context);
+        _context = context;
+        _log = context.logManager().getLog(WorkStealingJobQueue.class);
+        _queued = new ConcurrentHashMap<Job, Integer>(256);
+        _lanes = new Lane[MAX_LANES];
+        for (int i = 0; i < MAX_LANES; i++) {
+            _lanes[i] = new Lane();
+        }
+        _idle = new ConcurrentLinkedQueue<Lane>();
+        _wheel = new Slot[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            _wheel[i] = new Slot();
+        }
+        _context.statManager().createRateStat("jobQueue.stolenJobs", "How many jobs are run by a runner other than the one they were queued to", "JobQueue", new long[] { 60*1000l, 60*60*1000l });
+        _context.clock().addUpdateListener(new OffsetListener());
+    }
+
+    /**
+     * Enqueue the specified job
+     *
+     */
+    @Override
+    public void addJob(Job job) {
+        if (job == null || !isAlive()) return;
+
+        long now = _context.clock().now();
+        long start = job.getTiming().getStartAfter();
+        if (start > now + 3*24*60*60*1000L) {
+            // catch bugs, Job.requeue() argument is a delay not a time
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Scheduling job far in the future: " + (new Date(start)) + ' ' + job);
+        }
+        int numReady = _readyCount.get();
+        Integer state = _queued.get(job);
+        if (READY.equals(state)) {
+            // already ready, nothing to do
+            _context.statManager().addRateData("jobQueue.readyJobs", numReady);
+            return;
+        }
+        if (state != null && unschedule(job, state)) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Rescheduling job: " + job);
+        }
+        if (shouldDrop(job, numReady)) {
+            job.dropped();
+            jobDropped(job, numReady);
+        } else if (start <= now) {
+            // don't skew us - its 'start after' its been queued, or later
+            job.getTiming().setStartAfter(now);
+            if (_queued.putIfAbsent(job, READY) == null)
+                enqueueReady(job);
+        } else {
+            schedule(job, start);
+        }
+        _context.statManager().addRateData("jobQueue.readyJobs", numReady);
+        _context.statManager().addRateData("jobQueue.queuedJobs", _timedCount.get());
+    }
+
+    @Override
+    public void removeJob(Job job) {
+        Integer state = _queued.remove(job);
+        if (state == null)
+            return;
+        if (READY.equals(state)) {
+            // left in the lane, skipped when it comes up
+            _readyCount.decrementAndGet();
+        } else {
+            _timedCount.decrementAndGet();
+            Slot slot = _wheel[state.intValue()];
+            synchronized (slot) {
+                slot.jobs.remove(job);
+            }
+        }
+    }
+
+    /**
+     *  Remove from the wheel if it's still in the given slot.
+     *  @return success
+     */
+    private boolean unschedule(Job job, Integer state) {
+        if (!_queued.remove(job, state))
+            return false;
+        _timedCount.decrementAndGet();
+        Slot slot = _wheel[state.intValue()];
+        synchronized (slot) {
+            slot.jobs.remove(job);
+        }
+        return true;
+    }
+
+    /**
+     *  Put it in the wheel, in the slot for its start time,
+     *  or the next one to be swept if that has already gone by.
+     */
+    private void schedule(Job job, long start) {
+        long tick = start / TICK;
+        while (true) {
+            long t = Math.max(tick, _lastTick + 1);
+            int idx = (int) (t & (WHEEL_SIZE - 1));
+            Slot slot = _wheel[idx];
+            synchronized (slot) {
+                if (t <= _lastTick)
+                    continue;  // the pumper got there first
+                if (_queued.putIfAbsent(job, Integer.valueOf(idx)) == null) {
+                    slot.jobs.add(job);
+                    _timedCount.incrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     *  State must already be READY.
+     *  Put it in our lane if we are a runner, else the next lane,
+     *  and wake up an idle runner.
+     */
+    private void enqueueReady(Job job) {
+        if (job instanceof JobImpl)
+            ((JobImpl)job).madeReady();
+        _readyCount.incrementAndGet();
+        Lane lane = getOwnLane();
+        if (lane == null) {
+            int count = Math.max(1, _laneCount);
+            lane = _lanes[(_nextLane.getAndIncrement() & Integer.MAX_VALUE) % count];
+        }
+        lane.push(job, priorityOf(job));
+        Lane idle;
+        while ((idle = _idle.poll()) != null) {
+            if (idle.idle.compareAndSet(true, false)) {
+                LockSupport.unpark(idle.thread);
+                break;
+            }
+        }
+    }
+
+    /**
+     *  @return null if the current thread is not one of our runners
+     */
+    private Lane getOwnLane() {
+        Thread t = Thread.currentThread();
+        if (!(t instanceof JobQueueRunner))
+            return null;
+        Lane rv = _lanes[((JobQueueRunner) t).getRunnerId() % MAX_LANES];
+        return rv.thread == t ? rv : null;
+    }
+
+    /**
+     *  Client sends are the most latency-sensitive,
+     *  the jobs that shouldDrop() may drop are the lowest.
+     */
+    static int priorityOf(Job job) {
+        Class<? extends Job> cls = job.getClass();
+        if (cls == HandleFloodfillDatabaseLookupMessageJob.class ||
+            cls == HandleGarlicMessageJob.class)
+            return PRIORITY_LOW;
+        if (cls == OutboundClientMessageOneShotJob.class)
+            return PRIORITY_HIGH;
+        return PRIORITY_NORMAL;
+    }
+
+    /**
+     * Blocking call to retrieve the next ready job.
+     * Own lane first, then steal, then park until woken.
+     */
+    @Override
+    Job getNext() {
+        Thread t = Thread.currentThread();
+        int id = (t instanceof JobQueueRunner) ? ((JobQueueRunner) t).getRunnerId() % MAX_LANES : 0;
+        Lane lane = _lanes[id];
+        lane.thread = t;
+        synchronized (_lanes) {
+            if (id >= _laneCount)
+                _laneCount = id + 1;
+        }
+        while (isAlive()) {
+            Job j = poll(lane);
+            if (j == null)
+                j = steal(id, false);
+            if (j != null)
+                return j;
+            if (lane.idle.compareAndSet(false, true))
+                _idle.offer(lane);
+            // check again, blocking on the lane locks this time,
+            // so we don't miss anything added before we went idle
+            j = poll(lane);
+            if (j == null)
+                j = steal(id, true);
+            if (j != null) {
+                lane.idle.set(false);
+                return j;
+            }
+            LockSupport.parkNanos(this, IDLE_PARK);
+        }
+        if (_log.shouldLog(Log.WARN))
+            _log.warn("No longer alive, returning null");
+        return null;
+    }
+
+    /**
+     *  From the given lane, skipping removed jobs.
+     */
+    private Job poll(Lane lane) {
+        Job j;
+        while ((j = lane.poll()) != null) {
+            if (_queued.remove(j, READY)) {
+                _readyCount.decrementAndGet();
+                return j;
+            }
+        }
+        return null;
+    }
+
+    /**
+     *  @param block if false, skip lanes that are busy
+     */
+    private Job steal(int id, boolean block) {
+        int count = _laneCount;
+        for (int i = 1; i < count; i++) {
+            Lane victim = _lanes[(id + i) % count];
+            Job j;
+            while ((j = victim.steal(block)) != null) {
+                if (_queued.remove(j, READY)) {
+                    _readyCount.decrementAndGet();
+                    _context.statManager().addRateData("jobQueue.stolenJobs", 1);
+                    return j;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int getReadyCount() {
+        return _readyCount.get();
+    }
+
+    @Override
+    public long getMaxLag() {
+        long oldest = Long.MAX_VALUE;
+        int count = Math.max(1, _laneCount);
+        for (int i = 0; i < count; i++) {
+            long start = _lanes[i].oldestStart();
+            if (start < oldest)
+                oldest = start;
+        }
+        if (oldest == Long.MAX_VALUE)
+            return 0;
+        return _context.clock().now() - oldest;
+    }
+
+    /**
+     * @deprecated unused
+     */
+    @Deprecated
+    @Override
+    public boolean isJobActive(Job job) {
+        return _queued.containsKey(job) || super.isJobActive(job);
+    }
+
+    /**
+     *  Unless configured, one runner per core.
+     */
+    @Override
+    public void allowParallelOperation() {
+        super.allowParallelOperation();
+        if (_context.getProperty(PROP_MAX_RUNNERS) == null)
+            runQueue(Math.min(MAX_LANES, Math.max(2, SystemVersion.getCores())));
+    }
+
+    @Override
+    void startPumper() {
+        _lastTick = (_context.clock().now() / TICK) - 1;
+        I2PThread pumperThread = new I2PThread(new WheelPumper(), "Job Queue Wheel", true);
+        pumperThread.start();
+    }
+
+    /** @deprecated do you really want to do this? */
+    @Deprecated
+    @Override
+    public void restart() {
+        super.restart();
+        clear();
+    }
+
+    @Override
+    void shutdown() {
+        super.shutdown();
+        clear();
+        for (int i = 0; i < MAX_LANES; i++) {
+            Thread t = _lanes[i].thread;
+            if (t != null)
+                LockSupport.unpark(t);
+        }
+    }
+
+    private void clear() {
+        _queued.clear();
+        for (int i = 0; i < MAX_LANES; i++) {
+            _lanes[i].clear();
+        }
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            Slot slot = _wheel[i];
+            synchronized (slot) {
+                slot.jobs.clear();
+            }
+        }
+        _readyCount.set(0);
+        _timedCount.set(0);
+    }
+
+    /**
+     *  Dump the current state.
+     *  For the router console jobs status page.
+     */
+    @Override
+    public int getJobs(Collection<Job> readyJobs, Collection<Job> timedJobs,
+                       Collection<Job> activeJobs, Collection<Job> justFinishedJobs) {
+        int rv = super.getJobs(readyJobs, timedJobs, activeJobs, justFinishedJobs);
+        for (Map.Entry<Job, Integer> e : _queued.entrySet()) {
+            if (READY.equals(e.getValue()))
+                readyJobs.add(e.getKey());
+            else
+                timedJobs.add(e.getKey());
+        }
+        return rv;
+    }
+
+    /**
+     *  The ready jobs for one runner.
+     *  The owner takes with poll(), others with steal(),
+     *  both from the head.
+     */
+    private class Lane {
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final List<ArrayDeque<Job>> _queues;
+        private int _takes;
+        final AtomicBoolean idle = new AtomicBoolean();
+        volatile Thread thread;
+
+        public Lane() {
+            _queues = new ArrayList<ArrayDeque<Job>>(PRIORITIES);
+            for (int i = 0; i < PRIORITIES; i++) {
+                _queues.add(new ArrayDeque<Job>(16));
+            }
+        }
+
+        void push(Job job, int priority) {
+            _lock.lock();
+            try {
+                _queues.get(priority).offer(job);
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        Job poll() {
+            _lock.lock();
+            try {
+                return locked_poll();
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        /**
+         *  @param block if false, return null if the lock is held
+         */
+        Job steal(boolean block) {
+            if (block)
+                _lock.lock();
+            else if (!_lock.tryLock())
+                return null;
+            try {
+                return locked_poll();
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        private Job locked_poll() {
+            if (((++_takes) & AGING_MASK) == 0) {
+                for (int i = PRIORITIES - 1; i >= 0; i--) {
+                    Job j = _queues.get(i).poll();
+                    if (j != null)
+                        return j;
+                }
+            } else {
+                for (int i = 0; i < PRIORITIES; i++) {
+                    Job j = _queues.get(i).poll();
+                    if (j != null)
+                        return j;
+                }
+            }
+            return null;
+        }
+
+        /**
+         *  Earliest start time of the heads, discarding removed jobs.
+         *  @return Long.MAX_VALUE if empty
+         */
+        long oldestStart() {
+            long rv = Long.MAX_VALUE;
+            _lock.lock();
+            try {
+                for (int i = 0; i < PRIORITIES; i++) {
+                    ArrayDeque<Job> q = _queues.get(i);
+                    Job j;
+                    while ((j = q.peek()) != null && !READY.equals(_queued.get(j))) {
+                        q.poll();
+                    }
+                    if (j != null) {
+                        long start = j.getTiming().getStartAfter();
+                        if (start < rv)
+                            rv = start;
+                    }
+                }
+            } finally {
+                _lock.unlock();
+            }
+            return rv;
+        }
+
+        void clear() {
+            _lock.lock();
+            try {
+                for (int i = 0; i < PRIORITIES; i++) {
+                    _queues.get(i).clear();
+                }
+            } finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    /** One wheel slot, lock on the slot itself */
+    private static class Slot {
+        final Set<Job> jobs = new HashSet<Job>(4);
+    }
+
+    /**
+     *  Sweep each slot after its tick has gone by, making its
+     *  jobs ready or moving them to a later slot.
+     */
+    private class WheelPumper implements Runnable {
+        private final List<Job> _swept = new ArrayList<Job>(16);
+
+        public void run() {
+            try {
+                while (isAlive()) {
+                    long now = _context.clock().now();
+                    long nowTick = now / TICK;
+                    long from = _lastTick + 1;
+                    long to = nowTick - 1;
+                    if (from > to + 1) {
+                        // clock went backwards, sweep the whole wheel to re-slot everything
+                        from = to - WHEEL_SIZE + 1;
+                    } else if (to - from >= WHEEL_SIZE) {
+                        // way behind, one revolution covers every slot
+                        from = to - WHEEL_SIZE + 1;
+                    }
+                    for (long t = from; t <= to; t++) {
+                        sweep(t, now);
+                    }
+                    long sleep = ((nowTick + 1) * TICK) - _context.clock().now();
+                    if (sleep > 0) {
+                        try {
+                            Thread.sleep(sleep);
+                        } catch (InterruptedException ie) {}
+                    }
+                }
+            } catch (Throwable t) {
+                if (_log.shouldLog(Log.ERROR))
+                    _log.error("wtf, wheel pumper killed", t);
+            }
+        }
+
+        private void sweep(long tick, long now) {
+            int idx = (int) (tick & (WHEEL_SIZE - 1));
+            Slot slot = _wheel[idx];
+            synchronized (slot) {
+                _lastTick = tick;
+                if (slot.jobs.isEmpty())
+                    return;
+                _swept.addAll(slot.jobs);
+                slot.jobs.clear();
+            }
+            Integer state = Integer.valueOf(idx);
+            for (int i = 0; i < _swept.size(); i++) {
+                Job j = _swept.get(i);
+                long start = j.getTiming().getStartAfter();
+                if (start <= now) {
+                    if (_queued.replace(j, state, READY)) {
+                        _timedCount.decrementAndGet();
+                        enqueueReady(j);
+                    }
+                } else {
+                    reschedule(j, state, start);
+                }
+            }
+            _swept.clear();
+        }
+
+        /**
+         *  A later revolution, or the start time was changed without requeueing.
+         */
+        private void reschedule(Job job, Integer state, long start) {
+            long tick = start / TICK;
+            while (true) {
+                long t = Math.max(tick, _lastTick + 1);
+                int idx = (int) (t & (WHEEL_SIZE - 1));
+                Slot slot = _wheel[idx];
+                synchronized (slot) {
+                    if (t <= _lastTick)
+                        continue;
+                    if (_queued.replace(job, state, Integer.valueOf(idx)))
+                        slot.jobs.add(job);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     *  Shift all the queued jobs.
+     *  The wheel pumper will re-slot them as it goes.
+     */
+    private class OffsetListener implements Clock.ClockUpdateListener {
+        public void offsetChanged(long delta) {
+            for (Job j : _queued.keySet()) {
+                j.getTiming().offsetChanged(delta);
+            }
+        }
+    }
+}
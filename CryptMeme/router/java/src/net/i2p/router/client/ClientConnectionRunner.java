@@ -147,7 +147,8 @@ class ClientConnectionRunner {
             t.setName("I2CP Writer " + __id.incrementAndGet());
             t.setDaemon(true);
             t.start();
-            _out = new BufferedOutputStream(_socket.getOutputStream());
+            // big enough for a batch from the writer
+            _out = new BufferedOutputStream(_socket.getOutputStream(), BUF_SIZE);
             _reader.startReading();
             // TODO need a cleaner for unclaimed items in _messages, but we have no timestamps...
     }
@@ -606,33 +607,43 @@ class ClientConnectionRunner {
      *  Not thread-safe. Blocking. Only used for external sockets.
      *  ClientWriterRunner thread is the only caller.
      *  Others must use doSend().
+     *
+     *  @param flush if false, the message may stay in the buffer until the next flush,
+     *               so the writer can send a batch with one write (since 0.9.21)
+     *  @return success, if false we are stopped (since 0.9.21)
      */
-    void writeMessage(I2CPMessage msg) {
+    boolean writeMessage(I2CPMessage msg, boolean flush) {
         //long before = _context.clock().now();
         try {
             // We don't need synchronization here, ClientWriterRunner is the only writer.
             //synchronized (_out) {
                 msg.writeMessage(_out);
-                _out.flush();
+                if (flush)
+                    _out.flush();
             //}
             //if (_log.shouldLog(Log.DEBUG))
             //    _log.debug("after writeMessage("+ msg.getClass().getName() + "): " 
             //               + (_context.clock().now()-before) + "ms");
+            return true;
         } catch (I2CPMessageException ime) {
             _log.error("Error sending I2CP message to client", ime);
             stopRunning();
+            return false;
         } catch (EOFException eofe) {
             // only warn if client went away
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Error sending I2CP message - client went away", eofe);
             stopRunning();
+            return false;
         } catch (IOException ioe) {
             if (_log.shouldLog(Log.ERROR)) 
                 _log.error("IO Error sending I2CP message to client", ioe);
             stopRunning();
+            return false;
         } catch (Throwable t) {
             _log.log(Log.CRIT, "Unhandled exception sending I2CP message to client", t);
             stopRunning();
+            return false;
         //} finally {
         //    long after = _context.clock().now();
         //    long lag = after - before;
@@ -187,12 +187,21 @@ class ClientManager {
         LinkedBlockingQueue<I2CPMessage> in = new LinkedBlockingQueue<I2CPMessage>(INTERNAL_QUEUE_SIZE);
         LinkedBlockingQueue<I2CPMessage> out = new LinkedBlockingQueue<I2CPMessage>(INTERNAL_QUEUE_SIZE);
         I2CPMessageQueue myQueue = new I2CPMessageQueueImpl(in, out);
-        I2CPMessageQueue hisQueue = new I2CPMessageQueueImpl(out, in);
-        ClientConnectionRunner runner = new QueuedClientConnectionRunner(_ctx, this, myQueue);
+        QueuedClientConnectionRunner runner = createQueuedRunner(myQueue);
+        // his side sends to local dests directly to the runner
+        I2CPMessageQueue hisQueue = new I2CPMessageQueueImpl(out, in, runner);
         registerConnection(runner);
         return hisQueue;
     }
 
+    /**
+     *  Allow override for testing
+     *  @since 0.9.21
+     */
+    protected QueuedClientConnectionRunner createQueuedRunner(I2CPMessageQueue queue) {
+        return new QueuedClientConnectionRunner(_ctx, this, queue);
+    }
+
     public synchronized boolean isAlive() {
         boolean listening = true;
         if (!_listeners.isEmpty()) {
@@ -1,5 +1,7 @@
 package net.i2p.router.client;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -16,20 +18,29 @@ import net.i2p.util.Log;
  * happen)
  *
  * For external I2CP connections only.
+ *
+ * As of 0.9.21, all messages waiting in the queue are written
+ * before a single flush, so a burst of send acks or received
+ * messages goes out in one socket write.
  */
 class ClientWriterRunner implements Runnable {
     private final BlockingQueue<I2CPMessage> _messagesToWrite;
     private final ClientConnectionRunner _runner;
+    private final RouterContext _context;
     //private final Log _log;
     //private final long _id;
     //private static long __id = 0;
 
     private static final int QUEUE_SIZE = 256;
+    /** max messages written per flush */
+    private static final int MAX_BATCH = 32;
     
     public ClientWriterRunner(RouterContext context, ClientConnectionRunner runner) {
         //_log = context.logManager().getLog(ClientWriterRunner.class);
+        _context = context;
         _messagesToWrite = new LinkedBlockingQueue<I2CPMessage>(QUEUE_SIZE);
         _runner = runner;
+        context.statManager().createRateStat("client.writeBatch", "How many I2CP messages were written to a client per flush", "ClientMessages", new long[] { 60*1000, 10*60*1000, 60*60*1000 });
         //_id = ++__id;
     }
 
@@ -58,16 +69,32 @@ class ClientWriterRunner implements Runnable {
     }
 
     public void run() {
-        I2CPMessage msg;
+        List<I2CPMessage> batch = new ArrayList<I2CPMessage>(MAX_BATCH);
+        int unflushed = 0;
         while (!_runner.getIsDead()) {
             try {
-                msg = _messagesToWrite.take();
+                batch.add(_messagesToWrite.take());
             } catch (InterruptedException ie) {
                 continue;
             }
-            if (msg.getType() == PoisonI2CPMessage.MESSAGE_TYPE)
-                break;
-            _runner.writeMessage(msg);
+            _messagesToWrite.drainTo(batch, MAX_BATCH - 1);
+            int sz = batch.size();
+            for (int i = 0; i < sz; i++) {
+                I2CPMessage msg = batch.get(i);
+                if (msg.getType() == PoisonI2CPMessage.MESSAGE_TYPE)
+                    return;
+                unflushed++;
+                // flush after the last one, unless more arrived in the meantime
+                boolean flush = i == sz - 1 &&
+                                (unflushed >= MAX_BATCH || _messagesToWrite.isEmpty());
+                if (!_runner.writeMessage(msg, flush))
+                    return;
+                if (flush) {
+                    _context.statManager().addRateData("client.writeBatch", unflushed);
+                    unflushed = 0;
+                }
+            }
+            batch.clear();
         }
     }
 }
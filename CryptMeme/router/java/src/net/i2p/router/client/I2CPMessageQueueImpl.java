@@ -3,6 +3,7 @@ package net.i2p.router.client;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import net.i2p.data.Destination;
 import net.i2p.data.i2cp.I2CPMessage;
 import net.i2p.internal.I2CPMessageQueue;
 
@@ -19,10 +20,28 @@ import net.i2p.internal.I2CPMessageQueue;
 class I2CPMessageQueueImpl extends I2CPMessageQueue {
     private final BlockingQueue<I2CPMessage> _in;
     private final BlockingQueue<I2CPMessage> _out;
+    private final QueuedClientConnectionRunner _runner;
 
+    /**
+     *  The router's side
+     */
     public I2CPMessageQueueImpl(BlockingQueue<I2CPMessage> in, BlockingQueue<I2CPMessage> out) {
+        this(in, out, null);
+    }
+
+    /**
+     *  The client's side.
+     *  Sends to local destinations are passed directly to the runner,
+     *  see QueuedClientConnectionRunner.receiveDirect().
+     *
+     *  @param runner may be null
+     *  @since 0.9.21
+     */
+    public I2CPMessageQueueImpl(BlockingQueue<I2CPMessage> in, BlockingQueue<I2CPMessage> out,
+                                QueuedClientConnectionRunner runner) {
         _in = in;
         _out = out;
+        _runner = runner;
     }
 
     /**
@@ -30,6 +49,8 @@ class I2CPMessageQueueImpl extends I2CPMessageQueue {
      *  @return success (false if no space available)
      */
     public boolean offer(I2CPMessage msg) {
+        if (_runner != null && _runner.receiveDirect(msg))
+            return true;
         return _out.offer(msg);
     }
 
@@ -40,6 +61,8 @@ class I2CPMessageQueueImpl extends I2CPMessageQueue {
      *  @since 0.9.3
      */
     public boolean offer(I2CPMessage msg, long timeout) throws InterruptedException {
+        if (_runner != null && _runner.receiveDirect(msg))
+            return true;
         return _out.offer(msg, timeout, TimeUnit.MILLISECONDS);
     }
 
@@ -55,6 +78,8 @@ class I2CPMessageQueueImpl extends I2CPMessageQueue {
      *  Send a message, blocking until space is available
      */
     public void put(I2CPMessage msg) throws InterruptedException {
+        if (_runner != null && _runner.receiveDirect(msg))
+            return;
         _out.put(msg);
     }
 
@@ -65,4 +90,12 @@ class I2CPMessageQueueImpl extends I2CPMessageQueue {
     public I2CPMessage take() throws InterruptedException {
         return _in.take();
     }
+
+    /**
+     *  @since 0.9.21
+     */
+    @Override
+    public boolean isLocal(Destination dest) {
+        return _runner != null && _runner.isLocalDirect(dest);
+    }
 }
@@ -1,8 +1,12 @@
 package net.i2p.router.client;
 
 import net.i2p.CoreVersion;
+import net.i2p.data.Destination;
 import net.i2p.data.i2cp.I2CPMessage;
 import net.i2p.data.i2cp.I2CPMessageException;
+import net.i2p.data.i2cp.I2CPMessageReader;
+import net.i2p.data.i2cp.SendMessageExpiresMessage;
+import net.i2p.data.i2cp.SendMessageMessage;
 import net.i2p.internal.I2CPMessageQueue;
 import net.i2p.internal.QueuedI2CPMessageReader;
 import net.i2p.router.RouterContext;
@@ -11,11 +15,24 @@ import net.i2p.router.RouterContext;
  * Zero-copy in-JVM.
  * While super() starts both a reader and a writer thread, we only need a reader thread here.
  *
+ * As of 0.9.21, sends to local destinations skip the reader thread,
+ * see receiveDirect().
+ *
  * @author zzz
  * @since 0.8.3
  */
 class QueuedClientConnectionRunner extends ClientConnectionRunner {
     private final I2CPMessageQueue queue;
+    private final boolean _direct;
+    private volatile I2CPMessageReader.I2CPMessageEventListener _listener;
+
+    /**
+     *  Router property, default true.
+     *  If false, all messages from in-JVM clients go through the queue and reader thread,
+     *  and the clients compress messages to local destinations.
+     *  @since 0.9.21
+     */
+    public static final String PROP_DIRECT = "i2cp.internalDirect";
     
     /**
      * Create a new runner with the given queues
@@ -24,6 +41,7 @@ class QueuedClientConnectionRunner extends ClientConnectionRunner {
     public QueuedClientConnectionRunner(RouterContext context, ClientManager manager, I2CPMessageQueue queue) {
         super(context, manager, null);
         this.queue = queue;
+        _direct = context.getBooleanPropertyDefaultTrue(PROP_DIRECT);
     }
     
 
@@ -33,9 +51,54 @@ class QueuedClientConnectionRunner extends ClientConnectionRunner {
      */
     @Override
     public synchronized void startRunning() {
-        _reader = new QueuedI2CPMessageReader(this.queue, new ClientMessageEventListener(_context, this, false));
+        _listener = createListener();
+        _reader = new QueuedI2CPMessageReader(this.queue, _listener);
         _reader.startReading();
     }
+
+    /**
+     *  No auth in-JVM
+     *  @since 0.9.21
+     */
+    @Override
+    protected I2CPMessageReader.I2CPMessageEventListener createListener() {
+        return new ClientMessageEventListener(_context, this, false);
+    }
+
+    /**
+     *  In-JVM fast path, called in the client's thread instead of queueing the message.
+     *
+     *  A send to a local destination is distributed right here, as local delivery
+     *  only adds to the target's queue and never blocks.
+     *  This saves the hand-off to our reader thread and back.
+     *  Everything else, and all messages before the session is up, are queued as usual.
+     *
+     *  @return true if handled, false to queue it
+     *  @since 0.9.21
+     */
+    boolean receiveDirect(I2CPMessage msg) {
+        if (!_direct)
+            return false;
+        int type = msg.getType();
+        if (type != SendMessageMessage.MESSAGE_TYPE &&
+            type != SendMessageExpiresMessage.MESSAGE_TYPE)
+            return false;
+        I2CPMessageReader.I2CPMessageEventListener lsnr = _listener;
+        if (lsnr == null || getConfig() == null || isDead())
+            return false;
+        if (!_manager.isLocal(((SendMessageMessage) msg).getDestination()))
+            return false;
+        lsnr.messageReceived(_reader, msg);
+        return true;
+    }
+
+    /**
+     *  @return true if the fast path is enabled and dest is a client of this router
+     *  @since 0.9.21
+     */
+    boolean isLocalDirect(Destination dest) {
+        return _direct && _manager.isLocal(dest);
+    }
     
     /**
      * Calls super() to stop the reader, and sends a poison message to the client.
@@ -53,7 +116,7 @@ class QueuedClientConnectionRunner extends ClientConnectionRunner {
      *  Since we have no writer thread this shouldn't happen.
      */
     @Override
-    void writeMessage(I2CPMessage msg) {
+    boolean writeMessage(I2CPMessage msg, boolean flush) {
         throw new RuntimeException("huh?");
     }
     
@@ -0,0 +1,316 @@
+package net.i2p.router.crypto;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.i2p.data.SessionTag;
+
+/**
+ *  Map of inbound session tags to their tag sets, for the TransientSessionKeyManager.
+ *
+ *  The tags are kept as longs in open-addressed tables, not as
+ *  SessionTag objects in a HashMap, about 40 bytes a tag instead of 150.
+ *  The tags are random, so their own bits pick the segment and the slot.
+ *
+ *  Lookup-and-remove is lock-free: the value slot is CAS'd to a tombstone.
+ *  Slots are never reused in a table, so a key can't change under a reader.
+ *  Adds take the segment lock. Tombstones are cleaned out when a segment
+ *  is rebuilt, either when it fills up or in a sweep(), which also
+ *  removes whatever the Filter says, e.g. expired tags, in one pass.
+ *
+ *  @since 0.9.21
+ */
+class SessionTagIndex<V> {
+
+    /** power of 2 */
+    private static final int SEGMENTS = 64;
+    private static final int SEGMENT_SHIFT = 64 - 6;
+    /** power of 2 */
+    private static final int MIN_CAPACITY = 16;
+    /** per slot: 4 longs plus a reference */
+    private static final int SLOT_BYTES = 4*8 + 8;
+
+    /** value states other than the values themselves, null is empty */
+    private static final Object TOMBSTONE = new Object();
+    /** the table is being rebuilt, get the new one */
+    private static final Object MOVED = new Object();
+
+    private final Segment<V>[] _segments;
+
+    /**
+     *  What to remove in a sweep()
+     */
+    public interface Filter<V> {
+        public boolean shouldRemove(V value);
+    }
+
+    public SessionTagIndex() {
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Segment<V>[] segments = new Segment[SEGMENTS];
+        _segments = segments;
+        for (int i = 0; i < SEGMENTS; i++) {
+            _segments[i] = new Segment<V>();
+        }
+    }
+
+    /**
+     *  Add or replace.
+     *
+     *  @return the previous value or null
+     */
+    public V put(SessionTag tag, V value) {
+        byte[] d = tag.getData();
+        long k0 = toLong(d, 0);
+        return segment(k0).put(k0, toLong(d, 8), toLong(d, 16), toLong(d, 24), value);
+    }
+
+    /**
+     *  Remove and return the value, lock-free
+     *
+     *  @return the value or null if not found
+     */
+    public V consume(SessionTag tag) {
+        byte[] d = tag.getData();
+        long k0 = toLong(d, 0);
+        return segment(k0).consume(k0, toLong(d, 8), toLong(d, 16), toLong(d, 24));
+    }
+
+    /**
+     *  Remove everything the filter says to, one segment at a time.
+     *  The filter may be called more than once for a value.
+     *
+     *  @return how many tags were removed
+     */
+    public int sweep(Filter<V> filter) {
+        int rv = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            rv += _segments[i].sweep(filter);
+        }
+        return rv;
+    }
+
+    public void clear() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            _segments[i].clear();
+        }
+    }
+
+    /**
+     *  @return number of tags
+     */
+    public int size() {
+        int rv = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            rv += _segments[i].live.get();
+        }
+        return rv;
+    }
+
+    /**
+     *  @return approximate bytes used by the tables, not including the values
+     */
+    public long memoryUsed() {
+        long rv = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            rv += ((long) _segments[i].table.capacity()) * SLOT_BYTES;
+        }
+        return rv;
+    }
+
+    private Segment<V> segment(long k0) {
+        return _segments[(int) (k0 >>> SEGMENT_SHIFT)];
+    }
+
+    private static long toLong(byte[] d, int off) {
+        return ((d[off] & 0xffL) << 56) |
+               ((d[off + 1] & 0xffL) << 48) |
+               ((d[off + 2] & 0xffL) << 40) |
+               ((d[off + 3] & 0xffL) << 32) |
+               ((d[off + 4] & 0xffL) << 24) |
+               ((d[off + 5] & 0xffL) << 16) |
+               ((d[off + 6] & 0xffL) << 8) |
+                (d[off + 7] & 0xffL);
+    }
+
+    /**
+     *  One open-addressed table with linear probing.
+     *  Keys are written before the value is set,
+     *  and never changed after that.
+     */
+    private static class Table {
+        final long[] keys;
+        final AtomicReferenceArray<Object> vals;
+        final int mask;
+        /** live and tombstoned slots, LOCKING: the segment */
+        int used;
+
+        public Table(int capacity) {
+            keys = new long[capacity * 4];
+            vals = new AtomicReferenceArray<Object>(capacity);
+            mask = capacity - 1;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        /** @return the slot or -1, only for the segment lock holder */
+        int find(long k0, long k1, long k2, long k3) {
+            int i = (int) k0 & mask;
+            for (int n = 0; n <= mask; n++) {
+                Object v = vals.get(i);
+                if (v == null)
+                    return -1;
+                if (v != TOMBSTONE && matches(i, k0, k1, k2, k3))
+                    return i;
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        boolean matches(int i, long k0, long k1, long k2, long k3) {
+            int b = i << 2;
+            return keys[b] == k0 && keys[b + 1] == k1 && keys[b + 2] == k2 && keys[b + 3] == k3;
+        }
+
+        /**
+         *  Only for the segment lock holder, and there must be room
+         */
+        void add(long k0, long k1, long k2, long k3, Object value) {
+            int i = (int) k0 & mask;
+            while (vals.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            int b = i << 2;
+            keys[b] = k0;
+            keys[b + 1] = k1;
+            keys[b + 2] = k2;
+            keys[b + 3] = k3;
+            // volatile write publishes the keys
+            vals.set(i, value);
+            used++;
+        }
+    }
+
+    private static class Segment<V> {
+        volatile Table table;
+        /** live entries */
+        final AtomicInteger live;
+
+        public Segment() {
+            table = new Table(MIN_CAPACITY);
+            live = new AtomicInteger();
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(long k0, long k1, long k2, long k3, V value) {
+            Table t = table;
+            int i = t.find(k0, k1, k2, k3);
+            if (i >= 0) {
+                Object old = t.vals.get(i);
+                if (old != TOMBSTONE && t.vals.compareAndSet(i, old, value))
+                    return (V) old;
+                // consumed just now, add it again below
+            }
+            // keep the load under 3/4 including tombstones
+            if ((t.used + 1) * 4 > t.capacity() * 3) {
+                rebuild(null);
+                t = table;
+            }
+            t.add(k0, k1, k2, k3, value);
+            live.incrementAndGet();
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        V consume(long k0, long k1, long k2, long k3) {
+            while (true) {
+                Table t = table;
+                int mask = t.mask;
+                int i = (int) k0 & mask;
+                boolean moved = false;
+                for (int n = 0; n <= mask; n++) {
+                    Object v = t.vals.get(i);
+                    if (v == null)
+                        return null;
+                    if (v == MOVED) {
+                        moved = true;
+                        break;
+                    }
+                    if (v != TOMBSTONE && t.matches(i, k0, k1, k2, k3)) {
+                        if (t.vals.compareAndSet(i, v, TOMBSTONE)) {
+                            live.decrementAndGet();
+                            return (V) v;
+                        }
+                        // someone else got it first, or it's being moved
+                        if (t.vals.get(i) != MOVED)
+                            return null;
+                        moved = true;
+                        break;
+                    }
+                    i = (i + 1) & mask;
+                }
+                if (!moved)
+                    return null;
+                // wait for the rebuild to finish, then try the new table
+                synchronized (this) {}
+            }
+        }
+
+        synchronized int sweep(Filter<V> filter) {
+            return rebuild(filter);
+        }
+
+        synchronized void clear() {
+            Table t = table;
+            int removed = 0;
+            for (int i = 0; i <= t.mask; i++) {
+                Object v = t.vals.getAndSet(i, MOVED);
+                if (v != null && v != TOMBSTONE)
+                    removed++;
+            }
+            table = new Table(MIN_CAPACITY);
+            live.addAndGet(0 - removed);
+        }
+
+        /**
+         *  Move the live entries not removed by the filter to a new table
+         *  sized for them. Caller must synch.
+         *
+         *  @param filter may be null
+         *  @return how many were removed by the filter
+         */
+        @SuppressWarnings("unchecked")
+        private int rebuild(Filter<V> filter) {
+            Table old = table;
+            // count what's left first, values may only go away meanwhile
+            int count = 0;
+            for (int i = 0; i <= old.mask; i++) {
+                Object v = old.vals.get(i);
+                if (v != null && v != TOMBSTONE && (filter == null || !filter.shouldRemove((V) v)))
+                    count++;
+            }
+            int capacity = MIN_CAPACITY;
+            while (capacity < count * 2)
+                capacity <<= 1;
+            Table t = new Table(capacity);
+            int removed = 0;
+            for (int i = 0; i <= old.mask; i++) {
+                // consume() will see this and wait for us
+                Object v = old.vals.getAndSet(i, MOVED);
+                if (v == null || v == TOMBSTONE)
+                    continue;
+                if (filter != null && filter.shouldRemove((V) v)) {
+                    removed++;
+                    continue;
+                }
+                int b = i << 2;
+                t.add(old.keys[b], old.keys[b + 1], old.keys[b + 2], old.keys[b + 3], v);
+            }
+            table = t;
+            if (removed > 0)
+                live.addAndGet(0 - removed);
+            return removed;
+        }
+    }
+}
@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
@@ -22,6 +23,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.I2PAppContext;
@@ -80,7 +82,9 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     /** Map allowing us to go from the targeted PublicKey to the OutboundSession used */
     private final Map<PublicKey, OutboundSession> _outboundSessions;
     /** Map allowing us to go from a SessionTag to the containing TagSet */
-    private final Map<SessionTag, TagSet> _inboundTagSets;
+    private final SessionTagIndex<TagSet> _inboundTagSets;
+    /** All the inbound TagSets with tags remaining, as of 0.9.21 */
+    private final Set<TagSet> _inboundSets;
     protected final I2PAppContext _context;
     private volatile boolean _alive;
     /** for debugging */
@@ -179,9 +183,11 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         _log = context.logManager().getLog(TransientSessionKeyManager.class);
         _context = context;
         _outboundSessions = new HashMap<PublicKey, OutboundSession>(64);
-        _inboundTagSets = new HashMap<SessionTag, TagSet>(128);
+        _inboundTagSets = new SessionTagIndex<TagSet>();
+        _inboundSets = Collections.newSetFromMap(new ConcurrentHashMap<TagSet, Boolean>(64));
         context.statManager().createRateStat("crypto.sessionTagsExpired", "How many tags/sessions are expired?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
         context.statManager().createRateStat("crypto.sessionTagsRemaining", "How many tags/sessions are remaining after a cleanup?", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
+        context.statManager().createRateStat("crypto.sessionTagsMemory", "Memory used by the inbound session tag index after a cleanup (bytes)", "Encryption", new long[] { 10*60*1000, 60*60*1000, 3*60*60*1000 });
          _alive = true;
         _context.simpleTimer2().addEvent(new CleanupEvent(), 60*1000);
     }
@@ -189,9 +195,8 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     @Override
     public void shutdown() {
          _alive = false;
-        synchronized (_inboundTagSets) {
-            _inboundTagSets.clear();
-        }
+        _inboundTagSets.clear();
+        _inboundSets.clear();
         synchronized (_outboundSessions) {
             _outboundSessions.clear();
         }
@@ -212,9 +217,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
 
     /** TagSet - used only by HTML */
     private Set<TagSet> getInboundTagSets() {
-        synchronized (_inboundTagSets) {
-            return new HashSet<TagSet>(_inboundTagSets.values());
-        }
+        return new HashSet<TagSet>(_inboundSets);
     }
 
     /** OutboundSession - used only by HTML */
@@ -517,7 +520,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      */
     @Override
     public void tagsReceived(SessionKey key, Set<SessionTag> sessionTags, long expire) {
-        TagSet tagSet = new TagSet(sessionTags, key, _context.clock().now() + expire,
+        TagSet tagSet = new TagSet(sessionTags.size(), key, _context.clock().now() + expire,
                                    _rcvTagSetID.incrementAndGet());
         if (_log.shouldLog(Log.INFO)) {
             _log.info("Received " + tagSet);
@@ -526,31 +529,24 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         }
         TagSet old = null;
         SessionTag dupTag = null;
-        synchronized (_inboundTagSets) {
-            for (SessionTag tag : sessionTags) {
-                old = _inboundTagSets.put(tag, tagSet);
-                if (old != null) {
-                    if (!old.getAssociatedKey().equals(tagSet.getAssociatedKey())) {
-                        _inboundTagSets.remove(tag);
-                        dupTag = tag;
-                        break;
-                    } else {
-                        old = null; // ignore the dup
-                    }
+        _inboundSets.add(tagSet);
+        for (SessionTag tag : sessionTags) {
+            old = _inboundTagSets.put(tag, tagSet);
+            if (old != null) {
+                if (!old.getAssociatedKey().equals(tagSet.getAssociatedKey())) {
+                    dupTag = tag;
+                    break;
+                } else {
+                    old = null; // ignore the dup
                 }
             }
         }
 
         if (old != null) {
-            // drop both old and tagSet tags
-            synchronized (_inboundTagSets) {
-                for (SessionTag tag : old.getTags()) {
-                    _inboundTagSets.remove(tag);
-                }
-                for (SessionTag tag : sessionTags) {
-                    _inboundTagSets.remove(tag);
-                }
-            }
+            // drop both old and tagSet tags,
+            // the tags will be removed from the index in the next cleanup
+            drop(old);
+            drop(tagSet);
 
             if (_log.shouldLog(Log.WARN)) {
                 _log.warn("Multiple tags matching!  tagSet: " + tagSet + " and old tagSet: " + old + " tag: " + dupTag + "/" + dupTag);
@@ -586,35 +582,30 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         int toRemove = overage * 2;
         _log.logAlways(Log.WARN, "TOO MANY SESSION TAGS! Starting cleanup, overage = " + overage);
         List<TagSet> removed = new ArrayList<TagSet>(toRemove);
-        synchronized (_inboundTagSets) {
-            for (TagSet set : _inboundTagSets.values()) {
-                int size = set.getTags().size();
-                if (size > 1000)
-                    absurd++;
-                if (size > 100)
-                    large++;
-                if (set.getDate() - now < 3*60*1000) {
-                    // expiration is 12 minutes, so these are older than 9 minutes
-                    old++;
-                    removed.add(set);
-                    continue;
-                } else if (set.getDate() - now > 8*60*1000) {
-                    // expiration is 12 minutes, so these were created in last 4 minutes
-                    recent++;
-                    continue;
-                }
-
-                if (removed.size() < toRemove)
-                    removed.add(set);
-            }
-            for (int i = 0; i < removed.size(); i++) {
-                TagSet cur = removed.get(i);
-                for (SessionTag tag : cur.getTags()) {
-                    _inboundTagSets.remove(tag);
-                    tags++;
-                }
+        for (TagSet set : _inboundSets) {
+            int size = set.size();
+            if (size > 1000)
+                absurd++;
+            if (size > 100)
+                large++;
+            if (set.getDate() - now < 3*60*1000) {
+                // expiration is 12 minutes, so these are older than 9 minutes
+                old++;
+                removed.add(set);
+                continue;
+            } else if (set.getDate() - now > 8*60*1000) {
+                // expiration is 12 minutes, so these were created in last 4 minutes
+                recent++;
+                continue;
             }
+
+            if (removed.size() < toRemove)
+                removed.add(set);
+        }
+        for (int i = 0; i < removed.size(); i++) {
+            drop(removed.get(i));
         }
+        tags = _inboundTagSets.sweep(DROPPED);
         _log.logAlways(Log.WARN, "TOO MANY SESSION TAGS!  removed " + removed.size() 
                      + " tag sets arbitrarily, with " + tags + " tags,"
                      + "where there are " + old + " long lasting sessions, "
@@ -633,16 +624,14 @@ public class TransientSessionKeyManager extends SessionKeyManager {
      */
     @Override
     public SessionKey consumeTag(SessionTag tag) {
-        TagSet tagSet;
-        synchronized (_inboundTagSets) {
-            tagSet = _inboundTagSets.remove(tag);
-            if (tagSet == null) {
-                if (_log.shouldLog(Log.DEBUG))
-                    _log.debug("Cannot consume IB " + tag + " as it is not known");
-                return null;
-            }
-            tagSet.consume(tag);
+        TagSet tagSet = _inboundTagSets.consume(tag);
+        if (tagSet == null || tagSet.isDropped()) {
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Cannot consume IB " + tag + " as it is not known");
+            return null;
         }
+        if (tagSet.consume() <= 0)
+            _inboundSets.remove(tagSet);
 
         SessionKey key = tagSet.getAssociatedKey();
         if (_log.shouldLog(Log.DEBUG))
@@ -674,6 +663,28 @@ public class TransientSessionKeyManager extends SessionKeyManager {
                        + "ms more", new Exception("Removed by"));
     }
 
+    /**
+     *  Remove an inbound tag set. Its tags will be ignored
+     *  until removed from the index in the next sweep.
+     *
+     *  @since 0.9.21
+     */
+    private void drop(TagSet ts) {
+        ts.setDropped();
+        _inboundSets.remove(ts);
+    }
+
+    /**
+     *  For sweeping the inbound index
+     *
+     *  @since 0.9.21
+     */
+    private static final SessionTagIndex.Filter<TagSet> DROPPED = new SessionTagIndex.Filter<TagSet>() {
+        public boolean shouldRemove(TagSet ts) {
+            return ts.isDropped();
+        }
+    };
+
     /**
      * Aggressively expire inbound tag sets and outbound sessions
      *
@@ -684,19 +695,20 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         int remaining = 0;
         long now = _context.clock().now();
 
-        synchronized (_inboundTagSets) {
-            for (Iterator<TagSet> iter = _inboundTagSets.values().iterator(); iter.hasNext();) {
-                TagSet ts = iter.next();
-                // for inbound tagsets, getDate() is the expire time
-                if (ts.getDate() <= now) {
-                    iter.remove();
-                    // bug, this counts inbound tags, not tag sets
-                    removed++;
-                }
+        for (Iterator<TagSet> iter = _inboundSets.iterator(); iter.hasNext();) {
+            TagSet ts = iter.next();
+            // for inbound tagsets, getDate() is the expire time
+            if (ts.getDate() <= now) {
+                ts.setDropped();
+                iter.remove();
             }
-            remaining = _inboundTagSets.size();
         }
+        // also cleans out the tags consumed since last time
+        // bug, this counts inbound tags, not tag sets
+        removed = _inboundTagSets.sweep(DROPPED);
+        remaining = _inboundTagSets.size();
         _context.statManager().addRateData("crypto.sessionTagsRemaining", remaining, 0);
+        _context.statManager().addRateData("crypto.sessionTagsMemory", _inboundTagSets.memoryUsed(), 0);
         if (removed > 0 && _log.shouldLog(Log.DEBUG))
             _log.debug("Expired inbound: " + removed);
 
@@ -741,7 +753,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
                        "<td><b># Sets:</b> ").append(sets.size()).append("</td></tr>" +
                        "<tr><td colspan=\"2\"><ul>");
             for (TagSet ts : sets) {
-                int size = ts.getTags().size();
+                int size = ts.size();
                 total += size;
                 buf.append("<li><b>ID: ").append(ts.getID());
                 long expires = ts.getDate() - now;
@@ -1088,7 +1100,12 @@ public class TransientSessionKeyManager extends SessionKeyManager {
     }
 
     private static class TagSet implements TagSetHandle {
+        /** outbound only, inbound tags are in the index */
         private final Set<SessionTag> _sessionTags;
+        /** inbound only */
+        private final AtomicInteger _remaining;
+        /** inbound only, tags in the index for this set are ignored */
+        private volatile boolean _dropped;
         private final SessionKey _key;
         private final long _date;
         private final int _id;
@@ -1108,6 +1125,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             _date = date;
             _id = id;
             _origSize = tags.size();
+            _remaining = null;
             //if (true) {
             //    long now = I2PAppContext.getGlobalContext().clock().now();
             //    _createdBy = new Exception("Created by: key=" + _key.toBase64() + " on " 
@@ -1116,6 +1134,23 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             //}
         }
 
+        /**
+         *  For inbound. The tags are kept in the SessionTagIndex,
+         *  this only counts them.
+         *
+         *  @param date when the TagSet will expire
+         *  @since 0.9.21
+         */
+        public TagSet(int size, SessionKey key, long date, int id) {
+            if (key == null) throw new IllegalArgumentException("Missing key");
+            _sessionTags = null;
+            _key = key;
+            _date = date;
+            _id = id;
+            _origSize = size;
+            _remaining = new AtomicInteger(size);
+        }
+
         /**
          *  For inbound: when the TagSet will expire; for outbound: creation time
          */
@@ -1132,22 +1167,51 @@ public class TransientSessionKeyManager extends SessionKeyManager {
         //    _date = when;
         //}
 
-        /** tags still available */
+        /**
+         *  Tags still available.
+         *  For outbound only.
+         */
         public Set<SessionTag> getTags() {
             return _sessionTags;
         }
 
+        /**
+         *  Number of tags still available
+         *  @since 0.9.21
+         */
+        public int size() {
+            if (_remaining != null)
+                return _remaining.get();
+            return _sessionTags.size();
+        }
+
         public SessionKey getAssociatedKey() {
             return _key;
         }
 
         /**
-         *  Caller must synch.
+         *  For inbound only.
+         *  The tag was already removed from the index.
+         *
+         *  @return number of tags remaining
+         *  @since 0.9.21
          */
-        public void consume(SessionTag tag) {
-            _sessionTags.remove(tag);
+        public int consume() {
+            return _remaining.decrementAndGet();
         }
 
+        /**
+         *  For inbound only.
+         *  @since 0.9.21
+         */
+        public void setDropped() { _dropped = true; }
+
+        /**
+         *  For inbound only.
+         *  @since 0.9.21
+         */
+        public boolean isDropped() { return _dropped; }
+
         /**
          *  For outbound only.
          *  Caller must synch.
@@ -1204,7 +1268,7 @@ public class TransientSessionKeyManager extends SessionKeyManager {
             StringBuilder buf = new StringBuilder(256);
             buf.append("TagSet #").append(_id).append(" created: ").append(new Date(_date));
             buf.append(" Session key: ").append(_key);
-            buf.append(" Size: ").append(_sessionTags.size());
+            buf.append(" Size: ").append(size());
             buf.append('/').append(_origSize);
             buf.append(" Acked? ").append(_acked);
             return buf.toString();
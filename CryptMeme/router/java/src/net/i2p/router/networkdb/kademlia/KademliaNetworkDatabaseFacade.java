@@ -267,7 +267,10 @@ public class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
         _kb = new KBucketSet<Hash>(_context, ri.getIdentity().getHash(),
                                    BUCKET_SIZE, KAD_B, new RejectTrimmer<Hash>());
         try {
-            _ds = new PersistentDataStore(_context, dbDir, this);
+            if (LogDataStore.STORE_LOG.equals(_context.getProperty(LogDataStore.PROP_STORE)))
+                _ds = new LogDataStore(_context, dbDir, this);
+            else
+                _ds = new PersistentDataStore(_context, dbDir, this);
         } catch (IOException ioe) {
             throw new RuntimeException("Unable to initialize netdb storage", ioe);
         }
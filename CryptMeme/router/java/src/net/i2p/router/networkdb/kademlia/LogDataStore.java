@@ -0,0 +1,522 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.i2p.data.DatabaseEntry;
+import net.i2p.data.DataFormatException;
+import net.i2p.data.Hash;
+import net.i2p.data.router.RouterInfo;
+import net.i2p.router.JobImpl;
+import net.i2p.router.Router;
+import net.i2p.router.RouterContext;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+import net.i2p.util.SecureDirectory;
+
+/**
+ *  An alternative to PersistentDataStore that keeps the RouterInfos
+ *  in a SegmentedLog in netDb/log/ instead of a file for each.
+ *  Enable with router.networkDatabase.store=log.
+ *
+ *  The whole log is read at startup. Writes are queued and appended
+ *  every minute, followed by an fsync, and the log is compacted when
+ *  less than half of it is live.
+ *
+ *  On each read pass, any routerInfo-*.dat files in netDb/ or its
+ *  subdirectories (from the file store, or a reseed) are read,
+ *  appended to the log, and deleted, so the first start
+ *  migrates the existing netDb. Switching back to the file store
+ *  will start with an empty netDb and reseed.
+ *
+ *  @since 0.9.21
+ */
+class LogDataStore extends TransientDataStore {
+    private final File _dbDir;
+    private final KademliaNetworkDatabaseFacade _facade;
+    /** LOCKING: itself */
+    private final SegmentedLog _store;
+    private final Writer _writer;
+    private final ReadJob _readJob;
+    private volatile boolean _initialized;
+
+    public static final String PROP_STORE = "router.networkDatabase.store";
+    public static final String STORE_LOG = "log";
+    private static final String LOG_DIR = "log";
+    private static final long SEGMENT_SIZE = 1024*1024;
+    /** don't bother compacting if smaller */
+    private static final long MIN_COMPACT_SIZE = 2 * SEGMENT_SIZE;
+    private final static int READ_DELAY = 2*60*1000;
+    private static final long WRITE_DELAY = 60*1000;
+
+    /**
+     *  @param dbDir relative path
+     */
+    public LogDataStore(RouterContext ctx, String dbDir, KademliaNetworkDatabaseFacade facade) throws IOException {
+        super(ctx);
+        _dbDir = getDbDir(dbDir);
+        File logDir = new SecureDirectory(_dbDir, LOG_DIR);
+        if (!logDir.exists() && !logDir.mkdir())
+            throw new IOException("Unable to create the DB log directory [" + logDir.getAbsolutePath() + "]");
+        _store = new SegmentedLog(logDir, SEGMENT_SIZE);
+        // build the index now, the RIs are read in the ReadJob
+        _store.open();
+        _facade = facade;
+        ctx.statManager().createRateStat("netDb.writeClobber", "How often we clobber a pending netDb write", "NetworkDatabase", new long[] { 20*60*1000 });
+        ctx.statManager().createRateStat("netDb.writePending", "How many pending writes are there", "NetworkDatabase", new long[] { 60*1000 });
+        ctx.statManager().createRateStat("netDb.writeOut", "How many we wrote", "NetworkDatabase", new long[] { 20*60*1000 });
+        ctx.statManager().createRateStat("netDb.writeTime", "How long it took", "NetworkDatabase", new long[] { 20*60*1000 });
+        ctx.statManager().createRateStat("netDb.logSize", "Size of the netDb log (bytes)", "NetworkDatabase", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat("netDb.logCompactTime", "How long a netDb log compaction took", "NetworkDatabase", new long[] { 60*60*1000 });
+        _readJob = new ReadJob();
+        _writer = new Writer();
+        I2PThread writer = new I2PThread(_writer, "DBWriter");
+        // stop() must be called to flush data to disk
+        writer.start();
+        _context.jobQueue().addJob(_readJob);
+    }
+
+    @Override
+    public boolean isInitialized() { return _initialized; }
+
+    @Override
+    public void stop() {
+        super.stop();
+        _writer.flush();
+    }
+
+    @Override
+    public void rescan() {
+        if (_initialized)
+            _readJob.wakeup();
+    }
+
+    @Override
+    public DatabaseEntry remove(Hash key) {
+        return remove(key, true);
+    }
+
+    /*
+     *  @param persist if false, call super only, don't access disk
+     */
+    @Override
+    public DatabaseEntry remove(Hash key, boolean persist) {
+        if (persist) {
+            _writer.remove(key);
+            _context.jobQueue().addJob(new RemoveJob(key));
+        }
+        return super.remove(key);
+    }
+
+    @Override
+    public boolean put(Hash key, DatabaseEntry data) {
+        return put(key, data, true);
+    }
+
+    /*
+     *  @param persist if false, call super only, don't access disk
+     *  @return success
+     */
+    @Override
+    public boolean put(Hash key, DatabaseEntry data, boolean persist) {
+        if ( (data == null) || (key == null) ) return false;
+        boolean rv = super.put(key, data);
+        // Don't bother writing LeaseSets to disk
+        if (rv && persist && data.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO)
+            _writer.queue(key, data);
+        return rv;
+    }
+
+    private class RemoveJob extends JobImpl {
+        private final Hash _key;
+
+        public RemoveJob(Hash key) {
+            super(LogDataStore.this._context);
+            _key = key;
+        }
+
+        public String getName() { return "Delete RI from log"; }
+
+        public void runJob() {
+            try {
+                synchronized (_store) {
+                    // fsync'ed with the next writes
+                    if (_store.delete(_key) && _log.shouldLog(Log.INFO))
+                        _log.info("Removed key " + _key);
+                }
+            } catch (IOException ioe) {
+                _log.error("Error removing key " + _key, ioe);
+            }
+        }
+    }
+
+    /**
+     *  Append the entries and fsync, then compact if needed.
+     *  Caller must synch on _store.
+     */
+    private void write(List<Map.Entry<Hash, DatabaseEntry>> entries) throws IOException {
+        for (Map.Entry<Hash, DatabaseEntry> e : entries) {
+            byte[] data = e.getValue().toByteArray();
+            if (data != null)
+                _store.put(e.getKey(), data);
+        }
+        _store.sync();
+        long total = _store.getTotalBytes();
+        if (total > MIN_COMPACT_SIZE && _store.getLiveBytes() * 2 < total) {
+            long start = System.currentTimeMillis();
+            _store.compact();
+            long time = System.currentTimeMillis() - start;
+            _context.statManager().addRateData("netDb.logCompactTime", time);
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Compacted the netDb log from " + total + " to " + _store.getTotalBytes() +
+                          " bytes in " + time + "ms");
+        }
+        _context.statManager().addRateData("netDb.logSize", _store.getTotalBytes());
+    }
+
+    /*
+     *  Queue up writes, append them all every minute.
+     */
+    private class Writer implements Runnable {
+        private final Map<Hash, DatabaseEntry>_keys;
+        private final Object _waitLock;
+        private volatile boolean _quit;
+
+        public Writer() {
+            _keys = new ConcurrentHashMap<Hash, DatabaseEntry>(64);
+            _waitLock = new Object();
+        }
+
+        public void queue(Hash key, DatabaseEntry data) {
+            int pending = _keys.size();
+            boolean exists = (null != _keys.put(key, data));
+            if (exists)
+                _context.statManager().addRateData("netDb.writeClobber", pending);
+            _context.statManager().addRateData("netDb.writePending", pending);
+        }
+
+        public void remove(Hash key) {
+            _keys.remove(key);
+        }
+
+        public void run() {
+            while (true) {
+                synchronized (_waitLock) {
+                    if (!_quit) {
+                        try {
+                            _waitLock.wait(WRITE_DELAY);
+                        } catch (InterruptedException ie) {}
+                    }
+                }
+                List<Map.Entry<Hash, DatabaseEntry>> entries = new ArrayList<Map.Entry<Hash, DatabaseEntry>>(_keys.size());
+                for (Iterator<Map.Entry<Hash, DatabaseEntry>> iter = _keys.entrySet().iterator(); iter.hasNext(); ) {
+                    entries.add(iter.next());
+                    iter.remove();
+                }
+                if (!entries.isEmpty()) {
+                    long start = System.currentTimeMillis();
+                    try {
+                        synchronized (_store) {
+                            write(entries);
+                        }
+                    } catch (IOException ioe) {
+                        _log.error("Error writing to the netDb log", ioe);
+                    }
+                    long time = System.currentTimeMillis() - start;
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("Wrote " + entries.size() + " entries to the log in " + time);
+                    _context.statManager().addRateData("netDb.writeOut", entries.size());
+                    _context.statManager().addRateData("netDb.writeTime", time);
+                }
+                if (_quit)
+                    break;
+            }
+            try {
+                synchronized (_store) {
+                    _store.close();
+                }
+            } catch (IOException ioe) {
+                _log.error("Error closing the netDb log", ioe);
+            }
+        }
+
+        public void flush() {
+            synchronized(_waitLock) {
+                _quit = true;
+                _waitLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     *  Reads the log the first time, and imports any RI files every time.
+     *  Reseed task calls wakeup() on completion.
+     *  Initiates an automatic reseed if necessary.
+     */
+    private class ReadJob extends JobImpl {
+        private volatile long _lastModified;
+        private volatile long _lastReseed;
+        private boolean _loaded;
+        private static final int MIN_ROUTERS = KademliaNetworkDatabaseFacade.MIN_RESEED;
+        private static final long MIN_RESEED_INTERVAL = 90*60*1000;
+
+        public ReadJob() {
+            super(LogDataStore.this._context);
+        }
+
+        public String getName() { return "DB Read Job"; }
+
+        public void runJob() {
+            if (getContext().router().gracefulShutdownInProgress()) {
+                // don't cause more disk I/O while saving,
+                // or start a reseed
+                requeue(READ_DELAY);
+                return;
+            }
+            long now = getContext().clock().now();
+            if (!_loaded) {
+                load();
+                _loaded = true;
+            }
+            // check directory mod time to save a lot of object churn in scanning all the file names
+            boolean shouldScan = _dbDir.lastModified() > _lastModified || size() < MIN_ROUTERS + 10;
+            if (shouldScan) {
+                importFiles();
+                _lastModified = now;
+                checkReseed();
+            }
+            requeue(READ_DELAY);
+        }
+
+        public void wakeup() {
+            requeue(0);
+        }
+
+        /**
+         *  Replay the log into the netDb
+         */
+        private void load() {
+            long start = System.currentTimeMillis();
+            final List<Hash> bad = new ArrayList<Hash>();
+            int count;
+            synchronized (_store) {
+                count = _store.size();
+                try {
+                    _store.replay(new SegmentedLog.Replay() {
+                        public void record(Hash key, byte[] value) {
+                            RouterInfo ri = readRouterInfo(new ByteArrayInputStream(value), key, "log");
+                            if (ri == null || !store(ri, 0))
+                                bad.add(key);
+                        }
+                    });
+                    for (Hash key : bad) {
+                        _store.delete(key);
+                    }
+                } catch (IOException ioe) {
+                    _log.error("Error reading the netDb log", ioe);
+                }
+            }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Read " + count + " RIs from the log in " + (System.currentTimeMillis() - start) +
+                          "ms, " + bad.size() + " bad");
+        }
+
+        /**
+         *  Read the RI files in netDb/ and its subdirectories into the netDb and the log,
+         *  and delete them
+         */
+        private void importFiles() {
+            List<File> files = new ArrayList<File>();
+            File[] f = _dbDir.listFiles(PersistentDataStore.RouterInfoFilter.getInstance());
+            if (f != null)
+                Collections.addAll(files, f);
+            List<File> subdirs = new ArrayList<File>();
+            for (int j = 0; j < PersistentDataStore.B64.length(); j++) {
+                File subdir = new File(_dbDir, PersistentDataStore.DIR_PREFIX + PersistentDataStore.B64.charAt(j));
+                f = subdir.listFiles(PersistentDataStore.RouterInfoFilter.getInstance());
+                if (f == null)
+                    continue;
+                subdirs.add(subdir);
+                Collections.addAll(files, f);
+            }
+            if (files.isEmpty() && subdirs.isEmpty())
+                return;
+            // Loading the files in-order causes clumping in the kbuckets,
+            // and bias on early peer selection, so shuffle first.
+            Collections.shuffle(files, _context.random());
+            List<Map.Entry<Hash, DatabaseEntry>> toWrite = new ArrayList<Map.Entry<Hash, DatabaseEntry>>(files.size());
+            for (File file : files) {
+                // drop out if the router gets killed right after startup
+                if (!_context.router().isAlive())
+                    return;
+                Hash key = PersistentDataStore.getRouterInfoHash(file.getName());
+                if (key == null)
+                    continue;
+                // persist = false to call only super.get()
+                DatabaseEntry known = get(key, false);
+                long knownDate = 0;
+                if (known != null) {
+                    if (known.getType() != DatabaseEntry.KEY_TYPE_ROUTERINFO) {
+                        // wtf - prevent injection from reseeding
+                        _log.error("Prevented LS overwrite by RI " + key + " from " + file);
+                        continue;
+                    }
+                    knownDate = ((RouterInfo) known).getPublished();
+                    // don't overwrite recent netdb RIs with reseed data
+                    if (file.lastModified() <= knownDate + (60*60*1000))
+                        continue;
+                }
+                RouterInfo ri = readFile(file, key);
+                if (ri != null && store(ri, knownDate))
+                    toWrite.add(new AbstractMap.SimpleImmutableEntry<Hash, DatabaseEntry>(key, ri));
+            }
+            try {
+                synchronized (_store) {
+                    write(toWrite);
+                }
+            } catch (IOException ioe) {
+                _log.error("Error writing to the netDb log, not deleting the files", ioe);
+                return;
+            }
+            for (File file : files) {
+                file.delete();
+            }
+            // only deletes if empty
+            for (File subdir : subdirs) {
+                subdir.delete();
+            }
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Imported " + toWrite.size() + " of " + files.size() + " RI files to the log");
+        }
+
+        private void checkReseed() {
+            int routerCount = size();
+            if (!_initialized) {
+                _initialized = true;
+                if (_facade.reseedChecker().checkReseed(routerCount)) {
+                    _lastReseed = _context.clock().now();
+                    // checkReseed will call wakeup() when done and we will run again
+                } else {
+                    _context.router().setNetDbReady();
+                }
+            } else if (_lastReseed < _context.clock().now() - MIN_RESEED_INTERVAL) {
+                if (routerCount < MIN_ROUTERS) {
+                    if (_facade.reseedChecker().checkReseed(routerCount))
+                        _lastReseed = _context.clock().now();
+                        // checkReseed will call wakeup() when done and we will run again
+                } else {
+                    _context.router().setNetDbReady();
+                }
+            }
+        }
+    }
+
+    /**
+     *  @return null if unreadable
+     */
+    private RouterInfo readFile(File file, Hash key) {
+        InputStream fis = null;
+        try {
+            fis = new BufferedInputStream(new FileInputStream(file));
+            return readRouterInfo(fis, key, file.getName());
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Unable to read the router reference in " + file.getName(), ioe);
+            return null;
+        } finally {
+            if (fis != null) try { fis.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Read and verify
+     *
+     *  @param key must match the RI hash
+     *  @param source for logging
+     *  @return null if corrupt or not for this network or key
+     */
+    private RouterInfo readRouterInfo(InputStream in, Hash key, String source) {
+        try {
+            RouterInfo ri = new RouterInfo();
+            ri.readBytes(in, true);  // true = verify sig on read
+            if (ri.getNetworkId() != Router.NETWORK_ID) {
+                if (_log.shouldLog(Log.ERROR))
+                    _log.error("The router "
+                               + ri.getIdentity().calculateHash().toBase64()
+                               + " is from a different network");
+                return null;
+            }
+            if (!ri.getIdentity().calculateHash().equals(key)) {
+                // prevent injection from reseeding
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn(ri.getIdentity().calculateHash() + " does not match " + key + " from " + source);
+                return null;
+            }
+            return ri;
+        } catch (DataFormatException dfe) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Error reading the routerInfo from " + source, dfe);
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Unable to read the router reference in " + source, ioe);
+        } catch (Exception e) {
+            // key certificate problems, etc., don't let one bad RI kill the whole thing
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Unable to read the router reference in " + source, e);
+        }
+        return null;
+    }
+
+    /**
+     *  Store in the netDb, not in the log
+     *
+     *  @param knownDate published date of the one we have, or 0
+     *  @return false if refused
+     */
+    private boolean store(RouterInfo ri, long knownDate) {
+        if (ri.getPublished() <= knownDate) {
+            // Don't store but don't delete
+            return false;
+        }
+        try {
+            // persist = false so we don't write what we just read
+            _facade.store(ri.getIdentity().getHash(), ri, false);
+            // when heardAbout() was removed from TransientDataStore, it broke
+            // profile bootstrapping for new routers,
+            // so add it here.
+            _context.profileManager().heardAbout(ri.getIdentity().getHash(), ri.getPublished());
+            return true;
+        } catch (IllegalArgumentException iae) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Refused locally loaded routerInfo", iae);
+            return false;
+        }
+    }
+
+    private File getDbDir(String dbDir) throws IOException {
+        File f = new SecureDirectory(_context.getRouterDir(), dbDir);
+        if (!f.exists()) {
+            boolean created = f.mkdirs();
+            if (!created)
+                throw new IOException("Unable to create the DB directory [" + f.getAbsolutePath() + "]");
+        }
+        if (!f.isDirectory())
+            throw new IOException("DB directory [" + f.getAbsolutePath() + "] is not a directory!");
+        if (!f.canRead())
+            throw new IOException("DB directory [" + f.getAbsolutePath() + "] is not readable!");
+        if (!f.canWrite())
+            throw new IOException("DB directory [" + f.getAbsolutePath() + "] is not writable!");
+        return f;
+    }
+}
@@ -0,0 +1,437 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import net.i2p.data.Hash;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  An append-only log of key/value records, split into segment files,
+ *  with an in-memory index of where the latest record for each key is.
+ *  Not netDb-specific, the values are just bytes.
+ *
+ *  Segments are files named seg-nnnnnnnn.log, replayed in number order,
+ *  the last record for a key wins. Only the last segment is appended to.
+ *  A new one is started when it reaches the segment size.
+ *
+ *  Record format:
+ *<pre>
+ *  4 bytes  length of the rest, not including the CRC
+ *  1 byte   type, 1 = put, 2 = delete
+ *  32 bytes key
+ *  n bytes  value, none for a delete
+ *  4 bytes  CRC32 of type, key, and value
+ *</pre>
+ *
+ *  Recovery: a short or corrupt record at the end of the last segment
+ *  is from a crash while appending, and the segment is truncated there.
+ *  Anywhere else, the rest of that segment is skipped.
+ *
+ *  Compaction copies the live records to new segments, syncs them,
+ *  and then deletes the old segments, lowest first, so a crash at any
+ *  point leaves a log that replays to the same state.
+ *
+ *  Not thread safe, caller must synchronize.
+ *
+ *  @since 0.9.21
+ */
+class SegmentedLog {
+    private final File _dir;
+    private final long _segmentSize;
+    /** segment number to file length */
+    private final TreeMap<Integer, Long> _segments;
+    private final Map<Hash, Location> _index;
+    private int _active;
+    private DataOutputStream _out;
+    private FileOutputStream _fos;
+    private long _activeLength;
+    private long _liveBytes;
+    private long _totalBytes;
+    private boolean _dirty;
+
+    private static final String PREFIX = "seg-";
+    private static final String SUFFIX = ".log";
+    private static final int MAGIC = 0x6e44624c;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    /** length field + type + key + CRC */
+    private static final int OVERHEAD = 4 + 1 + Hash.HASH_LENGTH + 4;
+    /** sanity check */
+    private static final int MAX_VALUE = 64*1024;
+
+    /**
+     *  Called for each live record by replay()
+     */
+    public interface Replay {
+        public void record(Hash key, byte[] value);
+    }
+
+    /**
+     *  Where a key's latest put is
+     */
+    private static class Location {
+        final int segment;
+        /** of the record start */
+        final long offset;
+        /** of the whole record */
+        final int length;
+
+        public Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     *  Call open() before use.
+     *
+     *  @param dir must exist
+     */
+    public SegmentedLog(File dir, long segmentSize) {
+        _dir = dir;
+        _segmentSize = segmentSize;
+        _segments = new TreeMap<Integer, Long>();
+        _index = new HashMap<Hash, Location>(1024);
+    }
+
+    /**
+     *  Read the log, building the index and recovering from a crash.
+     *
+     *  @return the number of live records
+     */
+    public int open() throws IOException {
+        File[] files = _dir.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                int seg = getSegment(files[i].getName());
+                if (seg >= 0)
+                    _segments.put(Integer.valueOf(seg), Long.valueOf(files[i].length()));
+            }
+        }
+        _index.clear();
+        _liveBytes = 0;
+        _totalBytes = 0;
+        List<Integer> segs = new ArrayList<Integer>(_segments.keySet());
+        for (int i = 0; i < segs.size(); i++) {
+            int seg = segs.get(i).intValue();
+            long end = scan(seg, null);
+            long len = _segments.get(segs.get(i)).longValue();
+            if (end < len && i == segs.size() - 1) {
+                truncate(seg, end);
+                len = end;
+            }
+            _totalBytes += len;
+        }
+        if (segs.isEmpty())
+            newSegment(1);
+        else
+            openActive(segs.get(segs.size() - 1).intValue());
+        return _index.size();
+    }
+
+    /**
+     *  Call the replay for each live record, in log order.
+     */
+    public void replay(Replay replay) throws IOException {
+        sync();
+        List<Integer> segs = new ArrayList<Integer>(_segments.keySet());
+        for (Integer seg : segs) {
+            scan(seg.intValue(), replay);
+        }
+    }
+
+    /**
+     *  Append a put
+     */
+    public void put(Hash key, byte[] value) throws IOException {
+        if (value.length > MAX_VALUE)
+            throw new IOException("too big: " + value.length);
+        Location old = _index.get(key);
+        if (old != null)
+            _liveBytes -= old.length;
+        Location loc = append(TYPE_PUT, key, value);
+        _index.put(key, loc);
+        _liveBytes += loc.length;
+    }
+
+    /**
+     *  Append a delete, if the key is in the log
+     *
+     *  @return true if it was
+     */
+    public boolean delete(Hash key) throws IOException {
+        Location old = _index.remove(key);
+        if (old == null)
+            return false;
+        _liveBytes -= old.length;
+        append(TYPE_DELETE, key, new byte[0]);
+        return true;
+    }
+
+    public boolean contains(Hash key) {
+        return _index.containsKey(key);
+    }
+
+    /**
+     *  Flush and fsync the active segment, if anything was appended
+     */
+    public void sync() throws IOException {
+        if (!_dirty)
+            return;
+        _out.flush();
+        _fos.getFD().sync();
+        _dirty = false;
+    }
+
+    /** records in the index */
+    public int size() {
+        return _index.size();
+    }
+
+    /** bytes in the live records */
+    public long getLiveBytes() {
+        return _liveBytes;
+    }
+
+    /** bytes in all the segments */
+    public long getTotalBytes() {
+        return _totalBytes;
+    }
+
+    public int getSegmentCount() {
+        return _segments.size();
+    }
+
+    /**
+     *  Copy all the live records to new segments and delete the old ones.
+     */
+    public void compact() throws IOException {
+        sync();
+        List<Integer> old = new ArrayList<Integer>(_segments.keySet());
+        // copy in segment and offset order so the reads are sequential
+        List<Map.Entry<Hash, Location>> live = new ArrayList<Map.Entry<Hash, Location>>(_index.size());
+        for (Map.Entry<Hash, Location> e : _index.entrySet()) {
+            live.add(new AbstractMap.SimpleImmutableEntry<Hash, Location>(e));
+        }
+        Collections.sort(live, new LocationComparator());
+        newSegment(_active + 1);
+        _index.clear();
+        _liveBytes = 0;
+        RandomAccessFile raf = null;
+        int rafSeg = -1;
+        try {
+            for (Map.Entry<Hash, Location> e : live) {
+                Location loc = e.getValue();
+                if (loc.segment != rafSeg) {
+                    if (raf != null)
+                        raf.close();
+                    raf = new RandomAccessFile(getFile(loc.segment), "r");
+                    rafSeg = loc.segment;
+                }
+                byte[] value = new byte[loc.length - OVERHEAD];
+                raf.seek(loc.offset + 4 + 1 + Hash.HASH_LENGTH);
+                raf.readFully(value);
+                put(e.getKey(), value);
+            }
+        } finally {
+            if (raf != null) try { raf.close(); } catch (IOException ioe) {}
+        }
+        sync();
+        for (Integer seg : old) {
+            Long len = _segments.remove(seg);
+            _totalBytes -= len.longValue();
+            getFile(seg.intValue()).delete();
+        }
+    }
+
+    public void close() throws IOException {
+        if (_out != null) {
+            sync();
+            _out.close();
+            _out = null;
+        }
+    }
+
+    /**
+     *  Read one segment, adding to the index, or if replay is non-null,
+     *  calling it for the records that are in the index at that location.
+     *
+     *  @return the end of the last good record
+     */
+    private long scan(int seg, Replay replay) throws IOException {
+        File f = getFile(seg);
+        DataInputStream in = null;
+        long off = 0;
+        CRC32 crc = new CRC32();
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return 0;
+            off = HEADER_LENGTH;
+            byte[] buf = new byte[1024];
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException eof) {
+                    break;
+                }
+                if (len < 1 + Hash.HASH_LENGTH || len > 1 + Hash.HASH_LENGTH + MAX_VALUE)
+                    break;
+                if (buf.length < len)
+                    buf = new byte[len];
+                in.readFully(buf, 0, len);
+                int expected = in.readInt();
+                crc.reset();
+                crc.update(buf, 0, len);
+                if ((int) crc.getValue() != expected)
+                    break;
+                byte type = buf[0];
+                Hash h = Hash.create(buf, 1);
+                int reclen = len + 8;
+                if (replay == null) {
+                    Location old = _index.remove(h);
+                    if (old != null)
+                        _liveBytes -= old.length;
+                    if (type == TYPE_PUT) {
+                        _index.put(h, new Location(seg, off, reclen));
+                        _liveBytes += reclen;
+                    }
+                } else if (type == TYPE_PUT) {
+                    Location loc = _index.get(h);
+                    if (loc != null && loc.segment == seg && loc.offset == off) {
+                        byte[] value = new byte[len - (1 + Hash.HASH_LENGTH)];
+                        System.arraycopy(buf, 1 + Hash.HASH_LENGTH, value, 0, value.length);
+                        replay.record(h, value);
+                    }
+                }
+                off += reclen;
+            }
+        } catch (EOFException eof) {
+            // short record
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+        return off;
+    }
+
+    private Location append(byte type, Hash key, byte[] value) throws IOException {
+        if (_activeLength >= _segmentSize)
+            newSegment(_active + 1);
+        int len = 1 + Hash.HASH_LENGTH + value.length;
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(key.getData());
+        crc.update(value);
+        _out.writeInt(len);
+        _out.writeByte(type);
+        _out.write(key.getData());
+        _out.write(value);
+        _out.writeInt((int) crc.getValue());
+        Location rv = new Location(_active, _activeLength, len + 8);
+        _activeLength += rv.length;
+        _totalBytes += rv.length;
+        _segments.put(Integer.valueOf(_active), Long.valueOf(_activeLength));
+        _dirty = true;
+        return rv;
+    }
+
+    /**
+     *  Sync and close the active segment, and start a new one
+     */
+    private void newSegment(int seg) throws IOException {
+        close();
+        _fos = new SecureFileOutputStream(getFile(seg));
+        _out = new DataOutputStream(new BufferedOutputStream(_fos, 16*1024));
+        _out.writeInt(MAGIC);
+        _out.writeInt(VERSION);
+        _active = seg;
+        _activeLength = HEADER_LENGTH;
+        _totalBytes += HEADER_LENGTH;
+        _segments.put(Integer.valueOf(seg), Long.valueOf(_activeLength));
+        _dirty = true;
+    }
+
+    /**
+     *  Append to an existing segment
+     */
+    private void openActive(int seg) throws IOException {
+        long len = _segments.get(Integer.valueOf(seg)).longValue();
+        if (len < HEADER_LENGTH) {
+            // bad header, don't append to it
+            newSegment(seg + 1);
+            return;
+        }
+        _fos = new FileOutputStream(getFile(seg), true);
+        _out = new DataOutputStream(new BufferedOutputStream(_fos, 16*1024));
+        _active = seg;
+        _activeLength = len;
+    }
+
+    private void truncate(int seg, long length) throws IOException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(getFile(seg), "rw");
+            raf.setLength(length);
+        } finally {
+            if (raf != null) try { raf.close(); } catch (IOException ioe) {}
+        }
+        _segments.put(Integer.valueOf(seg), Long.valueOf(length));
+    }
+
+    private File getFile(int seg) {
+        String num = Integer.toString(seg);
+        StringBuilder buf = new StringBuilder(PREFIX.length() + 8 + SUFFIX.length());
+        buf.append(PREFIX);
+        for (int i = num.length(); i < 8; i++) {
+            buf.append('0');
+        }
+        buf.append(num).append(SUFFIX);
+        return new File(_dir, buf.toString());
+    }
+
+    /** @return -1 if not a segment */
+    private static int getSegment(String name) {
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+            return -1;
+        String num = name.substring(PREFIX.length(), name.length() - SUFFIX.length());
+        try {
+            int rv = Integer.parseInt(num);
+            return rv > 0 ? rv : -1;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private static class LocationComparator implements java.util.Comparator<Map.Entry<Hash, Location>> {
+        public int compare(Map.Entry<Hash, Location> l, Map.Entry<Hash, Location> r) {
+            Location ll = l.getValue();
+            Location rl = r.getValue();
+            if (ll.segment != rl.segment)
+                return ll.segment < rl.segment ? -1 : 1;
+            if (ll.offset != rl.offset)
+                return ll.offset < rl.offset ? -1 : 1;
+            return 0;
+        }
+    }
+}
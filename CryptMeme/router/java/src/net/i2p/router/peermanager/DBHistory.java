@@ -2,6 +2,7 @@ package net.i2p.router.peermanager;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Locale;
 import java.util.Properties;
 
@@ -266,6 +267,54 @@ public class DBHistory {
         }
     }
     
+    /**
+     *  Binary form of store(OutputStream), for ProfileStore
+     *  @since 0.9.21
+     */
+    void store(ByteBuffer buf) {
+        buf.putLong(_successfulLookups);
+        buf.putLong(_failedLookups);
+        buf.putLong(_lookupsReceived);
+        buf.putLong(_lookupReplyDuplicate);
+        buf.putLong(_lookupReplyInvalid);
+        buf.putLong(_lookupReplyNew);
+        buf.putLong(_lookupReplyOld);
+        buf.putLong(_unpromptedDbStoreNew);
+        buf.putLong(_unpromptedDbStoreOld);
+        buf.putLong(_lastLookupReceived);
+        buf.putLong(_avgDelayBetweenLookupsReceived);
+        _failedLookupRate.store(buf);
+        _invalidReplyRate.store(buf);
+    }
+
+    /**
+     *  Binary form of load(Properties), for ProfileStore
+     *  @since 0.9.21
+     */
+    void load(ByteBuffer buf) {
+        _successfulLookups = buf.getLong();
+        _failedLookups = buf.getLong();
+        _lookupsReceived = buf.getLong();
+        _lookupReplyDuplicate = buf.getLong();
+        _lookupReplyInvalid = buf.getLong();
+        _lookupReplyNew = buf.getLong();
+        _lookupReplyOld = buf.getLong();
+        _unpromptedDbStoreNew = buf.getLong();
+        _unpromptedDbStoreOld = buf.getLong();
+        _lastLookupReceived = buf.getLong();
+        _avgDelayBetweenLookupsReceived = buf.getLong();
+        try {
+            _failedLookupRate.load(buf, true);
+        } catch (IllegalArgumentException iae) {
+            _log.warn("DB History failed lookup rate is corrupt, resetting", iae);
+        }
+        try {
+            _invalidReplyRate.load(buf, true);
+        } catch (IllegalArgumentException iae) {
+            _log.warn("DB History invalid reply rate is corrupt, resetting", iae);
+        }
+    }
+
     private void createRates(String statGroup) {
         if (_failedLookupRate == null)
             _failedLookupRate = new RateStat("dbHistory.failedLookupRate", "How often does this peer to respond to a lookup?", statGroup, new long[] { 10*60*1000l, 60*60*1000l, 24*60*60*1000l });
@@ -8,6 +8,8 @@ package net.i2p.router.peermanager;
  *
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -40,6 +42,9 @@ class PeerManager {
     private final RouterContext _context;
     private final ProfileOrganizer _organizer;
     private final ProfilePersistenceHelper _persistenceHelper;
+    /** null unless enabled, or if it failed to open */
+    private volatile ProfileStore _store;
+    private volatile long _lastPersist;
     private final Map<Character, Set<Hash>> _peersByCapability;
     /** value strings are lower case */
     private final Map<Hash, String> _capabilitiesByPeer;
@@ -52,6 +57,16 @@ class PeerManager {
      *  Rate contained in the profile, as the Rates must be coalesced.
      */
     private static final long REORGANIZE_TIME_LONG = 351*1000;
+
+    /**
+     *  "mmap" for the binary ProfileStore, otherwise the text files
+     *  @since 0.9.21
+     */
+    public static final String PROP_PROFILE_STORE = "router.profileStore";
+    /** write changed profiles to the ProfileStore this often */
+    private static final long PERSIST_TIME = 15*60*1000;
+    /** decode this many of the most recently used profiles at startup, the rest on demand */
+    private static final int PRELOAD_PROFILES = 200;
     
     public static final String TRACKED_CAPS = "" +
         FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL +
@@ -74,6 +89,8 @@ class PeerManager {
         _context = context;
         _log = context.logManager().getLog(PeerManager.class);
         _persistenceHelper = new ProfilePersistenceHelper(context);
+        if ("mmap".equals(context.getProperty(PROP_PROFILE_STORE)))
+            _store = new ProfileStore(context, new File(_persistenceHelper.getProfileDir(), ProfileStore.FILENAME));
         _organizer = context.profileOrganizer();
         _organizer.setUs(context.routerHash());
         _capabilitiesByPeer = new ConcurrentHashMap<Hash, String>(256);
@@ -117,6 +134,13 @@ class PeerManager {
                 _log.log(Log.CRIT, "Error evaluating profiles", t);
             }
             long orgtime = System.currentTimeMillis() - start;
+            if (_store != null && start - _lastPersist > PERSIST_TIME) {
+                try {
+                    storeProfiles();
+                } catch (Throwable t) {
+                    _log.log(Log.CRIT, "Error storing profiles", t);
+                }
+            }
             long uptime = _context.router().getUptime();
             long delay;
             if (orgtime > 1000 || uptime > 2*60*60*1000)
@@ -129,13 +153,66 @@ class PeerManager {
         }
     }
     
+    /**
+     *  With the ProfileStore, only writes the profiles that changed since they were last written
+     */
     void storeProfiles() {
         Set<Hash> peers = selectPeers();
+        ProfileStore store = _store;
+        if (store != null) {
+            long start = System.currentTimeMillis();
+            int count = 0;
+            for (Hash peer : peers) {
+                PeerProfile prof = _organizer.getProfile(peer);
+                if (prof == null)
+                    continue;
+                if (getLastActivity(prof) >= store.getWritten(peer)) {
+                    store.write(prof);
+                    count++;
+                }
+            }
+            store.sync();
+            _lastPersist = start;
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Stored " + count + " of " + peers.size() + " profiles in " +
+                          (System.currentTimeMillis() - start) + "ms");
+            return;
+        }
         for (Hash peer : peers) {
             storeProfile(peer);
         }
     }
 
+    /**
+     *  Latest time of anything that changes what we store about the peer
+     *  @since 0.9.21
+     */
+    private static long getLastActivity(PeerProfile prof) {
+        long rv = Math.max(prof.getLastHeardAbout(), prof.getLastHeardFrom());
+        // covers the changes that only touch the rates
+        rv = Math.max(rv, prof.getLastUpdated());
+        rv = Math.max(rv, Math.max(prof.getLastSendSuccessful(), prof.getLastSendFailed()));
+        TunnelHistory th = prof.getTunnelHistory();
+        if (th != null) {
+            rv = Math.max(rv, Math.max(th.getLastAgreedTo(), th.getLastFailed()));
+            rv = Math.max(rv, Math.max(th.getLastRejectedBandwidth(), th.getLastRejectedCritical()));
+            rv = Math.max(rv, Math.max(th.getLastRejectedTransient(), th.getLastRejectedProbabalistic()));
+        }
+        return rv;
+    }
+
+    /**
+     *  Close the ProfileStore, call after storeProfiles()
+     *  @since 0.9.21
+     */
+    void shutdown() {
+        ProfileStore store = _store;
+        if (store != null) {
+            _organizer.setStore(null);
+            store.close();
+        }
+    }
+
     /** @since 0.8.8 */
     void clearProfiles() {
         _organizer.clearProfiles();
@@ -152,7 +229,10 @@ class PeerManager {
         if (peer == null) return;
         PeerProfile prof = _organizer.getProfile(peer);
         if (prof == null) return;
-        if (true)
+        ProfileStore store = _store;
+        if (store != null)
+            store.write(prof);
+        else
             _persistenceHelper.writeProfile(prof);
     }
 
@@ -184,6 +264,8 @@ class PeerManager {
      *  This may take a long time - 30 seconds or more
      */
     void loadProfiles() {
+        if (_store != null && loadStore())
+            return;
         Set<PeerProfile> profiles = _persistenceHelper.readProfiles();
         for (PeerProfile prof : profiles) {
                 _organizer.addProfile(prof);
@@ -192,6 +274,47 @@ class PeerManager {
         }
     }
     
+    /**
+     *  Open the ProfileStore, migrate any text profiles into it,
+     *  and load the most recently used profiles.
+     *  The rest are loaded by the ProfileOrganizer on first access.
+     *
+     *  @return false on failure, _store is nulled and the text files should be used
+     *  @since 0.9.21
+     */
+    private boolean loadStore() {
+        long start = System.currentTimeMillis();
+        int count;
+        try {
+            count = _store.open();
+        } catch (IOException ioe) {
+            _log.error("Unable to open the profile store, using the profile files", ioe);
+            _store = null;
+            return false;
+        }
+        Set<PeerProfile> profiles = _persistenceHelper.readProfiles();
+        if (!profiles.isEmpty()) {
+            for (PeerProfile prof : profiles) {
+                if (_store.write(prof))
+                    _organizer.addProfile(prof);
+                _persistenceHelper.deleteProfile(prof.getPeer());
+            }
+            _store.sync();
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Migrated " + profiles.size() + " profiles to the profile store");
+        }
+        _organizer.setStore(_store);
+        List<Hash> recent = _store.getRecent(PRELOAD_PROFILES);
+        for (Hash peer : recent) {
+            _organizer.getProfile(peer);
+        }
+        _lastPersist = System.currentTimeMillis();
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Opened the profile store with " + count + " profiles, loaded " + recent.size() +
+                      " in " + (_lastPersist - start) + "ms");
+        return true;
+    }
+    
     /**
      * Find some peers that meet the criteria and we have the netDb info for locally
      *
@@ -51,6 +51,7 @@ public class PeerManagerFacadeImpl implements PeerManagerFacade {
         if (_manager != null) {
             _manager.storeProfiles();
             _manager.clearProfiles();
+            _manager.shutdown();
         }
     }
     
@@ -38,6 +38,8 @@ public class PeerProfile {
     private long _lastFailedSend;
     private long _lastHeardFrom;
     private double _tunnelTestResponseTimeAvg;
+    // any update through the ProfileManager, including the rates, for the ProfileStore
+    private volatile long _lastUpdated;
     // periodic rates
     //private RateStat _sendSuccessSize = null;
     //private RateStat _receiveSize = null;
@@ -207,6 +209,16 @@ public class PeerProfile {
     /** when did we last have a problem sending to this peer? */
     public long getLastSendFailed() { return _lastFailedSend; }
     public void setLastSendFailed(long when) { _lastFailedSend = when; }
+
+    /**
+     *  When was anything last recorded through the ProfileManager,
+     *  including updates that only touch the rates? Not persisted.
+     *  @since 0.9.21
+     */
+    long getLastUpdated() { return _lastUpdated; }
+
+    /** @since 0.9.21 */
+    void setLastUpdated(long when) { _lastUpdated = when; }
     
     /** when did we last hear from the peer? */
     public long getLastHeardFrom() { return _lastHeardFrom; }
@@ -334,20 +334,26 @@ public class ProfileManagerImpl implements ProfileManager {
     /**
      *   Blocking.
      *   Creates a new profile if it didn't exist.
+     *   All callers update the profile, so as of 0.9.21 this also marks it updated,
+     *   so the ProfileStore writes it even if only the rates changed.
      *   @return non-null
      */
     private PeerProfile getProfile(Hash peer) {
         PeerProfile prof = _context.profileOrganizer().getProfile(peer);
+        long now = _context.clock().now();
         if (prof == null) {
             prof = new PeerProfile(_context, peer);
-            prof.setFirstHeardAbout(_context.clock().now());
+            prof.setFirstHeardAbout(now);
             _context.profileOrganizer().addProfile(prof);
         }
+        prof.setLastUpdated(now);
         return prof;
     }
     
     /**
      *  Non-blocking.
+     *  As of 0.9.21, loads the profile from the ProfileStore if it isn't in memory yet,
+     *  unless another thread is loading one.
      *  @return null if the profile doesn't exist, or the fetch would have blocked
      *  @since 0.8.12
      */
@@ -5,7 +5,9 @@ import java.io.OutputStream;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -14,8 +16,9 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.i2p.crypto.SHA256Generator;
 import net.i2p.data.Hash;
@@ -38,31 +41,20 @@ import net.i2p.util.Log;
 public class ProfileOrganizer {
     private final Log _log;
     private final RouterContext _context;
-    /** H(routerIdentity) to PeerProfile for all peers that are fast and high capacity*/
-    private final Map<Hash, PeerProfile> _fastPeers;
-    /** H(routerIdentity) to PeerProfile for all peers that have high capacities */
-    private final Map<Hash, PeerProfile> _highCapacityPeers;
-    /** TO BE REMOVED H(routerIdentity) to PeerProfile for all peers that well integrated into the network and not failing horribly */
-    private final Map<Hash, PeerProfile> _wellIntegratedPeers;
-    /** H(routerIdentity) to PeerProfile for all peers that are not failing horribly */
-    private final Map<Hash, PeerProfile> _notFailingPeers;
-    /** H(routerIdnetity), containing elements in _notFailingPeers */
-    private final List<Hash> _notFailingPeersList;
-    /** TO BE REMOVED H(routerIdentity) to PeerProfile for all peers that ARE failing horribly (but that we haven't dropped reference to yet) */
-    private final Map<Hash, PeerProfile> _failingPeers;
+    /** H(routerIdentity) to PeerProfile for all peers profiled, failing or not */
+    private final ConcurrentHashMap<Hash, PeerProfile> _profiles;
+    /** the current tiers, never modified, replaced by reorganize() and addProfile() */
+    private volatile Tiers _tiers;
     /** who are we? */
     private Hash _us;
     private final ProfilePersistenceHelper _persistenceHelper;
     
-    /** PeerProfile objects for all peers profiled, orderd by the ones with the highest capacity first */
-    private Set<PeerProfile> _strictCapacityOrder;
-    
     /** threshold speed value, seperating fast from slow */
-    private double _thresholdSpeedValue;
+    private volatile double _thresholdSpeedValue;
     /** threshold reliability value, seperating reliable from unreliable */
-    private double _thresholdCapacityValue;
+    private volatile double _thresholdCapacityValue;
     /** integration value, seperating well integrated from not well integrated */
-    private double _thresholdIntegrationValue;
+    private volatile double _thresholdIntegrationValue;
     
     private final InverseCapacityComparator _comp;
 
@@ -87,20 +79,21 @@ public class ProfileOrganizer {
     public static final int DEFAULT_MINIMUM_HIGH_CAPACITY_PEERS = 10;
     private static final int ABSOLUTE_MAX_HIGHCAP_PEERS = 150;
     
-    /** synchronized against this lock when updating the tier that peers are located in (and when fetching them from a peer) */
-    private final ReentrantReadWriteLock _reorganizeLock = new ReentrantReadWriteLock(false);
+    /** only one reorganize() at a time */
+    private final Object _reorganizeLock = new Object();
+    /** synchronized against this lock when replacing _tiers */
+    private final Object _tierLock = new Object();
+    /** @since 0.9.21 */
+    private volatile ProfileStore _store;
+    /** @since 0.9.21 */
+    private final Lock _loadLock = new ReentrantLock();
     
     public ProfileOrganizer(RouterContext context) {
         _context = context;
         _log = context.logManager().getLog(ProfileOrganizer.class);
         _comp = new InverseCapacityComparator();
-        _fastPeers = new HashMap<Hash, PeerProfile>(32);
-        _highCapacityPeers = new HashMap<Hash, PeerProfile>(64);
-        _wellIntegratedPeers = new HashMap<Hash, PeerProfile>(128);
-        _notFailingPeers = new HashMap<Hash, PeerProfile>(256);
-        _notFailingPeersList = new ArrayList<Hash>(256);
-        _failingPeers = new HashMap<Hash, PeerProfile>(16);
-        _strictCapacityOrder = new TreeSet<PeerProfile>(_comp);
+        _profiles = new ConcurrentHashMap<Hash, PeerProfile>(256);
+        _tiers = Tiers.EMPTY;
         _persistenceHelper = new ProfilePersistenceHelper(_context);
         
         _context.statManager().createRateStat("peer.profileSortTime", "How long the reorg takes sorting peers", "Peers", new long[] { 60*60*1000 });
@@ -112,68 +105,96 @@ public class ProfileOrganizer {
         _context.statManager().createRequiredRateStat("peer.failedLookupRate", "Net DB Lookup fail rate", "Peers", new long[] { 10*60*1000l, 60*60*1000l, 24*60*60*1000l });
     }
     
-    private void getReadLock() {
-        _reorganizeLock.readLock().lock();
-    }
-
+    public void setUs(Hash us) { _us = us; }
+    public Hash getUs() { return _us; }
+    
+    public double getSpeedThreshold() { return _thresholdSpeedValue; }
+    public double getCapacityThreshold() { return _thresholdCapacityValue; }
+    public double getIntegrationThreshold() { return _thresholdIntegrationValue; }
+    
     /**
-     *  Get the lock if we can. Non-blocking.
-     *  @return true if the lock was acquired
-     *  @since 0.8.12
+     * Retrieve the profile for the given peer, if one exists (else null).
+     * As of 0.9.21, does not block during a reorganize,
+     * but may block while loading it from the ProfileStore.
      */
-    private boolean tryReadLock() {
-        return _reorganizeLock.readLock().tryLock();
+    public PeerProfile getProfile(Hash peer) {
+        PeerProfile rv = _profiles.get(peer);
+        if (rv == null && _store != null)
+            rv = loadProfile(peer);
+        return rv;
     }
 
-    private void releaseReadLock() {
-        _reorganizeLock.readLock().unlock();
+    /**
+     * Load the profile from the store on first access, and add it.
+     * @return null if not in the store
+     * @since 0.9.21
+     */
+    private PeerProfile loadProfile(Hash peer) {
+        ProfileStore store = _store;
+        if (store == null || !store.contains(peer))
+            return null;
+        // so two threads don't both load and add it
+        _loadLock.lock();
+        try {
+            return locked_loadProfile(store, peer);
+        } finally {
+            _loadLock.unlock();
+        }
     }
 
-    /** @return true if the lock was acquired */
-    private boolean getWriteLock() {
+    /**
+     * As loadProfile(), but gives up if another thread is loading one.
+     * @return null if not in the store or the load lock is held
+     * @since 0.9.21
+     */
+    private PeerProfile tryLoadProfile(Hash peer) {
+        ProfileStore store = _store;
+        if (store == null || !store.contains(peer))
+            return null;
+        if (!_loadLock.tryLock())
+            return null;
         try {
-            boolean rv = _reorganizeLock.writeLock().tryLock(3000, TimeUnit.MILLISECONDS);
-            if ((!rv) && _log.shouldLog(Log.WARN))
-                _log.warn("no lock, size is: " + _reorganizeLock.getQueueLength(), new Exception("rats"));
-            return rv;
-        } catch (InterruptedException ie) {}
-        return false;
+            return locked_loadProfile(store, peer);
+        } finally {
+            _loadLock.unlock();
+        }
     }
 
-    private void releaseWriteLock() {
-        _reorganizeLock.writeLock().unlock();
+    /**
+     * Caller must hold _loadLock
+     * @since 0.9.21
+     */
+    private PeerProfile locked_loadProfile(ProfileStore store, Hash peer) {
+        PeerProfile rv = _profiles.get(peer);
+        if (rv != null)
+            return rv;
+        rv = store.read(peer);
+        if (rv != null)
+            addProfile(rv);
+        return rv;
     }
 
-    public void setUs(Hash us) { _us = us; }
-    public Hash getUs() { return _us; }
-    
-    public double getSpeedThreshold() { return _thresholdSpeedValue; }
-    public double getCapacityThreshold() { return _thresholdCapacityValue; }
-    public double getIntegrationThreshold() { return _thresholdIntegrationValue; }
-    
     /**
-     * Retrieve the profile for the given peer, if one exists (else null).
-     * Blocking if a reorganize is happening.
+     * Profiles not yet in memory are loaded from here on first access by getProfile() and getProfileNonblocking()
+     * @param store may be null
+     * @since 0.9.21
      */
-    public PeerProfile getProfile(Hash peer) {
-        getReadLock();
-        try {
-            return locked_getProfile(peer);
-        } finally { releaseReadLock(); }
+    void setStore(ProfileStore store) {
+        _store = store;
     }
     
     /**
      * Retrieve the profile for the given peer, if one exists (else null).
-     * Non-blocking. Returns null if a reorganize is happening.
+     * Non-blocking.
+     * As of 0.9.21, no longer returns null if a reorganize is happening,
+     * and loads it from the ProfileStore unless another thread is loading one.
      * @since 0.8.12
      */
     public PeerProfile getProfileNonblocking(Hash peer) {
-        if (tryReadLock()) {
-            try {
-                return locked_getProfile(peer);
-            } finally { releaseReadLock(); }
-        }
-        return null;
+        PeerProfile rv = _profiles.get(peer);
+        if (rv == null && _store != null)
+            rv = tryLoadProfile(peer);
+        return rv;
     }
     
     /**
@@ -188,79 +209,53 @@ public class ProfileOrganizer {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("New profile created for " + peer);
 
-        PeerProfile old = getProfile(peer);
         profile.coalesceStats();
-        if (!getWriteLock())
-            return old;
-        try {
-            // Don't do this, as it may substantially exceed
-            // the high cap and fast limits in-between reorganizations.
-            // just add to the not-failing tier, and maybe the high cap tier,
-            // it will get promoted in the next reorganization
-            // if appropriate. This lessens high-cap churn.
-            // The downside is that new peers don't become high cap until the next reorg
-            // if we are at our limit.
-            //locked_placeProfile(profile);
-            _notFailingPeers.put(peer, profile);
-            if (old == null)
-                _notFailingPeersList.add(peer);
+        PeerProfile old = _profiles.put(peer, profile);
+        // Don't place it, as it may substantially exceed
+        // the high cap and fast limits in-between reorganizations.
+        // just add to the not-failing tier, and maybe the high cap tier,
+        // it will get promoted in the next reorganization
+        // if appropriate. This lessens high-cap churn.
+        // The downside is that new peers don't become high cap until the next reorg
+        // if we are at our limit.
+        boolean highCap = _thresholdCapacityValue <= profile.getCapacityValue() &&
+                          isSelectable(peer);
+        synchronized (_tierLock) {
+            Tiers t = _tiers;
             // Add to high cap only if we have room. Don't add to Fast; wait for reorg.
-            if (_thresholdCapacityValue <= profile.getCapacityValue() &&
-                isSelectable(peer) &&
-                _highCapacityPeers.size() < getMaximumHighCapPeers()) {
-                _highCapacityPeers.put(peer, profile);
-            }
-            _strictCapacityOrder.add(profile);
-        } finally { releaseWriteLock(); }
+            highCap = highCap &&
+                      !t.highCapSet.contains(peer) &&
+                      t.highCap.size() < getMaximumHighCapPeers();
+            boolean notFailing = !t.notFailingSet.contains(peer) && !t.failing.contains(peer);
+            if (notFailing || highCap)
+                _tiers = t.add(peer, notFailing, highCap);
+        }
         return old;
     }
     
-    private int count(Map<Hash, PeerProfile> m) {
-        getReadLock();
-        try {
-            return m.size();
-        } finally { releaseReadLock(); }
-    }
-
-    public int countFastPeers() { return count(_fastPeers); }
-    public int countHighCapacityPeers() { return count(_highCapacityPeers); }
+    public int countFastPeers() { return _tiers.fast.size(); }
+    public int countHighCapacityPeers() { return _tiers.highCap.size(); }
     /** @deprecated use ProfileManager.getPeersByCapability('f').size() */
-    public int countWellIntegratedPeers() { return count(_wellIntegratedPeers); }
-    public int countNotFailingPeers() { return count(_notFailingPeers); }
-    public int countFailingPeers() { return count(_failingPeers); }
+    public int countWellIntegratedPeers() { return _tiers.wellIntegrated.size(); }
+    public int countNotFailingPeers() { return _tiers.notFailing.size(); }
+    public int countFailingPeers() { return _tiers.failing.size(); }
     
     public int countActivePeers() {
         int activePeers = 0;
         long hideBefore = _context.clock().now() - 6*60*60*1000;
        
-        getReadLock();
-        try {
-            for (PeerProfile profile : _failingPeers.values()) {
-                if (profile.getLastSendSuccessful() >= hideBefore)
-                    activePeers++;
-                else if (profile.getLastHeardFrom() >= hideBefore)
-                    activePeers++;
-            }
-            for (PeerProfile profile : _notFailingPeers.values()) {
-                if (profile.getLastSendSuccessful() >= hideBefore)
-                    activePeers++;
-                else if (profile.getLastHeardFrom() >= hideBefore)
-                    activePeers++;
-            }
-        } finally { releaseReadLock(); }
+        for (PeerProfile profile : _profiles.values()) {
+            if (profile.getLastSendSuccessful() >= hideBefore)
+                activePeers++;
+            else if (profile.getLastHeardFrom() >= hideBefore)
+                activePeers++;
+        }
         return activePeers;
     }
     
-    private boolean isX(Map<Hash, PeerProfile> m, Hash peer) {
-        getReadLock();
-        try {
-            return m.containsKey(peer);
-        } finally { releaseReadLock(); }
-    }
-
-    public boolean isFast(Hash peer) { return isX(_fastPeers, peer); }
-    public boolean isHighCapacity(Hash peer) { return isX(_highCapacityPeers, peer); }
-    public boolean isWellIntegrated(Hash peer) { return isX(_wellIntegratedPeers, peer); }
+    public boolean isFast(Hash peer) { return _tiers.fastSet.contains(peer); }
+    public boolean isHighCapacity(Hash peer) { return _tiers.highCapSet.contains(peer); }
+    public boolean isWellIntegrated(Hash peer) { return _tiers.wellIntegratedSet.contains(peer); }
 
     /**
      *  Deprecated for now, always false
@@ -273,17 +268,10 @@ public class ProfileOrganizer {
         
     /** @since 0.8.8 */
     void clearProfiles() {
-        if (!getWriteLock())
-            return;
-        try {
-            _failingPeers.clear();
-            _fastPeers.clear();
-            _highCapacityPeers.clear();
-            _notFailingPeers.clear();
-            _notFailingPeersList.clear();
-            _wellIntegratedPeers.clear();
-            _strictCapacityOrder.clear();
-        } finally { releaseWriteLock(); }
+        synchronized (_tierLock) {
+            _profiles.clear();
+            _tiers = Tiers.EMPTY;
+        }
     }
 
     /** 
@@ -352,10 +340,7 @@ public class ProfileOrganizer {
      *
      */
     public void selectFastPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            locked_selectPeers(_fastPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        selectPeers(_tiers.fast, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectFastPeers("+howMany+"), not enough fast (" + matches.size() + ") going on to highCap");
@@ -412,18 +397,16 @@ public class ProfileOrganizer {
      *</pre>
      */
     public void selectFastPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, Hash randomKey, Slice subTierMode) {
-        getReadLock();
-        try {
-            if (subTierMode != Slice.SLICE_ALL) {
-                int sz = _fastPeers.size();
-                if (sz < 6 || (subTierMode.mask >= 3 && sz < 12))
-                    subTierMode = Slice.SLICE_ALL;
-            }
-            if (subTierMode != Slice.SLICE_ALL)
-                locked_selectPeers(_fastPeers, howMany, exclude, matches, randomKey, subTierMode);
-            else
-                locked_selectPeers(_fastPeers, howMany, exclude, matches, 2);
-        } finally { releaseReadLock(); }
+        List<Hash> fast = _tiers.fast;
+        if (subTierMode != Slice.SLICE_ALL) {
+            int sz = fast.size();
+            if (sz < 6 || (subTierMode.mask >= 3 && sz < 12))
+                subTierMode = Slice.SLICE_ALL;
+        }
+        if (subTierMode != Slice.SLICE_ALL)
+            selectPeers(fast, howMany, exclude, matches, randomKey, subTierMode);
+        else
+            selectPeers(fast, howMany, exclude, matches, 2);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectFastPeers("+howMany+"), not enough fast (" + matches.size() + ") going on to highCap");
@@ -448,19 +431,16 @@ public class ProfileOrganizer {
      *             not be in the same tunnel. 0 = disable check; 1 = /8; 2 = /16; 3 = /24; 4 = exact IP match
      */
     public void selectHighCapacityPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            // we only use selectHighCapacityPeers when we are selecting for PURPOSE_TEST
-            // or we are falling back due to _fastPeers being too small, so we can always 
-            // exclude the fast peers
-            /*
-            if (exclude == null)
-                exclude = new HashSet(_fastPeers.keySet());
-            else
-                exclude.addAll(_fastPeers.keySet());
-             */
-            locked_selectPeers(_highCapacityPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        // we only use selectHighCapacityPeers when we are selecting for PURPOSE_TEST
+        // or we are falling back due to _fastPeers being too small, so we can always 
+        // exclude the fast peers
+        /*
+        if (exclude == null)
+            exclude = new HashSet(_fastPeers.keySet());
+        else
+            exclude.addAll(_fastPeers.keySet());
+         */
+        selectPeers(_tiers.highCap, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectHighCap("+howMany+"), not enough highcap (" + matches.size() + ") going on to ANFP2");
@@ -489,10 +469,7 @@ public class ProfileOrganizer {
      * @deprecated unused
      */
     public void selectWellIntegratedPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
-        getReadLock();
-        try {
-            locked_selectPeers(_wellIntegratedPeers, howMany, exclude, matches, mask);
-        } finally { releaseReadLock(); }
+        selectPeers(_tiers.wellIntegrated, howMany, exclude, matches, mask);
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("selectWellIntegrated("+howMany+"), not enough integrated (" + matches.size() + ") going on to notFailing");
@@ -515,7 +492,7 @@ public class ProfileOrganizer {
     }
 
     /**
-     * @param mask ignored, should call locked_selectPeers, to be fixed
+     * @param mask ignored, should call selectPeers, to be fixed
      */
     public void selectNotFailingPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
         selectNotFailingPeers(howMany, exclude, matches, false, mask);
@@ -533,7 +510,7 @@ public class ProfileOrganizer {
      * @param exclude what peers to skip (may be null)
      * @param matches set to store the matches in
      * @param onlyNotFailing if true, don't include any high capacity peers
-     * @param mask ignored, should call locked_selectPeers, to be fixed
+     * @param mask ignored, should call selectPeers, to be fixed
      */
     public void selectNotFailingPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, boolean onlyNotFailing, int mask) {
         if (matches.size() < howMany)
@@ -557,14 +534,12 @@ public class ProfileOrganizer {
      */
     public void selectActiveNotFailingPeers(int howMany, Set<Hash> exclude, Set<Hash> matches) {
         if (matches.size() < howMany) {
-            getReadLock();
-            try {
-                for (Hash peer : _notFailingPeers.keySet()) {
-                    if (!_context.commSystem().isEstablished(peer))
-                        exclude.add(peer);
-                }
-                locked_selectPeers(_notFailingPeers, howMany, exclude, matches, 0);
-            } finally { releaseReadLock(); }
+            List<Hash> notFailing = _tiers.notFailing;
+            for (Hash peer : notFailing) {
+                if (!_context.commSystem().isEstablished(peer))
+                    exclude.add(peer);
+            }
+            selectPeers(notFailing, howMany, exclude, matches, 0);
         }
     }
 
@@ -583,15 +558,12 @@ public class ProfileOrganizer {
      */
     private void selectActiveNotFailingPeers2(int howMany, Set<Hash> exclude, Set<Hash> matches, int mask) {
         if (matches.size() < howMany) {
-            Map<Hash, PeerProfile> activePeers = new HashMap<Hash, PeerProfile>();
-            getReadLock();
-            try {
-                for (Map.Entry<Hash, PeerProfile> e : _notFailingPeers.entrySet()) {
-                    if (_context.commSystem().isEstablished(e.getKey()))
-                        activePeers.put(e.getKey(), e.getValue());
-                }
-                locked_selectPeers(activePeers, howMany, exclude, matches, mask);
-            } finally { releaseReadLock(); }
+            List<Hash> activePeers = new ArrayList<Hash>();
+            for (Hash peer : _tiers.notFailing) {
+                if (_context.commSystem().isEstablished(peer))
+                    activePeers.add(peer);
+            }
+            selectPeers(activePeers, howMany, exclude, matches, mask);
         }
         if (matches.size() < howMany) {
             if (_log.shouldLog(Log.INFO))
@@ -612,7 +584,7 @@ public class ProfileOrganizer {
     }
 
     /**
-     * @param mask ignored, should call locked_selectPeers, to be fixed
+     * @param mask ignored, should call selectPeers, to be fixed
      *
      */
     private void selectAllNotFailingPeers(int howMany, Set<Hash> exclude, Set<Hash> matches, boolean onlyNotFailing, int mask) {
@@ -620,30 +592,28 @@ public class ProfileOrganizer {
             int orig = matches.size();
             int needed = howMany - orig;
             List<Hash> selected = new ArrayList<Hash>(needed);
-            getReadLock();
-            try {
-                // use RandomIterator to avoid shuffling the whole thing
-                for (Iterator<Hash> iter = new RandomIterator<Hash>(_notFailingPeersList); (selected.size() < needed) && iter.hasNext(); ) {
-                    Hash cur = iter.next();
-                    if (matches.contains(cur) ||
-                        (exclude != null && exclude.contains(cur))) {
-                        if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("matched? " + matches.contains(cur) + " exclude: " + exclude + " cur=" + cur.toBase64());
-                        continue;
-                    } else if (onlyNotFailing && _highCapacityPeers.containsKey(cur)) {
-                        // we dont want the good peers, just random ones
-                        continue;
-                    } else {
-                        if (isSelectable(cur))
-                            selected.add(cur);
-                        else if (_log.shouldLog(Log.DEBUG))
-                            _log.debug("Not selectable: " + cur.toBase64());
-                    }
+            Tiers t = _tiers;
+            // use RandomIterator to avoid shuffling the whole thing
+            for (Iterator<Hash> iter = new RandomIterator<Hash>(t.notFailing); (selected.size() < needed) && iter.hasNext(); ) {
+                Hash cur = iter.next();
+                if (matches.contains(cur) ||
+                    (exclude != null && exclude.contains(cur))) {
+                    if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("matched? " + matches.contains(cur) + " exclude: " + exclude + " cur=" + cur.toBase64());
+                    continue;
+                } else if (onlyNotFailing && t.highCapSet.contains(cur)) {
+                    // we dont want the good peers, just random ones
+                    continue;
+                } else {
+                    if (isSelectable(cur))
+                        selected.add(cur);
+                    else if (_log.shouldLog(Log.DEBUG))
+                        _log.debug("Not selectable: " + cur.toBase64());
                 }
-            } finally { releaseReadLock(); }
+            }
             if (_log.shouldLog(Log.INFO))
                 _log.info("Selecting all not failing (strict? " + onlyNotFailing
-                          + ") found " + selected.size() + " new peers: " + selected + " all=" + _notFailingPeersList.size() + " strict=" + _strictCapacityOrder.size());
+                          + ") found " + selected.size() + " new peers: " + selected + " all=" + t.notFailing.size() + " profiles=" + _profiles.size());
             matches.addAll(selected);
         }
         if (matches.size() < howMany) {
@@ -662,11 +632,7 @@ public class ProfileOrganizer {
      *
      */
     public void selectFailingPeers(int howMany, Set<Hash> exclude, Set<Hash> matches) {
-        getReadLock();
-        try {
-            locked_selectPeers(_failingPeers, howMany, exclude, matches);
-        } finally { releaseReadLock(); }
-        return;        
+        selectPeers(_tiers.failing, howMany, exclude, matches);
     }                  
 
     /**                
@@ -676,14 +642,8 @@ public class ProfileOrganizer {
      *                 
      */                
     public List<Hash> selectPeersLocallyUnreachable() { 
-        List<Hash> n;
-        int count;
-        getReadLock();
-        try {
-            count = _notFailingPeers.size();
-            n = new ArrayList<Hash>(_notFailingPeers.keySet());
-        } finally { releaseReadLock(); }
-        List<Hash> l = new ArrayList<Hash>(count / 4);
+        List<Hash> n = _tiers.notFailing;
+        List<Hash> l = new ArrayList<Hash>(n.size() / 4);
         for (Hash peer : n) {
             if (_context.commSystem().wasUnreachable(peer))
                 l.add(peer);
@@ -729,17 +689,15 @@ public class ProfileOrganizer {
      *
      */
     public List<Hash> selectPeersRecentlyRejecting() { 
-        getReadLock();
-        try {
-            long cutoff = _context.clock().now() - (20*1000);
-            int count = _notFailingPeers.size();
-            List<Hash> l = new ArrayList<Hash>(count / 128);
-            for (PeerProfile prof : _notFailingPeers.values()) {
-                if (prof.getTunnelHistory().getLastRejectedBandwidth() > cutoff)
-                    l.add(prof.getPeer());
-            }
-            return l;
-        } finally { releaseReadLock(); }
+        long cutoff = _context.clock().now() - (20*1000);
+        List<Hash> n = _tiers.notFailing;
+        List<Hash> l = new ArrayList<Hash>(n.size() / 128);
+        for (Hash peer : n) {
+            PeerProfile prof = _profiles.get(peer);
+            if (prof != null && prof.getTunnelHistory().getLastRejectedBandwidth() > cutoff)
+                l.add(peer);
+        }
+        return l;
     }
 
     /**
@@ -747,15 +705,7 @@ public class ProfileOrganizer {
      *
      */
     public Set<Hash> selectAllPeers() {
-        getReadLock();
-        try {
-            Set<Hash> allPeers = new HashSet<Hash>(_failingPeers.size() + _notFailingPeers.size() + _highCapacityPeers.size() + _fastPeers.size());
-            allPeers.addAll(_failingPeers.keySet());
-            allPeers.addAll(_notFailingPeers.keySet());
-            allPeers.addAll(_highCapacityPeers.keySet());
-            allPeers.addAll(_fastPeers.keySet());
-            return allPeers;
-        } finally { releaseReadLock(); }
+        return new HashSet<Hash>(_profiles.keySet());
     }
     
     private static final long MIN_EXPIRE_TIME = 2*60*60*1000;
@@ -773,6 +723,19 @@ public class ProfileOrganizer {
     public void reorganize() { reorganize(false); }
 
     public void reorganize(boolean shouldCoalesce) {
+        synchronized (_reorganizeLock) {
+            locked_reorganize(shouldCoalesce);
+        }
+    }
+
+    /**
+     *  Build the new tiers off to the side, from a copy of the profiles,
+     *  so the selectors and addProfile() never wait for us,
+     *  then publish them.
+     *
+     *  @since 0.9.21 split out of reorganize()
+     */
+    private void locked_reorganize(boolean shouldCoalesce) {
         long sortTime = 0;
         int coalesceTime = 0;
         long thresholdTime = 0;
@@ -780,7 +743,8 @@ public class ProfileOrganizer {
         int profileCount = 0;
         int expiredCount = 0;
         
-        long uptime = _context.router().getUptime();
+        // no router for the CLI
+        long uptime = _context.router() != null ? _context.router().getUptime() : 0;
         long expireOlderThan = -1;
         if (uptime > 60*60*1000) {
             // dynamically adjust expire time to control memory usage
@@ -792,77 +756,72 @@ public class ProfileOrganizer {
             expireOlderThan = _context.clock().now() - _currentExpireTime;
         }
         
+        List<PeerProfile> allPeers = new ArrayList<PeerProfile>(_profiles.values());
         if (shouldCoalesce) {
-            getReadLock();
-            try {
-                for (PeerProfile prof : _strictCapacityOrder) {
-                    if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
-                        continue;
-                    }
-                    long coalesceStart = System.currentTimeMillis();
-                    prof.coalesceOnly();
-                    coalesceTime += (int)(System.currentTimeMillis()-coalesceStart);
+            for (PeerProfile prof : allPeers) {
+                if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
+                    continue;
                 }
-            } finally {
-                releaseReadLock();
+                long coalesceStart = System.currentTimeMillis();
+                prof.coalesceOnly();
+                coalesceTime += (int)(System.currentTimeMillis()-coalesceStart);
             }
         }
         
-        if (!getWriteLock())
-            return;
         long start = System.currentTimeMillis();
-        try {
-            Set<PeerProfile> allPeers = _strictCapacityOrder; //new HashSet(_failingPeers.size() + _notFailingPeers.size() + _highCapacityPeers.size() + _fastPeers.size());
-            //allPeers.addAll(_failingPeers.values());
-            //allPeers.addAll(_notFailingPeers.values());
-            //allPeers.addAll(_highCapacityPeers.values());
-            //allPeers.addAll(_fastPeers.values());
-
-            Set<PeerProfile> reordered = new TreeSet<PeerProfile>(_comp);
-            long sortStart = System.currentTimeMillis();
-            for (Iterator<PeerProfile> iter = _strictCapacityOrder.iterator(); iter.hasNext(); ) {
-                PeerProfile prof = iter.next();
-                if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
-                    expiredCount++;
-                    continue; // drop, but no need to delete, since we don't periodically reread
-                    // TODO maybe we should delete files, otherwise they are only deleted at restart
-                }
-                prof.updateValues();
-                reordered.add(prof);
-                profileCount++;
+        Placement p = new Placement(_comp);
+        long sortStart = System.currentTimeMillis();
+        for (PeerProfile prof : allPeers) {
+            if ( (expireOlderThan > 0) && (prof.getLastSendSuccessful() <= expireOlderThan) ) {
+                expiredCount++;
+                // drop, unless it was replaced in the meantime
+                _profiles.remove(prof.getPeer(), prof);
+                continue;
+                // TODO maybe we should delete files, otherwise they are only deleted at restart
             }
-            sortTime = System.currentTimeMillis() - sortStart;
-            _strictCapacityOrder = reordered;
-
-            long thresholdStart = System.currentTimeMillis();
-            locked_calculateThresholds(allPeers);
-            thresholdTime = System.currentTimeMillis()-thresholdStart;
+            prof.updateValues();
+            p.strictCapacityOrder.add(prof);
+            profileCount++;
+        }
+        sortTime = System.currentTimeMillis() - sortStart;
 
-            _failingPeers.clear();
-            _fastPeers.clear();
-            _highCapacityPeers.clear();
-            _notFailingPeers.clear();
-            _notFailingPeersList.clear();
-            _wellIntegratedPeers.clear();
+        long thresholdStart = System.currentTimeMillis();
+        calculateThresholds(p.strictCapacityOrder);
+        thresholdTime = System.currentTimeMillis()-thresholdStart;
 
-            long placeStart = System.currentTimeMillis();
+        long placeStart = System.currentTimeMillis();
 
-            for (PeerProfile profile : _strictCapacityOrder) {
-                locked_placeProfile(profile);
-            }
+        for (PeerProfile profile : p.strictCapacityOrder) {
+            placeProfile(p, profile);
+        }
 
-            locked_unfailAsNecessary();
-            locked_demoteHighCapAsNecessary();
-            locked_promoteFastAsNecessary();
-            locked_demoteFastAsNecessary();
+        unfailAsNecessary(p);
+        demoteHighCapAsNecessary(p);
+        promoteFastAsNecessary(p);
+        demoteFastAsNecessary(p);
 
-            // we now use a random iterator in selectAllNotFailingPeers(),
-            // as it was picking peers in-order before the first reorganization
-            //Collections.shuffle(_notFailingPeersList, _context.random());
+        // we now use a random iterator in selectAllNotFailingPeers(),
+        // as it was picking peers in-order before the first reorganization
+        //Collections.shuffle(_notFailingPeersList, _context.random());
 
-            placeTime = System.currentTimeMillis()-placeStart;
-        } finally { releaseWriteLock(); }
+        synchronized (_tierLock) {
+            // pick up any added by addProfile() since we copied them,
+            // as addProfile() would have
+            for (PeerProfile prof : _profiles.values()) {
+                Hash peer = prof.getPeer();
+                if (p.notFailingPeers.containsKey(peer) || p.failingPeers.containsKey(peer))
+                    continue;
+                p.notFailingPeers.put(peer, prof);
+                p.notFailingPeersList.add(peer);
+                if (_thresholdCapacityValue <= prof.getCapacityValue() &&
+                    p.highCapacityPeers.size() < getMaximumHighCapPeers() &&
+                    isSelectable(peer))
+                    p.highCapacityPeers.put(peer, prof);
+            }
+            _tiers = new Tiers(p);
+        }
 
+        placeTime = System.currentTimeMillis()-placeStart;
 
         if (_log.shouldLog(Log.INFO))
             _log.info("Profiles reorganized. Expired: " + expiredCount
@@ -889,21 +848,21 @@ public class ProfileOrganizer {
     }
     
     /**
-     * As with locked_unfailAsNecessary, I'm not sure how much I like this - if there
+     * As with unfailAsNecessary, I'm not sure how much I like this - if there
      * aren't enough fast peers, move some of the not-so-fast peers into the fast group.
      * This picks the not-so-fast peers based on capacity, not speed, and skips over any
      * failing peers.  Perhaps it should build a seperate strict ordering by speed?  Nah, not
      * worth the maintenance and memory overhead, at least not for now.
      *
      */
-    private void locked_promoteFastAsNecessary() {
+    private void promoteFastAsNecessary(Placement p) {
         int minFastPeers = getMinimumFastPeers();
-        int numToPromote = minFastPeers - _fastPeers.size();
+        int numToPromote = minFastPeers - p.fastPeers.size();
         if (numToPromote > 0) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("Need to explicitly promote " + numToPromote + " peers to the fast group");
-            for (PeerProfile cur : _strictCapacityOrder) {
-                if ( (!_fastPeers.containsKey(cur.getPeer())) && (!cur.getIsFailing()) ) {
+            for (PeerProfile cur : p.strictCapacityOrder) {
+                if ( (!p.fastPeers.containsKey(cur.getPeer())) && (!cur.getIsFailing()) ) {
                     if (!isSelectable(cur.getPeer())) {
                         // skip peers we dont have in the netDb
                         // if (_log.shouldLog(Log.INFO))   
@@ -918,7 +877,7 @@ public class ProfileOrganizer {
                     }
                     if (_log.shouldLog(Log.INFO))
                         _log.info("Fast promoting: " + cur.getPeer().toBase64());
-                    _fastPeers.put(cur.getPeer(), cur);
+                    p.fastPeers.put(cur.getPeer(), cur);
                     // no need to remove it from any of the other groups, since if it is 
                     // fast, it has a high capacity, and it is not failing
                     numToPromote--;
@@ -936,18 +895,18 @@ public class ProfileOrganizer {
      * number, we don't really find out who the fast ones are.
      * @since 0.7.10
      */
-    private void locked_demoteFastAsNecessary() {
+    private void demoteFastAsNecessary(Placement p) {
         int maxFastPeers = getMaximumFastPeers();
-        int numToDemote = _fastPeers.size() - maxFastPeers;
+        int numToDemote = p.fastPeers.size() - maxFastPeers;
         if (numToDemote > 0) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("Need to explicitly demote " + numToDemote + " peers from the fast group");
             // sort by speed, slowest-first
             Set<PeerProfile> sorted = new TreeSet<PeerProfile>(new SpeedComparator());
-            sorted.addAll(_fastPeers.values());
+            sorted.addAll(p.fastPeers.values());
             Iterator<PeerProfile> iter = sorted.iterator();
             for (int i = 0; i < numToDemote && iter.hasNext(); i++) {
-                _fastPeers.remove(iter.next().getPeer());
+                p.fastPeers.remove(iter.next().getPeer());
             }
         }
     }
@@ -958,25 +917,25 @@ public class ProfileOrganizer {
      * number, we don't really find out who the high capacity ones are.
      * @since 0.7.11
      */
-    private void locked_demoteHighCapAsNecessary() {
+    private void demoteHighCapAsNecessary(Placement p) {
         int maxHighCapPeers = getMaximumHighCapPeers();
-        int numToDemote = _highCapacityPeers.size() - maxHighCapPeers;
+        int numToDemote = p.highCapacityPeers.size() - maxHighCapPeers;
         if (numToDemote > 0) {
             // sorted by capacity, highest-first
-            Iterator<PeerProfile> iter = _strictCapacityOrder.iterator();
+            Iterator<PeerProfile> iter = p.strictCapacityOrder.iterator();
             for (int i = 0; iter.hasNext() && i < maxHighCapPeers; ) {
-                if (_highCapacityPeers.containsKey(iter.next().getPeer()))
+                if (p.highCapacityPeers.containsKey(iter.next().getPeer()))
                     i++;
             }
             for (int i = 0; iter.hasNext() && i < numToDemote; ) {
                 Hash h = iter.next().getPeer();
-                if (_highCapacityPeers.remove(h) != null) {
-                    _fastPeers.remove(h);
+                if (p.highCapacityPeers.remove(h) != null) {
+                    p.fastPeers.remove(h);
                     i++;
                 }
             }
             if (_log.shouldLog(Log.INFO))
-                _log.info("Demoted " + numToDemote + " peers from high cap, size now " + _highCapacityPeers.size());
+                _log.info("Demoted " + numToDemote + " peers from high cap, size now " + p.highCapacityPeers.size());
         }
     }
     
@@ -989,9 +948,9 @@ public class ProfileOrganizer {
      * override their 'failing' flag, resorting them into the not-failing buckets
      *
      */
-    private void locked_unfailAsNecessary() {
+    private void unfailAsNecessary(Placement p) {
         int notFailingActive = 0;
-        for (PeerProfile peer : _notFailingPeers.values()) {
+        for (PeerProfile peer : p.notFailingPeers.values()) {
             if (peer.getIsActive())
                 notFailingActive++;
             if (notFailingActive >= MIN_NOT_FAILING_ACTIVE) {
@@ -1004,12 +963,12 @@ public class ProfileOrganizer {
         int needToUnfail = MIN_NOT_FAILING_ACTIVE - notFailingActive;
         if (needToUnfail > 0) {
             int unfailed = 0;
-            for (PeerProfile best : _strictCapacityOrder) {
+            for (PeerProfile best : p.strictCapacityOrder) {
                 if ( (best.getIsActive()) && (best.getIsFailing()) ) {
                     if (_log.shouldLog(Log.WARN))
                         _log.warn("All peers were failing, so we have overridden the failing flag for one of the most reliable active peers (" + best.getPeer().toBase64() + ")");
                     best.setIsFailing(false);
-                    locked_placeProfile(best);
+                    placeProfile(p, best);
                     unfailed++;
                 }
                 if (unfailed >= needToUnfail)
@@ -1031,7 +990,7 @@ public class ProfileOrganizer {
      * high capacity group to define the integration threshold.
      *
      */
-    private void locked_calculateThresholds(Set<PeerProfile> allPeers) {
+    private void calculateThresholds(Set<PeerProfile> allPeers) {
         double totalCapacity = 0;
         double totalIntegration = 0;
         Set<PeerProfile> reordered = new TreeSet<PeerProfile>(_comp);
@@ -1052,8 +1011,8 @@ public class ProfileOrganizer {
             reordered.add(profile);
         }
         
-        locked_calculateCapacityThreshold(totalCapacity, reordered);
-        locked_calculateSpeedThreshold(reordered);
+        calculateCapacityThreshold(totalCapacity, reordered);
+        calculateSpeedThreshold(reordered);
         
         if (totalIntegration > 0)
             _thresholdIntegrationValue = 1.0d * avg(totalIntegration, reordered.size());
@@ -1071,7 +1030,7 @@ public class ProfileOrganizer {
      *                  (highest first) for active nonfailing peers whose 
      *                  capacity is greater than the growth factor
      */
-    private void locked_calculateCapacityThreshold(double totalCapacity, Set<PeerProfile> reordered) {
+    private void calculateCapacityThreshold(double totalCapacity, Set<PeerProfile> reordered) {
         int numNotFailing = reordered.size();
         
         double meanCapacity = avg(totalCapacity, numNotFailing);
@@ -1139,9 +1098,9 @@ public class ProfileOrganizer {
      * @param reordered ordered set of PeerProfile objects, ordered by capacity
      *                  (highest first) for active nonfailing peers
      */
-    private void locked_calculateSpeedThreshold(Set<PeerProfile> reordered) {
+    private void calculateSpeedThreshold(Set<PeerProfile> reordered) {
         if (true) {
-            locked_calculateSpeedThresholdMean(reordered);
+            calculateSpeedThresholdMean(reordered);
             return;
         }
 /*****
@@ -1171,7 +1130,7 @@ public class ProfileOrganizer {
 *****/
     }
     
-    private void locked_calculateSpeedThresholdMean(Set<PeerProfile> reordered) {
+    private void calculateSpeedThresholdMean(Set<PeerProfile> reordered) {
         double total = 0;
         int count = 0;
         for (PeerProfile profile : reordered) {
@@ -1200,33 +1159,23 @@ public class ProfileOrganizer {
             return 0.0d;
     }
     
-    /** called after locking the reorganizeLock */
-    private PeerProfile locked_getProfile(Hash peer) {
-        PeerProfile cur = _notFailingPeers.get(peer);
-        if (cur != null) 
-            return cur;
-        cur = _failingPeers.get(peer);
-        return cur;
-    }
-    
     /**
      * Select peers from the peer mapping, excluding appropriately and increasing the
      * matches set until it has howMany elements in it.
      *
      */
-    private void locked_selectPeers(Map<Hash, PeerProfile> peers, int howMany, Set<Hash> toExclude, Set<Hash> matches) {
-        locked_selectPeers(peers, howMany, toExclude, matches, 0);
+    private void selectPeers(List<Hash> peers, int howMany, Set<Hash> toExclude, Set<Hash> matches) {
+        selectPeers(peers, howMany, toExclude, matches, 0);
     }
 
     /**
      * @param mask 0-4 Number of bytes to match to determine if peers in the same IP range should
      *             not be in the same tunnel. 0 = disable check; 1 = /8; 2 = /16; 3 = /24; 4 = exact IP match
      */
-    private void locked_selectPeers(Map<Hash, PeerProfile> peers, int howMany, Set<Hash> toExclude, Set<Hash> matches, int mask) {
-        List<Hash> all = new ArrayList<Hash>(peers.keySet());
+    private void selectPeers(List<Hash> peers, int howMany, Set<Hash> toExclude, Set<Hash> matches, int mask) {
         Set<Integer> IPSet = new HashSet<Integer>(8);
         // use RandomIterator to avoid shuffling the whole thing
-        for (Iterator<Hash> iter = new RandomIterator<Hash>(all); (matches.size() < howMany) && iter.hasNext(); ) {
+        for (Iterator<Hash> iter = new RandomIterator<Hash>(peers); (matches.size() < howMany) && iter.hasNext(); ) {
             Hash peer = iter.next();
             if (toExclude != null && toExclude.contains(peer))
                 continue;
@@ -1325,11 +1274,10 @@ public class ProfileOrganizer {
      *    7: return only from group 3
      *</pre>
      */
-    private void locked_selectPeers(Map<Hash, PeerProfile> peers, int howMany, Set<Hash> toExclude,
-                                    Set<Hash> matches, Hash randomKey, Slice subTierMode) {
-        List<Hash> all = new ArrayList<Hash>(peers.keySet());
+    private void selectPeers(List<Hash> peers, int howMany, Set<Hash> toExclude,
+                             Set<Hash> matches, Hash randomKey, Slice subTierMode) {
         // use RandomIterator to avoid shuffling the whole thing
-        for (Iterator<Hash> iter = new RandomIterator<Hash>(all); (matches.size() < howMany) && iter.hasNext(); ) {
+        for (Iterator<Hash> iter = new RandomIterator<Hash>(peers); (matches.size() < howMany) && iter.hasNext(); ) {
             Hash peer = iter.next();
             if (toExclude != null && toExclude.contains(peer))
                 continue;
@@ -1399,34 +1347,34 @@ public class ProfileOrganizer {
     }
     
     /**
-     * called after locking the reorganizeLock, place the profile in the appropriate tier.
+     * Place the profile in the appropriate tier, only called by the reorganizing thread.
      * This is where we implement the (betterThanAverage ? goToTierX : goToTierY) algorithms
      *
      */
-    private void locked_placeProfile(PeerProfile profile) {
+    private void placeProfile(Placement p, PeerProfile profile) {
         Hash peer = profile.getPeer();
         if (profile.getIsFailing()) {
             if (!shouldDrop(profile))
-                _failingPeers.put(peer, profile);
-            _fastPeers.remove(peer);
-            _highCapacityPeers.remove(peer);
-            _wellIntegratedPeers.remove(peer);
-            _notFailingPeers.remove(peer);
-            _notFailingPeersList.remove(peer);
+                p.failingPeers.put(peer, profile);
+            p.fastPeers.remove(peer);
+            p.highCapacityPeers.remove(peer);
+            p.wellIntegratedPeers.remove(peer);
+            p.notFailingPeers.remove(peer);
+            p.notFailingPeersList.remove(peer);
         } else {
-            _failingPeers.remove(peer);
-            _fastPeers.remove(peer);
-            _highCapacityPeers.remove(peer);
-            _wellIntegratedPeers.remove(peer);
+            p.failingPeers.remove(peer);
+            p.fastPeers.remove(peer);
+            p.highCapacityPeers.remove(peer);
+            p.wellIntegratedPeers.remove(peer);
             
-            _notFailingPeers.put(peer, profile);
-            _notFailingPeersList.add(peer);
+            p.notFailingPeers.put(peer, profile);
+            p.notFailingPeersList.add(peer);
             // if not selectable for a tunnel (banlisted for example),
             // don't allow them in the high-cap pool, what would the point of that be?
             if (_thresholdCapacityValue <= profile.getCapacityValue() &&
                 isSelectable(peer) &&
                 !_context.commSystem().isInBadCountry(peer)) {
-                _highCapacityPeers.put(peer, profile);
+                p.highCapacityPeers.put(peer, profile);
                 if (_log.shouldLog(Log.DEBUG))
                     _log.debug("High capacity: \t" + peer);
                 if (_thresholdSpeedValue <= profile.getSpeedValue()) {
@@ -1434,7 +1382,7 @@ public class ProfileOrganizer {
                         if (_log.shouldLog(Log.INFO))
                             _log.info("Skipping fast mark [!active] for " + peer);
                     } else {
-                        _fastPeers.put(peer, profile);
+                        p.fastPeers.put(peer, profile);
                         if (_log.shouldLog(Log.DEBUG))
                             _log.debug("Fast: \t" + peer);
                     }
@@ -1449,7 +1397,7 @@ public class ProfileOrganizer {
             // to call him well-integrated.
             // This could be used later to see if a floodfill peer is for real.
             if (_thresholdIntegrationValue <= profile.getIntegrationValue()) {
-                _wellIntegratedPeers.put(peer, profile);
+                p.wellIntegratedPeers.put(peer, profile);
                 if (_log.shouldLog(Log.DEBUG))
                     _log.debug("Integrated: \t" + peer);
             }
@@ -1508,6 +1456,109 @@ public class ProfileOrganizer {
     private final static DecimalFormat _fmt = new DecimalFormat("###,##0.00", new DecimalFormatSymbols(Locale.UK));
     private final static String num(double num) { synchronized (_fmt) { return _fmt.format(num); } }
     
+    /**
+     *  The tiers being built by reorganize(), only touched by the reorganizing thread.
+     *
+     *  @since 0.9.21
+     */
+    private static class Placement {
+        /** H(routerIdentity) to PeerProfile for all peers that are fast and high capacity*/
+        final Map<Hash, PeerProfile> fastPeers = new HashMap<Hash, PeerProfile>(32);
+        /** H(routerIdentity) to PeerProfile for all peers that have high capacities */
+        final Map<Hash, PeerProfile> highCapacityPeers = new HashMap<Hash, PeerProfile>(64);
+        /** H(routerIdentity) to PeerProfile for all peers that well integrated into the network and not failing horribly */
+        final Map<Hash, PeerProfile> wellIntegratedPeers = new HashMap<Hash, PeerProfile>(128);
+        /** H(routerIdentity) to PeerProfile for all peers that are not failing horribly */
+        final Map<Hash, PeerProfile> notFailingPeers = new HashMap<Hash, PeerProfile>(256);
+        /** H(routerIdnetity), containing elements in notFailingPeers */
+        final List<Hash> notFailingPeersList = new ArrayList<Hash>(256);
+        /** H(routerIdentity) to PeerProfile for all peers that ARE failing horribly (but that we haven't dropped reference to yet) */
+        final Map<Hash, PeerProfile> failingPeers = new HashMap<Hash, PeerProfile>(16);
+        /** TreeSet of PeerProfile objects, sorted by capacity, highest first */
+        final Set<PeerProfile> strictCapacityOrder;
+
+        public Placement(InverseCapacityComparator comp) {
+            strictCapacityOrder = new TreeSet<PeerProfile>(comp);
+        }
+    }
+
+    /**
+     *  An immutable snapshot of the tiers, so the selectors may iterate
+     *  without locking. Replaced as a whole by reorganize(),
+     *  and copied with one more peer by addProfile().
+     *
+     *  @since 0.9.21
+     */
+    private static class Tiers {
+        final List<Hash> fast, highCap, wellIntegrated, notFailing, failing;
+        final Set<Hash> fastSet, highCapSet, wellIntegratedSet, notFailingSet;
+
+        static final Tiers EMPTY = new Tiers(new Placement(new InverseCapacityComparator()));
+
+        public Tiers(Placement p) {
+            this(list(p.fastPeers.keySet()), list(p.highCapacityPeers.keySet()),
+                 list(p.wellIntegratedPeers.keySet()), list(p.notFailingPeersList),
+                 list(p.failingPeers.keySet()));
+        }
+
+        private Tiers(List<Hash> fast, List<Hash> highCap, List<Hash> wellIntegrated,
+                      List<Hash> notFailing, List<Hash> failing) {
+            this(fast, set(fast), highCap, set(highCap), wellIntegrated, set(wellIntegrated),
+                 notFailing, set(notFailing), failing);
+        }
+
+        private Tiers(List<Hash> fast, Set<Hash> fastSet,
+                      List<Hash> highCap, Set<Hash> highCapSet,
+                      List<Hash> wellIntegrated, Set<Hash> wellIntegratedSet,
+                      List<Hash> notFailing, Set<Hash> notFailingSet,
+                      List<Hash> failing) {
+            this.fast = fast;
+            this.fastSet = fastSet;
+            this.highCap = highCap;
+            this.highCapSet = highCapSet;
+            this.wellIntegrated = wellIntegrated;
+            this.wellIntegratedSet = wellIntegratedSet;
+            this.notFailing = notFailing;
+            this.notFailingSet = notFailingSet;
+            this.failing = failing;
+        }
+
+        /**
+         *  Copy-on-write, only for addProfile().
+         *  Only the tiers the peer is added to are copied, the rest are shared.
+         *  @return a new Tiers with the peer appended to the not failing and/or high cap tiers
+         */
+        public Tiers add(Hash peer, boolean toNotFailing, boolean toHighCap) {
+            return new Tiers(fast, fastSet,
+                             toHighCap ? append(highCap, peer) : highCap,
+                             toHighCap ? append(highCapSet, peer) : highCapSet,
+                             wellIntegrated, wellIntegratedSet,
+                             toNotFailing ? append(notFailing, peer) : notFailing,
+                             toNotFailing ? append(notFailingSet, peer) : notFailingSet,
+                             failing);
+        }
+
+        private static List<Hash> list(Collection<Hash> c) {
+            return Collections.unmodifiableList(Arrays.asList(c.toArray(new Hash[c.size()])));
+        }
+
+        private static List<Hash> append(List<Hash> l, Hash h) {
+            Hash[] a = l.toArray(new Hash[l.size() + 1]);
+            a[l.size()] = h;
+            return Collections.unmodifiableList(Arrays.asList(a));
+        }
+
+        private static Set<Hash> append(Set<Hash> s, Hash h) {
+            Set<Hash> rv = new HashSet<Hash>(s);
+            rv.add(h);
+            return Collections.unmodifiableSet(rv);
+        }
+
+        private static Set<Hash> set(List<Hash> l) {
+            return Collections.unmodifiableSet(new HashSet<Hash>(l));
+        }
+    }
+
     /**
      * Read in all of the profiles specified and print out 
      * their calculated values.  Usage: <pre>
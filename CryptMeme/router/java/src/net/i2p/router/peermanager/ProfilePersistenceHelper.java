@@ -53,7 +53,7 @@ class ProfilePersistenceHelper {
      * have changed (etc).
      *
      */
-    private static final long EXPIRE_AGE = 3*24*60*60*1000;
+    static final long EXPIRE_AGE = 3*24*60*60*1000;
     
     private final File _profileDir;
     private Hash _us;
@@ -73,6 +73,9 @@ class ProfilePersistenceHelper {
     }
     
     public void setUs(Hash routerIdentHash) { _us = routerIdentHash; }
+
+    /** @since 0.9.21 */
+    File getProfileDir() { return _profileDir; }
     
     /** write out the data from the profile to the stream */
     public void writeProfile(PeerProfile profile) {
@@ -375,6 +378,19 @@ class ProfilePersistenceHelper {
         }
     }
     
+    /**
+     *  Delete the file for this peer, in any of its formats,
+     *  after migrating it to the ProfileStore
+     *  @since 0.9.21
+     */
+    void deleteProfile(Hash peer) {
+        String hash = peer.toBase64();
+        File dir = new File(_profileDir, DIR_PREFIX + hash.charAt(0));
+        new File(dir, PREFIX + hash + SUFFIX).delete();
+        new File(dir, PREFIX + hash + UNCOMPRESSED_SUFFIX).delete();
+        new File(dir, PREFIX + hash + OLD_SUFFIX).delete();
+    }
+
     private File pickFile(PeerProfile profile) {
         String hash = profile.getPeer().toBase64();
         File dir = new File(_profileDir, DIR_PREFIX + hash.charAt(0));
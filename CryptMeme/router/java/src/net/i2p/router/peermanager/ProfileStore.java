@@ -0,0 +1,480 @@
+package net.i2p.router.peermanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+import net.i2p.stat.RateStat;
+import net.i2p.util.Log;
+
+/**
+ *  Binary profile persistence in a single memory-mapped file,
+ *  with a fixed-size slot per peer.
+ *  Enabled with router.profileStore=mmap, replacing the
+ *  one-gzipped-text-file-per-peer format of ProfilePersistenceHelper.
+ *
+ *  Opening only scans the slot headers to build the index;
+ *  a profile is decoded when it is first asked for, see ProfileOrganizer.getProfile(),
+ *  and writing a profile only rewrites its own slot.
+ *
+ *<pre>
+ *  File header, HEADER_SIZE bytes:
+ *    4 magic, 1 version, 3 unused, 4 slot size, 4 slot count
+ *
+ *  Slot, SLOT_SIZE bytes:
+ *   32 peer hash
+ *    8 last sent to successfully, so we can expire without decoding
+ *    8 written date
+ *    1 flags, 0 if the slot is free
+ *    2 body length
+ *    4 CRC32 of the above and the body
+ *    n body
+ *
+ *  Body:
+ *    PeerProfile values, then if expanded the TunnelHistory and tunnel RateStats,
+ *    then if expanded for the DB the DBHistory and DB RateStats.
+ *</pre>
+ *
+ *  All ints and longs are big-endian.
+ *  A slot that fails the CRC (we crashed while the OS was writing it out)
+ *  is dropped.
+ *
+ *  Not a replacement for the text format in exportProfile() or the console.
+ *
+ *  @since 0.9.21
+ */
+class ProfileStore {
+    private final RouterContext _context;
+    private final Log _log;
+    private final File _file;
+    private final Map<Hash, Integer> _index;
+    private final BitSet _used;
+    private final CRC32 _crc;
+    /** for encoding and decoding, one slot */
+    private final byte[] _slotBuf;
+    /** by slot */
+    private long[] _lastSend;
+    /** by slot */
+    private long[] _written;
+    private RandomAccessFile _raf;
+    private MappedByteBuffer _map;
+    private int _slotCount;
+
+    public static final String FILENAME = "profiles.dat";
+    private static final int MAGIC = 0x50725374;
+    private static final byte VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int SLOT_SIZE = 4096;
+    private static final int INITIAL_SLOTS = 256;
+
+    private static final int OFF_LAST_SEND = Hash.HASH_LENGTH;
+    private static final int OFF_WRITTEN = OFF_LAST_SEND + 8;
+    private static final int OFF_FLAGS = OFF_WRITTEN + 8;
+    private static final int OFF_LENGTH = OFF_FLAGS + 1;
+    private static final int OFF_CRC = OFF_LENGTH + 2;
+    private static final int OFF_BODY = OFF_CRC + 4;
+
+    private static final int FLAG_USED = 0x01;
+    private static final int FLAG_EXPANDED = 0x02;
+    private static final int FLAG_EXPANDED_DB = 0x04;
+
+    public ProfileStore(RouterContext ctx, File file) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(ProfileStore.class);
+        _file = file;
+        _index = new HashMap<Hash, Integer>(1024);
+        _used = new BitSet(INITIAL_SLOTS);
+        _crc = new CRC32();
+        _slotBuf = new byte[SLOT_SIZE];
+    }
+
+    /**
+     *  Create or open the file and build the index.
+     *  Expired and corrupt slots are freed.
+     *  Does nothing if already open.
+     *
+     *  @return the number of profiles stored
+     */
+    public synchronized int open() throws IOException {
+        if (_raf != null)
+            return _index.size();
+        boolean exists = _file.exists() && _file.length() >= HEADER_SIZE;
+        _raf = new RandomAccessFile(_file, "rw");
+        try {
+            int slots = INITIAL_SLOTS;
+            if (exists) {
+                if (_raf.readInt() != MAGIC || _raf.readByte() != VERSION)
+                    throw new IOException("Not a profile store: " + _file);
+                _raf.skipBytes(3);
+                if (_raf.readInt() != SLOT_SIZE)
+                    throw new IOException("Bad slot size: " + _file);
+                slots = Math.max(_raf.readInt(), 1);
+            }
+            map(slots);
+            if (exists)
+                scan();
+        } catch (IOException ioe) {
+            _raf.close();
+            _raf = null;
+            _map = null;
+            throw ioe;
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Opened profile store " + _file + " with " + _index.size() +
+                      " profiles in " + _slotCount + " slots");
+        return _index.size();
+    }
+
+    /**
+     *  (Re)map the file with the given number of slots, growing it if necessary.
+     */
+    private void map(int slots) throws IOException {
+        long len = HEADER_SIZE + (((long) slots) * SLOT_SIZE);
+        if (len > Integer.MAX_VALUE)
+            throw new IOException("Profile store too big");
+        if (_raf.length() < len)
+            _raf.setLength(len);
+        _map = _raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, len);
+        _map.putInt(0, MAGIC);
+        _map.put(4, VERSION);
+        _map.putInt(8, SLOT_SIZE);
+        _map.putInt(12, slots);
+        long[] lastSend = new long[slots];
+        long[] written = new long[slots];
+        if (_lastSend != null) {
+            System.arraycopy(_lastSend, 0, lastSend, 0, _slotCount);
+            System.arraycopy(_written, 0, written, 0, _slotCount);
+        }
+        _lastSend = lastSend;
+        _written = written;
+        _slotCount = slots;
+    }
+
+    /**
+     *  Read the slot headers only
+     */
+    private void scan() {
+        byte[] hbuf = new byte[Hash.HASH_LENGTH];
+        int expired = 0;
+        for (int i = 0; i < _slotCount; i++) {
+            int off = offset(i);
+            if ((_map.get(off + OFF_FLAGS) & FLAG_USED) == 0)
+                continue;
+            long lastSend = _map.getLong(off + OFF_LAST_SEND);
+            if (isExpired(lastSend)) {
+                _map.put(off + OFF_FLAGS, (byte) 0);
+                expired++;
+                continue;
+            }
+            _map.position(off);
+            _map.get(hbuf);
+            Hash peer = Hash.create(hbuf, 0);
+            Integer old = _index.put(peer, Integer.valueOf(i));
+            if (old != null) {
+                // shouldn't happen, keep the newer one
+                int o = old.intValue();
+                if (_written[o] > _map.getLong(off + OFF_WRITTEN)) {
+                    _index.put(peer, old);
+                    _map.put(off + OFF_FLAGS, (byte) 0);
+                    continue;
+                }
+                free(o);
+            }
+            _used.set(i);
+            _lastSend[i] = lastSend;
+            _written[i] = _map.getLong(off + OFF_WRITTEN);
+        }
+        if (expired > 0 && _log.shouldLog(Log.INFO))
+            _log.info("Dropped " + expired + " expired profiles");
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + (slot * SLOT_SIZE);
+    }
+
+    private boolean isExpired(long lastSentToSuccessfully) {
+        return _context.clock().now() - lastSentToSuccessfully > ProfilePersistenceHelper.EXPIRE_AGE;
+    }
+
+    private void free(int slot) {
+        _map.put(offset(slot) + OFF_FLAGS, (byte) 0);
+        _used.clear(slot);
+        _lastSend[slot] = 0;
+        _written[slot] = 0;
+    }
+
+    public synchronized boolean contains(Hash peer) {
+        return _index.containsKey(peer);
+    }
+
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    /**
+     *  When was the profile last written, or 0 if it isn't stored
+     */
+    public synchronized long getWritten(Hash peer) {
+        Integer slot = _index.get(peer);
+        return slot != null ? _written[slot.intValue()] : 0;
+    }
+
+    /**
+     *  The peers we most recently sent to successfully, most recent first,
+     *  from the slot headers, without decoding the profiles.
+     *
+     *  @param max maximum number to return
+     */
+    public synchronized List<Hash> getRecent(int max) {
+        List<Map.Entry<Hash, Integer>> entries = new ArrayList<Map.Entry<Hash, Integer>>(_index.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Hash, Integer>>() {
+            public int compare(Map.Entry<Hash, Integer> l, Map.Entry<Hash, Integer> r) {
+                long ll = _lastSend[l.getValue().intValue()];
+                long rl = _lastSend[r.getValue().intValue()];
+                return ll > rl ? -1 : (ll < rl ? 1 : 0);
+            }
+        });
+        int sz = Math.min(max, entries.size());
+        List<Hash> rv = new ArrayList<Hash>(sz);
+        for (int i = 0; i < sz; i++) {
+            rv.add(entries.get(i).getKey());
+        }
+        return rv;
+    }
+
+    /**
+     *  Decode the profile for this peer.
+     *  Expired or corrupt profiles are removed.
+     *
+     *  @return null if not stored, expired, or corrupt
+     */
+    public synchronized PeerProfile read(Hash peer) {
+        Integer islot = _index.get(peer);
+        if (islot == null)
+            return null;
+        int slot = islot.intValue();
+        if (isExpired(_lastSend[slot])) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Dropping old profile " + peer);
+            remove(peer);
+            return null;
+        }
+        _map.position(offset(slot));
+        _map.get(_slotBuf);
+        ByteBuffer buf = ByteBuffer.wrap(_slotBuf);
+        int flags = buf.get(OFF_FLAGS) & 0xff;
+        int len = buf.getShort(OFF_LENGTH) & 0xffff;
+        if (len > SLOT_SIZE - OFF_BODY || buf.getInt(OFF_CRC) != crc(len)) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Corrupt profile for " + peer + " in " + _file);
+            remove(peer);
+            return null;
+        }
+        buf.position(OFF_BODY);
+        buf.limit(OFF_BODY + len);
+        try {
+            PeerProfile rv = decode(peer, flags, buf);
+            if (_log.shouldLog(Log.DEBUG))
+                _log.debug("Loaded the profile for " + peer);
+            return rv;
+        } catch (BufferUnderflowException bue) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Corrupt profile for " + peer + " in " + _file, bue);
+            remove(peer);
+            return null;
+        }
+    }
+
+    /**
+     *  Write the profile to its slot, allocating one if necessary.
+     *  Expired profiles are removed instead.
+     *  Call sync() after a batch of writes.
+     *
+     *  @return success
+     */
+    public synchronized boolean write(PeerProfile profile) {
+        if (_map == null)
+            return false;
+        Hash peer = profile.getPeer();
+        long lastSend = profile.getLastSendSuccessful();
+        if (isExpired(lastSend)) {
+            remove(peer);
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(_slotBuf);
+        int flags = FLAG_USED;
+        if (profile.getIsExpanded())
+            flags |= FLAG_EXPANDED;
+        if (profile.getIsExpandedDB())
+            flags |= FLAG_EXPANDED_DB;
+        long now = _context.clock().now();
+        buf.put(peer.getData());
+        buf.putLong(lastSend);
+        buf.putLong(now);
+        buf.put((byte) flags);
+        buf.position(OFF_BODY);
+        try {
+            encode(profile, buf);
+        } catch (BufferOverflowException boe) {
+            _log.error("Profile for " + peer + " does not fit in a slot");
+            return false;
+        }
+        int len = buf.position() - OFF_BODY;
+        buf.putShort(OFF_LENGTH, (short) len);
+        buf.putInt(OFF_CRC, crc(len));
+
+        Integer islot = _index.get(peer);
+        int slot;
+        if (islot != null) {
+            slot = islot.intValue();
+        } else {
+            slot = _used.nextClearBit(0);
+            if (slot >= _slotCount) {
+                try {
+                    map(_slotCount * 2);
+                } catch (IOException ioe) {
+                    _log.error("Unable to grow the profile store " + _file, ioe);
+                    return false;
+                }
+            }
+            _used.set(slot);
+            _index.put(peer, Integer.valueOf(slot));
+        }
+        _map.position(offset(slot));
+        _map.put(_slotBuf, 0, OFF_BODY + len);
+        _lastSend[slot] = lastSend;
+        _written[slot] = now;
+        return true;
+    }
+
+    /**
+     *  @return true if it was stored
+     */
+    public synchronized boolean remove(Hash peer) {
+        Integer slot = _index.remove(peer);
+        if (slot == null)
+            return false;
+        free(slot.intValue());
+        return true;
+    }
+
+    /**
+     *  Flush the mapped file to disk
+     */
+    public synchronized void sync() {
+        if (_map != null)
+            _map.force();
+    }
+
+    /**
+     *  Sync and close. May be reopened with open().
+     */
+    public synchronized void close() {
+        if (_raf == null)
+            return;
+        _map.force();
+        _map = null;
+        try {
+            _raf.close();
+        } catch (IOException ioe) {}
+        _raf = null;
+        _index.clear();
+        _used.clear();
+        _lastSend = null;
+        _written = null;
+        _slotCount = 0;
+    }
+
+    /**
+     *  CRC32 of the slot header before the CRC, and the body, in _slotBuf
+     */
+    private int crc(int len) {
+        _crc.reset();
+        _crc.update(_slotBuf, 0, OFF_CRC);
+        _crc.update(_slotBuf, OFF_BODY, len);
+        return (int) _crc.getValue();
+    }
+
+    /**
+     *  Same values as ProfilePersistenceHelper.writeProfile()
+     */
+    private static void encode(PeerProfile profile, ByteBuffer buf) {
+        buf.putLong(profile.getSpeedBonus());
+        buf.putLong(profile.getCapacityBonus());
+        buf.putLong(profile.getIntegrationBonus());
+        buf.putLong(profile.getFirstHeardAbout());
+        buf.putLong(profile.getLastHeardAbout());
+        buf.putLong(profile.getLastHeardFrom());
+        buf.putLong(profile.getLastSendSuccessful());
+        buf.putLong(profile.getLastSendFailed());
+        buf.putDouble(profile.getTunnelTestTimeAverage());
+        buf.putDouble(profile.getPeakThroughputKBps());
+        buf.putDouble(profile.getPeakTunnelThroughputKBps());
+        buf.putDouble(profile.getPeakTunnel1mThroughputKBps());
+        if (profile.getIsExpanded()) {
+            profile.getTunnelHistory().store(buf);
+            profile.getTunnelCreateResponseTime().store(buf);
+            profile.getTunnelTestResponseTime().store(buf);
+        }
+        if (profile.getIsExpandedDB()) {
+            profile.getDBHistory().store(buf);
+            profile.getDbIntroduction().store(buf);
+            profile.getDbResponseTime().store(buf);
+        }
+    }
+
+    /**
+     *  Same as ProfilePersistenceHelper.readProfile()
+     */
+    private PeerProfile decode(Hash peer, int flags, ByteBuffer buf) {
+        PeerProfile profile = new PeerProfile(_context, peer);
+        profile.setSpeedBonus(buf.getLong());
+        profile.setCapacityBonus(buf.getLong());
+        profile.setIntegrationBonus(buf.getLong());
+        profile.setFirstHeardAbout(buf.getLong());
+        profile.setLastHeardAbout(buf.getLong());
+        profile.setLastHeardFrom(buf.getLong());
+        profile.setLastSendSuccessful(buf.getLong());
+        profile.setLastSendFailed(buf.getLong());
+        profile.setTunnelTestTimeAverage(buf.getDouble());
+        profile.setPeakThroughputKBps(buf.getDouble());
+        profile.setPeakTunnelThroughputKBps(buf.getDouble());
+        profile.setPeakTunnel1mThroughputKBps(buf.getDouble());
+        if ((flags & FLAG_EXPANDED) != 0) {
+            profile.getTunnelHistory().load(buf);
+            loadRates(profile.getTunnelCreateResponseTime(), buf, "tunnelCreateResponseTime");
+            loadRates(profile.getTunnelTestResponseTime(), buf, "tunnelTestResponseTime");
+        }
+        if ((flags & FLAG_EXPANDED_DB) != 0) {
+            profile.expandDBProfile();
+            profile.getDBHistory().load(buf);
+            loadRates(profile.getDbIntroduction(), buf, "dbIntroduction");
+            loadRates(profile.getDbResponseTime(), buf, "dbResponseTime");
+        }
+        return profile;
+    }
+
+    private void loadRates(RateStat rs, ByteBuffer buf, String name) {
+        try {
+            rs.load(buf, true);
+        } catch (IllegalArgumentException iae) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Profile rate " + name + " is corrupt, resetting", iae);
+        }
+    }
+}
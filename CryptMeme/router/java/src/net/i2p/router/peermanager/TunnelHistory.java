@@ -2,6 +2,7 @@ package net.i2p.router.peermanager;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
@@ -47,9 +48,19 @@ public class TunnelHistory {
     }
     
     private void createRates(String statGroup) {
+        createRejectRate(statGroup);
+        createFailRate(statGroup);
+    }
+
+    /** @since 0.9.21 split out of createRates() */
+    private void createRejectRate(String statGroup) {
         _rejectRate = new RateStat("tunnelHistory.rejectRate", "How often does this peer reject a tunnel request?", statGroup, new long[] { 10*60*1000l, 30*60*1000l, 60*60*1000l, 24*60*60*1000l });
-        _failRate = new RateStat("tunnelHistory.failRate", "How often do tunnels this peer accepts fail?", statGroup, new long[] { 10*60*1000l, 30*60*1000l, 60*60*1000l, 24*60*60*1000l });
         _rejectRate.setStatLog(_context.statManager().getStatLog());
+    }
+
+    /** @since 0.9.21 split out of createRates() */
+    private void createFailRate(String statGroup) {
+        _failRate = new RateStat("tunnelHistory.failRate", "How often do tunnels this peer accepts fail?", statGroup, new long[] { 10*60*1000l, 30*60*1000l, 60*60*1000l, 24*60*60*1000l });
         _failRate.setStatLog(_context.statManager().getStatLog());
     }
     
@@ -189,6 +200,53 @@ public class TunnelHistory {
         }
     }
     
+    /**
+     *  Binary form of store(OutputStream), for ProfileStore
+     *  @since 0.9.21
+     */
+    void store(ByteBuffer buf) {
+        buf.putLong(_lastAgreedTo);
+        buf.putLong(_lastFailed);
+        buf.putLong(_lastRejectedCritical);
+        buf.putLong(_lastRejectedBandwidth);
+        buf.putLong(_lastRejectedTransient);
+        buf.putLong(_lastRejectedProbabalistic);
+        buf.putLong(_lifetimeAgreedTo.get());
+        buf.putLong(_lifetimeFailed.get());
+        buf.putLong(_lifetimeRejected.get());
+        _rejectRate.store(buf);
+        _failRate.store(buf);
+    }
+
+    /**
+     *  Binary form of load(Properties), for ProfileStore
+     *  @since 0.9.21
+     */
+    void load(ByteBuffer buf) {
+        _lastAgreedTo = buf.getLong();
+        _lastFailed = buf.getLong();
+        _lastRejectedCritical = buf.getLong();
+        _lastRejectedBandwidth = buf.getLong();
+        _lastRejectedTransient = buf.getLong();
+        _lastRejectedProbabalistic = buf.getLong();
+        _lifetimeAgreedTo.set(buf.getLong());
+        _lifetimeFailed.set(buf.getLong());
+        _lifetimeRejected.set(buf.getLong());
+        // RateStat.load() skips past a bad rate, so the following ones are still in place
+        try {
+            _rejectRate.load(buf, true);
+        } catch (IllegalArgumentException iae) {
+            _log.warn("TunnelHistory reject rate is corrupt, resetting", iae);
+            createRejectRate(_statGroup);
+        }
+        try {
+            _failRate.load(buf, true);
+        } catch (IllegalArgumentException iae) {
+            _log.warn("TunnelHistory fail rate is corrupt, resetting", iae);
+            createFailRate(_statGroup);
+        }
+    }
+
     private final static long getLong(Properties props, String key) {
         String val = props.getProperty(key);
         if (val != null) {
@@ -8,6 +8,7 @@ package net.i2p.router.tasks;
  *
  */
 
+import net.i2p.crypto.CryptoPool;
 import net.i2p.data.DataHelper;
 import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
@@ -46,6 +47,7 @@ public class CoalesceStatsEvent implements SimpleTimer.TimedEvent {
             legend += " Max is " + DataHelper.formatSize(_maxMemory) + 'B';
         // router.memoryUsed currently has the max size in the description so it can't be tagged
         ctx.statManager().createRequiredRateStat("router.memoryUsed", legend, "Router", new long[] { 60*1000 });
+        CryptoPool.createStats(ctx.statManager());
     }
 
     private RouterContext getContext() { return _ctx; }
@@ -77,6 +79,8 @@ public class CoalesceStatsEvent implements SimpleTimer.TimedEvent {
 
         getContext().tunnelDispatcher().updateParticipatingStats(Router.COALESCE_TIME);
 
+        CryptoPool.updateStats(getContext().statManager());
+
         getContext().statManager().coalesceStats();
 
         RateStat receiveRate = getContext().statManager().getRate("transport.receiveMessageSize");
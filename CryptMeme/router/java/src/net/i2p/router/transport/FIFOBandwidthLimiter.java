@@ -277,7 +277,7 @@ public class FIFOBandwidthLimiter {
      * @param maxBurstIn allow up to this many bytes in from the burst section for this time period (may be negative)
      * @param maxBurstOut allow up to this many bytes in from the burst section for this time period (may be negative)
      */
-    final void refillBandwidthQueues(List<Request> buf, long bytesInbound, long bytesOutbound, long maxBurstIn, long maxBurstOut) {
+    void refillBandwidthQueues(List<Request> buf, long bytesInbound, long bytesOutbound, long maxBurstIn, long maxBurstOut) {
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug("Refilling the queues with " + bytesInbound + "/" + bytesOutbound + ": " + getStatus().toString());
 
@@ -352,7 +352,27 @@ public class FIFOBandwidthLimiter {
         updateStats();
     }
     
-    private void updateStats() {
+    /**
+     *  For subclasses that grant bandwidth outside of our own queues.
+     *  @since 0.9.21
+     */
+    void addAllocatedInbound(int bytes) {
+        _totalAllocatedInboundBytes.addAndGet(bytes);
+    }
+
+    /**
+     *  For subclasses that grant bandwidth outside of our own queues.
+     *  @since 0.9.21
+     */
+    void addAllocatedOutbound(int bytes) {
+        _totalAllocatedOutboundBytes.addAndGet(bytes);
+    }
+
+    /**
+     *  Update the smoothed rates, at most once a second.
+     *  Package private for subclasses as of 0.9.21
+     */
+    void updateStats() {
         long now = now();
         long time = now - _lastStatsUpdated;
         // If at least one second has passed
@@ -779,7 +799,10 @@ public class FIFOBandwidthLimiter {
 ******/
     }
     
-    private static class SimpleRequest implements Request {
+    /**
+     *  Package private for subclasses as of 0.9.21
+     */
+    static class SimpleRequest implements Request {
         private int _allocated;
         private final int _total;
         private final long _requestId;
@@ -916,7 +939,8 @@ public class FIFOBandwidthLimiter {
         public void complete(Request req);
     }
 
-    private static final NoopRequest _noop = new NoopRequest();
+    /** package private for subclasses as of 0.9.21 */
+    static final Request _noop = new NoopRequest();
 
     private static class NoopRequest implements Request {
         public void abort() {}
@@ -0,0 +1,389 @@
+package net.i2p.router.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+
+/**
+ *  Alternative to the FIFOBandwidthLimiter, with the same Request API.
+ *
+ *  Each direction has two token buckets, a committed bucket filled at the
+ *  configured rate and holding up to the configured burst size, and a peak
+ *  bucket filled at the burst rate and holding one second's worth.
+ *  A grant takes from both. The buckets are refilled lazily from the
+ *  elapsed time by whoever touches them next, so there is no global lock
+ *  and no dependence on the refiller's timing for the common case.
+ *
+ *  When nobody is waiting and the tokens are there, a request is satisfied
+ *  with a couple of CAS operations and the shared no-op Request is returned.
+ *  Otherwise the request goes on a FIFO queue, which is serviced by one
+ *  thread at a time - whoever wins the try-lock, either a requester
+ *  or the refiller thread. The head of the queue gets partial grants
+ *  until it is complete, as in the FIFOBandwidthLimiter.
+ *
+ *  Enable with i2np.bandwidth.tokenBucket=true.
+ *
+ *  @since 0.9.21
+ */
+public class TokenBucketBandwidthLimiter extends FIFOBandwidthLimiter {
+    private final Log _log;
+    private final I2PAppContext _context;
+    private final Direction _in;
+    private final Direction _out;
+
+    public static final String PROP_TOKEN_BUCKET = "i2np.bandwidth.tokenBucket";
+
+    public TokenBucketBandwidthLimiter(I2PAppContext context) {
+        super(context);
+        _context = context;
+        _log = context.logManager().getLog(TokenBucketBandwidthLimiter.class);
+        long now = now();
+        _in = new Direction("IB", "bwLimiter.inboundDelayedTime", "bwLimiter.pendingInboundRequests", now);
+        _out = new Direction("OB", "bwLimiter.outboundDelayedTime", "bwLimiter.pendingOutboundRequests", now);
+    }
+
+    /**
+     * Request some bytes. Does not block.
+     */
+    @Override
+    public Request requestInbound(int bytesIn, String purpose) {
+        return request(_in, bytesIn, 0);
+    }
+
+    /**
+     * Request some bytes. Does not block.
+     */
+    @Override
+    public Request requestOutbound(int bytesOut, int priority, String purpose) {
+        return request(_out, bytesOut, priority);
+    }
+
+    private Request request(Direction dir, int bytes, int priority) {
+        if (bytes <= 0)
+            return _noop;
+        long now = now();
+        dir.refill(now);
+        // don't jump the queue
+        if (dir.pending.get() <= 0 && dir.tryTake(bytes)) {
+            dir.granted(bytes);
+            return _noop;
+        }
+        SimpleRequest req = new SimpleRequest(bytes, priority);
+        int ahead = dir.pending.getAndIncrement();
+        dir.queue.offer(req);
+        if (ahead > 0)
+            _context.statManager().addRateData(dir.pendingStat, ahead);
+        dir.service(now);
+        return req;
+    }
+
+    /**
+     *  Called by the refiller every few tens of ms.
+     *  We don't use the byte counts, the buckets are time-based;
+     *  just pick up any config changes and service the queues
+     *  in case nobody else has come along to do it.
+     */
+    @Override
+    void refillBandwidthQueues(List<Request> buf, long bytesInbound, long bytesOutbound, long maxBurstIn, long maxBurstOut) {
+        Direction in = _in;
+        Direction out = _out;
+        // refiller thread is started in the super constructor
+        if (in == null || out == null)
+            return;
+        long now = now();
+        in.configure(getInboundKBytesPerSecond(), getInboundBurstKBytesPerSecond(), getInboundBurstBytes(), now);
+        out.configure(getOutboundKBytesPerSecond(), getOutboundBurstKBytesPerSecond(), getOutboundBurstBytes(), now);
+        in.service(now);
+        out.service(now);
+        updateStats();
+    }
+
+    @Override
+    public synchronized void reinitialize() {
+        super.reinitialize();
+        long now = now();
+        _in.clear(now);
+        _out.clear(now);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        super.shutdown();
+        long now = now();
+        _in.clear(now);
+        _out.clear(now);
+    }
+
+    @Override
+    StringBuilder getStatus() {
+        StringBuilder rv = new StringBuilder(128);
+        Direction in = _in;
+        Direction out = _out;
+        if (in == null || out == null)
+            return rv;
+        rv.append("Tokens: ").append(in.committed.get()).append('/').append(out.committed.get()).append(' ');
+        rv.append("Peak tokens: ").append(in.peak.get()).append('/').append(out.peak.get()).append(' ');
+        rv.append("Pending: ").append(in.pending.get()).append('/').append(out.pending.get()).append(' ');
+        return rv;
+    }
+
+    /**
+     *  One direction: the two buckets and the queue.
+     */
+    private class Direction {
+        final String name;
+        final String delayStat;
+        final String pendingStat;
+        /** rate is the configured rate, capacity is the burst size */
+        final Bucket committed;
+        /** rate is the burst rate, capacity is one second at that rate */
+        final Bucket peak;
+        final Queue<SimpleRequest> queue;
+        /** the queue size without the O(n) */
+        final AtomicInteger pending;
+        /** try-lock, only one thread services the queue at a time */
+        private final AtomicBoolean _servicing;
+
+        public Direction(String name, String delayStat, String pendingStat, long now) {
+            this.name = name;
+            this.delayStat = delayStat;
+            this.pendingStat = pendingStat;
+            committed = new Bucket(now);
+            peak = new Bucket(now);
+            queue = new ConcurrentLinkedQueue<SimpleRequest>();
+            pending = new AtomicInteger();
+            _servicing = new AtomicBoolean();
+        }
+
+        void configure(int kbps, int burstKBps, int burstBytes, long now) {
+            long rate = 1024l * kbps;
+            long peakRate = 1024l * Math.max(kbps, burstKBps);
+            committed.configure(rate, Math.max(rate, burstBytes), now);
+            peak.configure(peakRate, peakRate, now);
+        }
+
+        void refill(long now) {
+            committed.refill(now);
+            peak.refill(now);
+        }
+
+        /** all or nothing */
+        boolean tryTake(int bytes) {
+            if (!peak.tryTake(bytes))
+                return false;
+            if (committed.tryTake(bytes))
+                return true;
+            peak.put(bytes);
+            return false;
+        }
+
+        /** @return 0 to bytes */
+        int takeUpTo(int bytes) {
+            long p = peak.takeUpTo(bytes);
+            if (p <= 0)
+                return 0;
+            long c = committed.takeUpTo(p);
+            if (c < p)
+                peak.put(p - c);
+            return (int) c;
+        }
+
+        boolean hasTokens() {
+            return peak.get() > 0 && committed.get() > 0;
+        }
+
+        void granted(int bytes) {
+            if (this == _in)
+                addAllocatedInbound(bytes);
+            else
+                addAllocatedOutbound(bytes);
+        }
+
+        /**
+         *  Grant what we can to the head of the queue, in order.
+         *  If another thread is already at it, just return, it will
+         *  see our request. Notifies outside of the try-lock.
+         */
+        void service(long now) {
+            List<SimpleRequest> satisfied = null;
+            while (_servicing.compareAndSet(false, true)) {
+                try {
+                    refill(now);
+                    SimpleRequest req;
+                    while ((req = queue.peek()) != null) {
+                        if (req.getAborted()) {
+                            if (_log.shouldLog(Log.DEBUG))
+                                _log.debug(name + " aborted: " + req);
+                            queue.poll();
+                            pending.decrementAndGet();
+                            continue;
+                        }
+                        int allocated = takeUpTo(req.getPendingRequested());
+                        if (allocated <= 0)
+                            break;
+                        granted(allocated);
+                        req.allocateBytes(allocated);
+                        if (satisfied == null)
+                            satisfied = new ArrayList<SimpleRequest>(4);
+                        satisfied.add(req);
+                        if (req.getPendingRequested() > 0) {
+                            if (_log.shouldLog(Log.DEBUG))
+                                _log.debug(name + " partial grant of " + allocated + " to " + req);
+                            break;
+                        }
+                        queue.poll();
+                        pending.decrementAndGet();
+                        long waited = now() - req.getRequestTime();
+                        if (waited > 10)
+                            _context.statManager().addRateData(delayStat, waited);
+                    }
+                } finally {
+                    _servicing.set(false);
+                }
+                // a request may have been added after we looked,
+                // by a thread that failed the try-lock
+                if (queue.isEmpty() || !hasTokens())
+                    break;
+                now = now();
+            }
+            if (satisfied != null) {
+                for (int i = 0; i < satisfied.size(); i++) {
+                    satisfied.get(i).notifyAllocation();
+                }
+            }
+        }
+
+        /** Drops all waiting requests without notifying, as the FIFOBandwidthLimiter does */
+        void clear(long now) {
+            queue.clear();
+            pending.set(0);
+            committed.clear(now);
+            peak.clear(now);
+        }
+    }
+
+    /**
+     *  A lazily-refilled token bucket.
+     *  Tokens are kept in thousandths of a byte, so that a refill
+     *  of any number of ms adds exactly elapsed * rate and nothing is
+     *  lost to truncation. The tokens and the last refill time are each CAS'd.
+     */
+    private static class Bucket {
+        /** thousandths of a byte */
+        private final AtomicLong _tokens;
+        private final AtomicLong _last;
+        /** bytes per second == thousandths of a byte per ms */
+        private volatile long _rate;
+        /** thousandths of a byte */
+        private volatile long _capacity;
+
+        private static final long SCALE = 1000;
+
+        public Bucket(long now) {
+            _tokens = new AtomicLong();
+            _last = new AtomicLong(now);
+        }
+
+        /**
+         *  @param rate bytes per second
+         *  @param capacity bytes
+         */
+        void configure(long rate, long capacity, long now) {
+            capacity *= SCALE;
+            if (rate == _rate && capacity == _capacity)
+                return;
+            refill(now);
+            _rate = rate;
+            _capacity = capacity;
+            long t;
+            while ((t = _tokens.get()) > capacity) {
+                if (_tokens.compareAndSet(t, capacity))
+                    break;
+            }
+        }
+
+        /** @return bytes */
+        long get() {
+            return _tokens.get() / SCALE;
+        }
+
+        void refill(long now) {
+            long last = _last.get();
+            long elapsed = now - last;
+            if (elapsed == 0)
+                return;
+            // only one thread gets to add for this interval
+            if (!_last.compareAndSet(last, now))
+                return;
+            // clock went backwards
+            if (elapsed < 0)
+                return;
+            long rate = _rate;
+            long cap = _capacity;
+            // don't overflow after a long idle
+            if (rate <= 0 || elapsed >= cap / rate + 1)
+                addScaled(rate <= 0 ? 0 : cap, cap);
+            else
+                addScaled(elapsed * rate, cap);
+        }
+
+        /**
+         *  All or nothing
+         *  @param n bytes
+         */
+        boolean tryTake(long n) {
+            n *= SCALE;
+            while (true) {
+                long t = _tokens.get();
+                if (t < n)
+                    return false;
+                if (_tokens.compareAndSet(t, t - n))
+                    return true;
+            }
+        }
+
+        /**
+         *  @param n bytes
+         *  @return 0 to n bytes
+         */
+        long takeUpTo(long n) {
+            while (true) {
+                long t = _tokens.get();
+                long rv = Math.min(t / SCALE, n);
+                if (rv <= 0)
+                    return 0;
+                if (_tokens.compareAndSet(t, t - (rv * SCALE)))
+                    return rv;
+            }
+        }
+
+        /**
+         *  Add up to the capacity
+         *  @param n bytes
+         */
+        void put(long n) {
+            addScaled(n * SCALE, _capacity);
+        }
+
+        private void addScaled(long n, long cap) {
+            while (true) {
+                long t = _tokens.get();
+                long nt = Math.min(cap, t + n);
+                if (nt <= t || _tokens.compareAndSet(t, nt))
+                    return;
+            }
+        }
+
+        void clear(long now) {
+            _tokens.set(0);
+            _last.set(now);
+        }
+    }
+}
@@ -233,8 +233,7 @@ public class TransportManager implements TransportEventListener {
     }
 
     public synchronized void startListening() {
-        if (_dhThread.getState() == Thread.State.NEW)
-            _dhThread.start();
+        _dhThread.start();
         // For now, only start UPnP if we have no publicly-routable addresses
         // so we don't open the listener ports to the world.
         // Maybe we need a config option to force on? Probably not.
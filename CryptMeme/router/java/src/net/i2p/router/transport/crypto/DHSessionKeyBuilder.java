@@ -13,17 +13,16 @@ package net.i2p.router.transport.crypto;
 //import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.InvalidKeyException;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import net.i2p.I2PAppContext;
 import net.i2p.I2PException;
 import net.i2p.crypto.CryptoConstants;
+import net.i2p.crypto.PrecalcPool;
 import net.i2p.crypto.SHA256Generator;
 import net.i2p.crypto.SigUtil;
 import net.i2p.data.ByteArray;
 //import net.i2p.data.DataHelper;
 import net.i2p.data.SessionKey;
-import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
 import net.i2p.util.NativeBigInteger;
 import net.i2p.util.RandomSource;
@@ -34,15 +33,13 @@ import net.i2p.util.SystemVersion;
  * constants defined in CryptoConstants, which causes the exchange to create a 
  * 256 bit session key.
  *
- * This class precalcs a set of values on its own thread.
- * Whenever the pool has
- * less than the minimum, it fills it up again to the max.  There is a delay after 
- * each precalculation so that the CPU isn't hosed during startup.  
- * These three parameters are controlled by java environmental variables and 
+ * The PrecalcRunner precalcs a set of values in the background.
+ * The number kept ready follows the demand, between the minimum and the max.
+ * These parameters are controlled by java environmental variables and 
  * can be adjusted via:
- *  -Dcrypto.dh.precalc.min=40 -Dcrypto.dh.precalc.max=100 -Dcrypto.dh.precalc.delay=60000
+ *  -Dcrypto.dh.precalc.min=40 -Dcrypto.dh.precalc.max=100
  *
- * (delay is milliseconds)
+ * The delay property is no longer used as of 0.9.21.
  *
  * To disable precalculation, set min to 0
  *
@@ -61,10 +58,8 @@ public class DHSessionKeyBuilder {
 
     private final static String PROP_DH_PRECALC_MIN = "crypto.dh.precalc.min";
     private final static String PROP_DH_PRECALC_MAX = "crypto.dh.precalc.max";
-    private final static String PROP_DH_PRECALC_DELAY = "crypto.dh.precalc.delay";
     private final static int DEFAULT_DH_PRECALC_MIN = 20;
     private final static int DEFAULT_DH_PRECALC_MAX = 60;
-    private final static int DEFAULT_DH_PRECALC_DELAY = 25;
 
     /**
      * Create a new public/private value pair for the DH exchange.
@@ -431,100 +426,33 @@ public class DHSessionKeyBuilder {
 
     /**
      *  Try to keep DH pairs at the ready.
-     *  It's important to do this in a separate thread, because if we run out,
+     *  It's important to do this in the background, because if we run out,
      *  the pairs are generated in the NTCP Pumper thread,
      *  and it can fall behind.
+     *
+     *  As of 0.9.21, not a thread, the pairs are generated on the
+     *  shared PrecalcPool threads, as many as the demand requires.
      */
-    public static class PrecalcRunner extends I2PThread implements Factory {
-        private final I2PAppContext _context;
+    public static class PrecalcRunner extends PrecalcPool<DHSessionKeyBuilder> implements Factory {
         private final Log _log;
-        private final int _minSize;
-        private final int _maxSize;
-        private final int _calcDelay;
-        private final LinkedBlockingQueue<DHSessionKeyBuilder> _builders;
-        private volatile boolean _isRunning;
-
-        /** check periodically whether we have less than the minimum */
-        private long _checkDelay = 10 * 1000;
 
         public PrecalcRunner(I2PAppContext ctx) {
-            super("DH Precalc");
-            _context = ctx;
+            super(ctx, "crypto.DH",
+                  ctx.getProperty(PROP_DH_PRECALC_MIN, DEFAULT_DH_PRECALC_MIN * memoryFactor()),
+                  ctx.getProperty(PROP_DH_PRECALC_MAX, DEFAULT_DH_PRECALC_MAX * memoryFactor()));
             _log = ctx.logManager().getLog(DHSessionKeyBuilder.class);
             ctx.statManager().createRateStat("crypto.dhGeneratePublicTime", "How long it takes to create x and X", "Encryption", new long[] { 60*60*1000 });
             ctx.statManager().createRateStat("crypto.dhCalculateSessionTime", "How long it takes to create the session key", "Encryption", new long[] { 60*60*1000 });        
-            ctx.statManager().createRateStat("crypto.DHUsed", "Need a DH from the queue", "Encryption", new long[] { 60*60*1000 });
             ctx.statManager().createRateStat("crypto.DHReused", "Unused DH requeued", "Encryption", new long[] { 60*60*1000 });
-            ctx.statManager().createRateStat("crypto.DHEmpty", "DH queue empty", "Encryption", new long[] { 60*60*1000 });
-
-            // add to the defaults for every 128MB of RAM, up to 512MB
-            long maxMemory = SystemVersion.getMaxMemory();
-            int factor = (int) Math.max(1l, Math.min(4l, 1 + (maxMemory / (128*1024*1024l))));
-            int defaultMin = DEFAULT_DH_PRECALC_MIN * factor;
-            int defaultMax = DEFAULT_DH_PRECALC_MAX * factor;
-            _minSize = ctx.getProperty(PROP_DH_PRECALC_MIN, defaultMin);
-            _maxSize = ctx.getProperty(PROP_DH_PRECALC_MAX, defaultMax);
-            _calcDelay = ctx.getProperty(PROP_DH_PRECALC_DELAY, DEFAULT_DH_PRECALC_DELAY);
-
-            if (_log.shouldLog(Log.DEBUG))
-                _log.debug("DH Precalc (minimum: " + _minSize + " max: " + _maxSize + ", delay: "
-                           + _calcDelay + ")");
-            _builders = new LinkedBlockingQueue<DHSessionKeyBuilder>(_maxSize);
-            setPriority(Thread.MIN_PRIORITY);
         }
-        
+
         /**
-         *  Note that this stops the singleton precalc thread.
-         *  You don't want to do this if there are multiple routers in the JVM.
-         *  Fix this if you care. See Router.shutdown().
-         *  @since 0.8.8
+         *  add to the defaults for every 128MB of RAM, up to 512MB
+         *  @since 0.9.21 moved from constructor
          */
-        public void shutdown() {
-            _isRunning = false;
-            this.interrupt();
-            _builders.clear();
-        }
-
-        public void run() {
-            _isRunning = true;
-            while (_isRunning) {
-                //long start = System.currentTimeMillis();
-                int startSize = getSize();
-                // Adjust delay
-                if (startSize <= (_minSize * 2 / 3) && _checkDelay > 1000)
-                    _checkDelay -= 1000;
-                else if (startSize > (_minSize * 3 / 2) && _checkDelay < 60*1000)
-                    _checkDelay += 1000;
-                if (startSize < _minSize) {
-                    // fill all the way up, do the check here so we don't
-                    // throw away one when full in addValues()
-                    while (getSize() < _maxSize && _isRunning) {
-                        long curStart = System.currentTimeMillis();
-                        if (!addBuilder(precalc()))
-                            break;
-                        long curCalc = System.currentTimeMillis() - curStart;
-                        // for some relief...
-                        try {
-                            Thread.sleep(Math.min(200, Math.max(10, _calcDelay + (curCalc * 3))));
-                        } catch (InterruptedException ie) { // nop
-                        }
-                    }
-                }
-                //long end = System.currentTimeMillis();
-                //int numCalc = curSize - startSize;
-                //if (numCalc > 0) {
-                //    if (_log.shouldLog(Log.DEBUG))
-                //        _log.debug("Precalced " + numCalc + " to " + curSize + " in "
-                //                   + (end - start - CALC_DELAY * numCalc) + "ms (not counting "
-                //                   + (CALC_DELAY * numCalc) + "ms relief).  now sleeping");
-                //}
-                if (!_isRunning)
-                    break;
-                try {
-                    Thread.sleep(_checkDelay);
-                } catch (InterruptedException ie) { // nop
-                }
-            }
+        private static int memoryFactor() {
+            long maxMemory = SystemVersion.getMaxMemory();
+            return (int) Math.max(1l, Math.min(4l, 1 + (maxMemory / (128*1024*1024l))));
         }
 
         /**
@@ -534,17 +462,11 @@ public class DHSessionKeyBuilder {
          * @since 0.9 moved from DHSKB
          */
         public DHSessionKeyBuilder getBuilder() {
-            _context.statManager().addRateData("crypto.DHUsed", 1);
-            DHSessionKeyBuilder builder = _builders.poll();
-            if (builder == null) {
-                if (_log.shouldLog(Log.INFO)) _log.info("No more builders, creating one now");
-                _context.statManager().addRateData("crypto.DHEmpty", 1);
-                builder = precalc();
-            }
-            return builder;
+            return get();
         }
 
-        private DHSessionKeyBuilder precalc() {
+        /** @since 0.9.21 */
+        protected DHSessionKeyBuilder generate() {
             long start = System.currentTimeMillis();
             DHSessionKeyBuilder builder = new DHSessionKeyBuilder(_context);
             long end = System.currentTimeMillis();
@@ -573,18 +495,8 @@ public class DHSessionKeyBuilder {
                 return;
             }
             _context.statManager().addRateData("crypto.DHReused", 1);
-            _builders.offer(builder);
+            offer(builder);
         }
-
-        /** @return true if successful, false if full */
-        private final boolean addBuilder(DHSessionKeyBuilder builder) {
-            return _builders.offer(builder);
-        }
-
-        private final int getSize() {
-            return _builders.size();
-        }
-
     }
     
     public static class InvalidPublicParameterException extends I2PException {
@@ -20,6 +20,7 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.ByteArray;
@@ -37,12 +38,24 @@ import net.i2p.util.SystemVersion;
 
 /**
  *  The main NTCP NIO thread.
+ *
+ *  There may be several pumpers, each with its own selector, thread, and
+ *  set of connections. The first one also owns the acceptor and hands
+ *  new inbound connections off to the pumper chosen by NTCPTransport.
+ *  With more than one pumper, reads and writes are processed in place
+ *  in the pumper thread instead of in the Reader and Writer pools.
  */
 class EventPumper implements Runnable {
     private final RouterContext _context;
     private final Log _log;
     private volatile boolean _alive;
     private Selector _selector;
+    private volatile Thread _thread;
+    /** 0 for the first (accepting) pumper */
+    private final int _id;
+    private final int _count;
+    /** process reads and writes in this thread rather than the Reader and Writer pools */
+    private final boolean _inPlace;
     private final Set<NTCPConnection> _wantsWrite = new ConcurrentHashSet<NTCPConnection>(32);
     /**
      *  The following 3 are unbounded and lockless for performance in runDelayedEvents()
@@ -50,10 +63,24 @@ class EventPumper implements Runnable {
     private final Queue<NTCPConnection> _wantsRead = new ConcurrentLinkedQueue<NTCPConnection>();
     private final Queue<ServerSocketChannel> _wantsRegister = new ConcurrentLinkedQueue<ServerSocketChannel>();
     private final Queue<NTCPConnection> _wantsConRegister = new ConcurrentLinkedQueue<NTCPConnection>();
+    /** inbound channels accepted by another pumper, @since 0.9.21 */
+    private final Queue<SocketChannel> _wantsAcceptRegister = new ConcurrentLinkedQueue<SocketChannel>();
+    /** in-place mode only, @since 0.9.21 */
+    private final Set<NTCPConnection> _wantsProcessRead = new ConcurrentHashSet<NTCPConnection>(32);
+    private final Set<NTCPConnection> _wantsPrepareWrite = new ConcurrentHashSet<NTCPConnection>(32);
+    /** in-place mode only, only used in the pumper thread */
+    private final NTCPConnection.PrepBuffer _prepBuffer;
+    /** coalescing mode only, only used in the pumper thread */
+    private final ByteBuffer[] _gatherBufs = new ByteBuffer[MAX_GATHER];
     private final NTCPTransport _transport;
+    /** shared by all pumpers */
     private final ObjectCounter<ByteArray> _blockedIPs;
     private long _expireIdleWriteTime;
     private boolean _useDirect;
+    /** key set size at the last failsafe iteration */
+    private volatile int _keyCount;
+    /** connections assigned since the last failsafe iteration */
+    private final AtomicInteger _assigned = new AtomicInteger();
     
     /**
      *  This probably doesn't need to be bigger than the largest typical
@@ -62,6 +89,8 @@ class EventPumper implements Runnable {
      */
     private static final int BUF_SIZE = 8*1024;
     private static final int MAX_CACHE_SIZE = 64;
+    /** coalescing mode, max buffers per gathering write */
+    private static final int MAX_GATHER = 16;
 
     /**
      *  Read buffers. (write buffers use wrap())
@@ -102,11 +131,26 @@ class EventPumper implements Runnable {
     }
 
     public EventPumper(RouterContext ctx, NTCPTransport transport) {
+        this(ctx, transport, 0, 1, new ObjectCounter<ByteArray>());
+    }
+
+    /**
+     *  @param id 0 to count - 1; pumper 0 owns the acceptor and expires timed-out connections
+     *  @param count total number of pumpers; if greater than 1, reads and writes are processed in place
+     *  @param blockedIPs shared by all the pumpers
+     *  @since 0.9.21
+     */
+    public EventPumper(RouterContext ctx, NTCPTransport transport, int id, int count,
+                       ObjectCounter<ByteArray> blockedIPs) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _transport = transport;
+        _id = id;
+        _count = count;
+        _inPlace = count > 1;
+        _prepBuffer = _inPlace ? new NTCPConnection.PrepBuffer() : null;
         _expireIdleWriteTime = MAX_EXPIRE_IDLE_TIME;
-        _blockedIPs = new ObjectCounter<ByteArray>();
+        _blockedIPs = blockedIPs;
         _context.statManager().createRateStat("ntcp.pumperKeySetSize", "", "ntcp", new long[] {10*60*1000} );
         //_context.statManager().createRateStat("ntcp.pumperKeysPerLoop", "", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.pumperLoopsPerSecond", "", "ntcp", new long[] {10*60*1000} );
@@ -121,7 +165,8 @@ class EventPumper implements Runnable {
         try {
             _selector = Selector.open();
             _alive = true;
-            new I2PThread(this, "NTCP Pumper", true).start();
+            String name = _count > 1 ? "NTCP Pumper " + (_id + 1) + '/' + _count : "NTCP Pumper";
+            new I2PThread(this, name, true).start();
         } catch (IOException ioe) {
             _log.log(Log.CRIT, "Error opening the NTCP selector", ioe);
         } catch (java.lang.InternalError jlie) {
@@ -164,6 +209,42 @@ class EventPumper implements Runnable {
         _wantsConRegister.offer(con);
         _selector.wakeup();
     }
+
+    /**
+     *  Inbound, accepted by another pumper.
+     *  @param chan non-blocking
+     *  @since 0.9.21
+     */
+    private void registerAccepted(SocketChannel chan) {
+        _wantsAcceptRegister.offer(chan);
+        _selector.wakeup();
+    }
+
+    /**
+     *  Load estimate for NTCPTransport when assigning new connections:
+     *  the registered keys at the last failsafe iteration plus
+     *  the connections assigned since then.
+     *  @since 0.9.21
+     */
+    public int getLoad() {
+        return _keyCount + _assigned.get();
+    }
+
+    /**
+     *  NTCPTransport assigned a new connection to us.
+     *  @since 0.9.21
+     */
+    public void assigned() {
+        _assigned.incrementAndGet();
+    }
+
+    /**
+     *  Are we in the pumper thread?
+     *  @since 0.9.21
+     */
+    private boolean inPumperThread() {
+        return Thread.currentThread() == _thread;
+    }
     
     /**
      *  The selector loop.
@@ -171,6 +252,7 @@ class EventPumper implements Runnable {
      *  take care to minimize overhead and unnecessary debugging stuff.
      */
     public void run() {
+        _thread = Thread.currentThread();
         int loopCount = 0;
         long lastFailsafeIteration = System.currentTimeMillis();
         long lastBlockedIPClear = lastFailsafeIteration;
@@ -212,6 +294,8 @@ class EventPumper implements Runnable {
                     lastFailsafeIteration = now;
                     try {
                         Set<SelectionKey> all = _selector.keys();
+                        _keyCount = all.size();
+                        _assigned.set(0);
                         _context.statManager().addRateData("ntcp.pumperKeySetSize", all.size());
                         _context.statManager().addRateData("ntcp.pumperLoopsPerSecond", loopCount / (FAILSAFE_ITERATION_FREQ / 1000));
                         loopCount = 0;
@@ -301,7 +385,7 @@ class EventPumper implements Runnable {
                         } catch (InterruptedException ie) {}
                     }
                 }
-                if (lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
+                if (_id == 0 && lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
                     _blockedIPs.clear();
                     lastBlockedIPClear = now;
                 }
@@ -347,11 +431,18 @@ class EventPumper implements Runnable {
         } catch (Exception e) {
             _log.error("Error closing keys on pumper shutdown", e);
         }
+        SocketChannel chan;
+        while ((chan = _wantsAcceptRegister.poll()) != null) {
+            try { chan.close(); } catch (IOException ioe) { }
+        }
         _wantsConRegister.clear();
         _wantsRead.clear();
         _wantsRegister.clear();
         _wantsWrite.clear();
+        _wantsProcessRead.clear();
+        _wantsPrepareWrite.clear();
         _bufCache.clear();
+        _thread = null;
     }
     
     /**
@@ -425,14 +516,55 @@ class EventPumper implements Runnable {
 
     /**
      *  Called by the connection when it has data ready to write (after bw allocation).
-     *  Only wakeup if new.
+     *  Only wakeup if new, and not if we are in the pumper thread,
+     *  as runDelayedEvents() will pick it up before the next select.
      */
     public void wantsWrite(NTCPConnection con) {
-        if (_wantsWrite.add(con)) {
+        if (_wantsWrite.add(con) && !inPumperThread()) {
             _selector.wakeup();
         }
     }
 
+    /**
+     *  Called by the connection when it has read buffers to process.
+     *  Hands it to the Reader pool, or in in-place mode,
+     *  processes it in the pumper thread before the next select.
+     *  @since 0.9.21
+     */
+    public void wantsProcessRead(NTCPConnection con) {
+        if (!_inPlace) {
+            _transport.getReader().wantsRead(con);
+            return;
+        }
+        if (_wantsProcessRead.add(con) && !inPumperThread())
+            _selector.wakeup();
+    }
+
+    /**
+     *  Called by the connection when it has a message to prepare.
+     *  Hands it to the Writer pool, or in in-place mode,
+     *  prepares it in the pumper thread before the next select.
+     *  @since 0.9.21
+     */
+    public void wantsPrepareWrite(NTCPConnection con, String source) {
+        if (!_inPlace) {
+            _transport.getWriter().wantsWrite(con, source);
+            return;
+        }
+        if (_wantsPrepareWrite.add(con) && !inPumperThread())
+            _selector.wakeup();
+    }
+
+    /**
+     *  @since 0.9.21
+     */
+    public void connectionClosed(NTCPConnection con) {
+        if (_inPlace) {
+            _wantsProcessRead.remove(con);
+            _wantsPrepareWrite.remove(con);
+        }
+    }
+
     /**
      *  This is only called from NTCPConnection.complete()
      *  if there is more data, which is rare (never?)
@@ -550,8 +682,13 @@ class EventPumper implements Runnable {
             if (shouldSetKeepAlive(chan))
                 chan.socket().setKeepAlive(true);
 
+            EventPumper pumper = _transport.nextPumper();
+            if (pumper != this) {
+                pumper.registerAccepted(chan);
+                return;
+            }
             SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
-            new NTCPConnection(_context, _transport, chan, ckey);
+            new NTCPConnection(_context, _transport, chan, ckey, this);
             //if (_log.shouldLog(Log.DEBUG))
             //    _log.debug("new NTCP connection established: " +con);
         } catch (IOException ioe) {
@@ -738,6 +875,10 @@ class EventPumper implements Runnable {
         //int buffers = 0;
         //long before = System.currentTimeMillis();
         NTCPConnection con = (NTCPConnection)key.attachment();
+        if (_transport.isCoalescing()) {
+            processGatheringWrite(key, con);
+            return;
+        }
         try {
             while (true) {
                 ByteBuffer buf = con.getNextWriteBuf();
@@ -755,6 +896,10 @@ class EventPumper implements Runnable {
                     }
                     int written = con.getChannel().write(buf);
                     //totalWritten += written;
+                    if (written > 0) {
+                        _context.statManager().addRateData("ntcp.writeBytesPerSyscall", written);
+                        _context.statManager().addRateData("ntcp.writeFramesPerSyscall", buf.remaining() > 0 ? 0 : 1);
+                    }
                     if (written == 0) {
                         if ( (buf.remaining() > 0) || (!con.isWriteBufEmpty()) ) {
                             //if (_log.shouldLog(Log.DEBUG)) _log.debug("done writing, but data remains...");
@@ -803,6 +948,62 @@ class EventPumper implements Runnable {
         //    _log.info("Wrote " + totalWritten + " in " + buffers + " buffers on " + con 
         //              + " after " + (after-before));
     }
+
+    /**
+     *  Coalescing mode version of processWrite().
+     *  Writes up to MAX_GATHER pending buffers with a single gathering write.
+     *  OP_WRITE will always be set before this is called.
+     *  This method will disable the interest if no more writes remain.
+     *  High-frequency path in thread.
+     *  @since 0.9.21
+     */
+    private void processGatheringWrite(SelectionKey key, NTCPConnection con) {
+        ByteBuffer[] bufs = _gatherBufs;
+        try {
+            while (true) {
+                int count = con.getNextWriteBufs(bufs);
+                if (count <= 0) {
+                    // Nothing more to write
+                    if (key.isValid())
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    break;
+                }
+                long written = con.getChannel().write(bufs, 0, count);
+                int frames = 0;
+                boolean full = false;
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer buf = bufs[i];
+                    bufs[i] = null;
+                    if (full)
+                        continue;
+                    if (buf.remaining() > 0)
+                        full = true;
+                    else
+                        frames += con.removeWriteBuf(buf);
+                }
+                if (written > 0) {
+                    _context.statManager().addRateData("ntcp.writeBytesPerSyscall", written);
+                    _context.statManager().addRateData("ntcp.writeFramesPerSyscall", frames);
+                }
+                if (full) {
+                    // stay interested
+                    break;
+                }
+            }
+        } catch (CancelledKeyException cke) {
+            if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, cke);
+            _context.statManager().addRateData("ntcp.writeError", 1);
+            con.close();
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, ioe);
+            _context.statManager().addRateData("ntcp.writeError", 1);
+            con.close();
+        } finally {
+            for (int i = 0; i < bufs.length; i++) {
+                bufs[i] = null;
+            }
+        }
+    }
     
     /**
      *  Pull off the 4 _wants* queues and update the interest ops,
@@ -811,6 +1012,9 @@ class EventPumper implements Runnable {
      */
     private void runDelayedEvents() {
         NTCPConnection con;
+        if (_inPlace)
+            runInPlace();
+
         while ((con = _wantsRead.poll()) != null) {
             SelectionKey key = con.getKey();
             try {
@@ -860,6 +1064,16 @@ class EventPumper implements Runnable {
             }
         }
         
+        SocketChannel schan;
+        while ((schan = _wantsAcceptRegister.poll()) != null) {
+            try {
+                SelectionKey key = schan.register(_selector, SelectionKey.OP_READ);
+                new NTCPConnection(_context, _transport, schan, key, this);
+            } catch (ClosedChannelException cce) {
+                if (_log.shouldLog(Log.WARN)) _log.warn("Error registering", cce);
+            }
+        }
+
         // only when address changes
         ServerSocketChannel chan;
         while ((chan = _wantsRegister.poll()) != null) {
@@ -919,10 +1133,50 @@ class EventPumper implements Runnable {
             }
         }
         
-        long now = System.currentTimeMillis();
-        if (_lastExpired + 1000 <= now) {
-            expireTimedOut();
-            _lastExpired = now;
+        if (_id == 0) {
+            long now = System.currentTimeMillis();
+            if (_lastExpired + 1000 <= now) {
+                expireTimedOut();
+                _lastExpired = now;
+            }
+        }
+    }
+
+    /**
+     *  In-place mode only.
+     *  Process all pending reads and prepare all pending writes,
+     *  as the Reader and Writer pools would.
+     *  The resulting write buffers are picked up in the same pass of runDelayedEvents().
+     *  @since 0.9.21
+     */
+    private void runInPlace() {
+        if (!_wantsProcessRead.isEmpty()) {
+            Reader reader = _transport.getReader();
+            for (Iterator<NTCPConnection> iter = _wantsProcessRead.iterator(); iter.hasNext(); ) {
+                NTCPConnection con = iter.next();
+                iter.remove();
+                try {
+                    reader.processRead(con);
+                } catch (IllegalStateException ise) {
+                    // FailedEstablishState.receive() (race - see Reader)
+                    if (_log.shouldWarn())
+                        _log.warn("Error in the ntcp reader", ise);
+                } catch (RuntimeException re) {
+                    _log.log(Log.CRIT, "Error in the ntcp reader", re);
+                }
+            }
+        }
+        if (!_wantsPrepareWrite.isEmpty()) {
+            for (Iterator<NTCPConnection> iter = _wantsPrepareWrite.iterator(); iter.hasNext(); ) {
+                NTCPConnection con = iter.next();
+                iter.remove();
+                try {
+                    _prepBuffer.init();
+                    con.prepareNextWrite(_prepBuffer);
+                } catch (RuntimeException re) {
+                    _log.log(Log.CRIT, "Error in the ntcp writer on " + con, re);
+                }
+            }
         }
     }
     
@@ -36,6 +36,7 @@ import net.i2p.util.ByteCache;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.HexDump;
 import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer2;
 import net.i2p.util.SystemVersion;
 import net.i2p.util.VersionComparator;
 
@@ -88,6 +89,7 @@ class NTCPConnection {
     private long _establishedOn;
     private volatile EstablishState _establishState;
     private final NTCPTransport _transport;
+    private final EventPumper _pumper;
     private final boolean _isInbound;
     private final AtomicBoolean _closed = new AtomicBoolean();
     private final RouterAddress _remAddr;
@@ -103,6 +105,16 @@ class NTCPConnection {
      *  FIXME why do we need this???
      */
     private OutNetMessage _currentOutbound;
+    /**
+     *  Coalescing mode only. Messages after _currentOutbound in the
+     *  batch currently being written. Synch on _outbound.
+     *  @since 0.9.21
+     */
+    private final List<OutNetMessage> _currentBatch = new ArrayList<OutNetMessage>(4);
+    /** coalescing mode only, when we started holding back a short batch, or 0 */
+    private long _coalesceHoldStart;
+    /** coalescing mode only, lazily created */
+    private CoalesceTimer _coalesceTimer;
     private SessionKey _sessionKey;
     /** encrypted block of the current I2NP message being read */
     private byte _curReadBlock[];
@@ -155,6 +167,14 @@ class NTCPConnection {
      *  In the meantime, don't let the transport bid on big messages.
      */
     public static final int BUFFER_SIZE = 16*1024;
+    /**
+     *  Coalescing mode: stop adding frames to a batch at this size.
+     *  The last frame may take it up to 2 * BUFFER_SIZE.
+     *  @since 0.9.21
+     */
+    private static final int MAX_BATCH_BYTES = BUFFER_SIZE;
+    /** @since 0.9.21 */
+    private static final int MAX_BATCH_FRAMES = 32;
     private static final int MAX_DATA_READ_BUFS = 16;
     private static final ByteCache _dataReadBufs = ByteCache.getInstance(MAX_DATA_READ_BUFS, BUFFER_SIZE);
     /** 2 bytes for length and 4 for CRC */
@@ -169,11 +189,13 @@ class NTCPConnection {
      * Create an inbound connected (though not established) NTCP connection
      *
      */
-    public NTCPConnection(RouterContext ctx, NTCPTransport transport, SocketChannel chan, SelectionKey key) {
+    public NTCPConnection(RouterContext ctx, NTCPTransport transport, SocketChannel chan, SelectionKey key,
+                          EventPumper pumper) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _created = ctx.clock().now();
         _transport = transport;
+        _pumper = pumper;
         _remAddr = null;
         _chan = chan;
         _readBufs = new ConcurrentLinkedQueue<ByteBuffer>();
@@ -197,11 +219,13 @@ class NTCPConnection {
      * Create an outbound unconnected NTCP connection
      *
      */
-    public NTCPConnection(RouterContext ctx, NTCPTransport transport, RouterIdentity remotePeer, RouterAddress remAddr) {
+    public NTCPConnection(RouterContext ctx, NTCPTransport transport, RouterIdentity remotePeer, RouterAddress remAddr,
+                          EventPumper pumper) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _created = ctx.clock().now();
         _transport = transport;
+        _pumper = pumper;
         _remotePeer = remotePeer;
         _remAddr = remAddr;
         _readBufs = new ConcurrentLinkedQueue<ByteBuffer>();
@@ -237,6 +261,12 @@ class NTCPConnection {
      *  Valid for inbound; valid for outbound shortly after creation
      */
     public SelectionKey getKey() { return _conKey; }
+
+    /**
+     *  The pumper that owns our channel
+     *  @since 0.9.21
+     */
+    public EventPumper getPumper() { return _pumper; }
     public void setChannel(SocketChannel chan) { _chan = chan; }
     public void setKey(SelectionKey key) { _conKey = key; }
     public boolean isInbound() { return _isInbound; }
@@ -417,6 +447,7 @@ class NTCPConnection {
         NTCPConnection old = _transport.removeCon(this);
         _transport.getReader().connectionClosed(this);
         _transport.getWriter().connectionClosed(this);
+        _pumper.connectionClosed(this);
 
         for (FIFOBandwidthLimiter.Request req :_bwInRequests) {
             req.abort();
@@ -441,9 +472,16 @@ class NTCPConnection {
         for (OutNetMessage msg : pending) 
             _transport.afterSend(msg, false, allowRequeue, msg.getLifetime());
 
-        OutNetMessage msg = getCurrentOutbound();
-        if (msg != null) 
+        List<OutNetMessage> current = new ArrayList<OutNetMessage>(1);
+        synchronized (_outbound) {
+            if (_currentOutbound != null)
+                current.add(_currentOutbound);
+            current.addAll(_currentBatch);
+        }
+        for (OutNetMessage msg : current)
             _transport.afterSend(msg, false, allowRequeue, msg.getLifetime());
+        if (_coalesceTimer != null)
+            _coalesceTimer.cancel();
         
         return old;
     }
@@ -483,7 +521,7 @@ class NTCPConnection {
         boolean noOutbound = (getCurrentOutbound() == null);
         //if (_log.shouldLog(Log.DEBUG)) _log.debug("messages enqueued on " + toString() + ": " + enqueued + " new one: " + msg.getMessageId() + " of " + msg.getMessageType());
         if (isEstablished() && noOutbound)
-            _transport.getWriter().wantsWrite(this, "enqueued");
+            _pumper.wantsPrepareWrite(this, "enqueued");
     }
 
 /****
@@ -633,7 +671,7 @@ class NTCPConnection {
         _nextMetaTime = _establishedOn + (META_FREQUENCY / 2) + _context.random().nextInt(META_FREQUENCY);
         _nextInfoTime = _establishedOn + (INFO_FREQUENCY / 2) + _context.random().nextInt(INFO_FREQUENCY);
         if (msgs)
-            _transport.getWriter().wantsWrite(this, "outbound established");
+            _pumper.wantsPrepareWrite(this, "outbound established");
     }
     
     /**
@@ -754,7 +792,7 @@ class NTCPConnection {
         //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
         //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
         //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
-        _transport.getPumper().wantsWrite(this, encrypted);
+        _pumper.wantsWrite(this, encrypted);
 
         // for every 6-12 hours that we are connected to a peer, send them
 	// our updated netDb info (they may not accept it and instead query
@@ -788,6 +826,12 @@ class NTCPConnection {
             sendMeta();
             _nextMetaTime = now + (META_FREQUENCY / 2) + _context.random().nextInt(META_FREQUENCY / 2);
         }
+
+        if (_transport.isCoalescing()) {
+            if (prepareNextBatch(buf, now))
+                maybeEnqueueInfo(now);
+            return;
+        }
       
         OutNetMessage msg = null;
         // this is synchronized only for _currentOutbound
@@ -844,7 +888,7 @@ class NTCPConnection {
         //    _log.debug("Encrypting " + msg + " [" + System.identityHashCode(msg) + "] crc=" + crc.getValue() + "\nas: " 
         //               + Base64.encode(encrypted, 0, 16) + "...\ndecrypted: " 
         //               + Base64.encode(unencrypted, 0, 16) + "..." + "\nIV=" + Base64.encode(_prevWriteEnd, 0, 16));
-        _transport.getPumper().wantsWrite(this, buf.encrypted);
+        _pumper.wantsWrite(this, buf.encrypted);
         //long wantsTime = System.currentTimeMillis();
         //long releaseTime = System.currentTimeMillis();
         //if (_log.shouldLog(Log.DEBUG))
@@ -853,15 +897,103 @@ class NTCPConnection {
         //               + " wantsWrite=" + (wantsTime-encryptedTime)
         //               + " releaseBuf=" + (releaseTime-wantsTime));
 
-        // for every 6-12 hours that we are connected to a peer, send them
-	// our updated netDb info (they may not accept it and instead query
-	// the floodfill netDb servers, but they may...)
+        maybeEnqueueInfo(now);
+    }
+
+    /**
+     * For every 6-12 hours that we are connected to a peer, send them
+     * our updated netDb info (they may not accept it and instead query
+     * the floodfill netDb servers, but they may...)
+     *
+     * Caller must synchronize.
+     * @since 0.9.21 split out of prepareNextWriteFast()
+     */
+    private void maybeEnqueueInfo(long now) {
         if (_nextInfoTime <= now) {
             // perhaps this should check to see if we are bw throttled, etc?
             enqueueInfoMessage();
             _nextInfoTime = now + (INFO_FREQUENCY / 2) + _context.random().nextInt(INFO_FREQUENCY);
         }
     }
+
+    /**
+     * Coalescing mode.
+     * Serialize as many queued messages as will fit into one batch,
+     * encrypt them in a single AES-CBC pass (the CBC chaining across frames is
+     * the same as if they were encrypted one at a time), and hand the whole
+     * thing to the pumper as a single buffer.
+     *
+     * If only a few messages are queued, hold them back until more arrive
+     * or until they have waited for the coalescing budget.
+     *
+     * Caller must synchronize.
+     * @return true if a batch was prepared
+     * @since 0.9.21
+     */
+    private boolean prepareNextBatch(PrepBuffer buf, long now) {
+        int total = 0;
+        int frames = 0;
+        synchronized (_outbound) {
+            if (_currentOutbound != null) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("attempt for multiple outbound batches with " + System.identityHashCode(_currentOutbound) + " already waiting and " + _outbound.size() + " queued");
+                return false;
+            }
+            int queued = _outbound.size();
+            if (queued <= 0)
+                return false;
+            long budget = _transport.getCoalesceBudget();
+            if (budget > 0 && queued < MAX_BATCH_FRAMES) {
+                if (_coalesceHoldStart <= 0)
+                    _coalesceHoldStart = now;
+                long held = now - _coalesceHoldStart;
+                if (held < budget) {
+                    if (_coalesceTimer == null)
+                        _coalesceTimer = new CoalesceTimer();
+                    _coalesceTimer.reschedule(budget - held);
+                    return false;
+                }
+            }
+            _coalesceHoldStart = 0;
+            // Serialization is cheap compared to the encryption below,
+            // so do it here rather than tracking the batch twice
+            OutNetMessage msg;
+            while (total < MAX_BATCH_BYTES && frames < MAX_BATCH_FRAMES &&
+                   (msg = _outbound.poll()) != null) {
+                if (frames == 0)
+                    _currentOutbound = msg;
+                else
+                    _currentBatch.add(msg);
+                total += prepareFrame(msg, buf, total);
+                frames++;
+            }
+        }
+        if (frames <= 0)
+            return false;
+        buf.unencryptedLength = total;
+        buf.encrypted = new byte[total];
+        _context.aes().encrypt(buf.unencrypted, 0, buf.encrypted, 0, _sessionKey, _prevWriteEnd, 0, total);
+        System.arraycopy(buf.encrypted, total - 16, _prevWriteEnd, 0, _prevWriteEnd.length);
+        _context.statManager().addRateData("ntcp.coalescedFrames", frames, total);
+        _pumper.wantsWrite(this, buf.encrypted);
+        return true;
+    }
+
+    /**
+     *  Coalescing mode.
+     *  Prepare the held-back batch when the budget is used up.
+     *  @since 0.9.21
+     */
+    private class CoalesceTimer extends SimpleTimer2.TimedEvent {
+        public CoalesceTimer() {
+            super(_context.simpleTimer2());
+        }
+
+        public void timeReached() {
+            if (!_closed.get())
+                _pumper.wantsPrepareWrite(NTCPConnection.this, "coalesce timeout");
+        }
+    }
     
     /**
      * Serialize the message/checksum/padding/etc for transmission, but leave off
@@ -876,6 +1008,29 @@ class NTCPConnection {
         //long begin = System.currentTimeMillis();
         //long alloc = System.currentTimeMillis();
         
+        buf.unencryptedLength = prepareFrame(msg, buf, 0);
+        // TODO object churn
+        // 1) store the length only
+        // 2) in prepareNextWriteFast(), pull a byte buffer off a queue and encrypt to that
+        // 3) change EventPumper.wantsWrite() to take a ByteBuffer arg
+        // 4) in EventPumper.processWrite(), release the byte buffer
+        buf.encrypted = new byte[buf.unencryptedLength];
+        
+        //long crced = System.currentTimeMillis();
+        //if (_log.shouldLog(Log.DEBUG))
+        //    _log.debug("Buffered prepare took " + (crced-begin) + ", alloc=" + (alloc-begin)
+        //               + " serialize=" + (serialized-alloc) + " crc=" + (crced-serialized));
+    }
+
+    /**
+     * Serialize the message with its size, padding, and checksum
+     * into buf.unencrypted at offset off.
+     *
+     * @param off must leave at least BUFFER_SIZE available
+     * @return the frame length, a multiple of 16
+     * @since 0.9.21 split out of bufferedPrepare()
+     */
+    private int prepareFrame(OutNetMessage msg, PrepBuffer buf, int off) {
         I2NPMessage m = msg.getMessage();
         buf.baseLength = m.toByteArray(buf.base);
         int sz = buf.baseLength;
@@ -886,33 +1041,24 @@ class NTCPConnection {
         if (rem > 0)
             padding = 16 - rem;
         
-        buf.unencryptedLength = min+padding;
-        DataHelper.toLong(buf.unencrypted, 0, 2, sz);
-        System.arraycopy(buf.base, 0, buf.unencrypted, 2, buf.baseLength);
+        int len = min+padding;
+        DataHelper.toLong(buf.unencrypted, off, 2, sz);
+        System.arraycopy(buf.base, 0, buf.unencrypted, off + 2, buf.baseLength);
         if (padding > 0) {
-            _context.random().nextBytes(buf.unencrypted, 2+sz, padding);
+            _context.random().nextBytes(buf.unencrypted, off + 2 + sz, padding);
         }
         
         //long serialized = System.currentTimeMillis();
-        buf.crc.update(buf.unencrypted, 0, buf.unencryptedLength-4);
+        buf.crc.reset();
+        buf.crc.update(buf.unencrypted, off, len - 4);
         
         long val = buf.crc.getValue();
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Outbound message " + _messagesWritten + " has crc " + val
                        + " sz=" +sz + " rem=" + rem + " padding=" + padding);
         
-        DataHelper.toLong(buf.unencrypted, buf.unencryptedLength-4, 4, val);
-        // TODO object churn
-        // 1) store the length only
-        // 2) in prepareNextWriteFast(), pull a byte buffer off a queue and encrypt to that
-        // 3) change EventPumper.wantsWrite() to take a ByteBuffer arg
-        // 4) in EventPumper.processWrite(), release the byte buffer
-        buf.encrypted = new byte[buf.unencryptedLength];
-        
-        //long crced = System.currentTimeMillis();
-        //if (_log.shouldLog(Log.DEBUG))
-        //    _log.debug("Buffered prepare took " + (crced-begin) + ", alloc=" + (alloc-begin)
-        //               + " serialize=" + (serialized-alloc) + " crc=" + (crced-serialized));
+        DataHelper.toLong(buf.unencrypted, off + len - 4, 4, val);
+        return len;
     }
 
     public static class PrepBuffer {
@@ -924,7 +1070,8 @@ class NTCPConnection {
         byte encrypted[];
         
         public PrepBuffer() {
-            unencrypted = new byte[BUFFER_SIZE];
+            // room for a coalesced batch, see prepareNextBatch()
+            unencrypted = new byte[MAX_BATCH_BYTES + BUFFER_SIZE];
             base = new byte[BUFFER_SIZE];
             crc = new Adler32();
         }
@@ -945,7 +1092,7 @@ class NTCPConnection {
         _conKey.interestOps(SelectionKey.OP_READ);
         // schedule up the beginning of our handshaking by calling prepareNextWrite on the
         // writer thread pool
-        _transport.getWriter().wantsWrite(this, "outbound connected");
+        _pumper.wantsPrepareWrite(this, "outbound connected");
     }
 
     /**
@@ -965,7 +1112,7 @@ class NTCPConnection {
             // our reads used to be bw throttled (during which time we were no
             // longer interested in reading from the network), but we aren't
             // throttled anymore, so we should resume being interested in reading
-            _transport.getPumper().wantsRead(NTCPConnection.this);
+            _pumper.wantsRead(NTCPConnection.this);
             //_transport.getReader().wantsRead(this);
         }
     }
@@ -1030,7 +1177,7 @@ class NTCPConnection {
         _bytesReceived += buf.remaining();
             //buf.flip();
         _readBufs.offer(buf);
-        _transport.getReader().wantsRead(this);
+        _pumper.wantsProcessRead(this);
         updateStats();
     }
 
@@ -1042,7 +1189,7 @@ class NTCPConnection {
         //if (_log.shouldLog(Log.DEBUG)) _log.debug("Before write(buf)");
         _writeBufs.offer(buf);
         //if (_log.shouldLog(Log.DEBUG)) _log.debug("After write(buf)");
-        _transport.getPumper().wantsWrite(this);
+        _pumper.wantsWrite(this);
     }
     
     /** @return null if none available */
@@ -1063,12 +1210,33 @@ class NTCPConnection {
         return _writeBufs.peek(); // not remove!  we removeWriteBuf afterwards
     }
     
+    /**
+     *  Coalescing mode. Fill the array with the buffers at the head of _writeBufs,
+     *  in order, without removing them.
+     *
+     *  @return the number of buffers, 0 if none available
+     *  @since 0.9.21
+     */
+    public int getNextWriteBufs(ByteBuffer[] bufs) {
+        int rv = 0;
+        for (ByteBuffer buf : _writeBufs) {
+            if (rv >= bufs.length)
+                break;
+            bufs[rv++] = buf;
+        }
+        return rv;
+    }
+
     /**
      *  Remove the buffer, which _should_ be the one at the head of _writeBufs
+     *
+     *  @return the number of NTCP frames completed, 1 or more (as of 0.9.21)
      */
-    public void removeWriteBuf(ByteBuffer buf) {
+    public int removeWriteBuf(ByteBuffer buf) {
         _bytesSent += buf.capacity();
         OutNetMessage msg = null;
+        List<OutNetMessage> batch = null;
+        int frames = 1;
         boolean clearMessage = false;
         if (_sendingMeta && (buf.capacity() == _meta.length)) {
             _sendingMeta = false;
@@ -1083,6 +1251,11 @@ class NTCPConnection {
                     msg = _currentOutbound;
                     _currentOutbound = null;
                 }
+                if (!_currentBatch.isEmpty()) {
+                    batch = new ArrayList<OutNetMessage>(_currentBatch);
+                    _currentBatch.clear();
+                    frames += batch.size();
+                }
             }
             if (msg != null) {
                 _lastSendTime = _context.clock().now();
@@ -1096,21 +1269,29 @@ class NTCPConnection {
                 _messagesWritten.incrementAndGet();
                 _transport.sendComplete(msg);
             }
+            if (batch != null) {
+                for (OutNetMessage m : batch) {
+                    _context.statManager().addRateData("ntcp.sendTime", m.getSendTime());
+                    _messagesWritten.incrementAndGet();
+                    _transport.sendComplete(m);
+                }
+            }
         } else {
             if (_log.shouldLog(Log.INFO))
                 _log.info("I2NP meta message sent completely");
         }
         
         if (getOutboundQueueSize() > 0) // push through the bw limiter to reach _writeBufs
-            _transport.getWriter().wantsWrite(this, "write completed");
+            _pumper.wantsPrepareWrite(this, "write completed");
 
         // this is not necessary, EventPumper.processWrite() handles this
         // and it just causes unnecessary selector.wakeup() and looping
         //boolean bufsRemain = !_writeBufs.isEmpty();
         //if (bufsRemain) // send asap
-        //    _transport.getPumper().wantsWrite(this);
+        //    _pumper.wantsWrite(this);
 
         updateStats();
+        return frames;
     }
         
     private long _bytesReceived;
@@ -1352,7 +1533,7 @@ class NTCPConnection {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Sending NTCP metadata");
         _sendingMeta = true;
-        _transport.getPumper().wantsWrite(this, encrypted);
+        _pumper.wantsWrite(this, encrypted);
         // enqueueInfoMessage(); // this often?
     }
     
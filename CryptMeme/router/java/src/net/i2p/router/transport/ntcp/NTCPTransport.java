@@ -22,8 +22,10 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.crypto.SigType;
+import net.i2p.data.ByteArray;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.data.router.RouterAddress;
@@ -46,6 +48,7 @@ import net.i2p.router.util.DecayingBloomFilter;
 import net.i2p.util.Addresses;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.Log;
+import net.i2p.util.ObjectCounter;
 import net.i2p.util.OrderedProperties;
 import net.i2p.util.SystemVersion;
 import net.i2p.util.VersionComparator;
@@ -64,7 +67,11 @@ public class NTCPTransport extends TransportImpl {
     private final SharedBid _transientFail;
     private final Object _conLock;
     private final Map<Hash, NTCPConnection> _conByIdent;
+    /** the first pumper, which also owns the acceptor */
     private final EventPumper _pumper;
+    /** all the pumpers, including _pumper */
+    private final EventPumper[] _pumpers;
+    private final AtomicInteger _nextPumper = new AtomicInteger();
     private final Reader _reader;
     private net.i2p.router.transport.ntcp.Writer _writer;
     private int _ssuPort;
@@ -97,6 +104,36 @@ public class NTCPTransport extends TransportImpl {
     /** this is rarely if ever used, default is to bind to wildcard address */
     public static final String PROP_BIND_INTERFACE = "i2np.ntcp.bindInterface";
 
+    /**
+     *  Number of EventPumpers, each with its own selector and thread.
+     *  Default 1. If greater than 1, reads and writes are processed
+     *  in the pumper threads and the Reader and Writer pools are not started.
+     *  Requires restart.
+     *  @since 0.9.21
+     */
+    public static final String PROP_PUMPERS = "i2np.ntcp.pumpers";
+    private static final int DEFAULT_PUMPERS = 1;
+    private static final int MAX_PUMPERS = 16;
+
+    /**
+     *  Coalesce queued outbound messages into a single encrypted buffer
+     *  and write the pending buffers with a single gathering write.
+     *  Default false. Requires restart.
+     *  @since 0.9.21
+     */
+    public static final String PROP_COALESCE = "i2np.ntcp.coalesceWrites";
+    /**
+     *  Coalescing mode only. How long (ms) to hold back a short batch
+     *  waiting for more messages to arrive. 0 to never wait.
+     *  Requires restart.
+     *  @since 0.9.21
+     */
+    public static final String PROP_COALESCE_BUDGET = "i2np.ntcp.coalesceBudget";
+    private static final int DEFAULT_COALESCE_BUDGET = 5;
+    private static final int MAX_COALESCE_BUDGET = 100;
+    private final boolean _coalesce;
+    private final long _coalesceBudget;
+
     private final NTCPSendFinisher _finisher;
     private final DHSessionKeyBuilder.Factory _dhFactory;
     private long _lastBadSkew;
@@ -180,6 +217,9 @@ public class NTCPTransport extends TransportImpl {
         _context.statManager().createRateStat("ntcp.wantsQueuedWrite", "", "ntcp", RATES);
         //_context.statManager().createRateStat("ntcp.write", "", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.writeError", "", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.coalescedFrames", "How many messages are encrypted together in coalescing mode (duration == bytes)", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.writeFramesPerSyscall", "How many NTCP frames are completed per socket write", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.writeBytesPerSyscall", "How many bytes are written per socket write", "ntcp", RATES);
         _endpoints = new HashSet<InetSocketAddress>(4);
         _establishing = new ConcurrentHashSet<NTCPConnection>(16);
         _conLock = new Object();
@@ -188,7 +228,19 @@ public class NTCPTransport extends TransportImpl {
 
         _finisher = new NTCPSendFinisher(ctx, this);
 
-        _pumper = new EventPumper(ctx, this);
+        int pumpers = Math.max(1, Math.min(MAX_PUMPERS, ctx.getProperty(PROP_PUMPERS, DEFAULT_PUMPERS)));
+        _pumpers = new EventPumper[pumpers];
+        if (pumpers == 1) {
+            _pumpers[0] = new EventPumper(ctx, this);
+        } else {
+            ObjectCounter<ByteArray> blockedIPs = new ObjectCounter<ByteArray>();
+            for (int i = 0; i < pumpers; i++) {
+                _pumpers[i] = new EventPumper(ctx, this, i, pumpers, blockedIPs);
+            }
+        }
+        _pumper = _pumpers[0];
+        _coalesce = ctx.getBooleanProperty(PROP_COALESCE);
+        _coalesceBudget = Math.max(0, Math.min(MAX_COALESCE_BUDGET, ctx.getProperty(PROP_COALESCE_BUDGET, DEFAULT_COALESCE_BUDGET)));
         _reader = new Reader(ctx);
         _writer = new net.i2p.router.transport.ntcp.Writer(ctx);
 
@@ -235,7 +287,7 @@ public class NTCPTransport extends TransportImpl {
                     isNew = true;
                     RouterAddress addr = getTargetAddress(target);
                     if (addr != null) {
-                        con = new NTCPConnection(_context, this, ident, addr);
+                        con = new NTCPConnection(_context, this, ident, addr, nextPumper());
                         if (_log.shouldLog(Log.DEBUG))
                             _log.debug("Send on a new con: " + con + " at " + addr + " for " + ih);
                         // Note that outbound conns go in the map BEFORE establishment
@@ -281,7 +333,7 @@ public class NTCPTransport extends TransportImpl {
                     SocketChannel channel = SocketChannel.open();
                     con.setChannel(channel);
                     channel.configureBlocking(false);
-                    _pumper.registerConnect(con);
+                    con.getPumper().registerConnect(con);
                     con.getEstablishState().prepareOutbound();
                 } catch (IOException ioe) {
                     if (_log.shouldLog(Log.ERROR))
@@ -600,7 +652,7 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void startListening() {
         // try once again to prevent two pumpers which is fatal
-        if (_pumper.isAlive())
+        if (isAlive())
             return;
         if (_log.shouldLog(Log.WARN)) _log.warn("Starting NTCP transport listening");
 
@@ -671,7 +723,13 @@ public class NTCPTransport extends TransportImpl {
      */
     private void startIt() {
         _finisher.start();
-        _pumper.startPumping();
+        for (int i = 0; i < _pumpers.length; i++) {
+            _pumpers[i].startPumping();
+        }
+        if (_pumpers.length > 1) {
+            // reads and writes are processed in the pumper threads
+            return;
+        }
 
         long maxMemory = SystemVersion.getMaxMemory();
         int nr, nw;
@@ -688,7 +746,11 @@ public class NTCPTransport extends TransportImpl {
     }
 
     public boolean isAlive() {
-        return _pumper.isAlive();
+        for (int i = 0; i < _pumpers.length; i++) {
+            if (_pumpers[i].isAlive())
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -824,10 +886,42 @@ public class NTCPTransport extends TransportImpl {
 
     public String getStyle() { return STYLE; }
 
+    /**
+     *  Hook for NTCPConnection and EventPumper
+     *  @since 0.9.21
+     */
+    boolean isCoalescing() { return _coalesce; }
+
     /**
      *  Hook for NTCPConnection
+     *  @return ms, 0 to never hold back a batch
+     *  @since 0.9.21
      */
-    EventPumper getPumper() { return _pumper; }
+    long getCoalesceBudget() { return _coalesceBudget; }
+
+    /**
+     *  Choose the pumper for a new connection, inbound or outbound:
+     *  the one with the lowest load, with ties broken round-robin.
+     *  @since 0.9.21
+     */
+    EventPumper nextPumper() {
+        int count = _pumpers.length;
+        if (count == 1)
+            return _pumper;
+        int start = (_nextPumper.getAndIncrement() & 0x7fffffff) % count;
+        EventPumper rv = _pumpers[start];
+        int min = rv.getLoad();
+        for (int i = 1; i < count && min > 0; i++) {
+            EventPumper p = _pumpers[(start + i) % count];
+            int load = p.getLoad();
+            if (load < min) {
+                rv = p;
+                min = load;
+            }
+        }
+        rv.assigned();
+        return rv;
+    }
 
     /**
      *  @since 0.9
@@ -1297,7 +1391,9 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void stopListening() {
         if (_log.shouldLog(Log.WARN)) _log.warn("Stopping ntcp transport");
-        _pumper.stopPumping();
+        for (int i = 0; i < _pumpers.length; i++) {
+            _pumpers[i].stopPumping();
+        }
         _writer.stopWriting();
         _reader.stopReading();
         _finisher.stop();
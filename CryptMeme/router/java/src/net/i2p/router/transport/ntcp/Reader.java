@@ -136,8 +136,10 @@ class Reader {
     /**
      * Process everything read.
      * Return read buffers back to the pool as we process them.
+     * Also called directly by the EventPumper in in-place mode.
+     * Caller must ensure only one thread processes a given connection at a time.
      */
-    private void processRead(NTCPConnection con) {
+    void processRead(NTCPConnection con) {
         ByteBuffer buf = null;
         while(true) {
             synchronized(con) {
@@ -37,6 +37,14 @@ class MessageReceiver {
     private static final int MAX_QUEUE_SIZE = 128;
     private final int _threadCount;
     private static final long POISON_IMS = -99999999999l;
+    private final boolean _gatherRead;
+
+    /**
+     *  If true (default), multi-fragment TunnelDataMessages are read directly
+     *  from the fragments, without assembling them into a temporary buffer first.
+     *  @since 0.9.21
+     */
+    public static final String PROP_GATHER_READ = "i2np.udp.gatherRead";
     
     public MessageReceiver(RouterContext ctx, UDPTransport transport) {
         _context = ctx;
@@ -56,10 +64,13 @@ class MessageReceiver {
             qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (2*1024*1024)));
         }
         _completeMessages = new CoDelBlockingQueue<InboundMessageState>(ctx, "UDP-MessageReceiver", qsize);
+        _gatherRead = ctx.getBooleanPropertyDefaultTrue(PROP_GATHER_READ);
 
         // the runners run forever, no need to have a cache
         //_cache = ByteCache.getInstance(64, I2NPMessage.MAX_SIZE);
         _context.statManager().createRateStat("udp.inboundExpired", "How many messages were expired before reception?", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.inboundCopiedBytes", "Bytes copied between buffers to parse a received message (period is fragment count)", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.inboundGatherRead", "Multi-fragment message read directly from the fragments (period is fragment count)", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.inboundRemaining", "How many messages were remaining when a message is pulled off the complete queue?", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.inboundReady", "How many messages were ready when a message is added to the complete queue?", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.inboundReadTime", "How long it takes to parse in the completed fragments into a message?", "udp", UDPTransport.RATES);
@@ -187,11 +198,23 @@ class MessageReceiver {
      *  @return null on error
      */
     private I2NPMessage readMessage(ByteArray buf, InboundMessageState state, I2NPMessageHandler handler) {
+        boolean assembled = false;
         try {
             //byte buf[] = new byte[state.getCompleteSize()];
-            I2NPMessage m;
+            I2NPMessage m = null;
             int numFragments = state.getFragmentCount();
-            if (numFragments > 1) {
+            if (numFragments > 1 && _gatherRead) {
+                // one copy, from the fragments straight into the message
+                m = I2NPMessageImpl.fromRawFragments(_context, state.getFragments(), numFragments, state.getCompleteSize());
+                if (m != null) {
+                    _context.statManager().addRateData("udp.inboundGatherRead", 1, numFragments);
+                    _context.statManager().addRateData("udp.inboundCopiedBytes", state.getCompleteSize(), numFragments);
+                }
+            }
+            if (m != null) {
+                // done
+            } else if (numFragments > 1) {
+                assembled = true;
                 ByteArray fragments[] = state.getFragments();
                 int off = 0;
                 for (int i = 0; i < numFragments; i++) {
@@ -211,16 +234,19 @@ class MessageReceiver {
                 //if (_log.shouldLog(Log.DEBUG))
                 //    _log.debug("Raw byte array for " + state.getMessageId() + ": " + HexDump.dump(buf.getData(), 0, state.getCompleteSize()));
                 m = I2NPMessageImpl.fromRawByteArray(_context, buf.getData(), 0, state.getCompleteSize(), handler);
+                // assembly copy plus the parse copy
+                _context.statManager().addRateData("udp.inboundCopiedBytes", 2 * state.getCompleteSize(), numFragments);
             } else {
                 // zero copy for single fragment
                 m = I2NPMessageImpl.fromRawByteArray(_context, state.getFragments()[0].getData(), 0, state.getCompleteSize(), handler);
+                _context.statManager().addRateData("udp.inboundCopiedBytes", state.getCompleteSize(), 1);
             }
             m.setUniqueId(state.getMessageId());
             return m;
         } catch (I2NPMessageException ime) {
             if (_log.shouldLog(Log.WARN)) {
                 ByteArray ba;
-                if (state.getFragmentCount() > 1)
+                if (assembled)
                     ba = buf;
                 else
                     ba = state.getFragments()[0];
@@ -1,5 +1,6 @@
 package net.i2p.router.transport.udp;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -25,6 +26,11 @@ import net.i2p.util.SystemVersion;
  * an actual pool of packet handler threads, each pulling off the inbound
  * receiver's queue and pushing them as necessary.
  *
+ * If PROP_LANES is set, each handler thread instead has its own queue,
+ * and packets are assigned to a lane by hash of the source RemoteHostId,
+ * so the packets from a single peer are always handled in order,
+ * by the same thread.
+ *
  */
 class PacketHandler {
     private final RouterContext _context;
@@ -37,8 +43,19 @@ class PacketHandler {
     private volatile boolean _keepReading;
     private final Handler[] _handlers;
     private final Map<RemoteHostId, Object> _failCache;
+    /** shared by all handlers, or null in lane mode */
     private final BlockingQueue<UDPPacket> _inboundQueue;
+    /** one per handler in lane mode, else null */
+    private final List<BlockingQueue<UDPPacket>> _lanes;
     private static final Object DUMMY = new Object();
+
+    /**
+     *  Number of per-peer handler lanes, 0 (default) for the single shared queue.
+     *  Takes effect on (re)start of the transport.
+     *  @since 0.9.21
+     */
+    public static final String PROP_LANES = "i2np.udp.handlerLanes";
+    private static final int MAX_LANES = 16;
     
     private static final int TYPE_POISON = -99999;
     private static final int MIN_QUEUE_SIZE = 16;
@@ -64,17 +81,25 @@ class PacketHandler {
 
         long maxMemory = SystemVersion.getMaxMemory();
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (2*1024*1024)));
-        _inboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver", qsize);
+        int lanes = Math.min(MAX_LANES, ctx.getProperty(PROP_LANES, 0));
         int num_handlers;
-        if (maxMemory < 32*1024*1024)
-            num_handlers = 1;
-        else if (maxMemory < 64*1024*1024)
-            num_handlers = 2;
-        else
-            num_handlers = Math.max(MIN_NUM_HANDLERS, Math.min(MAX_NUM_HANDLERS, ctx.bandwidthLimiter().getInboundKBytesPerSecond() / 20));
+        if (lanes > 0) {
+            _inboundQueue = null;
+            _lanes = newLanes(lanes, Math.max(MIN_QUEUE_SIZE, qsize / lanes));
+            num_handlers = lanes;
+        } else {
+            _inboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Receiver", qsize);
+            _lanes = null;
+            if (maxMemory < 32*1024*1024)
+                num_handlers = 1;
+            else if (maxMemory < 64*1024*1024)
+                num_handlers = 2;
+            else
+                num_handlers = Math.max(MIN_NUM_HANDLERS, Math.min(MAX_NUM_HANDLERS, ctx.bandwidthLimiter().getInboundKBytesPerSecond() / 20));
+        }
         _handlers = new Handler[num_handlers];
         for (int i = 0; i < num_handlers; i++) {
-            _handlers[i] = new Handler();
+            _handlers[i] = new Handler(lanes > 0 ? _lanes.get(i) : _inboundQueue);
         }
 
         _context.statManager().createRateStat("udp.handleTime", "How long it takes to handle a received packet after its been pulled off the queue", "udp", UDPTransport.RATES);
@@ -89,6 +114,10 @@ class PacketHandler {
         _context.statManager().createRateStat("udp.droppedInvalidInboundEstablish", "How old the packet we dropped due to invalidity (inbound establishment, bad key) was", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.droppedInvalidSkew", "How skewed the packet we dropped due to invalidity (valid except bad skew) was", "udp", UDPTransport.RATES);
         _context.statManager().createRateStat("udp.destroyedInvalidSkew", "Destroyed session due to bad skew", "udp", UDPTransport.RATES);
+        if (lanes > 0) {
+            _context.statManager().createRateStat("udp.handlerLaneDepth", "How many packets are queued on the handler lane when one is added", "udp", UDPTransport.RATES);
+            _context.statManager().createRateStat("udp.handlerLaneDwell", "How long a packet waits on its handler lane (period is the lane depth when taken)", "udp", UDPTransport.RATES);
+        }
         //_context.statManager().createRateStat("udp.packetDequeueTime", "How long it takes the UDPReader to pull a packet off the inbound packet queue (when its slow)", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.packetVerifyTime", "How long it takes the PacketHandler to verify a data packet after dequeueing (period is dequeue time)", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.packetVerifyTimeSlow", "How long it takes the PacketHandler to verify a data packet after dequeueing when its slow (period is dequeue time)", "udp", UDPTransport.RATES);
@@ -107,6 +136,17 @@ class PacketHandler {
         //_context.statManager().createRateStat("udp.receivePacketSize.relayResponse", "Packet size of the given inbound packet type (period is the packet's lifetime)", "udp", UDPTransport.RATES);
     }
     
+    /**
+     *  @since 0.9.21
+     */
+    private List<BlockingQueue<UDPPacket>> newLanes(int count, int qsize) {
+        List<BlockingQueue<UDPPacket>> rv = new ArrayList<BlockingQueue<UDPPacket>>(count);
+        for (int i = 0; i < count; i++) {
+            rv.add(new CoDelBlockingQueue<UDPPacket>(_context, "UDP-Receiver-" + (i+1), qsize));
+        }
+        return rv;
+    }
+
     public synchronized void startup() { 
         _keepReading = true;
         for (int i = 0; i < _handlers.length; i++) {
@@ -126,6 +166,8 @@ class PacketHandler {
         for (int i = 0; i < _handlers.length; i++) {
             Handler handler = _handlers[i];
             rv.append(" handler ").append(i).append(" state: ").append(handler._state);
+            if (_lanes != null)
+                rv.append(" queued: ").append(_lanes.get(i).size());
         }
         return rv.toString();
     }
@@ -137,7 +179,13 @@ class PacketHandler {
      * @since IPv6 moved from UDPReceiver
      */
     public void queueReceived(UDPPacket packet) throws InterruptedException {
-        _inboundQueue.put(packet);
+        if (_lanes == null) {
+            _inboundQueue.put(packet);
+            return;
+        }
+        BlockingQueue<UDPPacket> lane = _lanes.get((packet.getRemoteHost().hashCode() & 0x7fffffff) % _lanes.size());
+        _context.statManager().addRateData("udp.handlerLaneDepth", lane.size());
+        lane.put(packet);
     }
 
 
@@ -147,36 +195,55 @@ class PacketHandler {
      * @since IPv6 moved from UDPReceiver
      */
     private void stopQueue() {
-        _inboundQueue.clear();
+        for (int i = 0; i < _handlers.length; i++) {
+            _handlers[i]._queue.clear();
+        }
         for (int i = 0; i < _handlers.length; i++) {
             UDPPacket poison = UDPPacket.acquire(_context, false);
             poison.setMessageType(TYPE_POISON);
-            _inboundQueue.offer(poison);
+            _handlers[i]._queue.offer(poison);
         }
-        for (int i = 1; i <= 5 && !_inboundQueue.isEmpty(); i++) {
+        for (int i = 1; i <= 5 && !isEmpty(); i++) {
             try {
                 Thread.sleep(i * 50);
             } catch (InterruptedException ie) {}
         }
-        _inboundQueue.clear();
+        for (int i = 0; i < _handlers.length; i++) {
+            _handlers[i]._queue.clear();
+        }
+    }
+
+    /**
+     * @since 0.9.21
+     */
+    private boolean isEmpty() {
+        for (int i = 0; i < _handlers.length; i++) {
+            if (!_handlers[i]._queue.isEmpty())
+                return false;
+        }
+        return true;
     }
 
     /**
      * Blocking call to retrieve the next inbound packet, or null if we have
      * shut down.
      *
+     * @param queue the shared queue or the handler's lane
      * @since IPv6 moved from UDPReceiver
      */
-    public UDPPacket receiveNext() {
+    private UDPPacket receiveNext(BlockingQueue<UDPPacket> queue) {
         UDPPacket rv = null;
         //int remaining = 0;
         while (_keepReading && rv == null) {
             try {
-                rv = _inboundQueue.take();
+                rv = queue.take();
             } catch (InterruptedException ie) {}
             if (rv != null && rv.getMessageType() == TYPE_POISON)
                 return null;
         }
+        if (rv != null && _lanes != null)
+            _context.statManager().addRateData("udp.handlerLaneDwell",
+                                               _context.clock().now() - rv.getEnqueueTime(), queue.size());
         //_context.statManager().addRateData("udp.receiveRemaining", remaining, 0);
         return rv;
     }
@@ -190,18 +257,21 @@ class PacketHandler {
     
     private class Handler implements Runnable { 
         private final UDPPacketReader _reader;
+        /** shared or lane */
+        final BlockingQueue<UDPPacket> _queue;
         // TODO comment out all uses of _state
         public /* volatile */ int _state;
 
-        public Handler() {
+        public Handler(BlockingQueue<UDPPacket> queue) {
             _reader = new UDPPacketReader(_context);
+            _queue = queue;
         }
         
         public void run() {
             _state = 1;
             while (_keepReading) {
                 _state = 2;
-                UDPPacket packet = receiveNext();
+                UDPPacket packet = receiveNext(_queue);
                 _state = 3;
                 if (packet == null) break; // keepReading is probably false, or bind failed...
 
@@ -0,0 +1,260 @@
+package net.i2p.router.transport.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+import net.i2p.router.RouterContext;
+import net.i2p.router.transport.FIFOBandwidthLimiter;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+
+/**
+ * NIO alternative to the {@link UDPReceiver}, reading from a non-blocking
+ * DatagramChannel into a direct ByteBuffer.
+ *
+ * Each worker has its own Selector registered on the shared channel.
+ * On every wakeup it drains up to BATCH_SIZE datagrams, requests
+ * bandwidth for the whole batch at once, and then injects the packets
+ * into the common PacketHandler queue, same as UDPReceiver.
+ *
+ * There is a UDPChannelReceiver for each UDPEndpoint in NIO mode.
+ *
+ * @since 0.9.21
+ */
+class UDPChannelReceiver {
+    private final RouterContext _context;
+    private final Log _log;
+    private final DatagramChannel _channel;
+    private final String _name;
+    private volatile boolean _keepRunning;
+    private final Worker[] _workers;
+    private final UDPTransport _transport;
+    private final PacketHandler _handler;
+    private final SocketListener _endpoint;
+
+    /** max datagrams pulled off the channel per selector wakeup */
+    private static final int BATCH_SIZE = 32;
+    /** so we notice shutdown */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    /**
+     *  @param channel non-blocking
+     *  @param workers number of receive threads, at least 1
+     */
+    public UDPChannelReceiver(RouterContext ctx, UDPTransport transport, DatagramChannel channel, String name,
+                              SocketListener lsnr, int workers) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(UDPChannelReceiver.class);
+        _name = name;
+        _channel = channel;
+        _transport = transport;
+        _endpoint = lsnr;
+        _handler = transport.getPacketHandler();
+        if (_handler == null)
+            throw new IllegalStateException();
+        _workers = new Worker[Math.max(1, workers)];
+        for (int i = 0; i < _workers.length; i++) {
+            _workers[i] = new Worker();
+        }
+        _context.statManager().createRateStat("udp.receiveHolePunch", "How often we receive a NAT hole punch", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.ignorePacketFromDroplist", "Packet lifetime for those dropped on the drop list", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.receiveBatchSize", "How many packets are read from the channel per wakeup", "udp", UDPTransport.RATES);
+    }
+
+    /**
+     *  Cannot be restarted (channel is final)
+     */
+    public synchronized void startup() throws IOException {
+        _keepRunning = true;
+        for (int i = 0; i < _workers.length; i++) {
+            _workers[i].open();
+            I2PThread t = new I2PThread(_workers[i], _name + ' ' + (i+1) + '/' + _workers.length, true);
+            t.start();
+        }
+    }
+
+    public synchronized void shutdown() {
+        _keepRunning = false;
+        for (int i = 0; i < _workers.length; i++) {
+            _workers[i].close();
+        }
+    }
+
+    /**
+     * BLOCKING if queue between here and PacketHandler is full.
+     */
+    private void doReceive(UDPPacket packet) {
+        if (!_keepRunning) {
+            packet.release();
+            return;
+        }
+
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Received: " + packet);
+
+        RemoteHostId from = packet.getRemoteHost();
+        if (_transport.isInDropList(from)) {
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Ignoring packet from the drop-listed peer: " + from);
+            _context.statManager().addRateData("udp.ignorePacketFromDroplist", packet.getLifetime());
+            packet.release();
+            return;
+        }
+
+        // drop anything apparently from our IP (any port)
+        if (Arrays.equals(from.getIP(), _transport.getExternalIP()) && !_transport.allowLocal()) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Dropping (spoofed?) packet from ourselves");
+            packet.release();
+            return;
+        }
+
+        try {
+            _handler.queueReceived(packet);
+        } catch (InterruptedException ie) {
+            packet.release();
+            _keepRunning = false;
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final ByteBuffer _buf;
+        private final UDPPacket[] _batch;
+        private Selector _selector;
+
+        public Worker() {
+            _buf = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+            _batch = new UDPPacket[BATCH_SIZE];
+        }
+
+        void open() throws IOException {
+            _selector = Selector.open();
+            _channel.register(_selector, SelectionKey.OP_READ);
+        }
+
+        void close() {
+            Selector sel = _selector;
+            if (sel != null) {
+                try {
+                    sel.close();
+                } catch (IOException ioe) {}
+            }
+        }
+
+        public void run() {
+            while (_keepRunning) {
+                while (!_context.throttle().acceptNetworkMessage())
+                    try { Thread.sleep(10); } catch (InterruptedException ie) {}
+
+                try {
+                    int n = _selector.select(SELECT_TIMEOUT);
+                    if (n > 0)
+                        _selector.selectedKeys().clear();
+                    int count = drain();
+                    if (count > 0)
+                        dispatch(count);
+                } catch (ClosedSelectorException cse) {
+                    break;
+                } catch (ClosedChannelException cce) {
+                    if (_keepRunning) {
+                        _keepRunning = false;
+                        _endpoint.fail();
+                    }
+                } catch (IOException ioe) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Error receiving", ioe);
+                    if (!_channel.isOpen()) {
+                        if (_keepRunning) {
+                            _keepRunning = false;
+                            _endpoint.fail();
+                        }
+                    } else if (_keepRunning) {
+                        try { Thread.sleep(100); } catch (InterruptedException ie) {}
+                    }
+                }
+            }
+            close();
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Stop receiving on " + _endpoint);
+        }
+
+        /**
+         *  Non-blocking, read up to BATCH_SIZE packets into _batch.
+         *  Zero-length hole punches and oversized packets are handled here
+         *  and not returned.
+         *
+         *  @return number of packets in _batch
+         */
+        private int drain() throws IOException {
+            int count = 0;
+            while (count < BATCH_SIZE && _keepRunning) {
+                _buf.clear();
+                SocketAddress from = _channel.receive(_buf);
+                if (from == null)
+                    break;
+                int size = _buf.position();
+                InetSocketAddress isa = (InetSocketAddress) from;
+                if (size <= 0) {
+                    _context.statManager().addRateData("udp.receiveHolePunch", 1);
+                    // nat hole punch packets are 0 bytes
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("Received a 0 byte udp packet from " + isa);
+                    _transport.getEstablisher().receiveHolePunch(isa.getAddress(), isa.getPort());
+                    continue;
+                }
+                if (size >= UDPPacket.MAX_PACKET_SIZE) {
+                    // the channel silently truncates, same as the socket
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("packet too large! truncated and dropped from: " + isa);
+                    continue;
+                }
+                UDPPacket packet = UDPPacket.acquire(_context, true);
+                DatagramPacket dpacket = packet.getPacket();
+                _buf.flip();
+                _buf.get(dpacket.getData(), 0, size);
+                dpacket.setLength(size);
+                dpacket.setAddress(isa.getAddress());
+                dpacket.setPort(isa.getPort());
+                packet.resetBegin();
+                _batch[count++] = packet;
+            }
+            return count;
+        }
+
+        /**
+         *  One bandwidth request for the whole batch, then queue them all.
+         */
+        private void dispatch(int count) {
+            if (_context.commSystem().isDummy()) {
+                // testing
+                for (int i = 0; i < count; i++) {
+                    _batch[i].release();
+                    _batch[i] = null;
+                }
+                return;
+            }
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                total += _batch[i].getPacket().getLength();
+            }
+            FIFOBandwidthLimiter.Request req =
+                  _context.bandwidthLimiter().requestInbound(total, "UDP channel receiver");
+            while (req.getPendingRequested() > 0)
+                req.waitForNextAllocation();
+            _context.statManager().addRateData("udp.receiveBatchSize", count, total);
+            for (int i = 0; i < count; i++) {
+                doReceive(_batch[i]);
+                _batch[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package net.i2p.router.transport.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+import net.i2p.router.RouterContext;
+import net.i2p.router.transport.FIFOBandwidthLimiter;
+import net.i2p.router.util.CoDelBlockingQueue;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ * NIO alternative to the {@link UDPSender}, writing to a non-blocking
+ * DatagramChannel from a direct ByteBuffer.
+ *
+ * There are several workers, each with its own queue. Packets are sharded
+ * to a worker by RemoteHostId, so the packets for a single peer are
+ * always sent in order. Each worker drains up to BATCH_SIZE packets from
+ * its queue at a time and requests bandwidth for the whole batch at once.
+ *
+ * There is a UDPChannelSender for each UDPEndpoint in NIO mode.
+ *
+ * @since 0.9.21
+ */
+class UDPChannelSender {
+    private final RouterContext _context;
+    private final Log _log;
+    private final DatagramChannel _channel;
+    private final String _name;
+    private volatile boolean _keepRunning;
+    private final Worker[] _workers;
+    private final SocketListener _endpoint;
+
+    private static final int TYPE_POISON = 99999;
+
+    private static final int MIN_QUEUE_SIZE = 64;
+    private static final int MAX_QUEUE_SIZE = 384;
+    /** max packets sent per queue wakeup */
+    private static final int BATCH_SIZE = 16;
+    private static final int MAX_HEAD_LIFETIME = 3*1000;
+    /** how long to wait for the socket buffer to drain before giving up on a packet */
+    private static final long WRITE_TIMEOUT = 250;
+
+    /**
+     *  @param channel non-blocking
+     *  @param workers number of send threads, at least 1
+     */
+    public UDPChannelSender(RouterContext ctx, DatagramChannel channel, String name, SocketListener lsnr, int workers) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(UDPChannelSender.class);
+        _channel = channel;
+        _name = name;
+        _endpoint = lsnr;
+        workers = Math.max(1, workers);
+        long maxMemory = SystemVersion.getMaxMemory();
+        // split the same total as UDPSender across the workers
+        int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (1024*1024)));
+        qsize = Math.max(MIN_QUEUE_SIZE / 2, qsize / workers);
+        _workers = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            _workers[i] = new Worker(new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Sender-" + (i+1), qsize));
+        }
+        _context.statManager().createRateStat("udp.pushTime", "How long a UDP packet takes to get pushed out", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.sendQueueTrimmed", "How many packets were removed from the queue for being too old (duration == remaining)", "udp", UDPTransport.RATES);
+        _context.statManager().createRequiredRateStat("udp.sendPacketSize", "Size of sent packets (bytes)", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.sendBWThrottleTime", "How long the send is blocked by the bandwidth throttle", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.sendACKTime", "How long an ACK packet is blocked for (duration == lifetime)", "udp", UDPTransport.RATES);
+        // used in RouterWatchdog
+        _context.statManager().createRequiredRateStat("udp.sendException", "Send fails (Windows exception?)", "udp", new long[] { 60*1000, 10*60*1000 });
+        _context.statManager().createRateStat("udp.sendBatchSize", "How many packets are sent per queue wakeup", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.sendChannelFull", "How often the channel would block on send", "udp", UDPTransport.RATES);
+    }
+
+    /**
+     *  Cannot be restarted (channel is final)
+     */
+    public synchronized void startup() throws IOException {
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Starting the runners: " + _name);
+        _keepRunning = true;
+        for (int i = 0; i < _workers.length; i++) {
+            _workers[i].open();
+            I2PThread t = new I2PThread(_workers[i], _name + ' ' + (i+1) + '/' + _workers.length, true);
+            t.start();
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (!_keepRunning)
+            return;
+        _keepRunning = false;
+        for (int i = 0; i < _workers.length; i++) {
+            BlockingQueue<UDPPacket> queue = _workers[i]._queue;
+            queue.clear();
+            UDPPacket poison = UDPPacket.acquire(_context, false);
+            poison.setMessageType(TYPE_POISON);
+            queue.offer(poison);
+        }
+        for (int i = 1; i <= 5 && !isEmpty(); i++) {
+            try {
+                Thread.sleep(i * 50);
+            } catch (InterruptedException ie) {}
+        }
+        clear();
+    }
+
+    private boolean isEmpty() {
+        for (int i = 0; i < _workers.length; i++) {
+            if (!_workers[i]._queue.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Clear outbound queues, probably in preparation for sending destroy() to everybody.
+     */
+    public void clear() {
+        for (int i = 0; i < _workers.length; i++) {
+            _workers[i]._queue.clear();
+        }
+    }
+
+    /**
+     * Put it on the queue of the worker for this peer.
+     * BLOCKING if queue is full (backs up PacketPusher thread)
+     */
+    public void add(UDPPacket packet) {
+        if (packet == null || !_keepRunning) return;
+        int psz = packet.getPacket().getLength();
+        if (psz > PeerState.LARGE_MTU) {
+            _log.error("Dropping large UDP packet " + psz + " bytes: " + packet);
+            return;
+        }
+        Worker w;
+        if (_workers.length == 1)
+            w = _workers[0];
+        else
+            w = _workers[(packet.getRemoteHost().hashCode() & 0x7fffffff) % _workers.length];
+        try {
+            w._queue.put(packet);
+        } catch (InterruptedException ie) {
+            return;
+        }
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Added the packet onto the queue with a lifetime of " + packet.getLifetime());
+    }
+
+    private class Worker implements Runnable {
+        final BlockingQueue<UDPPacket> _queue;
+        private final ByteBuffer _buf;
+        private final List<UDPPacket> _batch;
+        private Selector _selector;
+
+        public Worker(BlockingQueue<UDPPacket> queue) {
+            _queue = queue;
+            _buf = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+            _batch = new ArrayList<UDPPacket>(BATCH_SIZE);
+        }
+
+        void open() throws IOException {
+            _selector = Selector.open();
+            _channel.register(_selector, SelectionKey.OP_WRITE);
+        }
+
+        public void run() {
+            while (_keepRunning) {
+                if (!getNextBatch())
+                    break;
+                long acquireTime = _context.clock().now();
+                int total = 0;
+                for (int i = 0; i < _batch.size(); i++) {
+                    total += _batch.get(i).getPacket().getLength();
+                }
+                if (total > 0) {
+                    FIFOBandwidthLimiter.Request req =
+                          _context.bandwidthLimiter().requestOutbound(total, 0, "UDP channel sender");
+                    while (req.getPendingRequested() > 0)
+                        req.waitForNextAllocation();
+                }
+                long throttleTime = _context.clock().now() - acquireTime;
+                _context.statManager().addRateData("udp.sendBatchSize", _batch.size(), total);
+                for (int i = 0; i < _batch.size(); i++) {
+                    UDPPacket packet = _batch.get(i);
+                    send(packet, acquireTime, throttleTime);
+                    // back to the cache
+                    packet.release();
+                }
+                _batch.clear();
+            }
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Stop sending on " + _endpoint);
+            for (UDPPacket packet : _batch) {
+                packet.release();
+            }
+            _batch.clear();
+            _queue.clear();
+            try {
+                _selector.close();
+            } catch (IOException ioe) {}
+        }
+
+        private void send(UDPPacket packet, long acquireTime, long throttleTime) {
+            DatagramPacket dp = packet.getPacket();
+            int size = dp.getLength();
+            if (packet.getMessageType() >= PacketBuilder.TYPE_FIRST)
+                _context.statManager().addRateData("udp.sendPacketSize." + packet.getMessageType(), size, packet.getFragmentCount());
+            _buf.clear();
+            _buf.put(dp.getData(), dp.getOffset(), size);
+            _buf.flip();
+            try {
+                int sent = _channel.send(_buf, dp.getSocketAddress());
+                if (sent == 0) {
+                    // socket buffer full, wait for it once
+                    _context.statManager().addRateData("udp.sendChannelFull", 1);
+                    _selector.select(WRITE_TIMEOUT);
+                    _selector.selectedKeys().clear();
+                    sent = _channel.send(_buf, dp.getSocketAddress());
+                    if (sent == 0) {
+                        if (_log.shouldLog(Log.WARN))
+                            _log.warn("Channel full, dropping " + packet);
+                        _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
+                        return;
+                    }
+                }
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Sent the packet " + packet);
+                if (throttleTime > 10)
+                    _context.statManager().addRateData("udp.sendBWThrottleTime", throttleTime, acquireTime - packet.getBegin());
+                if (packet.getMarkedType() == 1)
+                    _context.statManager().addRateData("udp.sendACKTime", throttleTime, packet.getLifetime());
+                _context.statManager().addRateData("udp.pushTime", packet.getLifetime(), packet.getLifetime());
+                _context.statManager().addRateData("udp.sendPacketSize", size, packet.getLifetime());
+            } catch (ClosedSelectorException cse) {
+                // shutdown
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Error sending to " + dp.getAddress(), ioe);
+                _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
+                if (!_channel.isOpen()) {
+                    if (_keepRunning) {
+                        _keepRunning = false;
+                        _endpoint.fail();
+                    }
+                }
+            }
+        }
+
+        /**
+         *  Block for the first packet, then take whatever else is waiting,
+         *  up to BATCH_SIZE. Will discard any packet older than MAX_HEAD_LIFETIME.
+         *
+         *  @return false if we should stop
+         */
+        private boolean getNextBatch() {
+            UDPPacket packet = null;
+            while (_keepRunning && packet == null) {
+                try {
+                    packet = _queue.take();
+                } catch (InterruptedException ie) {}
+                if (packet == null)
+                    continue;
+                if (packet.getMessageType() == TYPE_POISON)
+                    return false;
+                if (packet.getLifetime() > MAX_HEAD_LIFETIME) {
+                    _context.statManager().addRateData("udp.sendQueueTrimmed", 1, 0);
+                    packet.release();
+                    packet = null;
+                }
+            }
+            if (packet == null)
+                return false;
+            _batch.add(packet);
+            _queue.drainTo(_batch, BATCH_SIZE - 1);
+            for (int i = _batch.size() - 1; i > 0; i--) {
+                UDPPacket p = _batch.get(i);
+                if (p.getMessageType() == TYPE_POISON) {
+                    _batch.remove(i);
+                    _keepRunning = false;
+                } else if (p.getLifetime() > MAX_HEAD_LIFETIME) {
+                    _context.statManager().addRateData("udp.sendQueueTrimmed", 1, 0);
+                    _batch.remove(i);
+                    p.release();
+                }
+            }
+            return true;
+        }
+    }
+}
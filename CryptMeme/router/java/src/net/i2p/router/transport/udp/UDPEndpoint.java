@@ -5,16 +5,22 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.TransportUtil;
 import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
 
 /**
  * Coordinate the low-level datagram socket, creating and managing the UDPSender and
  * UDPReceiver.
+ *
+ * If PROP_NIO is set, a non-blocking DatagramChannel is used instead,
+ * with a UDPChannelSender and UDPChannelReceiver.
  */
 class UDPEndpoint implements SocketListener {
     private final RouterContext _context;
@@ -23,10 +29,26 @@ class UDPEndpoint implements SocketListener {
     private final UDPTransport _transport;
     private UDPSender _sender;
     private UDPReceiver _receiver;
+    private UDPChannelSender _channelSender;
+    private UDPChannelReceiver _channelReceiver;
     private DatagramSocket _socket;
+    private DatagramChannel _channel;
     private final InetAddress _bindAddress;
     private final boolean _isIPv4, _isIPv6;
     private static final AtomicInteger _counter = new AtomicInteger();
+
+    /**
+     *  Use a non-blocking DatagramChannel with multiple send and receive workers
+     *  instead of a DatagramSocket with one thread each way.
+     *  Takes effect on (re)start of the transport.
+     *  @since 0.9.21
+     */
+    public static final String PROP_NIO = "i2np.udp.nio";
+    /** @since 0.9.21 */
+    public static final String PROP_NIO_SENDERS = "i2np.udp.nio.senders";
+    /** @since 0.9.21 */
+    public static final String PROP_NIO_RECEIVERS = "i2np.udp.nio.receivers";
+    private static final int MAX_NIO_WORKERS = 8;
     
     /**
      *  @param transport may be null for unit testing ONLY
@@ -52,12 +74,25 @@ class UDPEndpoint implements SocketListener {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Starting up the UDP endpoint");
         shutdown();
-        _socket = getSocket();
+        boolean nio = _context.getBooleanProperty(PROP_NIO);
+        _socket = getSocket(nio);
         if (_socket == null) {
             _log.log(Log.CRIT, "UDP Unable to open a port");
             throw new SocketException("SSU Unable to bind to a port on " + _bindAddress);
         }
         int count = _counter.incrementAndGet();
+        if (nio) {
+            _channel = _socket.getChannel();
+            try {
+                startChannel(count);
+            } catch (IOException ioe) {
+                shutdown();
+                SocketException se = new SocketException("SSU Unable to start channel on " + _bindAddress);
+                se.initCause(ioe);
+                throw se;
+            }
+            return;
+        }
         _sender = new UDPSender(_context, _socket, "UDPSender " + count, this);
         _sender.startup();
         if (_transport != null) {
@@ -65,11 +100,48 @@ class UDPEndpoint implements SocketListener {
             _receiver.startup();
         }
     }
+
+    /**
+     *  Start the NIO sender and receiver workers on _channel
+     *  @since 0.9.21
+     */
+    private void startChannel(int count) throws IOException {
+        int cores = SystemVersion.getCores();
+        int senders = Math.min(MAX_NIO_WORKERS, Math.max(1,
+                          _context.getProperty(PROP_NIO_SENDERS, Math.min(4, cores))));
+        int receivers = Math.min(MAX_NIO_WORKERS, Math.max(1,
+                          _context.getProperty(PROP_NIO_RECEIVERS, 1)));
+        _channelSender = new UDPChannelSender(_context, _channel, "UDPSender " + count, this, senders);
+        _channelSender.startup();
+        if (_transport != null) {
+            _channelReceiver = new UDPChannelReceiver(_context, _transport, _channel, "UDPReceiver " + count,
+                                                      this, receivers);
+            _channelReceiver.startup();
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Started NIO endpoint with " + senders + " senders and " + receivers + " receivers");
+    }
     
     public synchronized void shutdown() {
         if (_sender != null) {
             _sender.shutdown();
             _receiver.shutdown();
+            _sender = null;
+            _receiver = null;
+        }
+        if (_channelSender != null) {
+            _channelSender.shutdown();
+            _channelSender = null;
+        }
+        if (_channelReceiver != null) {
+            _channelReceiver.shutdown();
+            _channelReceiver = null;
+        }
+        if (_channel != null) {
+            try {
+                _channel.close();
+            } catch (IOException ioe) {}
+            _channel = null;
         }
         if (_socket != null) {
             _socket.close();
@@ -107,10 +179,11 @@ class UDPEndpoint implements SocketListener {
     /**
      *  Open socket using requested port in _listenPort and  bind host in _bindAddress.
      *  If _listenPort <= 0, or requested port is busy, repeatedly try a new random port.
+     *  @param nio if true, the socket is the peer of a non-blocking DatagramChannel
      *  @return null on failure
      *  Sets _listenPort to actual port or -1 on failure
      */
-    private DatagramSocket getSocket() {
+    private DatagramSocket getSocket(boolean nio) {
         DatagramSocket socket = null;
         int port = _listenPort;
         if (port > 0 && !TransportUtil.isValidPort(port)) {
@@ -127,14 +200,16 @@ class UDPEndpoint implements SocketListener {
                  port = selectRandomPort(_context);
              }
              try {
-                 if (_bindAddress == null)
+                 if (nio)
+                     socket = getChannelSocket(port);
+                 else if (_bindAddress == null)
                      socket = new DatagramSocket(port);
                  else
                      socket = new DatagramSocket(port, _bindAddress);
                  break;
-             } catch (SocketException se) {
+             } catch (IOException ioe) {
                  if (_log.shouldLog(Log.WARN))
-                     _log.warn("Binding to port " + port + " failed", se);
+                     _log.warn("Binding to port " + port + " failed", ioe);
              }
              port = -1;
         }
@@ -150,6 +225,26 @@ class UDPEndpoint implements SocketListener {
         return socket;
     }
 
+    /**
+     *  @return the socket of a bound, non-blocking channel
+     *  @since 0.9.21
+     */
+    private DatagramSocket getChannelSocket(int port) throws IOException {
+        DatagramChannel chan = DatagramChannel.open();
+        try {
+            DatagramSocket socket = chan.socket();
+            if (_bindAddress == null)
+                socket.bind(new InetSocketAddress(port));
+            else
+                socket.bind(new InetSocketAddress(_bindAddress, port));
+            chan.configureBlocking(false);
+            return socket;
+        } catch (IOException ioe) {
+            chan.close();
+            throw ioe;
+        }
+    }
+
     /**
      *  Pick a random port between the configured boundaries
      *  @since IPv6
@@ -163,6 +258,8 @@ class UDPEndpoint implements SocketListener {
 
     /** call after startup() to get actual port or -1 on startup failure */
     public int getListenPort() { return _listenPort; }
+
+    /** @return null in NIO mode */
     public UDPSender getSender() { return _sender; }
     
     /**
@@ -171,13 +268,22 @@ class UDPEndpoint implements SocketListener {
      * BLOCKING if queue is full.
      */
     public void send(UDPPacket packet) { 
-        _sender.add(packet); 
+        UDPChannelSender cs = _channelSender;
+        if (cs != null) {
+            cs.add(packet);
+            return;
+        }
+        UDPSender sender = _sender;
+        if (sender != null)
+            sender.add(packet);
+        else
+            packet.release();
     }
      
     /**
      * Blocking call to receive the next inbound UDP packet from any peer.
      *
-     * UNIT TESTING ONLY. Direct from the socket.
+     * UNIT TESTING ONLY. Direct from the socket. Not supported in NIO mode.
      * In normal operation, UDPReceiver thread injects to PacketHandler queue.
      *
      * @return null if we have shut down, or on failure
@@ -200,6 +306,8 @@ class UDPEndpoint implements SocketListener {
     public void clearOutbound() {
         if (_sender != null)
             _sender.clear();
+        if (_channelSender != null)
+            _channelSender.clear();
     }
 
     /**
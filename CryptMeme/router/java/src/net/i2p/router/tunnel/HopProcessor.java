@@ -1,6 +1,7 @@
 package net.i2p.router.tunnel;
 
 import net.i2p.I2PAppContext;
+import net.i2p.crypto.TunnelCryptoEngine;
 import net.i2p.data.Hash;
 import net.i2p.util.Log;
 
@@ -18,6 +19,7 @@ class HopProcessor {
     private final Log _log;
     protected final HopConfig _config;
     private final IVValidator _validator;
+    private final TunnelCryptoEngine _crypto;
         
     /** helpful flag for debugging */
     //static final boolean USE_ENCRYPTION = true;
@@ -41,6 +43,7 @@ class HopProcessor {
         _log = ctx.logManager().getLog(HopProcessor.class);
         _config = config;
         _validator = validator;
+        _crypto = new TunnelCryptoEngine(ctx);
     }
     
     /** @deprecated unused */
@@ -61,6 +64,61 @@ class HopProcessor {
      * @return true if the message was updated and valid, false if it was not.
      */
     public boolean process(byte orig[], int offset, int length, Hash prev) {
+        if (!validate(orig, offset, prev))
+            return false;
+        
+        //if (_log.shouldLog(Log.DEBUG)) {
+            //_log.debug("IV received: " + Base64.encode(iv));
+            //_log.debug("Before:" + Base64.encode(orig, IV_LENGTH, orig.length - IV_LENGTH));
+        //}
+        _crypto.encryptLayer(orig, offset, length, _config.getLayerKey(), _config.getIVKey());
+        //if (_log.shouldLog(Log.DEBUG)) {
+            //_log.debug("Data after processing: " + Base64.encode(orig, IV_LENGTH, orig.length - IV_LENGTH));
+            //_log.debug("IV sent: " + Base64.encode(orig, 0, IV_LENGTH));
+        //}
+        return true;
+    }
+
+    /**
+     * Process several messages for this hop at once, as process() does for one.
+     * The layer key is set up once for all of them.
+     *
+     * @param orig IV+data of each message, the first count are processed
+     * @param offsets index into each orig where the IV begins
+     * @param lengths how long after the offset does each message go for?
+     * @param prevs previous hop for each message, or null if we are the gateway
+     * @param count how many to process
+     * @param ok out parameter, true if that message was updated and valid, false if it was not.
+     * @return how many were updated and valid
+     * @since 0.9.21
+     */
+    public int process(byte orig[][], int offsets[], int lengths[], Hash prevs[], int count, boolean ok[]) {
+        byte valid[][] = new byte[count][];
+        int validOffsets[] = new int[count];
+        int validLengths[] = new int[count];
+        int rv = 0;
+        for (int i = 0; i < count; i++) {
+            ok[i] = validate(orig[i], offsets[i], prevs != null ? prevs[i] : null);
+            if (ok[i]) {
+                valid[rv] = orig[i];
+                validOffsets[rv] = offsets[i];
+                validLengths[rv] = lengths[i];
+                rv++;
+            }
+        }
+        if (rv > 0)
+            _crypto.encryptLayers(valid, validOffsets, validLengths, rv, _config.getLayerKey(), _config.getIVKey());
+        return rv;
+    }
+
+    /**
+     * Validate the previous peer and the IV
+     *
+     * @param prev previous hop in the tunnel, or null if we are the gateway
+     * @return true if valid
+     * @since 0.9.21 split out of process()
+     */
+    private boolean validate(byte orig[], int offset, Hash prev) {
         // prev is null on gateways
         if (prev != null) {
             if (_config.getReceiveFrom() == null) {
@@ -80,37 +138,8 @@ class HopProcessor {
                 _log.warn("Invalid IV, dropping at hop " + _config);
             return false;
         }
-        
-        if (_log.shouldLog(Log.DEBUG)) {
-            //_log.debug("IV received: " + Base64.encode(iv));
-            //_log.debug("Before:" + Base64.encode(orig, IV_LENGTH, orig.length - IV_LENGTH));
-        }
-        //if (USE_ENCRYPTION) {
-            //if (USE_DOUBLE_IV_ENCRYPTION) 
-                updateIV(orig, offset);
-            encrypt(orig, offset, length);
-            updateIV(orig, offset);
-        //}
-        //if (_log.shouldLog(Log.DEBUG)) {
-            //_log.debug("Data after processing: " + Base64.encode(orig, IV_LENGTH, orig.length - IV_LENGTH));
-            //_log.debug("IV sent: " + Base64.encode(orig, 0, IV_LENGTH));
-        //}
         return true;
     }
-    
-    private final void encrypt(byte data[], int offset, int length) {
-        for (int off = offset + IV_LENGTH; off < length; off += IV_LENGTH) {
-            //DataHelper.xor(data, off - IV_LENGTH, data, off, data, off, IV_LENGTH);
-            for (int j = 0; j < IV_LENGTH; j++) {
-                data[off + j] ^= data[(off - IV_LENGTH) + j];
-            }
-            _context.aes().encryptBlock(data, off, _config.getLayerKey(), data, off);
-        }
-    }
-    
-    private final void updateIV(byte orig[], int offset) {
-        _context.aes().encryptBlock(orig, offset, _config.getIVKey(), orig, offset);
-    }
 
     /**
      *  @since 0.8.12
@@ -22,6 +22,7 @@ import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
 import net.i2p.router.Service;
 import net.i2p.router.peermanager.PeerProfile;
+import net.i2p.stat.RateHandle;
 import net.i2p.util.Log;
 
 /**
@@ -86,6 +87,10 @@ public class TunnelDispatcher implements Service {
     //private long _lastDropTime;
     private final TunnelGatewayPumper _pumper;
     private final Object _joinParticipantLock = new Object();
+    /** per-message stats, looked up once @since 0.9.21 */
+    private final RateHandle _dispatchOutboundPeerStat, _dispatchOutboundTunnelStat,
+                             _dispatchInboundStat, _dispatchParticipantStat,
+                             _dispatchEndpointStat, _participatingMessageDroppedStat;
 
     /** for shouldDropParticipatingMessage() */
     enum Location {OBEP, PARTICIPANT, IBGW}
@@ -197,6 +202,7 @@ public class TunnelDispatcher implements Service {
         ctx.statManager().createRateStat("tunnel.inboundLookupSuccess", "Was a deferred lookup successful?", "Tunnels", new long[] { 60*60*1000 });
         // following is for TunnelParticipant
         ctx.statManager().createRateStat("tunnel.participantLookupSuccess", "Was a deferred lookup successful?", "Tunnels", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat("tunnel.participantBatchSize", "How many messages were processed together for a participating tunnel?", "Tunnels", new long[] { 60*60*1000 });
         // following is for BuildMessageProcessor
         ctx.statManager().createRateStat("tunnel.buildRequestDup", "How frequently we get dup build request messages", "Tunnels", new long[] { 60*60*1000 });
         // following are for FragmentHandler
@@ -215,6 +221,12 @@ public class TunnelDispatcher implements Service {
         ctx.statManager().createRateStat("tunnel.handleLoadClove", "When do we receive load test cloves", "Tunnels", new long[] { 60*60*1000 });
         // following is for PumpedTunnelGateway
         ctx.statManager().createRateStat("tunnel.dropGatewayOverflow", "Dropped message at GW, queue full", "Tunnels", new long[] { 60*60*1000 });
+        _dispatchOutboundPeerStat = ctx.statManager().getRateHandle("tunnel.dispatchOutboundPeer");
+        _dispatchOutboundTunnelStat = ctx.statManager().getRateHandle("tunnel.dispatchOutboundTunnel");
+        _dispatchInboundStat = ctx.statManager().getRateHandle("tunnel.dispatchInbound");
+        _dispatchParticipantStat = ctx.statManager().getRateHandle("tunnel.dispatchParticipant");
+        _dispatchEndpointStat = ctx.statManager().getRateHandle("tunnel.dispatchEndpoint");
+        _participatingMessageDroppedStat = ctx.statManager().getRateHandle("tunnel.participatingMessageDropped");
     }
 
     /** for IBGW */
@@ -524,7 +536,7 @@ public class TunnelDispatcher implements Service {
                            + recvFrom.toBase64().substring(0,4));
             _context.messageHistory().tunnelDispatched(msg.getUniqueId(), msg.getTunnelId(), "participant");
             participant.dispatch(msg, recvFrom);
-            _context.statManager().addRateData("tunnel.dispatchParticipant", 1);
+            _dispatchParticipantStat.addData(1);
         } else {
             OutboundTunnelEndpoint endpoint = _outboundEndpoints.get(msg.getTunnelIdObj());
             if (endpoint != null) {
@@ -535,7 +547,7 @@ public class TunnelDispatcher implements Service {
                 _context.messageHistory().tunnelDispatched(msg.getUniqueId(), msg.getTunnelId(), "outbound endpoint");
                 endpoint.dispatch(msg, recvFrom);
                 
-                _context.statManager().addRateData("tunnel.dispatchEndpoint", 1);
+                _dispatchEndpointStat.addData(1);
             } else {
                 // Somewhat common, probably due to somebody with large clock skew?
                 _context.messageHistory().droppedTunnelDataMessageUnknown(msg.getUniqueId(), msg.getTunnelId());
@@ -583,7 +595,7 @@ public class TunnelDispatcher implements Service {
             //                                               + msg.getTunnelId().getTunnelId() + " as inbound gateway");
             _context.messageHistory().tunnelDispatched(msg.getUniqueId(), msg.getMessage().getUniqueId(), msg.getTunnelId().getTunnelId(), "inbound gateway");
             gw.add(msg);
-            _context.statManager().addRateData("tunnel.dispatchInbound", 1);
+            _dispatchInboundStat.addData(1);
         } else {
             _context.messageHistory().droppedTunnelGatewayMessageUnknown(msg.getUniqueId(), msg.getTunnelId().getTunnelId());
             int level = (_context.router().getUptime() > 10*60*1000 ? Log.WARN : Log.INFO);
@@ -661,9 +673,9 @@ public class TunnelDispatcher implements Service {
             _context.messageHistory().tunnelDispatched(msg.getUniqueId(), tid1, tid2, targetPeer, "outbound gateway");
             gw.add(msg, targetPeer, targetTunnel);
             if (targetTunnel == null)
-                _context.statManager().addRateData("tunnel.dispatchOutboundPeer", 1);
+                _dispatchOutboundPeerStat.addData(1);
             else
-                _context.statManager().addRateData("tunnel.dispatchOutboundTunnel", 1);
+                _dispatchOutboundTunnelStat.addData(1);
         } else {
             _context.messageHistory().droppedTunnelGatewayMessageUnknown(msg.getUniqueId(), outboundTunnel.getTunnelId());
 
@@ -833,7 +845,7 @@ public class TunnelDispatcher implements Service {
                           + used + " %Drop = " + pctDrop
                           + ' ' + loc + ' ' + type + ' ' + length);
             }
-            _context.statManager().addRateData("tunnel.participatingMessageDropped", 1);
+            _participatingMessageDroppedStat.addData(1);
         }
         return reject;
     }
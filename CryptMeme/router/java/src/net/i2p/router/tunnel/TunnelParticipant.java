@@ -1,5 +1,9 @@
 package net.i2p.router.tunnel;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import net.i2p.data.Hash;
 import net.i2p.data.router.RouterInfo;
 import net.i2p.data.TunnelId;
@@ -26,11 +30,23 @@ class TunnelParticipant {
     private final InboundMessageDistributor _inboundDistributor;
     private final FragmentHandler _handler;
     private RouterInfo _nextHopCache;
+    /** messages for the HopProcessor, processed in batches */
+    private final Queue<Received> _pending;
+    /** try-lock, only one thread processes the queue at a time */
+    private final AtomicBoolean _processing;
+    /** batch buffers, LOCKING: _processing */
+    private Received _batch[];
+    private byte _batchData[][];
+    private int _batchOffsets[];
+    private int _batchLengths[];
+    private Hash _batchFrom[];
+    private boolean _batchOK[];
 
     private static final long MAX_LOOKUP_TIME = 15*1000;
     /** for next hop when a tunnel is first created */
     private static final long LONG_MAX_LOOKUP_TIME = 30*1000;
     private static final int PRIORITY = OutNetMessage.PRIORITY_PARTICIPATING;
+    private static final int MAX_BATCH = 16;
 
     /** not an inbound endpoint */
     public TunnelParticipant(RouterContext ctx, HopConfig config, HopProcessor processor) {
@@ -52,6 +68,13 @@ class TunnelParticipant {
         _log = ctx.logManager().getLog(TunnelParticipant.class);
         _config = config;
         _processor = processor;
+        if (processor != null) {
+            _pending = new ConcurrentLinkedQueue<Received>();
+            _processing = new AtomicBoolean();
+        } else {
+            _pending = null;
+            _processing = null;
+        }
         if ( (config == null) || (config.getSendTo() == null) )
             _handler = new RouterFragmentHandler(ctx, new DefragmentedHandler());
         else
@@ -71,6 +94,17 @@ class TunnelParticipant {
         // all createRateStat() in TunnelDispatcher
     }
     
+    /** @since 0.9.21 */
+    private static class Received {
+        final TunnelDataMessage msg;
+        final Hash from;
+
+        public Received(TunnelDataMessage msg, Hash from) {
+            this.msg = msg;
+            this.from = from;
+        }
+    }
+
     private class Found extends JobImpl {
         public Found(RouterContext ctx) { super(ctx); }
         public String getName() { return "Next hop info found"; }
@@ -84,12 +118,78 @@ class TunnelParticipant {
     }
     
     public void dispatch(TunnelDataMessage msg, Hash recvFrom) {
+        if (_processor != null) {
+            _pending.offer(new Received(msg, recvFrom));
+            processPending();
+            return;
+        }
         boolean ok = false;
-        if (_processor != null)
-            ok = _processor.process(msg.getData(), 0, msg.getData().length, recvFrom);
-        else if (_inboundEndpointProcessor != null) 
+        if (_inboundEndpointProcessor != null) 
             ok = _inboundEndpointProcessor.retrievePreprocessedData(msg.getData(), 0, msg.getData().length, recvFrom);
-        
+        processed(msg, ok);
+    }
+
+    /**
+     *  Run the queued messages through the HopProcessor,
+     *  up to MAX_BATCH at a time, so the layer key is set up once per batch.
+     *  If another thread is already at it, just return, it will
+     *  see our message.
+     *
+     *  @since 0.9.21
+     */
+    private void processPending() {
+        while (_processing.compareAndSet(false, true)) {
+            try {
+                if (_batch == null) {
+                    _batch = new Received[MAX_BATCH];
+                    _batchData = new byte[MAX_BATCH][];
+                    _batchOffsets = new int[MAX_BATCH];
+                    _batchLengths = new int[MAX_BATCH];
+                    _batchFrom = new Hash[MAX_BATCH];
+                    _batchOK = new boolean[MAX_BATCH];
+                }
+                Received r;
+                while ((r = _pending.poll()) != null) {
+                    int count = 0;
+                    do {
+                        _batch[count] = r;
+                        byte data[] = r.msg.getData();
+                        _batchData[count] = data;
+                        _batchLengths[count] = data.length;
+                        _batchFrom[count] = r.from;
+                        count++;
+                    } while (count < MAX_BATCH && (r = _pending.poll()) != null);
+                    if (count == 1) {
+                        _batchOK[0] = _processor.process(_batchData[0], 0, _batchLengths[0], _batchFrom[0]);
+                    } else {
+                        _processor.process(_batchData, _batchOffsets, _batchLengths, _batchFrom, count, _batchOK);
+                        _context.statManager().addRateData("tunnel.participantBatchSize", count);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        Received rcvd = _batch[i];
+                        _batch[i] = null;
+                        _batchData[i] = null;
+                        _batchFrom[i] = null;
+                        processed(rcvd.msg, _batchOK[i]);
+                    }
+                }
+            } finally {
+                _processing.set(false);
+            }
+            // a message may have been added after we looked,
+            // by a thread that failed the try-lock
+            if (_pending.isEmpty())
+                break;
+        }
+    }
+
+    /**
+     *  Send it on or drop it
+     *
+     *  @param ok did the processor validate and decrypt it
+     *  @since 0.9.21 split out of dispatch()
+     */
+    private void processed(TunnelDataMessage msg, boolean ok) {
         if (!ok) {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Failed to dispatch " + msg + ": processor=" + _processor 
@@ -0,0 +1,177 @@
+package net.i2p.router.tunnel.pool;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.data.Hash;
+import net.i2p.data.PrivateKey;
+import net.i2p.data.i2np.BuildRequestRecord;
+import net.i2p.data.i2np.TunnelBuildMessage;
+import net.i2p.router.RouterContext;
+import net.i2p.router.tunnel.BuildMessageProcessor;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ *  Decrypt a batch of build requests for the BuildHandler,
+ *  in parallel on the other cores.
+ *
+ *  The calling BuildHandler thread decrypts one of them itself,
+ *  the rest go to a small thread pool, sized for the cores left over,
+ *  and can be set with router.buildDecryptThreads (0 for all inline).
+ *
+ *  @since 0.9.21
+ */
+class BuildDecryptor {
+    private final RouterContext _context;
+    private final Log _log;
+    private final BuildMessageProcessor _processor;
+    private final ThreadPoolExecutor _executor;
+
+    private static final String PROP_THREADS = "router.buildDecryptThreads";
+
+    public BuildDecryptor(RouterContext ctx, BuildMessageProcessor processor) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(BuildDecryptor.class);
+        _processor = processor;
+        int threads = ctx.getProperty(PROP_THREADS, SystemVersion.getCores() - 1);
+        if (threads > 0) {
+            _executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(),
+                                               new CustomThreadFactory(threads));
+            _executor.allowCoreThreadTimeOut(true);
+        } else {
+            _executor = null;
+        }
+    }
+
+    /**
+     *  Decrypt our record in each message and layer-encrypt the others,
+     *  see BuildMessageProcessor.decrypt().
+     *  Blocks until all are done.
+     *  If interrupted, cancels the rest, leaves their results null,
+     *  and returns with the interrupt status set.
+     *
+     *  @param msgs the first count are decrypted
+     *  @param results out parameter, null for each one that failed
+     *  @param times out parameter, decrypt time for each (ms)
+     */
+    public void decrypt(TunnelBuildMessage[] msgs, int count,
+                        BuildRequestRecord[] results, long[] times) {
+        Hash us = _context.routerHash();
+        PrivateKey privKey = _context.keyManager().getPrivateKey();
+        Future<?>[] futures = null;
+        Decrypt[] tasks = null;
+        if (count > 1 && _executor != null) {
+            futures = new Future<?>[count - 1];
+            tasks = new Decrypt[count - 1];
+            for (int i = 0; i < count - 1; i++) {
+                tasks[i] = new Decrypt(msgs[i], us, privKey);
+                try {
+                    futures[i] = _executor.submit(tasks[i]);
+                } catch (RejectedExecutionException ree) {
+                    // shut down, do it ourselves
+                    break;
+                }
+            }
+        }
+        if (futures == null) {
+            for (int i = 0; i < count; i++) {
+                decrypt(new Decrypt(msgs[i], us, privKey), i, results, times);
+            }
+            return;
+        }
+        decrypt(new Decrypt(msgs[count - 1], us, privKey), count - 1, results, times);
+        for (int i = 0; i < count - 1; i++) {
+            if (futures[i] == null) {
+                decrypt(tasks[i], i, results, times);
+                continue;
+            }
+            try {
+                // the tasks don't touch results or times, so a cancelled one can't overwrite them
+                results[i] = (BuildRequestRecord) futures[i].get();
+                times[i] = tasks[i].time;
+            } catch (InterruptedException ie) {
+                // give up on the rest of the batch
+                for (int j = i; j < count - 1; j++) {
+                    if (futures[j] != null)
+                        futures[j].cancel(true);
+                    results[j] = null;
+                }
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ee) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Error decrypting build request", ee.getCause());
+                results[i] = null;
+            }
+        }
+    }
+
+    /**
+     *  Run it in this thread
+     *  @since 0.9.21
+     */
+    private static void decrypt(Decrypt task, int index, BuildRequestRecord[] results, long[] times) {
+        results[index] = task.call();
+        times[index] = task.time;
+    }
+
+    /**
+     *  Cannot be restarted.
+     */
+    public void shutdown() {
+        if (_executor != null)
+            _executor.shutdownNow();
+    }
+
+    /**
+     *  Decrypt one message, returning the record.
+     *  time is set when done.
+     */
+    private class Decrypt implements Callable<BuildRequestRecord> {
+        private final TunnelBuildMessage _msg;
+        private final Hash _us;
+        private final PrivateKey _privKey;
+        /** decrypt time (ms), valid after call() */
+        long time;
+
+        public Decrypt(TunnelBuildMessage msg, Hash us, PrivateKey privKey) {
+            _msg = msg;
+            _us = us;
+            _privKey = privKey;
+        }
+
+        /** @return null on failure */
+        public BuildRequestRecord call() {
+            long start = System.currentTimeMillis();
+            BuildRequestRecord rv = _processor.decrypt(_context, _msg, _us, _privKey);
+            time = System.currentTimeMillis() - start;
+            return rv;
+        }
+    }
+
+    private static class CustomThreadFactory implements ThreadFactory {
+        private final int _threads;
+        private final AtomicInteger _count = new AtomicInteger();
+
+        public CustomThreadFactory(int threads) {
+            _threads = threads;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("BuildDecryptor " + _count.incrementAndGet() + '/' + _threads);
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+}
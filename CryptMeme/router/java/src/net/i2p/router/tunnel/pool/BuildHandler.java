@@ -1,5 +1,7 @@
 package net.i2p.router.tunnel.pool;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -57,6 +59,7 @@ class BuildHandler implements Runnable {
     private final Job _buildReplyMessageHandlerJob;
     private final BlockingQueue<BuildMessageState> _inboundBuildMessages;
     private final BuildMessageProcessor _processor;
+    private final BuildDecryptor _decryptor;
     private final RequestThrottler _requestThrottler;
     private final ParticipatingThrottler _throttler;
     private final BuildReplyHandler _buildReplyHandler;
@@ -95,6 +98,9 @@ class BuildHandler implements Runnable {
 
     private static final long JOB_LAG_LIMIT_TUNNEL = 350;
 
+    /** max requests to take off the queue and decrypt together */
+    private static final int MAX_BATCH = 8;
+
 
     public BuildHandler(RouterContext ctx, TunnelPoolManager manager, BuildExecutor exec) {
         _context = ctx;
@@ -112,6 +118,8 @@ class BuildHandler implements Runnable {
         _context.statManager().createRateStat("tunnel.reject.50", "How often we reject a tunnel because of a critical issue (shutdown, etc)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
 
         _context.statManager().createRequiredRateStat("tunnel.decryptRequestTime", "Time to decrypt a build request (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
+        _context.statManager().createRateStat("tunnel.decryptRequestQueueTime", "Time a build request waited before decryption (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
+        _context.statManager().createRateStat("tunnel.decryptRequestBatch", "Build requests decrypted together", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRateStat("tunnel.rejectTooOld", "Reject tunnel count (too old)", "Tunnels", new long[] { 3*60*60*1000 });
         _context.statManager().createRateStat("tunnel.rejectFuture", "Reject tunnel count (time in future)", "Tunnels", new long[] { 3*60*60*1000 });
         _context.statManager().createRateStat("tunnel.rejectTimeout", "Reject tunnel count (unknown next hop)", "Tunnels", new long[] { 60*60*1000 });
@@ -144,6 +152,7 @@ class BuildHandler implements Runnable {
         ctx.statManager().createRateStat("tunnel.buildLookupSuccess", "Was a deferred lookup successful?", "Tunnels", new long[] { 60*60*1000 });
         
         _processor = new BuildMessageProcessor(ctx);
+        _decryptor = new BuildDecryptor(ctx, _processor);
         // used for previous hop, for all requests
         _requestThrottler = new RequestThrottler(ctx);
         // used for previous and next hops, for successful builds only
@@ -198,6 +207,7 @@ class BuildHandler implements Runnable {
     public synchronized void shutdown(int numThreads) {
         _isRunning = false;
         _inboundBuildMessages.clear();
+        _decryptor.shutdown();
         BuildMessageState poison = new BuildMessageState(_context, null, null, null);
         for (int i = 0; i < numThreads; i++) {
             _inboundBuildMessages.offer(poison);
@@ -223,50 +233,79 @@ class BuildHandler implements Runnable {
     }
 
     /**
-     * Blocking call to handle a single inbound request
+     * Blocking call to handle the next inbound requests.
+     * Takes up to MAX_BATCH off the queue, drops the ones that are
+     * too old before the expensive decryption, and decrypts the rest in parallel.
      */
     private void handleInboundRequest() {
-        BuildMessageState state = null;
-
-            try {
-                state = _inboundBuildMessages.take();
-            } catch (InterruptedException ie) {
-                return;
-            }
+        List<BuildMessageState> batch = new ArrayList<BuildMessageState>(MAX_BATCH);
+        try {
+            batch.add(_inboundBuildMessages.take());
+        } catch (InterruptedException ie) {
+            return;
+        }
+        _inboundBuildMessages.drainTo(batch, MAX_BATCH - 1);
 
+        long now = _context.clock().now();
+        long dropBefore = now - (BuildRequestor.REQUEST_TIMEOUT/4);
+        int poison = 0;
+        for (Iterator<BuildMessageState> iter = batch.iterator(); iter.hasNext(); ) {
+            BuildMessageState state = iter.next();
             // check for poison
             if (state.msg == null) {
-                _isRunning = false;
-                return;
+                poison++;
+                iter.remove();
+                continue;
             }
-
-            long now = _context.clock().now();
-            long dropBefore = now - (BuildRequestor.REQUEST_TIMEOUT/4);
             if (state.recvTime <= dropBefore) {
                 if (_log.shouldLog(Log.WARN))
                     _log.warn("Not even trying to handle/decrypt the request " + state.msg.getUniqueId() 
                               + ", since we received it a long time ago: " + (now - state.recvTime));
                 _context.statManager().addRateData("tunnel.dropLoadDelay", now - state.recvTime);
                 _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: Too slow"));
-                return;
-            }       
+                iter.remove();
+            }
+        }
+        if (poison > 0) {
+            _isRunning = false;
+            // one each, give the rest back to the other threads
+            BuildMessageState p = new BuildMessageState(_context, null, null, null);
+            for (int i = 1; i < poison; i++) {
+                _inboundBuildMessages.offer(p);
+            }
+            return;
+        }
+        int count = batch.size();
+        if (count <= 0)
+            return;
 
-            long lag = _context.jobQueue().getMaxLag();
-            // TODO reject instead of drop also for a lower limit? see throttle
-            if (lag > JOB_LAG_LIMIT_TUNNEL) {
-                if (_log.shouldLog(Log.WARN))
-                    _log.warn("Dropping tunnel request, as the job lag is " + lag);
-                _context.statManager().addRateData("router.throttleTunnelCause", lag);
-                _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: High job lag"));
-                return;
-            }       
+        long lag = _context.jobQueue().getMaxLag();
+        // TODO reject instead of drop also for a lower limit? see throttle
+        if (lag > JOB_LAG_LIMIT_TUNNEL) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Dropping " + count + " tunnel requests, as the job lag is " + lag);
+            _context.statManager().addRateData("router.throttleTunnelCause", lag);
+            _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: High job lag"));
+            return;
+        }       
 
-            handleRequest(state);
+        // ok, these are not our own tunnels, so we need to do some heavy lifting
+        // this not only decrypts the current hop's record, but encrypts the other records
+        // with the enclosed reply key
+        TunnelBuildMessage[] msgs = new TunnelBuildMessage[count];
+        for (int i = 0; i < count; i++) {
+            BuildMessageState state = batch.get(i);
+            msgs[i] = state.msg;
+            _context.statManager().addRateData("tunnel.decryptRequestQueueTime", now - state.recvTime);
+        }
+        _context.statManager().addRateData("tunnel.decryptRequestBatch", count);
+        BuildRequestRecord[] reqs = new BuildRequestRecord[count];
+        long[] decryptTimes = new long[count];
+        _decryptor.decrypt(msgs, count, reqs, decryptTimes);
 
-        //int remaining = _inboundBuildMessages.size();
-        //if (remaining > 0)
-        //    _context.statManager().addRateData("tunnel.handleRemaining", remaining, 0);
-        //return remaining;
+        for (int i = 0; i < count; i++) {
+            handleRequest(batch.get(i), reqs[i], decryptTimes[i]);
+        }
     }
     
     /**
@@ -441,26 +480,11 @@ class BuildHandler implements Runnable {
      *
      *  @return handle time or -1 if it wasn't completely handled
      */
-    private long handleRequest(BuildMessageState state) {
+    private long handleRequest(BuildMessageState state, BuildRequestRecord req, long decryptTime) {
         long timeSinceReceived = _context.clock().now()-state.recvTime;
         if (_log.shouldLog(Log.DEBUG))
             _log.debug(state.msg.getUniqueId() + ": handling request after " + timeSinceReceived);
         
-        if (timeSinceReceived > (BuildRequestor.REQUEST_TIMEOUT*3)) {
-            // don't even bother, since we are so overloaded locally
-            _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: Overloaded"));
-            if (_log.shouldLog(Log.WARN))
-                _log.warn("Not even trying to handle/decrypt the request " + state.msg.getUniqueId() 
-                           + ", since we received it a long time ago: " + timeSinceReceived);
-            _context.statManager().addRateData("tunnel.dropLoadDelay", timeSinceReceived);
-            return -1;
-        }
-        // ok, this is not our own tunnel, so we need to do some heavy lifting
-        // this not only decrypts the current hop's record, but encrypts the other records
-        // with the enclosed reply key
-        long beforeDecrypt = System.currentTimeMillis();
-        BuildRequestRecord req = _processor.decrypt(_context, state.msg, _context.routerHash(), _context.keyManager().getPrivateKey());
-        long decryptTime = System.currentTimeMillis() - beforeDecrypt;
         _context.statManager().addRateData("tunnel.decryptRequestTime", decryptTime);
         if (decryptTime > 500 && _log.shouldLog(Log.WARN))
             _log.warn("Took too long to decrypt the request: " + decryptTime + " for message " + state.msg.getUniqueId() + " received " + (timeSinceReceived+decryptTime) + " ago");
@@ -0,0 +1,86 @@
+package net.i2p.data.i2np;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.ByteArray;
+import net.i2p.data.DataHelper;
+
+/**
+ * Test reading the short SSU form of a TunnelDataMessage
+ * directly from fragments.
+ */
+public class TunnelDataMessageTest {
+
+    private static TunnelDataMessage createMessage(I2PAppContext ctx) {
+        TunnelDataMessage msg = new TunnelDataMessage(ctx);
+        msg.setTunnelId(12345678);
+        byte[] data = new byte[TunnelDataMessage.DATA_SIZE];
+        ctx.random().nextBytes(data);
+        msg.setData(data);
+        msg.setMessageExpiration((ctx.clock().now() / 1000) * 1000);
+        return msg;
+    }
+
+    private static ByteArray[] split(byte[] raw, int len, int fragSize) {
+        int count = (len + fragSize - 1) / fragSize;
+        ByteArray[] rv = new ByteArray[count];
+        for (int i = 0; i < count; i++) {
+            int sz = Math.min(fragSize, len - (i * fragSize));
+            // oversized like the SSU fragment cache
+            byte[] b = new byte[fragSize + 100];
+            System.arraycopy(raw, i * fragSize, b, 0, sz);
+            rv[i] = new ByteArray(b);
+            rv[i].setValid(sz);
+        }
+        return rv;
+    }
+
+    @Test
+    public void testFromRawFragments() throws Exception {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        TunnelDataMessage orig = createMessage(ctx);
+        byte[] raw = new byte[orig.getRawMessageSize()];
+        int len = orig.toRawByteArray(raw);
+
+        // includes splits inside the tunnel ID
+        int[] sizes = { 7, 500, 600, 1000 };
+        for (int i = 0; i < sizes.length; i++) {
+            ByteArray[] frags = split(raw, len, sizes[i]);
+            I2NPMessage m = I2NPMessageImpl.fromRawFragments(ctx, frags, frags.length, len);
+            assertNotNull(m);
+            TunnelDataMessage tdm = (TunnelDataMessage) m;
+            assertEquals(orig.getTunnelId(), tdm.getTunnelId());
+            assertTrue(DataHelper.eq(orig.getData(), tdm.getData()));
+            assertEquals(orig.getMessageExpiration() + 500, tdm.getMessageExpiration());
+        }
+    }
+
+    @Test
+    public void testOtherTypeNotHandled() throws Exception {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        DeliveryStatusMessage dsm = new DeliveryStatusMessage(ctx);
+        dsm.setArrival(ctx.clock().now());
+        dsm.setMessageId(42);
+        dsm.setMessageExpiration(ctx.clock().now() + 10*1000);
+        byte[] raw = new byte[dsm.getRawMessageSize()];
+        int len = dsm.toRawByteArray(raw);
+        ByteArray[] frags = split(raw, len, 8);
+        assertNull(I2NPMessageImpl.fromRawFragments(ctx, frags, frags.length, len));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        TunnelDataMessage orig = createMessage(ctx);
+        byte[] raw = new byte[orig.getRawMessageSize()];
+        int len = orig.toRawByteArray(raw);
+        ByteArray[] frags = split(raw, len, 600);
+        try {
+            I2NPMessageImpl.fromRawFragments(ctx, frags, frags.length - 1, len);
+            fail("should have failed");
+        } catch (I2NPMessageException expected) {}
+    }
+}
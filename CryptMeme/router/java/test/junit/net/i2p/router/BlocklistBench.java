@@ -0,0 +1,101 @@
+package net.i2p.router;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Load time of a generated blocklist.txt, parsed as text and
+ * mapped from the compiled blocklist.bin, and the IPv4 and IPv6 lookup rates.
+ *
+ * Usage: BlocklistBench [ranges [lookups]]
+ *
+ * @since 0.9.21
+ */
+public class BlocklistBench {
+
+    public static void main(String args[]) throws Exception {
+        int ranges = args.length > 0 ? Integer.parseInt(args[0]) : 250*1000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10*1000*1000;
+        Random rand = new Random(1234);
+        File txt = File.createTempFile("blocklistbench", ".txt");
+        File bin = File.createTempFile("blocklistbench", ".bin");
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(txt), "UTF-8"));
+            for (int i = 0; i < ranges; i++) {
+                int from = rand.nextInt();
+                int to = from + rand.nextInt(4096);
+                if ((to ^ Integer.MIN_VALUE) < (from ^ Integer.MIN_VALUE))
+                    to = -1;
+                out.write("Range " + i + ':' + toStr(from) + '-' + toStr(to) + '\n');
+                if ((i % 16) == 0)
+                    out.write("[2001:db8:" + Integer.toHexString(i & 0xffff) + "::]/48\n");
+            }
+            out.close();
+            System.out.println("Blocklist " + txt.length() + " bytes, " + ranges + " IPv4 ranges");
+
+            Blocklist bl = new Blocklist(new RouterContext(null));
+            List<File> files = Collections.singletonList(txt);
+            BlocklistIndex index = null;
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                index = bl.compile(files, 1);
+                long time = System.nanoTime() - start;
+                System.out.println("Parse text:  " + (time / 1000000) + " ms");
+            }
+            index.write(bin);
+            System.out.println("Compiled " + bin.length() + " bytes, " +
+                               index.getIPv4Count() + " IPv4 and " + index.getIPv6Count() + " IPv6 ranges");
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                index = BlocklistIndex.load(bin, 1);
+                long time = System.nanoTime() - start;
+                System.out.println("Map binary:  " + (time / 1000) + " us");
+            }
+
+            int[] v4 = new int[1024];
+            byte[][] v6 = new byte[1024][16];
+            for (int i = 0; i < v4.length; i++) {
+                v4[i] = rand.nextInt();
+                v6[i][0] = 0x20;
+                v6[i][1] = 0x01;
+                v6[i][2] = 0x0d;
+                v6[i][3] = (byte) 0xb8;
+                v6[i][4] = (byte) rand.nextInt(256);
+                v6[i][5] = (byte) rand.nextInt(256);
+            }
+            for (int round = 0; round < 3; round++) {
+                int hits = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    if (index.contains(v4[i & 1023]))
+                        hits++;
+                }
+                long time = System.nanoTime() - start;
+                System.out.println("IPv4 lookups: " + (lookups * 1000L / Math.max(1, time / 1000)) +
+                                   "/ms (" + hits + " hits)");
+                hits = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    if (index.contains(v6[i & 1023]))
+                        hits++;
+                }
+                time = System.nanoTime() - start;
+                System.out.println("IPv6 lookups: " + (lookups * 1000L / Math.max(1, time / 1000)) +
+                                   "/ms (" + hits + " hits)");
+            }
+        } finally {
+            txt.delete();
+            bin.delete();
+        }
+    }
+
+    private static String toStr(int ip) {
+        return ((ip >> 24) & 0xff) + "." + ((ip >> 16) & 0xff) + '.' + ((ip >> 8) & 0xff) + '.' + (ip & 0xff);
+    }
+}
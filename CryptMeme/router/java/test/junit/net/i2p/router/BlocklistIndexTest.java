@@ -0,0 +1,109 @@
+package net.i2p.router;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+import net.i2p.data.Hash;
+
+/**
+ * @since 0.9.21
+ */
+public class BlocklistIndexTest extends TestCase {
+
+    private static byte[] ip(String s) throws Exception {
+        return InetAddress.getByName(s).getAddress();
+    }
+
+    public void testIPv4() throws Exception {
+        BlocklistIndex.Builder b = new BlocklistIndex.Builder(4);
+        b.addRange(ip("10.0.0.0"), ip("10.255.255.255"));
+        b.addRange(ip("10.1.0.0"), ip("10.1.0.255"));      // inside
+        b.addRange(ip("11.0.0.0"), ip("11.0.0.9"));        // adjacent
+        b.addRange(ip("120.0.0.0"), ip("130.0.0.0"));      // across the sign bit
+        b.addRange(ip("255.255.255.255"), ip("255.255.255.255"));
+        b.addRange(ip("0.0.0.0"), ip("0.0.0.0"));
+        BlocklistIndex idx = b.build(0);
+        assertEquals(4, idx.getIPv4Count());
+        assertTrue(idx.contains(BlocklistIndex.toInt(ip("10.200.0.1"))));
+        assertTrue(idx.contains(BlocklistIndex.toInt(ip("11.0.0.9"))));
+        assertFalse(idx.contains(BlocklistIndex.toInt(ip("11.0.0.10"))));
+        assertTrue(idx.contains(BlocklistIndex.toInt(ip("127.255.255.255"))));
+        assertTrue(idx.contains(BlocklistIndex.toInt(ip("128.0.0.0"))));
+        assertFalse(idx.contains(BlocklistIndex.toInt(ip("130.0.0.1"))));
+        assertTrue(idx.contains(BlocklistIndex.toInt(ip("255.255.255.255"))));
+        assertTrue(idx.contains(0));
+        assertFalse(idx.contains(1));
+        assertFalse(idx.contains(BlocklistIndex.toInt(ip("9.255.255.255"))));
+        assertFalse(BlocklistIndex.EMPTY.contains(0));
+    }
+
+    public void testIPv6() throws Exception {
+        BlocklistIndex.Builder b = new BlocklistIndex.Builder(0);
+        b.addRange(ip("2001:db8::"), ip("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        b.addRange(ip("2001:db8:1::"), ip("2001:db9::"));
+        b.addRange(ip("fe80::1"), ip("fe80::1"));
+        BlocklistIndex idx = b.build(0);
+        assertEquals(2, idx.getIPv6Count());
+        assertTrue(idx.contains(ip("2001:db8::1")));
+        assertTrue(idx.contains(ip("2001:db9::")));
+        assertFalse(idx.contains(ip("2001:db9::1")));
+        assertTrue(idx.contains(ip("fe80::1")));
+        assertFalse(idx.contains(ip("fe80::2")));
+        assertFalse(idx.contains(ip("::1")));
+    }
+
+    public void testWriteAndLoad() throws Exception {
+        BlocklistIndex.Builder b = new BlocklistIndex.Builder(0);
+        b.addRange(ip("1.2.3.0"), ip("1.2.3.255"));
+        b.addRange(ip("2001:db8::"), ip("2001:db8::ff"));
+        byte[] h = new byte[Hash.HASH_LENGTH];
+        h[0] = 1;
+        b.addHash(Hash.create(h), "bad router");
+        File f = File.createTempFile("blocklist", ".bin");
+        try {
+            b.build(42).write(f);
+            assertNull(BlocklistIndex.load(f, 43));
+            BlocklistIndex idx = BlocklistIndex.load(f, 42);
+            assertNotNull(idx);
+            assertEquals(1, idx.getIPv4Count());
+            assertEquals(1, idx.getIPv6Count());
+            assertTrue(idx.contains(BlocklistIndex.toInt(ip("1.2.3.4"))));
+            assertTrue(idx.contains(ip("2001:db8::80")));
+            assertEquals("bad router", idx.getHashes().get(Hash.create(h)));
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testCompile() throws Exception {
+        File f = File.createTempFile("blocklist", ".txt");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+            out.write("# comment\n");
+            out.write("spammer:1.1.1.0-1.1.1.255\n");
+            out.write("a:b:2.0.0.0/8\n");
+            out.write("3.3.3.3\n");
+            out.write("v6:[2001:db8::]/32\n");
+            out.write("[2001:db9::1]-[2001:db9::5]\n");
+            out.write("4.4.4.4-4.4.4.3\n");    // backwards
+            out.close();
+            Blocklist bl = new Blocklist(new RouterContext(null));
+            BlocklistIndex idx = bl.compile(Collections.singletonList(f), 0);
+            assertEquals(3, idx.getIPv4Count());
+            assertEquals(2, idx.getIPv6Count());
+            assertTrue(idx.contains(BlocklistIndex.toInt(ip("2.255.0.1"))));
+            assertTrue(idx.contains(BlocklistIndex.toInt(ip("3.3.3.3"))));
+            assertFalse(idx.contains(BlocklistIndex.toInt(ip("4.4.4.3"))));
+            assertTrue(idx.contains(ip("2001:db8:ffff::")));
+            assertTrue(idx.contains(ip("2001:db9::5")));
+            assertFalse(idx.contains(ip("2001:db9::6")));
+        } finally {
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package net.i2p.router.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.client.I2PSessionException;
+import net.i2p.client.I2PSessionMuxedListener;
+import net.i2p.data.Destination;
+import net.i2p.internal.I2CPMessageQueue;
+import net.i2p.internal.InternalClientManager;
+import net.i2p.router.RouterContext;
+
+/**
+ * Round-trip latency of raw datagrams between two in-JVM I2CP sessions
+ * on a LocalClientManager, with the local fast path (i2cp.internalDirect)
+ * off and on. One session sends, the other echoes it back.
+ *
+ * Usage: InternalI2CPBench [count [size]]
+ *
+ * @since 0.9.21
+ */
+public class InternalI2CPBench {
+
+    private static final int PORT = 17654;
+
+    public static void main(String args[]) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20*1000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        BenchContext ctx = new BenchContext();
+        ClientManager mgr = new LocalClientManager(ctx, PORT);
+        ctx.setManager(mgr);
+        mgr.start();
+        byte[] payload = new byte[size];
+        new Random(1234).nextBytes(payload);
+        System.out.println("Raw datagram round trips, " + size + " byte payload");
+        for (int i = 0; i < 2; i++) {
+            run(false, count, payload);
+            run(true, count, payload);
+        }
+        mgr.shutdown("done");
+        System.exit(0);
+    }
+
+    private static void run(boolean direct, int count, byte[] payload) throws Exception {
+        // read by QueuedClientConnectionRunner via the context
+        System.setProperty(QueuedClientConnectionRunner.PROP_DIRECT, Boolean.toString(direct));
+        I2PSession ping = createSession();
+        I2PSession pong = createSession();
+        Destination pingDest = ping.getMyDestination();
+        final LinkedBlockingQueue<byte[]> replies = new LinkedBlockingQueue<byte[]>();
+        ping.addMuxedSessionListener(new Listener(null, replies), I2PSession.PROTO_DATAGRAM_RAW, I2PSession.PORT_ANY);
+        pong.addMuxedSessionListener(new Listener(pingDest, null), I2PSession.PROTO_DATAGRAM_RAW, I2PSession.PORT_ANY);
+        Destination pongDest = pong.getMyDestination();
+
+        int warmup = Math.min(count / 4, 2000);
+        long[] rtts = new long[count];
+        long start = 0;
+        for (int i = -warmup; i < count; i++) {
+            if (i == 0)
+                start = System.nanoTime();
+            long t = System.nanoTime();
+            ping.sendMessage(pongDest, payload, I2PSession.PROTO_DATAGRAM_RAW, 1, 2);
+            byte[] reply = replies.poll(10, TimeUnit.SECONDS);
+            if (reply == null)
+                throw new IllegalStateException("No reply to " + i);
+            if (i >= 0)
+                rtts[i] = System.nanoTime() - t;
+            if (i == 0 && !Arrays.equals(payload, reply))
+                throw new IllegalStateException("Bad reply");
+        }
+        long time = System.nanoTime() - start;
+        Arrays.sort(rtts);
+        System.out.println((direct ? "Direct: " : "Queued: ") +
+                           "median " + (rtts[count / 2] / 1000) + " us, " +
+                           "99% " + (rtts[count * 99 / 100] / 1000) + " us, " +
+                           (count * 1000000000L / time) + " round trips/s");
+        ping.destroySession();
+        pong.destroySession();
+    }
+
+    private static I2PSession createSession() throws Exception {
+        I2PClient client = I2PClientFactory.createClient();
+        ByteArrayOutputStream keys = new ByteArrayOutputStream(1024);
+        client.createDestination(keys);
+        Properties opts = new Properties();
+        opts.setProperty("inbound.nickname", "InternalI2CPBench");
+        I2PSession rv = client.createSession(new ByteArrayInputStream(keys.toByteArray()), opts);
+        rv.connect();
+        return rv;
+    }
+
+    /**
+     *  Echo if echoTo is non-null, else add to replies
+     */
+    private static class Listener implements I2PSessionMuxedListener {
+        private final Destination _echoTo;
+        private final LinkedBlockingQueue<byte[]> _replies;
+
+        public Listener(Destination echoTo, LinkedBlockingQueue<byte[]> replies) {
+            _echoTo = echoTo;
+            _replies = replies;
+        }
+
+        public void messageAvailable(I2PSession session, int msgId, long size, int proto, int fromport, int toport) {
+            try {
+                byte[] data = session.receiveMessage(msgId);
+                if (_echoTo != null)
+                    session.sendMessage(_echoTo, data, proto, toport, fromport);
+                else
+                    _replies.offer(data);
+            } catch (I2PSessionException ise) {
+                ise.printStackTrace();
+            }
+        }
+
+        public void messageAvailable(I2PSession session, int msgId, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void reportAbuse(I2PSession session, int severity) {}
+
+        public void disconnected(I2PSession session) {}
+
+        public void errorOccurred(I2PSession session, String message, Throwable error) {
+            System.out.println("Error: " + message);
+        }
+    }
+
+    /**
+     *  RouterContext(null) has no internal client manager
+     */
+    private static class BenchContext extends RouterContext implements InternalClientManager {
+        private ClientManager _mgr;
+
+        public BenchContext() {
+            super(null);
+        }
+
+        public void setManager(ClientManager mgr) {
+            _mgr = mgr;
+        }
+
+        @Override
+        public InternalClientManager internalClientManager() {
+            return this;
+        }
+
+        public I2CPMessageQueue connect() throws I2PSessionException {
+            return _mgr.internalConnect();
+        }
+    }
+}
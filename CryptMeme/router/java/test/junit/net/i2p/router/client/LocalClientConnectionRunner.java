@@ -2,8 +2,6 @@ package net.i2p.router.client;
 
 import java.net.Socket;
 
-import net.i2p.data.Destination;
-import net.i2p.data.Hash;
 import net.i2p.data.Lease;
 import net.i2p.data.LeaseSet;
 import net.i2p.data.i2cp.I2CPMessageException;
@@ -43,48 +41,58 @@ class LocalClientConnectionRunner extends ClientConnectionRunner {
      */
     @Override
     void requestLeaseSet(LeaseSet set, long expirationTime, Job onCreateJob, Job onFailedJob) {
+        requestLeaseSet(this, set);
+    }
+
+    /**
+     *  No job queue, so super NPEs
+     */
+    @Override
+    void updateMessageDeliveryStatus(MessageId id, long messageNonce, int status) {
+        updateMessageDeliveryStatus(this, id, messageNonce, status);
+    }
+
+    /**
+     *  Send the request directly.
+     *  Shared with LocalQueuedClientConnectionRunner.
+     *
+     *  @since 0.9.21
+     */
+    static void requestLeaseSet(ClientConnectionRunner runner, LeaseSet set) {
         RequestVariableLeaseSetMessage msg = new RequestVariableLeaseSetMessage();
-        msg.setSessionId(getSessionId());
+        msg.setSessionId(runner.getSessionId());
         for (int i = 0; i < set.getLeaseCount(); i++) {
             Lease lease = set.getLease(i);
             msg.addEndpoint(lease);
         }
         try {
-            doSend(msg);
+            runner.doSend(msg);
         } catch (I2CPMessageException ime) {
             ime.printStackTrace();
         }
     }
 
     /**
-     *  No job queue, so super NPEs
+     *  Send the status directly.
+     *  Shared with LocalQueuedClientConnectionRunner.
+     *
+     *  @since 0.9.21
      */
-    @Override
-    void updateMessageDeliveryStatus(MessageId id, long messageNonce, int status) {
+    static void updateMessageDeliveryStatus(ClientConnectionRunner runner, MessageId id,
+                                            long messageNonce, int status) {
         if (messageNonce <= 0)
             return;
         MessageStatusMessage msg = new MessageStatusMessage();
         msg.setMessageId(id.getMessageId());
-        msg.setSessionId(getSessionId().getSessionId());
+        msg.setSessionId(runner.getSessionId().getSessionId());
         // has to be >= 0, it is initialized to -1
         msg.setNonce(messageNonce);
         msg.setSize(0);
         msg.setStatus(status);
         try {
-            doSend(msg);
+            runner.doSend(msg);
         } catch (I2CPMessageException ime) {
-            _log.warn("Error updating the status for " + id, ime);
-        }
-    }
-
-    /**
-     *  So LocalClientMessageEventListener can lookup other local dests
-     */
-    public Destination localLookup(Hash h) {
-        for (Destination d : _manager.getRunnerDestinations()) {
-            if (d.calculateHash().equals(h))
-                return d;
+            runner._log.warn("Error updating the status for " + id, ime);
         }
-        return null;
     }
 }
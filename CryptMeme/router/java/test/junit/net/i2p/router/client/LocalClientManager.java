@@ -12,6 +12,7 @@ import net.i2p.data.Destination;
 import net.i2p.data.Payload;
 import net.i2p.data.i2cp.MessageId;
 import net.i2p.data.i2cp.MessageStatusMessage;
+import net.i2p.internal.I2CPMessageQueue;
 import net.i2p.router.RouterContext;
 import net.i2p.util.I2PThread;
 
@@ -43,6 +44,15 @@ class LocalClientManager extends ClientManager {
         _isStarted = true;
     }
 
+    /**
+     *  In-JVM clients get the local runner too
+     *  @since 0.9.21
+     */
+    @Override
+    protected QueuedClientConnectionRunner createQueuedRunner(I2CPMessageQueue queue) {
+        return new LocalQueuedClientConnectionRunner(_ctx, this, queue);
+    }
+
     /**
      * Local only
      * TODO: add simulated delay and random drops to test streaming.
@@ -71,7 +71,7 @@ class LocalClientMessageEventListener extends ClientMessageEventListener {
     protected void handleDestLookup(DestLookupMessage message) {
         Hash h = message.getHash();
         DestReplyMessage msg;
-        Destination d = ((LocalClientConnectionRunner)_runner).localLookup(h);
+        Destination d = localLookup(h);
         if (d != null)
             msg = new DestReplyMessage(d);
         else
@@ -104,7 +104,7 @@ class LocalClientMessageEventListener extends ClientMessageEventListener {
         }
         Destination d = null;
         if (h != null)
-            d = ((LocalClientConnectionRunner)_runner).localLookup(h);
+            d = localLookup(h);
         HostReplyMessage msg;
         if (d != null)
             msg = new HostReplyMessage(sessID, d, reqID);
@@ -117,6 +117,18 @@ class LocalClientMessageEventListener extends ClientMessageEventListener {
         }
     }
 
+    /**
+     *  Look only in current local dests
+     *  @since 0.9.21 moved from LocalClientConnectionRunner
+     */
+    private Destination localLookup(Hash h) {
+        for (Destination d : _runner._manager.getRunnerDestinations()) {
+            if (d.calculateHash().equals(h))
+                return d;
+        }
+        return null;
+    }
+
     /**
      *  Send dummy limits
      */
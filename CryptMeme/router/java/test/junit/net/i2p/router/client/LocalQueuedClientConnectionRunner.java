@@ -0,0 +1,46 @@
+package net.i2p.router.client;
+
+import net.i2p.data.LeaseSet;
+import net.i2p.data.i2cp.I2CPMessageReader;
+import net.i2p.data.i2cp.MessageId;
+import net.i2p.internal.I2CPMessageQueue;
+import net.i2p.router.Job;
+import net.i2p.router.RouterContext;
+
+/**
+ *  For testing in-JVM clients.
+ *  Same as LocalClientConnectionRunner but on the internal queues.
+ *
+ *  @since 0.9.21
+ */
+class LocalQueuedClientConnectionRunner extends QueuedClientConnectionRunner {
+    
+    public LocalQueuedClientConnectionRunner(RouterContext context, ClientManager manager, I2CPMessageQueue queue) {
+        super(context, manager, queue);
+    }
+    
+    /**
+     *  Custom listener
+     */
+    @Override
+    protected I2CPMessageReader.I2CPMessageEventListener createListener() {
+        return new LocalClientMessageEventListener(_context, this, false);
+    }
+    
+    /**
+     *  Just send the message directly,
+     *  don't instantiate a RequestLeaseSetJob
+     */
+    @Override
+    void requestLeaseSet(LeaseSet set, long expirationTime, Job onCreateJob, Job onFailedJob) {
+        LocalClientConnectionRunner.requestLeaseSet(this, set);
+    }
+
+    /**
+     *  No job queue, so super NPEs
+     */
+    @Override
+    void updateMessageDeliveryStatus(MessageId id, long messageNonce, int status) {
+        LocalClientConnectionRunner.updateMessageDeliveryStatus(this, id, messageNonce, status);
+    }
+}
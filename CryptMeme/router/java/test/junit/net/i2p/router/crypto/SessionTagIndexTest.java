@@ -0,0 +1,138 @@
+package net.i2p.router.crypto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.i2p.data.SessionTag;
+
+/**
+ * @since 0.9.21
+ */
+public class SessionTagIndexTest extends TestCase {
+
+    private static List<SessionTag> tags(int count) {
+        List<SessionTag> rv = new ArrayList<SessionTag>(count);
+        for (int i = 0; i < count; i++) {
+            rv.add(new SessionTag(true));
+        }
+        return rv;
+    }
+
+    public void testPutConsume() {
+        SessionTagIndex<String> idx = new SessionTagIndex<String>();
+        List<SessionTag> tags = tags(1000);
+        for (SessionTag tag : tags) {
+            assertNull(idx.put(tag, "a"));
+        }
+        assertEquals(1000, idx.size());
+        for (SessionTag tag : tags) {
+            // a copy, not the same object
+            assertEquals("a", idx.consume(new SessionTag(tag.getData())));
+            assertNull(idx.consume(tag));
+        }
+        assertEquals(0, idx.size());
+        assertNull(idx.consume(new SessionTag(true)));
+    }
+
+    public void testReplace() {
+        SessionTagIndex<String> idx = new SessionTagIndex<String>();
+        SessionTag tag = new SessionTag(true);
+        assertNull(idx.put(tag, "a"));
+        assertEquals("a", idx.put(tag, "b"));
+        assertEquals(1, idx.size());
+        assertEquals("b", idx.consume(tag));
+        // add it again after consuming
+        assertNull(idx.put(tag, "c"));
+        assertEquals("c", idx.consume(tag));
+    }
+
+    public void testSweep() {
+        SessionTagIndex<String> idx = new SessionTagIndex<String>();
+        List<SessionTag> keep = tags(500);
+        List<SessionTag> remove = tags(300);
+        for (SessionTag tag : keep) {
+            idx.put(tag, "keep");
+        }
+        for (SessionTag tag : remove) {
+            idx.put(tag, "remove");
+        }
+        for (int i = 0; i < 100; i++) {
+            idx.consume(keep.get(i));
+        }
+        int removed = idx.sweep(new SessionTagIndex.Filter<String>() {
+            public boolean shouldRemove(String s) {
+                return s.equals("remove");
+            }
+        });
+        assertEquals(300, removed);
+        assertEquals(400, idx.size());
+        for (SessionTag tag : remove) {
+            assertNull(idx.consume(tag));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertNull(idx.consume(keep.get(i)));
+        }
+        for (int i = 100; i < 500; i++) {
+            assertEquals("keep", idx.consume(keep.get(i)));
+        }
+        idx.put(keep.get(0), "keep");
+        idx.clear();
+        assertEquals(0, idx.size());
+        assertNull(idx.consume(keep.get(0)));
+    }
+
+    /**
+     *  Consumers racing each other and the adds and sweeps,
+     *  each tag must be consumed exactly once
+     */
+    public void testConcurrent() throws Exception {
+        final SessionTagIndex<Integer> idx = new SessionTagIndex<Integer>();
+        final List<SessionTag> tags = tags(50000);
+        final AtomicInteger consumed = new AtomicInteger();
+        final AtomicInteger next = new AtomicInteger();
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[6];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    while (next.get() < tags.size()) {
+                        for (int j = 0; j < next.get(); j += 7) {
+                            Integer v = idx.consume(tags.get(j));
+                            if (v != null) {
+                                if (v.intValue() != j)
+                                    failed[0] = true;
+                                consumed.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        SessionTagIndex.Filter<Integer> none = new SessionTagIndex.Filter<Integer>() {
+            public boolean shouldRemove(Integer i) {
+                return false;
+            }
+        };
+        for (int i = 0; i < tags.size(); i++) {
+            idx.put(tags.get(i), Integer.valueOf(i));
+            next.set(i + 1);
+            if (i % 5000 == 0)
+                idx.sweep(none);
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        // the ones added after the last pass
+        for (int j = 0; j < tags.size(); j += 7) {
+            if (idx.consume(tags.get(j)) != null)
+                consumed.incrementAndGet();
+        }
+        assertFalse(failed[0]);
+        int expected = (tags.size() + 6) / 7;
+        assertEquals(expected, consumed.get());
+        assertEquals(tags.size() - expected, idx.size());
+    }
+}
@@ -0,0 +1,136 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.FileUtil;
+
+/**
+ * @since 0.9.21
+ */
+public class SegmentedLogTest extends TestCase {
+    private I2PAppContext _context;
+    private File _dir;
+
+    protected void setUp() {
+        _context = I2PAppContext.getGlobalContext();
+        _dir = new File(System.getProperty("java.io.tmpdir"), "segmentedlogtest-" + _context.random().nextInt());
+        _dir.mkdirs();
+    }
+
+    protected void tearDown() {
+        FileUtil.rmdir(_dir, false);
+    }
+
+    private Hash key(int i) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        DataHelper.toLong(b, 0, 4, i);
+        return Hash.create(b);
+    }
+
+    private byte[] value(int i, int len) {
+        byte[] rv = new byte[len];
+        for (int j = 0; j < len; j++) {
+            rv[j] = (byte) (i + j);
+        }
+        return rv;
+    }
+
+    private Map<Hash, byte[]> replay(SegmentedLog log) throws IOException {
+        final Map<Hash, byte[]> rv = new HashMap<Hash, byte[]>();
+        log.replay(new SegmentedLog.Replay() {
+            public void record(Hash key, byte[] value) {
+                assertNull(rv.put(key, value));
+            }
+        });
+        return rv;
+    }
+
+    public void testPutDeleteReopen() throws Exception {
+        SegmentedLog log = new SegmentedLog(_dir, 4096);
+        assertEquals(0, log.open());
+        for (int i = 0; i < 100; i++) {
+            log.put(key(i), value(i, 100));
+        }
+        // overwrite some, delete some
+        for (int i = 0; i < 20; i++) {
+            log.put(key(i), value(i + 1, 50));
+        }
+        for (int i = 90; i < 100; i++) {
+            assertTrue(log.delete(key(i)));
+        }
+        assertFalse(log.delete(key(1000)));
+        assertTrue(log.getSegmentCount() > 1);
+        log.close();
+
+        log = new SegmentedLog(_dir, 4096);
+        assertEquals(90, log.open());
+        Map<Hash, byte[]> m = replay(log);
+        assertEquals(90, m.size());
+        for (int i = 0; i < 20; i++) {
+            assertTrue(DataHelper.eq(value(i + 1, 50), m.get(key(i))));
+        }
+        for (int i = 20; i < 90; i++) {
+            assertTrue(DataHelper.eq(value(i, 100), m.get(key(i))));
+        }
+        log.close();
+    }
+
+    public void testTruncatedTail() throws Exception {
+        SegmentedLog log = new SegmentedLog(_dir, 1024*1024);
+        log.open();
+        for (int i = 0; i < 10; i++) {
+            log.put(key(i), value(i, 100));
+        }
+        log.close();
+        // chop the last record in half, as if we crashed while writing
+        File seg = _dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(seg, "rw");
+        raf.setLength(seg.length() - 60);
+        raf.close();
+
+        log = new SegmentedLog(_dir, 1024*1024);
+        assertEquals(9, log.open());
+        // append after the truncation point
+        log.put(key(100), value(100, 10));
+        log.close();
+        log = new SegmentedLog(_dir, 1024*1024);
+        assertEquals(10, log.open());
+        Map<Hash, byte[]> m = replay(log);
+        assertNull(m.get(key(9)));
+        assertTrue(DataHelper.eq(value(100, 10), m.get(key(100))));
+        log.close();
+    }
+
+    public void testCompact() throws Exception {
+        SegmentedLog log = new SegmentedLog(_dir, 4096);
+        log.open();
+        for (int j = 0; j < 5; j++) {
+            for (int i = 0; i < 50; i++) {
+                log.put(key(i), value(i + j, 200));
+            }
+        }
+        long before = log.getTotalBytes();
+        assertTrue(log.getLiveBytes() * 4 < before);
+        log.compact();
+        assertTrue(log.getTotalBytes() < before / 3);
+        assertEquals(50, log.size());
+        log.put(key(1000), value(1000, 10));
+        log.close();
+
+        log = new SegmentedLog(_dir, 4096);
+        assertEquals(51, log.open());
+        Map<Hash, byte[]> m = replay(log);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(DataHelper.eq(value(i + 4, 200), m.get(key(i))));
+        }
+        log.close();
+    }
+}
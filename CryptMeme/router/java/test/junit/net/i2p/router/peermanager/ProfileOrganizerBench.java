@@ -0,0 +1,146 @@
+package net.i2p.router.peermanager;
+
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+
+/**
+ * Several threads selecting fast and high capacity peers from the
+ * ProfileOrganizer, first alone and then while another thread
+ * reorganizes in a loop, as the tunnel builders and the
+ * PeerManager reorg thread do.
+ *
+ * Reports selections per second and the slowest single selection.
+ * Before the tier snapshots, the selectors waited for the
+ * write lock held for the whole reorganization, so the slowest
+ * selection was about as long as a reorganize().
+ *
+ * Usage: ProfileOrganizerBench [threads [seconds [profiles]]]
+ *
+ * @since 0.9.21
+ */
+public class ProfileOrganizerBench {
+
+    private static void populate(RouterContext ctx, ProfileOrganizer organizer, int count) {
+        long now = ctx.clock().now();
+        for (int i = 0; i < count; i++) {
+            byte[] b = new byte[Hash.HASH_LENGTH];
+            ctx.random().nextBytes(b);
+            DataHelper.toLong(b, 0, 4, i);
+            PeerProfile prof = new PeerProfile(ctx, Hash.create(b));
+            prof.setLastSendSuccessful(now - ctx.random().nextInt(60*60*1000));
+            prof.setLastHeardFrom(now - ctx.random().nextInt(60*60*1000));
+            prof.setCapacityBonus(ctx.random().nextInt(50));
+            prof.setSpeedBonus(ctx.random().nextInt(50));
+            int agreed = ctx.random().nextInt(20);
+            for (int j = 0; j < agreed; j++) {
+                prof.getTunnelHistory().incrementAgreedTo();
+            }
+            prof.getTunnelCreateResponseTime().addData(100 + ctx.random().nextInt(2000), 0);
+            organizer.addProfile(prof);
+        }
+        organizer.reorganize(true);
+    }
+
+    private static void run(String name, final ProfileOrganizer organizer, int threads,
+                            long millis, boolean reorganize) throws InterruptedException {
+        final AtomicLong selections = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong reorgs = new AtomicLong();
+        final long end = System.currentTimeMillis() + millis;
+        final CountDownLatch done = new CountDownLatch(threads + (reorganize ? 1 : 0));
+        long start = System.currentTimeMillis();
+        if (reorganize) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    long r = 0;
+                    while (System.currentTimeMillis() < end) {
+                        organizer.reorganize(true);
+                        r++;
+                    }
+                    reorgs.set(r);
+                    done.countDown();
+                }
+            }, name + " reorg");
+            t.setDaemon(true);
+            t.start();
+        }
+        for (int i = 0; i < threads; i++) {
+            final boolean fast = (i & 1) == 0;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    long n = 0;
+                    long max = 0;
+                    Set<Hash> exclude = new HashSet<Hash>();
+                    Set<Hash> matches = new HashSet<Hash>();
+                    while (System.currentTimeMillis() < end) {
+                        exclude.clear();
+                        matches.clear();
+                        long s = System.nanoTime();
+                        if (fast)
+                            organizer.selectFastPeers(3, exclude, matches);
+                        else
+                            organizer.selectHighCapacityPeers(3, exclude, matches);
+                        long t = System.nanoTime() - s;
+                        if (t > max)
+                            max = t;
+                        n++;
+                    }
+                    selections.addAndGet(n);
+                    synchronized (maxNanos) {
+                        if (max > maxNanos.get())
+                            maxNanos.set(max);
+                    }
+                    done.countDown();
+                }
+            }, name + ' ' + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        done.await();
+        long time = System.currentTimeMillis() - start;
+        long n = selections.get();
+        System.out.println(name + ": " + threads + " threads " + time + "ms: " +
+                           (n * 1000 / time) + " selections/s, slowest " +
+                           (maxNanos.get() / 1000) + "us, " +
+                           reorgs.get() + " reorganizations, " +
+                           organizer.countFastPeers() + " fast " +
+                           organizer.countHighCapacityPeers() + " high cap " +
+                           organizer.countNotFailingPeers() + " not failing");
+    }
+
+    public static void main(String args[]) throws Exception {
+        int threads = 4;
+        long millis = 5*1000;
+        int profiles = 2000;
+        if (args.length > 0)
+            threads = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            millis = Long.parseLong(args[1]) * 1000;
+        if (args.length > 2)
+            profiles = Integer.parseInt(args[2]);
+        // the profiles ask the comm system if they are established
+        Properties props = new Properties();
+        props.setProperty("i2p.vmCommSystem", "true");
+        props.setProperty("i2p.dummyClientFacade", "true");
+        props.setProperty("i2p.dummyNetDb", "true");
+        props.setProperty("i2p.dummyPeerManager", "true");
+        props.setProperty("i2p.dummyTunnelManager", "true");
+        RouterContext ctx = new RouterContext(null, props);
+        ctx.initAll();
+        ProfileOrganizer organizer = new ProfileOrganizer(ctx);
+        organizer.setUs(Hash.FAKE_HASH);
+        populate(ctx, organizer, profiles);
+
+        // warmup
+        run("Warmup", organizer, threads, 1000, true);
+        run("Select only", organizer, threads, millis, false);
+        run("Select during reorganize", organizer, threads, millis, true);
+    }
+}
@@ -0,0 +1,140 @@
+package net.i2p.router.peermanager;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.router.RouterContext;
+import net.i2p.stat.Rate;
+
+/**
+ * @since 0.9.21
+ */
+public class ProfileStoreTest extends TestCase {
+    private static RouterContext _context;
+    private File _file;
+
+    protected void setUp() {
+        if (_context == null)
+            _context = new RouterContext(null);
+        _file = new File(System.getProperty("java.io.tmpdir"), "profilestoretest-" + _context.random().nextInt() + ".dat");
+    }
+
+    protected void tearDown() {
+        _file.delete();
+    }
+
+    private Hash peer(int i) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        DataHelper.toLong(b, 0, 4, i + 1);
+        return Hash.create(b);
+    }
+
+    private PeerProfile profile(int i) {
+        PeerProfile prof = new PeerProfile(_context, peer(i));
+        long now = _context.clock().now();
+        prof.setLastSendSuccessful(now - i * 1000);
+        prof.setLastHeardFrom(now - 5000);
+        prof.setCapacityBonus(i);
+        prof.setTunnelTestTimeAverage(i * 1.5d);
+        prof.getTunnelHistory().incrementAgreedTo();
+        prof.getTunnelCreateResponseTime().addData(100 + i, 0);
+        if ((i & 1) != 0) {
+            prof.expandDBProfile();
+            prof.getDBHistory().lookupSuccessful();
+            prof.getDbResponseTime().addData(200 + i, 0);
+        }
+        return prof;
+    }
+
+    public void testWriteReadReopen() throws Exception {
+        ProfileStore store = new ProfileStore(_context, _file);
+        assertEquals(0, store.open());
+        // more than the initial slots, so it grows
+        for (int i = 0; i < 300; i++) {
+            assertTrue(store.write(profile(i)));
+        }
+        assertEquals(300, store.size());
+        store.close();
+
+        store = new ProfileStore(_context, _file);
+        assertEquals(300, store.open());
+        for (int i = 0; i < 300; i += 7) {
+            PeerProfile prof = store.read(peer(i));
+            assertNotNull(prof);
+            assertEquals(i, prof.getCapacityBonus());
+            assertEquals(i * 1.5d, prof.getTunnelTestTimeAverage(), 0.0001d);
+            assertEquals(1, prof.getTunnelHistory().getLifetimeAgreedTo());
+            Rate r = prof.getTunnelCreateResponseTime().getRate(10*60*1000);
+            assertEquals(1, r.getLifetimeEventCount());
+            assertEquals(100 + i, (int) r.getLifetimeTotalValue());
+            assertEquals((i & 1) != 0, prof.getIsExpandedDB());
+            if ((i & 1) != 0) {
+                assertEquals(1, prof.getDBHistory().getSuccessfulLookups());
+                assertEquals(1, prof.getDbResponseTime().getRate(60*60*1000).getLifetimeEventCount());
+            }
+        }
+        assertNull(store.read(peer(1000)));
+        // most recently sent to first
+        assertEquals(peer(0), store.getRecent(5).get(0));
+        assertTrue(store.remove(peer(0)));
+        assertFalse(store.contains(peer(0)));
+        store.close();
+
+        store = new ProfileStore(_context, _file);
+        assertEquals(299, store.open());
+        store.close();
+    }
+
+    public void testExpiredAndCorrupt() throws Exception {
+        ProfileStore store = new ProfileStore(_context, _file);
+        store.open();
+        PeerProfile old = profile(0);
+        old.setLastSendSuccessful(_context.clock().now() - 2 * ProfilePersistenceHelper.EXPIRE_AGE);
+        assertFalse(store.write(old));
+        assertTrue(store.write(profile(1)));
+        assertTrue(store.write(profile(2)));
+        store.close();
+
+        // scribble on the second slot's body
+        RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+        raf.seek(ProfileStore.HEADER_SIZE + ProfileStore.SLOT_SIZE + 100);
+        raf.writeLong(0x0123456789abcdefL);
+        raf.close();
+
+        store = new ProfileStore(_context, _file);
+        assertEquals(2, store.open());
+        assertNotNull(store.read(peer(1)));
+        assertNull(store.read(peer(2)));
+        assertFalse(store.contains(peer(2)));
+        store.close();
+    }
+
+    public void testCorruptTunnelHistoryRate() throws Exception {
+        TunnelHistory th = new TunnelHistory(_context, "test");
+        th.incrementRejected(TunnelHistory.TUNNEL_REJECT_BANDWIDTH);
+        th.incrementFailed(50);
+        ByteBuffer buf = ByteBuffer.allocate(ProfileStore.SLOT_SIZE);
+        th.store(buf);
+        // whatever the caller reads next
+        buf.putLong(0x0123456789abcdefL);
+        buf.flip();
+
+        // scribble on the period of the reject rate's first rate,
+        // after the nine longs and the reject rate's count byte
+        buf.putInt((9 * 8) + 1, 12345);
+
+        TunnelHistory th2 = new TunnelHistory(_context, "test");
+        th2.load(buf);
+        assertEquals(1, th2.getLifetimeRejected());
+        assertEquals(1, th2.getLifetimeFailed());
+        assertEquals(0, th2.getRejectionRate().getRate(10*60*1000).getLifetimeEventCount());
+        Rate r = th2.getFailedRate().getRate(10*60*1000);
+        assertEquals(1, r.getLifetimeEventCount());
+        assertEquals(50, (int) r.getLifetimeTotalValue());
+        assertEquals(0x0123456789abcdefL, buf.getLong());
+    }
+}
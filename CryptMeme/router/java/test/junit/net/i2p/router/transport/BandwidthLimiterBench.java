@@ -0,0 +1,100 @@
+package net.i2p.router.transport;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+
+/**
+ * Compare the FIFOBandwidthLimiter and the TokenBucketBandwidthLimiter
+ * with several threads hammering on requestInbound()
+ * (outbound is capped at FIFOBandwidthRefiller.MAX_OUTBOUND_BANDWIDTH).
+ *
+ * Two cases: a high limit, where almost everything should be
+ * satisfied immediately, and a low limit, where the threads
+ * mostly wait in the queue.
+ *
+ * Usage: BandwidthLimiterBench [threads [seconds]]
+ *
+ * There's no JMH in the Ant build, so this and the other new benchmarks
+ * are main() classes here in test/junit, like the existing *Bench classes.
+ *
+ * @since 0.9.21
+ */
+public class BandwidthLimiterBench {
+
+    private static final int REQUEST_SIZE = 1024;
+
+    private static void configure(int kbps) {
+        Properties props = System.getProperties();
+        props.setProperty(FIFOBandwidthRefiller.PROP_INBOUND_BANDWIDTH, "" + kbps);
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BANDWIDTH, "" + kbps);
+        props.setProperty(FIFOBandwidthRefiller.PROP_INBOUND_BURST_BANDWIDTH, "" + kbps);
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BURST_BANDWIDTH, "" + kbps);
+        props.setProperty(FIFOBandwidthRefiller.PROP_INBOUND_BANDWIDTH_PEAK, "" + kbps);
+        props.setProperty(FIFOBandwidthRefiller.PROP_OUTBOUND_BANDWIDTH_PEAK, "" + kbps);
+        System.setProperties(props);
+    }
+
+    private static void run(String name, final FIFOBandwidthLimiter limiter,
+                            int threads, long millis) throws InterruptedException {
+        // let the refiller pick up the config
+        Thread.sleep(500);
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong waits = new AtomicLong();
+        final long end = System.currentTimeMillis() + millis;
+        final CountDownLatch done = new CountDownLatch(threads);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    long r = 0;
+                    long w = 0;
+                    while (System.currentTimeMillis() < end) {
+                        FIFOBandwidthLimiter.Request req = limiter.requestInbound(REQUEST_SIZE, "bench");
+                        while (req.getPendingRequested() > 0) {
+                            req.waitForNextAllocation();
+                            w++;
+                        }
+                        r++;
+                    }
+                    requests.addAndGet(r);
+                    waits.addAndGet(w);
+                    done.countDown();
+                }
+            }, name + ' ' + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        done.await();
+        long time = System.currentTimeMillis() - start;
+        long n = requests.get();
+        System.out.println(name + ": " + threads + " threads " + time + "ms: " +
+                           (n * 1000 / time) + " requests/s, " +
+                           (n * REQUEST_SIZE / time) + " KBps granted, " +
+                           waits.get() + " waits, " +
+                           limiter.getTotalAllocatedInboundBytes() + " bytes allocated");
+        limiter.shutdown();
+    }
+
+    public static void main(String args[]) throws Exception {
+        int threads = 8;
+        long millis = 5*1000;
+        if (args.length > 0)
+            threads = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            millis = Long.parseLong(args[1]) * 1000;
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+
+        System.out.println("Unconstrained (1 GBps):");
+        configure(1024*1024);
+        run("FIFO", new FIFOBandwidthLimiter(ctx), threads, millis);
+        run("TokenBucket", new TokenBucketBandwidthLimiter(ctx), threads, millis);
+
+        System.out.println("Constrained (256 KBps):");
+        configure(256);
+        run("FIFO", new FIFOBandwidthLimiter(ctx), threads, millis);
+        run("TokenBucket", new TokenBucketBandwidthLimiter(ctx), threads, millis);
+    }
+}